@@ -0,0 +1,70 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import m3u.M3UParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long {@link M3UParser} takes over a whole playlist, both streaming
+ * entries to a handler and building the list of Files.
+ *
+ * @author Connor Findlay
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class M3UParserBenchmark {
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int songs;
+
+	private Path m3u;
+
+	@Setup(Level.Trial)
+	public void writePlaylist() throws IOException {
+		m3u = Playlists.write(songs);
+	}
+
+	@TearDown(Level.Trial)
+	public void deletePlaylist() throws IOException {
+		Files.delete(m3u);
+	}
+
+	@Benchmark
+	public int stream() throws IOException {
+		final int[] count = new int[1];
+		M3UParser.parse(m3u, new M3UParser.Handler() {
+			public boolean entry(String location, int duration, String title) {
+				count[0] += location.length();
+				return true;
+			}
+		});
+		return count[0];
+	}
+
+	@Benchmark
+	public ArrayList<File> fileList() {
+		return M3UParser.parse(m3u.toString());
+	}
+}
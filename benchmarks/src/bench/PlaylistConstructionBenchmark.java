@@ -0,0 +1,56 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import m3u.Playlist;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long it takes to load a {@link Playlist} from an M3U file: parsing,
+ * filling the song table and building both orders.
+ *
+ * @author Connor Findlay
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PlaylistConstructionBenchmark {
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int songs;
+
+	private Path m3u;
+
+	@Setup(Level.Trial)
+	public void writePlaylist() throws IOException {
+		m3u = Playlists.write(songs);
+	}
+
+	@TearDown(Level.Trial)
+	public void deletePlaylist() throws IOException {
+		Files.delete(m3u);
+	}
+
+	@Benchmark
+	public Playlist construct() {
+		return new Playlist(m3u.toString());
+	}
+}
@@ -0,0 +1,84 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import m3u.Playlist;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of one {@link Playlist#getSongAt(int)} call, the way the table
+ * uses it: scrolling down row by row, jumping about at random, or paging a
+ * screenful at a time.
+ *
+ * @author Connor Findlay
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PlaylistGetSongAtBenchmark {
+	// Indexes visited before the pattern repeats
+	private static final int VISITS = 1 << 16;
+	// Rows on a screen, for paging
+	private static final int PAGE = 40;
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int songs;
+
+	@Param({ "sequential", "random", "paged" })
+	public String pattern;
+
+	private Playlist playlist;
+	private int[] indexes;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void loadPlaylist() throws IOException {
+		Path m3u = Playlists.write(songs);
+		try {
+			playlist = new Playlist(m3u.toString());
+		} finally {
+			Files.delete(m3u);
+		}
+		indexes = new int[VISITS];
+		Random random = new Random(42);
+		int page = 0;
+		for (int i = 0; i < VISITS; i++) {
+			if ("sequential".equals(pattern)) {
+				indexes[i] = i % songs;
+			} else if ("random".equals(pattern)) {
+				indexes[i] = random.nextInt(songs);
+			} else {
+				if (i % PAGE == 0) {
+					page = random.nextInt(Math.max(1, songs - PAGE));
+				}
+				indexes[i] = Math.min(songs - 1, page + i % PAGE);
+			}
+		}
+	}
+
+	@Benchmark
+	public String getSongAt() {
+		int idx = indexes[next];
+		next = (next + 1) & (VISITS - 1);
+		return playlist.getSongAt(idx);
+	}
+}
@@ -0,0 +1,68 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import m3u.Playlist;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of one {@link Playlist#nextFile()} call, walking the playlist in
+ * order or shuffled, and starting over at the end.
+ *
+ * @author Connor Findlay
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PlaylistNextFileBenchmark {
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int songs;
+
+	@Param({ "false", "true" })
+	public boolean shuffled;
+
+	private Playlist playlist;
+
+	@Setup(Level.Trial)
+	public void loadPlaylist() throws IOException {
+		Path m3u = Playlists.write(songs);
+		try {
+			playlist = new Playlist(m3u.toString());
+		} finally {
+			Files.delete(m3u);
+		}
+		playlist.setShuffleStatus(shuffled);
+	}
+
+	@TearDown(Level.Iteration)
+	public void rewind() {
+		playlist.resetPlaylist();
+	}
+
+	@Benchmark
+	public String nextFile() throws IOException {
+		if (playlist.getCurrentSong() > playlist.songCount()) {
+			playlist.resetPlaylist();
+		}
+		return playlist.nextFile();
+	}
+}
@@ -0,0 +1,46 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Makes up playlists for the benchmarks to chew on: extended M3U, songs
+ * twelve to an album and ten albums to an artist, the way a real library
+ * is laid out.
+ *
+ * @author Connor Findlay
+ */
+final class Playlists {
+	private static final int SONGS_PER_ALBUM = 12;
+
+	private Playlists() {
+	}
+
+	/**
+	 * Write a playlist to a new temporary file.
+	 *
+	 * @param songs
+	 *            The number of songs in it.
+	 * @return The file; the caller deletes it.
+	 */
+	static Path write(int songs) throws IOException {
+		Path m3u = Files.createTempFile("bench", ".m3u8");
+		try (BufferedWriter out = Files.newBufferedWriter(m3u,
+				StandardCharsets.UTF_8)) {
+			out.write("#EXTM3U\n");
+			for (int i = 0; i < songs; i++) {
+				int album = i / SONGS_PER_ALBUM;
+				int track = i % SONGS_PER_ALBUM + 1;
+				out.write("#EXTINF:" + (180 + i % 120) + ",Artist " + album
+						/ 10 + " - Track " + track + "\n");
+				out.write("/srv/music/Artist " + album / 10 + "/Album "
+						+ album + "/" + (track < 10 ? "0" : "") + track
+						+ " - Track " + track + ".mp3\n");
+			}
+		}
+		return m3u;
+	}
+}
@@ -0,0 +1,160 @@
+package audio;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads behind one audio output. There are three kinds of work, and
+ * each gets its own threads:
+ * <ul>
+ * <li>Rendering: exactly one thread, at high priority, that feeds the output.
+ * Render tasks queue up behind each other, so there can never be two of them
+ * writing to the same line.</li>
+ * <li>Decoding and I/O: a small, fixed pool, for reading and decoding files
+ * and anything else that can take a while.</li>
+ * <li>Commands: one thread that carries out play, pause, seek and the like,
+ * in the order they were asked for. Callers never wait on it, so a slow
+ * command can't hold up the UI, and two quick commands can't race.</li>
+ * </ul>
+ * All of the threads are started once, and live as long as the scheduler.
+ *
+ * @author Connor Findlay
+ */
+public final class AudioScheduler {
+	private final ExecutorService render;
+	private final ExecutorService decode;
+	private final ExecutorService commands;
+
+	/**
+	 * Something for the command thread to do.
+	 */
+	public interface Command {
+		/**
+		 * Carry out the command. Anything thrown is reported, and the next
+		 * command carries on.
+		 */
+		void run() throws Exception;
+	}
+
+	/**
+	 * Create a scheduler with a decode pool sized to the machine: at least
+	 * two threads, so one song can be decoded while the next is opened, and
+	 * at most four.
+	 *
+	 * @param name
+	 *            Name of the output, used to name the threads.
+	 */
+	public AudioScheduler(String name) {
+		this(name, Math.max(2,
+				Math.min(4, Runtime.getRuntime().availableProcessors())));
+	}
+
+	/**
+	 * Create a scheduler.
+	 *
+	 * @param name
+	 *            Name of the output, used to name the threads.
+	 * @param decodeThreads
+	 *            The number of decode and I/O threads.
+	 */
+	public AudioScheduler(String name, int decodeThreads) {
+		render = Executors.newSingleThreadExecutor(new Factory(name
+				+ "-render", Thread.MAX_PRIORITY));
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(decodeThreads,
+				decodeThreads, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new Factory(name
+						+ "-decode", Thread.NORM_PRIORITY));
+		// Idle decode threads go away, but never more than the pool size
+		pool.allowCoreThreadTimeOut(true);
+		decode = pool;
+		commands = Executors.newSingleThreadExecutor(new Factory(name
+				+ "-command", Thread.NORM_PRIORITY + 1));
+	}
+
+	/**
+	 * Queue a task for the render thread. It starts once every render task
+	 * before it has finished.
+	 *
+	 * @return A future that completes when the task has.
+	 */
+	public Future<?> render(Runnable task) {
+		return render.submit(task);
+	}
+
+	/**
+	 * Run a task on the decode pool.
+	 *
+	 * @return A future that completes when the task has.
+	 */
+	public Future<?> decode(Runnable task) {
+		return decode.submit(task);
+	}
+
+	/**
+	 * Run a task on the decode pool.
+	 *
+	 * @return A future holding the task's result.
+	 */
+	public <T> Future<T> decode(Callable<T> task) {
+		return decode.submit(task);
+	}
+
+	/**
+	 * Queue a command. Commands are carried out one at a time, in the order
+	 * they were queued.
+	 *
+	 * @return A future that completes when the command has been carried out.
+	 */
+	public Future<?> command(final Command command) {
+		return commands.submit(new Runnable() {
+			public void run() {
+				try {
+					command.run();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop taking work. Work already queued is still carried out.
+	 */
+	public void shutdown() {
+		commands.shutdown();
+		render.shutdown();
+		decode.shutdown();
+	}
+
+	// -----Privates-----
+
+	/**
+	 * Makes named daemon threads, so a scheduler left running never keeps
+	 * the program alive.
+	 */
+	private static final class Factory implements ThreadFactory {
+		private final String name;
+		private final int priority;
+		private final AtomicInteger count = new AtomicInteger();
+
+		Factory(String name, int priority) {
+			this.name = name;
+			this.priority = priority;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			t.setPriority(priority);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package audio;
+
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+
+/**
+ * Somewhere for decoded audio to go. The player writes to a sink the same way
+ * whatever it is: a sound card, a file, a pipe to another program, or
+ * nowhere at all.
+ *
+ * The player asks the sink once, with {@link #negotiate(AudioFormat)}, what
+ * format it would like, and converts every song to that. A sink is opened in
+ * that format when playback starts, and closed when playback stops; it may be
+ * opened again afterwards. Only the render thread uses a sink, so
+ * implementations need not be thread safe, except for
+ * {@link #getFramePosition()}.
+ *
+ * @author Connor Findlay
+ */
+public interface AudioSink {
+	/**
+	 * Get ready to take audio in the given format.
+	 *
+	 * @param format
+	 *            The format of everything written until the sink is closed.
+	 * @throws LineUnavailableException
+	 *             If there is no sound card line for the format.
+	 * @throws IOException
+	 *             If the sink's file or stream can't be opened.
+	 */
+	void open(AudioFormat format) throws LineUnavailableException,
+			IOException;
+
+	/**
+	 * Pick the format to be opened in, given the one the player would like.
+	 * Sinks that take any PCM format take the one wanted.
+	 *
+	 * @param wanted
+	 *            Integer PCM, in the player's preferred rate, channels and
+	 *            sample size.
+	 * @return wanted if the sink takes it, otherwise the nearest format it
+	 *         does.
+	 */
+	AudioFormat negotiate(AudioFormat wanted);
+
+	/**
+	 * Write whole frames of audio. A real time sink blocks until there is room
+	 * for them; other sinks take them as fast as they can.
+	 *
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 *             If the audio can't be written.
+	 */
+	int write(byte[] b, int off, int len) throws IOException;
+
+	/**
+	 * Wait until everything written has been played or stored.
+	 */
+	void drain() throws IOException;
+
+	/**
+	 * Throw away anything written but not yet played.
+	 */
+	void flush();
+
+	/**
+	 * Finish up. The sink can be opened again afterwards.
+	 */
+	void close() throws IOException;
+
+	/**
+	 * @return true if the sink plays at the speed of the audio, as a sound
+	 *         card does; false if it takes audio as fast as it is given.
+	 */
+	boolean isRealTime();
+
+	/**
+	 * @return The number of frames played, or stored, since the sink was
+	 *         opened. Safe to call from any thread.
+	 */
+	long getFramePosition();
+}
@@ -0,0 +1,198 @@
+package audio;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Fades one song out and the next one in over the same stretch of time,
+ * with an equal power curve: the outgoing song is scaled by the cosine and
+ * the incoming one by the sine of a quarter turn spread over the fade, so
+ * the loudness holds steady through the middle rather than dipping.
+ *
+ * The mix is made in the outgoing song's format, a block at a time, in
+ * place: each block of the outgoing song is handed in, the same length of
+ * the incoming song is read from its stream, and the mixed block replaces
+ * the outgoing one. When the outgoing song runs out, the incoming one just
+ * carries on from where the fade left its stream, in its own format, so the
+ * two songs must share a sample rate; a resampler's delay would otherwise
+ * put a jump at the join.
+ *
+ * Each song can have a gain of its own, to even out their loudness; the
+ * mix is made with both applied, so the fade needs no more gain after it.
+ *
+ * The float blocks are allocated once and reused for every fade; mixing
+ * allocates nothing. A crossfader is used by one thread at a time.
+ *
+ * @author Connor Findlay
+ */
+public final class Crossfader {
+	private final int maxBytes;
+	private FormatConverter outgoing, incoming;
+	private AudioFormat outgoingFormat;
+	private int outFrameSize, inFrameSize, channels;
+	private float[] outBlock, inBlock;
+	private byte[] inBytes = new byte[0];
+	private boolean fading;
+	// The length of the fade and how far in it is, in frames
+	private long length, done;
+	private long incomingFrames;
+	private float outGain, inGain;
+
+	/**
+	 * @param maxBytes
+	 *            The most bytes of the outgoing song passed to one call of
+	 *            {@link #mix(byte[], int, int, InputStream)}.
+	 */
+	public Crossfader(int maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Begin a fade.
+	 *
+	 * @param out
+	 *            The outgoing song's format.
+	 * @param in
+	 *            The incoming song's format.
+	 * @param frames
+	 *            The length of the fade, in frames; it ends when the outgoing
+	 *            song does.
+	 * @param outGain
+	 *            The outgoing song's gain.
+	 * @param inGain
+	 *            The incoming song's gain.
+	 * @return false if the songs can't be faded into each other: their
+	 *         sample rates differ, or the outgoing song isn't integer PCM.
+	 */
+	public boolean start(AudioFormat out, AudioFormat in, long frames,
+			float outGain, float inGain) {
+		AudioFormat.Encoding e = out.getEncoding();
+		if (Math.round(out.getSampleRate()) != Math.round(in.getSampleRate())
+				|| !(e.equals(AudioFormat.Encoding.PCM_SIGNED) || e
+						.equals(AudioFormat.Encoding.PCM_UNSIGNED))) {
+			return false;
+		}
+		if (outgoingFormat == null || !outgoingFormat.matches(out)) {
+			outgoingFormat = out;
+			outgoing = new FormatConverter(out);
+			incoming = new FormatConverter(out);
+			outgoing.setInput(out);
+			outFrameSize = out.getFrameSize();
+			channels = out.getChannels();
+			int samples = maxBytes / outFrameSize * channels;
+			if (outBlock == null || outBlock.length < samples) {
+				outBlock = new float[samples];
+				inBlock = new float[samples];
+			}
+		}
+		incoming.setInput(in);
+		inFrameSize = in.getFrameSize();
+		int size = maxBytes / outFrameSize * inFrameSize;
+		if (inBytes.length < size) {
+			inBytes = new byte[size];
+		}
+		length = Math.max(frames, 1);
+		done = 0;
+		incomingFrames = 0;
+		this.outGain = outGain;
+		this.inGain = inGain;
+		fading = true;
+		return true;
+	}
+
+	/**
+	 * @return true from a successful {@link #start} until {@link #stop()}.
+	 */
+	public boolean isFading() {
+		return fading;
+	}
+
+	/**
+	 * @return The frames of the incoming song read so far in this fade.
+	 */
+	public long getIncomingFrames() {
+		return incomingFrames;
+	}
+
+	/**
+	 * Mix a block of the outgoing song with the same length of the incoming
+	 * one, in place. If the incoming song runs out first, the rest of the
+	 * fade is the outgoing song fading to silence.
+	 *
+	 * @param b
+	 *            The outgoing song.
+	 * @param off
+	 *            Where the block starts.
+	 * @param len
+	 *            Its length in bytes, a whole number of frames.
+	 * @param in
+	 *            The incoming song's stream, read as far as the block goes.
+	 * @throws IOException
+	 *             If the incoming song can't be read.
+	 */
+	public void mix(byte[] b, int off, int len, InputStream in)
+			throws IOException {
+		int frames = len / outFrameSize;
+		float[] o = outBlock, n = inBlock;
+		outgoing.toFloats(b, off, frames * outFrameSize, o);
+		int read = readFrames(in, inBytes, frames * inFrameSize);
+		int got = incoming.toFloats(inBytes, 0, read, n);
+		incomingFrames += got;
+		for (int i = got * channels; i < frames * channels; i++) {
+			n[i] = 0;
+		}
+		// Turn the gains through the quarter turn by rotation, a frame at a
+		// time, starting exactly where this block falls in the fade
+		double step = Math.PI / 2 / length;
+		double angle = Math.min((done + 0.5) * step, Math.PI / 2);
+		double cos = Math.cos(angle), sin = Math.sin(angle);
+		double gOut = outGain, gIn = inGain;
+		double cosStep = Math.cos(step), sinStep = Math.sin(step);
+		long end = length - done;
+		for (int f = 0, i = 0; f < frames; f++) {
+			if (f >= end) {
+				// The outgoing song was longer than it said
+				cos = 0;
+				sin = 1;
+			}
+			double wOut = cos * gOut, wIn = sin * gIn;
+			for (int c = 0; c < channels; c++, i++) {
+				o[i] = (float) (o[i] * wOut + n[i] * wIn);
+			}
+			double next = cos * cosStep - sin * sinStep;
+			sin = sin * cosStep + cos * sinStep;
+			cos = next;
+		}
+		done += frames;
+		outgoing.fromFloats(o, frames, b, off);
+	}
+
+	/**
+	 * Finish with the fade; the incoming song's stream is left where it is.
+	 */
+	public void stop() {
+		fading = false;
+	}
+
+	// -----Privates-----
+
+	/**
+	 * Read up to len bytes, stopping early only at the end of the stream.
+	 *
+	 * @return The bytes read, a whole number of frames.
+	 */
+	private int readFrames(InputStream in, byte[] b, int len)
+			throws IOException {
+		int got = 0;
+		while (got < len) {
+			int n = in.read(b, got, len - got);
+			if (n == -1) {
+				break;
+			}
+			got += n;
+		}
+		return got - got % inFrameSize;
+	}
+}
@@ -0,0 +1,369 @@
+package audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Turns PCM audio in whatever format a song comes in into the one fixed
+ * format an output was opened with: sample rate, channel count, sample size,
+ * signedness and byte order. It lets one sound card line play every song,
+ * instead of a line being opened for each song's own format.
+ *
+ * Samples are read into floats and mapped onto the output channels, then
+ * resampled with a {@link Resampler} if the rates differ, then written out.
+ * Fewer output channels than input channels get the average of the input
+ * channels that fold onto them; more get the input channels repeated, so
+ * mono plays on both sides. When the output has 16 bits or fewer and the
+ * audio has been through any arithmetic, it is dithered with triangular
+ * noise of one least significant bit, so quiet passages fade out smoothly
+ * rather than breaking up.
+ *
+ * A gain can be set, to even out the loudness of songs; it is folded into
+ * the scaling each sample gets on the way out anyway, so it costs nothing
+ * extra, but it does mean even audio already in the output format goes
+ * through the conversion rather than being copied.
+ *
+ * Memory is allocated only when the input format changes; converting a
+ * block allocates nothing. A converter is used by one thread at a time.
+ *
+ * @author Connor Findlay
+ */
+public final class FormatConverter {
+	// Frames converted in one pass
+	private static final int CHUNK = 4096;
+
+	private final AudioFormat output;
+	private final int outChannels, outBytes, outFrameSize;
+	private final boolean outBigEndian, outSigned;
+	private final int outRate;
+
+	private AudioFormat input;
+	private boolean passThrough;
+	private boolean sameFormat;
+	private float gain = 1;
+	private int inChannels, inBytes, inFrameSize;
+	private boolean inBigEndian, inSigned, inFloat;
+	private boolean dither;
+	private Resampler resampler;
+	// The input on the output's channels, and resampled
+	private final float[] mixed;
+	// One over the number of input channels folded onto each output one
+	private final float[] fold;
+	private float[] resampled;
+	private int random = 0x2545F491;
+
+	/**
+	 * @param output
+	 *            The format everything is converted to: signed or unsigned
+	 *            integer PCM, 8 to 32 bits.
+	 */
+	public FormatConverter(AudioFormat output) {
+		AudioFormat.Encoding e = output.getEncoding();
+		if (!e.equals(AudioFormat.Encoding.PCM_SIGNED)
+				&& !e.equals(AudioFormat.Encoding.PCM_UNSIGNED)) {
+			throw new IllegalArgumentException("Can't convert to " + output);
+		}
+		this.output = output;
+		this.outChannels = output.getChannels();
+		this.outBytes = (output.getSampleSizeInBits() + 7) / 8;
+		this.outFrameSize = outBytes * outChannels;
+		this.outBigEndian = output.isBigEndian();
+		this.outSigned = e.equals(AudioFormat.Encoding.PCM_SIGNED);
+		this.outRate = Math.round(output.getSampleRate());
+		this.mixed = new float[CHUNK * outChannels];
+		this.fold = new float[outChannels];
+	}
+
+	/**
+	 * @return The format everything is converted to.
+	 */
+	public AudioFormat getOutputFormat() {
+		return output;
+	}
+
+	/**
+	 * Set the format of the audio to be converted from now on. If the sample
+	 * rate hasn't changed, the resampler's history carries on, so songs join
+	 * without a click; otherwise it starts afresh.
+	 *
+	 * @param format
+	 *            PCM audio: integer, of up to 32 bits, or 32 bit float.
+	 */
+	public void setInput(AudioFormat format) {
+		AudioFormat.Encoding e = format.getEncoding();
+		int bits = format.getSampleSizeInBits();
+		boolean pcmFloat = e.equals(AudioFormat.Encoding.PCM_FLOAT);
+		boolean pcm = e.equals(AudioFormat.Encoding.PCM_SIGNED)
+				|| e.equals(AudioFormat.Encoding.PCM_UNSIGNED);
+		// Samples are put together in an int
+		if (!(pcm && bits >= 1 && bits <= 32 || pcmFloat && bits == 32)) {
+			throw new IllegalArgumentException("Can't convert from " + format);
+		}
+		int rate = Math.round(format.getSampleRate());
+		boolean sameRate = input != null
+				&& Math.round(input.getSampleRate()) == rate;
+		input = format;
+		sameFormat = format.matches(output) && output.matches(format);
+		passThrough = sameFormat && gain == 1;
+		inChannels = format.getChannels();
+		inBytes = (format.getSampleSizeInBits() + 7) / 8;
+		inFrameSize = inBytes * inChannels;
+		inBigEndian = format.isBigEndian();
+		inSigned = !e.equals(AudioFormat.Encoding.PCM_UNSIGNED);
+		inFloat = pcmFloat;
+		for (int c = 0; c < outChannels; c++) {
+			fold[c] = 1f / Math.max(1, (inChannels - c + outChannels - 1)
+					/ outChannels);
+		}
+		if (rate == outRate) {
+			resampler = null;
+		} else if (!sameRate || resampler == null) {
+			resampler = new Resampler(outChannels, rate, outRate, CHUNK);
+			int size = resampler.maxOutputFrames(CHUNK) * outChannels;
+			if (resampled == null || resampled.length < size) {
+				resampled = new float[size];
+			}
+		}
+		updateDither();
+	}
+
+	/**
+	 * Set the gain applied to everything converted from now on.
+	 *
+	 * @param gain
+	 *            What to multiply each sample by; 1 to leave it be.
+	 */
+	public void setGain(float gain) {
+		this.gain = gain;
+		passThrough = sameFormat && gain == 1;
+		if (input != null) {
+			updateDither();
+		}
+	}
+
+	/**
+	 * @return true if the input is already in the output format, and needs
+	 *         no converting.
+	 */
+	public boolean isPassThrough() {
+		return passThrough;
+	}
+
+	/**
+	 * @return The most bytes {@link #convert(byte[], int, int, byte[], int)}
+	 *         can produce from {@code len} bytes of input.
+	 */
+	public int maxOutputBytes(int len) {
+		int frames = len / inFrameSize;
+		if (resampler != null) {
+			int chunks = (frames + CHUNK - 1) / CHUNK;
+			frames = chunks * resampler.maxOutputFrames(CHUNK);
+		}
+		return frames * outFrameSize;
+	}
+
+	/**
+	 * Forget the resampler's history, as at a seek.
+	 */
+	public void reset() {
+		if (resampler != null) {
+			resampler.reset();
+		}
+	}
+
+	/**
+	 * Convert whole frames of input.
+	 *
+	 * @param b
+	 *            The input, in the format last set.
+	 * @param off
+	 *            Where it starts.
+	 * @param len
+	 *            Its length in bytes, a whole number of frames.
+	 * @param dst
+	 *            Where the output goes; room for {@link #maxOutputBytes(int)}
+	 *            of it.
+	 * @param dstOff
+	 *            Where in dst to start.
+	 * @return The number of bytes written to dst.
+	 */
+	public int convert(byte[] b, int off, int len, byte[] dst, int dstOff) {
+		if (passThrough) {
+			System.arraycopy(b, off, dst, dstOff, len);
+			return len;
+		}
+		int frames = len / inFrameSize;
+		int q = dstOff;
+		for (int done = 0; done < frames; done += CHUNK) {
+			int n = Math.min(CHUNK, frames - done);
+			mix(b, off + done * inFrameSize, n);
+			if (resampler != null) {
+				n = resampler.process(mixed, n, resampled);
+				q = write(resampled, n, dst, q);
+			} else {
+				q = write(mixed, n, dst, q);
+			}
+		}
+		return q - dstOff;
+	}
+
+	/**
+	 * Convert whole frames of input as far as floats, for audio that is to
+	 * be worked on before it goes out: on the output's channels, at its rate,
+	 * from -1 to 1, interleaved.
+	 *
+	 * @param dst
+	 *            Where the floats go; room for a sample for each of the
+	 *            output's channels in each of the
+	 *            {@link #maxOutputBytes(int)} / frame size frames.
+	 * @return The number of frames written to dst.
+	 */
+	public int toFloats(byte[] b, int off, int len, float[] dst) {
+		int frames = len / inFrameSize;
+		int q = 0;
+		for (int done = 0; done < frames; done += CHUNK) {
+			int n = Math.min(CHUNK, frames - done);
+			mix(b, off + done * inFrameSize, n);
+			float[] src = mixed;
+			if (resampler != null) {
+				n = resampler.process(mixed, n, resampled);
+				src = resampled;
+			}
+			System.arraycopy(src, 0, dst, q, n * outChannels);
+			q += n * outChannels;
+		}
+		return q / outChannels;
+	}
+
+	/**
+	 * Write floats out in the output format, dithered as {@link #convert}
+	 * would be.
+	 *
+	 * @param src
+	 *            Interleaved frames on the output's channels, from -1 to 1.
+	 * @param frames
+	 *            How many.
+	 * @param dst
+	 *            Where they go.
+	 * @param dstOff
+	 *            Where in dst to start.
+	 * @return The number of bytes written to dst.
+	 */
+	public int fromFloats(float[] src, int frames, byte[] dst, int dstOff) {
+		return write(src, frames, dst, dstOff) - dstOff;
+	}
+
+	// -----Privates-----
+
+	/**
+	 * Dither whenever the output has 16 bits or fewer and has had any
+	 * arithmetic done to it.
+	 */
+	private void updateDither() {
+		dither = outBytes <= 2
+				&& (resampler != null || inFloat || inBytes > outBytes
+						|| inChannels > outChannels || gain != 1);
+	}
+
+	/**
+	 * Read frames of input into mixed, on the output's channels.
+	 */
+	private void mix(byte[] b, int p, int frames) {
+		int in = inChannels, out = outChannels;
+		float[] m = mixed;
+		if (in <= out) {
+			for (int f = 0, i = 0; f < frames; f++, p += inFrameSize) {
+				for (int c = 0; c < out; c++) {
+					m[i++] = sample(b, p + (c % in) * inBytes);
+				}
+			}
+		} else {
+			for (int f = 0, i = 0; f < frames; f++, p += inFrameSize, i += out) {
+				for (int c = 0; c < out; c++) {
+					m[i + c] = 0;
+				}
+				for (int c = 0; c < in; c++) {
+					m[i + c % out] += sample(b, p + c * inBytes);
+				}
+				for (int c = 0; c < out; c++) {
+					m[i + c] *= fold[c];
+				}
+			}
+		}
+	}
+
+	private float sample(byte[] b, int p) {
+		if (inBytes == 2 && inSigned) {
+			// Nearly everything is 16 bit signed
+			int v = inBigEndian ? b[p] << 8 | b[p + 1] & 0xFF : b[p + 1] << 8
+					| b[p] & 0xFF;
+			return v / 32768f;
+		}
+		int v = 0;
+		for (int i = 0; i < inBytes; i++) {
+			int shift = 8 * (inBigEndian ? inBytes - 1 - i : i);
+			v |= (b[p + i] & 0xFF) << shift;
+		}
+		if (inFloat) {
+			return Float.intBitsToFloat(v);
+		}
+		int bits = 8 * inBytes;
+		if (!inSigned) {
+			v -= 1 << bits - 1;
+		} else if (bits < 32) {
+			// Sign extend
+			v = v << 32 - bits >> 32 - bits;
+		}
+		return v / (float) (1L << bits - 1);
+	}
+
+	/**
+	 * Write frames of floats to dst in the output format.
+	 *
+	 * @return Where in dst the next frame goes.
+	 */
+	private int write(float[] src, int frames, byte[] dst, int q) {
+		int bits = 8 * outBytes;
+		// The gain rides along with the scaling to whole numbers
+		float scale = (1L << bits - 1) * gain;
+		long max = (1L << bits - 1) - 1, min = -(1L << bits - 1);
+		int samples = frames * outChannels;
+		for (int i = 0; i < samples; i++) {
+			float v = src[i] * scale;
+			if (dither) {
+				v += noise() - noise();
+			}
+			long s = Math.round(v);
+			if (s > max) {
+				s = max;
+			} else if (s < min) {
+				s = min;
+			}
+			if (!outSigned) {
+				s -= min;
+			}
+			if (outBytes == 2 && !outBigEndian) {
+				dst[q] = (byte) s;
+				dst[q + 1] = (byte) (s >> 8);
+			} else {
+				for (int k = 0; k < outBytes; k++) {
+					int shift = 8 * (outBigEndian ? outBytes - 1 - k : k);
+					dst[q + k] = (byte) (s >> shift);
+				}
+			}
+			q += outBytes;
+		}
+		return q;
+	}
+
+	/**
+	 * @return Uniform noise from 0 to 1, by xorshift.
+	 */
+	private float noise() {
+		int x = random;
+		x ^= x << 13;
+		x ^= x >>> 17;
+		x ^= x << 5;
+		random = x;
+		return (x >>> 8) / (float) (1 << 24);
+	}
+}
@@ -0,0 +1,91 @@
+package audio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Plays audio on the sound card, through a {@link SourceDataLine}. Each time
+ * the sink is opened it gets a fresh line for the format; a closed line is
+ * never reused.
+ *
+ * When negotiating, the wanted format is tried first, then the common
+ * sound card rates, then mono, keeping the sample size; some cards only take
+ * one rate, and some only take the rates they were set up for.
+ *
+ * @author Connor Findlay
+ */
+public class LineSink implements AudioSink {
+	private static final float[] RATES = { 48000, 44100 };
+	private volatile SourceDataLine line;
+
+	@Override
+	public AudioFormat negotiate(AudioFormat wanted) {
+		if (supported(wanted)) {
+			return wanted;
+		}
+		for (int channels = wanted.getChannels(); channels >= 1; channels--) {
+			for (float rate : RATES) {
+				AudioFormat f = new AudioFormat(rate,
+						wanted.getSampleSizeInBits(), channels, true,
+						wanted.isBigEndian());
+				if (supported(f)) {
+					return f;
+				}
+			}
+		}
+		// Nothing says yes; opening will say why
+		return wanted;
+	}
+
+	@Override
+	public void open(AudioFormat format) throws LineUnavailableException {
+		SourceDataLine l = AudioSystem.getSourceDataLine(format);
+		l.open(format);
+		l.start();
+		line = l;
+	}
+
+	@Override
+	public int write(byte[] b, int off, int len) {
+		return line.write(b, off, len);
+	}
+
+	@Override
+	public void drain() {
+		line.drain();
+	}
+
+	@Override
+	public void flush() {
+		line.flush();
+	}
+
+	@Override
+	public void close() {
+		SourceDataLine l = line;
+		if (l != null) {
+			l.close();
+		}
+	}
+
+	@Override
+	public boolean isRealTime() {
+		return true;
+	}
+
+	@Override
+	public long getFramePosition() {
+		SourceDataLine l = line;
+		return l == null ? 0 : l.getLongFramePosition();
+	}
+
+	// -----Privates-----
+
+	private static boolean supported(AudioFormat format) {
+		return AudioSystem.isLineSupported(new DataLine.Info(
+				SourceDataLine.class, format));
+	}
+}
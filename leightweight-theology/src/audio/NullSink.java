@@ -0,0 +1,54 @@
+package audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Throws audio away as fast as it comes, counting the frames. With this sink
+ * the player runs as fast as it can decode, which makes it the one to use for
+ * timing the pipeline, or running it with no sound card.
+ *
+ * @author Connor Findlay
+ */
+public class NullSink implements AudioSink {
+	private int frameSize = 1;
+	private volatile long frames;
+
+	@Override
+	public void open(AudioFormat format) {
+		frameSize = format.getFrameSize();
+		frames = 0;
+	}
+
+	@Override
+	public int write(byte[] b, int off, int len) {
+		frames += len / frameSize;
+		return len;
+	}
+
+	@Override
+	public void drain() {
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public AudioFormat negotiate(AudioFormat wanted) {
+		return wanted;
+	}
+
+	@Override
+	public boolean isRealTime() {
+		return false;
+	}
+
+	@Override
+	public long getFramePosition() {
+		return frames;
+	}
+}
@@ -0,0 +1,92 @@
+package audio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Writes raw PCM, with no header, to a channel: a named pipe, a socket, or
+ * another program's standard input. The audio goes out exactly as decoded,
+ * so the reader has to be told the format some other way. Writes only block
+ * when the reader falls behind.
+ *
+ * The channel is left open when the sink closes, so the sink can be opened
+ * again and carry on writing; close the channel when done with the sink.
+ *
+ * @author Connor Findlay
+ */
+public class PipeSink implements AudioSink {
+	private final WritableByteChannel out;
+	private int frameSize = 1;
+	private volatile long frames;
+	// The caller's array, wrapped; the render thread reuses one array
+	private byte[] wrapped;
+	private ByteBuffer buffer;
+
+	/**
+	 * @param out
+	 *            Where to write the audio.
+	 */
+	public PipeSink(WritableByteChannel out) {
+		this.out = out;
+	}
+
+	/**
+	 * @param out
+	 *            Where to write the audio, such as System.out.
+	 */
+	public PipeSink(OutputStream out) {
+		this(Channels.newChannel(out));
+	}
+
+	@Override
+	public void open(AudioFormat format) {
+		frameSize = format.getFrameSize();
+		frames = 0;
+	}
+
+	@Override
+	public int write(byte[] b, int off, int len) throws IOException {
+		if (b != wrapped) {
+			wrapped = b;
+			buffer = ByteBuffer.wrap(b);
+		}
+		buffer.limit(off + len).position(off);
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+		frames += len / frameSize;
+		return len;
+	}
+
+	@Override
+	public void drain() {
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public AudioFormat negotiate(AudioFormat wanted) {
+		return wanted;
+	}
+
+	@Override
+	public boolean isRealTime() {
+		return false;
+	}
+
+	@Override
+	public long getFramePosition() {
+		return frames;
+	}
+}
@@ -0,0 +1,151 @@
+package audio;
+
+/**
+ * Where playback is in the current song, to the sample frame, as heard.
+ *
+ * The player counts the frames of the song it writes to the sink; the sink
+ * counts the frames it has played since it was opened. The difference is
+ * what's still queued in the sound card, so the frame being heard is the
+ * frames written less that. Decoded audio still in the player's own buffer
+ * isn't counted at all, as it hasn't been written. The sink may run at a
+ * different rate from the song, when the song is resampled on the way; what's
+ * queued is scaled from the one to the other.
+ *
+ * One thread at a time writes: the render thread while playing, the player's
+ * command thread otherwise. Reading is lock free and allocates nothing, so
+ * it may be done from any thread as often as wanted: the writer bumps a
+ * sequence number before and after each change, and a reader retries if it
+ * changed while it looked.
+ *
+ * @author Connor Findlay
+ */
+public final class PlaybackPosition {
+	private final AudioSink sink;
+	private final long interval;
+	// Odd while a change is being made
+	private volatile int sequence;
+	// Frames of the song written to the sink, and written since it opened
+	private volatile long songWritten;
+	private volatile long sinkWritten;
+	private volatile boolean sinkOpen;
+	private volatile float sinkRate = 44100;
+	private volatile long length = -1;
+	private volatile float frameRate = 44100;
+	// Writer only
+	private long lastPublished;
+
+	/**
+	 * @param sink
+	 *            The sink the song is played through.
+	 * @param intervalMillis
+	 *            How often, at most, {@link #written(int, int)} says it's time to
+	 *            tell listeners of the position.
+	 */
+	public PlaybackPosition(AudioSink sink, long intervalMillis) {
+		this.sink = sink;
+		this.interval = intervalMillis * 1000000;
+	}
+
+	/**
+	 * A song is about to be played from a frame: a new song from the start,
+	 * or the same one after a seek.
+	 *
+	 * @param frame
+	 *            The frame of the song to be written next.
+	 * @param frameLength
+	 *            The length of the song in frames, or -1 if not known.
+	 * @param rate
+	 *            Its frames per second.
+	 */
+	public void setSong(long frame, long frameLength, float rate) {
+		sequence++;
+		songWritten = frame;
+		// Whatever of the last song is still queued is counted against
+		// this one; the position stays at the start until it has played
+		length = frameLength;
+		frameRate = rate;
+		sequence++;
+	}
+
+	/**
+	 * The sink has been opened, and has played nothing.
+	 *
+	 * @param rate
+	 *            The sink's frames per second.
+	 */
+	public void sinkOpened(float rate) {
+		sequence++;
+		sinkWritten = 0;
+		sinkRate = rate;
+		sinkOpen = true;
+		sequence++;
+	}
+
+	/**
+	 * The sink has been closed, with everything written played or thrown
+	 * away.
+	 */
+	public void sinkClosed() {
+		sequence++;
+		sinkOpen = false;
+		sequence++;
+	}
+
+	/**
+	 * Frames of the song have been written to the sink.
+	 *
+	 * @param songFrames
+	 *            How many frames of the song.
+	 * @param sinkFrames
+	 *            How many frames they came to at the sink's rate.
+	 * @return true if it's been long enough since the last time this said so
+	 *         that listeners should be told the position.
+	 */
+	public boolean written(int songFrames, int sinkFrames) {
+		sequence++;
+		songWritten += songFrames;
+		sinkWritten += sinkFrames;
+		sequence++;
+		long now = System.nanoTime();
+		if (now - lastPublished >= interval) {
+			lastPublished = now;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return The frame of the song being heard.
+	 */
+	public long getFrame() {
+		while (true) {
+			int seq = sequence;
+			long song = songWritten;
+			long written = sinkWritten;
+			boolean open = sinkOpen;
+			float scale = frameRate / sinkRate;
+			if ((seq & 1) == 0 && seq == sequence) {
+				long queued = open ? written - sink.getFramePosition() : 0;
+				if (queued <= 0) {
+					return song;
+				}
+				return Math.max(song - (long) (queued * scale), 0);
+			}
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * @return The length of the song in frames, or -1 if not known.
+	 */
+	public long getFrameLength() {
+		return length;
+	}
+
+	/**
+	 * @return The song's frames per second.
+	 */
+	public float getFrameRate() {
+		return frameRate;
+	}
+}
@@ -0,0 +1,228 @@
+package audio;
+
+import java.util.Arrays;
+
+/**
+ * Changes the sample rate of interleaved float audio, a block at a time,
+ * with a polyphase windowed sinc filter.
+ *
+ * The rates are reduced to a ratio up:down, and the filter is designed once
+ * as if the input were stuffed with up - 1 zeros between samples, low pass
+ * filtered below the lower of the two Nyquist frequencies, and every down'th
+ * sample kept. Only the taps that land on real samples are ever multiplied,
+ * so each output frame costs a phase's worth of multiply-adds a channel,
+ * {@link #TAPS} unless told otherwise, whatever the ratio. Each phase is
+ * normalised to unity gain, so a constant signal stays constant.
+ *
+ * All the memory is allocated up front; processing allocates nothing. The
+ * filter remembers the last few input frames, so consecutive blocks join
+ * seamlessly. It delays the audio by half a phase's taps, in input frames.
+ *
+ * @author Connor Findlay
+ */
+public final class Resampler {
+	/** Taps a phase; 64 gives a transition band about 7% of the input rate */
+	public static final int TAPS = 64;
+	// More phases than this and the ratio is rounded; at this many it's
+	// within 0.05% of the true one, which no one can hear
+	private static final int MAX_PHASES = 1024;
+	// Kaiser window shape; about 80dB of stop band rejection
+	private static final double BETA = 8;
+	// Where the pass band ends, as a fraction of the lower Nyquist frequency
+	private static final double CUTOFF = 0.94;
+
+	private final int channels;
+	private final int taps;
+	private final int up, down;
+	private final int maxFrames;
+	// Phase p's taps are at p * taps, oldest input frame first
+	private final float[] coefficients;
+	// The history, then the block being processed; interleaved
+	private final float[] buffer;
+	// Frames in buffer, and the newest frame the next output needs
+	private int count, index;
+	private int phase;
+
+	/**
+	 * @param channels
+	 *            Channels in each frame.
+	 * @param inRate
+	 *            Input frames per second.
+	 * @param outRate
+	 *            Output frames per second.
+	 * @param maxFrames
+	 *            The most input frames passed to one call of
+	 *            {@link #process(float[], int, float[])}.
+	 */
+	public Resampler(int channels, int inRate, int outRate, int maxFrames) {
+		this(channels, inRate, outRate, maxFrames, TAPS);
+	}
+
+	/**
+	 * A resampler with a shorter or longer filter: cheaper, with a wider
+	 * transition band, or dearer, with a narrower one.
+	 *
+	 * @param channels
+	 *            Channels in each frame.
+	 * @param inRate
+	 *            Input frames per second.
+	 * @param outRate
+	 *            Output frames per second.
+	 * @param maxFrames
+	 *            The most input frames passed to one call of
+	 *            {@link #process(float[], int, float[])}.
+	 * @param taps
+	 *            Taps a phase.
+	 */
+	public Resampler(int channels, int inRate, int outRate, int maxFrames,
+			int taps) {
+		int gcd = gcd(inRate, outRate);
+		int u = outRate / gcd;
+		int d = inRate / gcd;
+		if (u > MAX_PHASES) {
+			d = (int) Math.max(1, Math.round((double) d * MAX_PHASES / u));
+			u = MAX_PHASES;
+		}
+		this.channels = channels;
+		this.taps = taps;
+		this.up = u;
+		this.down = d;
+		this.maxFrames = maxFrames;
+		this.coefficients = design(taps, u, d);
+		this.buffer = new float[(taps + maxFrames) * channels];
+		reset();
+	}
+
+	/**
+	 * @return The most output frames {@code inFrames} input frames can
+	 *         produce.
+	 */
+	public int maxOutputFrames(int inFrames) {
+		return (int) (((long) inFrames + 1) * up / down) + 1;
+	}
+
+	/**
+	 * Forget the history, as at a seek, so the next block starts from
+	 * silence.
+	 */
+	public void reset() {
+		count = taps - 1;
+		index = taps - 1;
+		phase = 0;
+		Arrays.fill(buffer, 0, count * channels, 0f);
+	}
+
+	/**
+	 * Resample a block.
+	 *
+	 * @param in
+	 *            Interleaved input frames.
+	 * @param frames
+	 *            How many; no more than the maximum given when this was made.
+	 * @param out
+	 *            Where the output frames go, interleaved; room for
+	 *            {@link #maxOutputFrames(int)} of them.
+	 * @return The number of output frames.
+	 */
+	public int process(float[] in, int frames, float[] out) {
+		if (frames > maxFrames) {
+			throw new IllegalArgumentException(frames + " frames; at most "
+					+ maxFrames);
+		}
+		int ch = channels;
+		int taps = this.taps;
+		System.arraycopy(in, 0, buffer, count * ch, frames * ch);
+		count += frames;
+		float[] buf = buffer;
+		float[] coeff = coefficients;
+		int n = 0;
+		while (index < count) {
+			int start = (index - taps + 1) * ch;
+			int c0 = phase * taps;
+			for (int c = 0; c < ch; c++) {
+				float sum = 0;
+				int p = start + c;
+				for (int k = 0; k < taps; k++, p += ch) {
+					sum += buf[p] * coeff[c0 + k];
+				}
+				out[n * ch + c] = sum;
+			}
+			n++;
+			phase += down;
+			index += phase / up;
+			phase %= up;
+		}
+		// Keep what the next output needs; when decimating hard, index may
+		// already be past the end, and the frames in between are skipped
+		// as they come
+		int keep = index - taps + 1;
+		if (keep > count) {
+			keep = count;
+		}
+		System.arraycopy(buf, keep * ch, buf, 0, (count - keep) * ch);
+		count -= keep;
+		index -= keep;
+		return n;
+	}
+
+	// -----Privates-----
+
+	/**
+	 * The low pass prototype for zero stuffing by up, split into phases.
+	 */
+	private static float[] design(int taps, int up, int down) {
+		int length = taps * up;
+		// Cycles a sample of the zero stuffed rate
+		double cutoff = 0.5 * CUTOFF / Math.max(up, down);
+		double centre = (length - 1) / 2.0;
+		double[] h = new double[length];
+		double i0Beta = besselI0(BETA);
+		for (int i = 0; i < length; i++) {
+			double t = i - centre;
+			double x = 2 * cutoff * t;
+			double sinc = x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+			double r = t / centre;
+			double window = besselI0(BETA * Math.sqrt(Math.max(0, 1 - r * r)))
+					/ i0Beta;
+			h[i] = sinc * window;
+		}
+		float[] coefficients = new float[length];
+		for (int p = 0; p < up; p++) {
+			// Output at phase p weighs input frame index - k with tap
+			// p + k * up; store them oldest frame first
+			double sum = 0;
+			for (int k = 0; k < taps; k++) {
+				sum += h[p + k * up];
+			}
+			for (int k = 0; k < taps; k++) {
+				coefficients[p * taps + taps - 1 - k] = (float) (h[p + k * up] / sum);
+			}
+		}
+		return coefficients;
+	}
+
+	/**
+	 * The modified Bessel function of the first kind, order zero, by its
+	 * series.
+	 */
+	private static double besselI0(double x) {
+		double sum = 1, term = 1, q = x * x / 4;
+		for (int k = 1; k < 50; k++) {
+			term *= q / (k * k);
+			sum += term;
+			if (term < sum * 1e-12) {
+				break;
+			}
+		}
+		return sum;
+	}
+
+	private static int gcd(int a, int b) {
+		while (b != 0) {
+			int t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+}
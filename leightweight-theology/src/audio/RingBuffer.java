@@ -0,0 +1,156 @@
+package audio;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A lock free ring buffer of bytes, for exactly one writing thread and one
+ * reading thread. It sits between the decoder and the audio output, so a
+ * slow read from disk or a slow frame to decode eats into the buffered audio
+ * instead of starving the line.
+ *
+ * The buffer is allocated once, up front. The read and write positions only
+ * ever increase; each is written by one thread alone and published with an
+ * ordered store, so neither side ever takes a lock. They are padded onto
+ * separate cache lines, so the two threads don't slow each other down by
+ * writing to the same line.
+ *
+ * @author Connor Findlay
+ */
+public final class RingBuffer extends RingBufferPad2 {
+	private static final AtomicLongFieldUpdater<RingBufferHead> HEAD = AtomicLongFieldUpdater
+			.newUpdater(RingBufferHead.class, "head");
+	private static final AtomicLongFieldUpdater<RingBufferTail> TAIL = AtomicLongFieldUpdater
+			.newUpdater(RingBufferTail.class, "tail");
+
+	private final byte[] buffer;
+	private final int mask;
+
+	/**
+	 * Create a ring buffer.
+	 *
+	 * @param capacity
+	 *            The minimum size of the buffer in bytes; it is rounded up to
+	 *            a power of two.
+	 */
+	public RingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		buffer = new byte[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Copy as many bytes as will fit into the buffer. Only the writing thread
+	 * may call this.
+	 *
+	 * @return The number of bytes written, 0 if the buffer is full.
+	 */
+	public int write(byte[] src, int off, int len) {
+		long tail = this.tail;
+		// Only look at the reader's position when our copy says we're full
+		if (tail + len - headCache > buffer.length) {
+			headCache = head;
+		}
+		int n = (int) Math.min(len, buffer.length - (tail - headCache));
+		if (n <= 0) {
+			return 0;
+		}
+		int start = (int) tail & mask;
+		int first = Math.min(n, buffer.length - start);
+		System.arraycopy(src, off, buffer, start, first);
+		System.arraycopy(src, off + first, buffer, 0, n - first);
+		TAIL.lazySet(this, tail + n);
+		return n;
+	}
+
+	/**
+	 * Copy as many bytes as are available, up to len, out of the buffer.
+	 * Only the reading thread may call this.
+	 *
+	 * @return The number of bytes read, 0 if the buffer is empty.
+	 */
+	public int read(byte[] dst, int off, int len) {
+		long head = this.head;
+		if (tailCache - head < len) {
+			tailCache = tail;
+		}
+		int n = (int) Math.min(len, tailCache - head);
+		if (n <= 0) {
+			return 0;
+		}
+		int start = (int) head & mask;
+		int first = Math.min(n, buffer.length - start);
+		System.arraycopy(buffer, start, dst, off, first);
+		System.arraycopy(buffer, 0, dst, off + first, n - first);
+		HEAD.lazySet(this, head + n);
+		return n;
+	}
+
+	/**
+	 * Empty the buffer. Only safe while neither thread is using it.
+	 */
+	public void clear() {
+		head = tail;
+		headCache = tail;
+		tailCache = tail;
+	}
+
+	/** @return The number of bytes waiting to be read. */
+	public int available() {
+		return (int) (tail - head);
+	}
+
+	/** @return The size of the buffer in bytes. */
+	public int capacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * @return How full the buffer is, from 0 (empty, about to underrun) to
+	 *         1 (full).
+	 */
+	public float getFillLevel() {
+		return available() / (float) buffer.length;
+	}
+
+	/** @return The total number of bytes ever read. */
+	public long readPosition() {
+		return head;
+	}
+
+	/** @return The total number of bytes ever written. */
+	public long writePosition() {
+		return tail;
+	}
+}
+
+/*
+ * The fields of the ring buffer, spread over a class hierarchy so the JVM
+ * can't reorder them next to each other; the longs in between are padding,
+ * at least a 64 byte cache line's worth on either side of each hot field.
+ */
+
+abstract class RingBufferPad0 {
+	long p00, p01, p02, p03, p04, p05, p06, p07;
+}
+
+abstract class RingBufferHead extends RingBufferPad0 {
+	// Read position; written by the reader only
+	volatile long head;
+	// The reader's last look at the write position
+	long tailCache;
+}
+
+abstract class RingBufferPad1 extends RingBufferHead {
+	long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class RingBufferTail extends RingBufferPad1 {
+	// Write position; written by the writer only
+	volatile long tail;
+	// The writer's last look at the read position
+	long headCache;
+}
+
+abstract class RingBufferPad2 extends RingBufferTail {
+	long p20, p21, p22, p23, p24, p25, p26, p27;
+}
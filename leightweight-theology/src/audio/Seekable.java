@@ -0,0 +1,28 @@
+package audio;
+
+import java.io.IOException;
+
+/**
+ * An audio stream that can jump to any sample frame without reading its way
+ * there. The decoders that can position themselves cheaply (from an index,
+ * a seek table, or plain arithmetic) implement this.
+ *
+ * @author Connor Findlay
+ */
+public interface Seekable {
+	/**
+	 * Move the stream so that the next frame read is the given one.
+	 *
+	 * @param frame
+	 *            The sample frame to move to, counted from the start of the
+	 *            audio; clamped to the length of the stream.
+	 * @throws IOException
+	 *             If the underlying file can not be repositioned.
+	 */
+	public void seek(long frame) throws IOException;
+
+	/**
+	 * @return The sample frame that will be read next.
+	 */
+	public long getFramePosition();
+}
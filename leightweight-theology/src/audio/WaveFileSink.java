@@ -0,0 +1,184 @@
+package audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Writes audio to a RIFF/WAVE file. The header is written first with the
+ * sizes left at zero, and filled in when the sink is drained or closed, so
+ * the audio itself goes straight to the file as it comes.
+ *
+ * Opening the sink again in the same format carries on at the end of the
+ * file, so pausing and playing on doesn't lose anything; opening it in a
+ * different format starts the file over. WAVE samples are little endian,
+ * and unsigned only at 8 bits, so audio that isn't is converted on the way.
+ *
+ * @author Connor Findlay
+ */
+public class WaveFileSink implements AudioSink {
+	private static final int HEADER = 44;
+	private static final int WAVE_FORMAT_PCM = 1;
+	private static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+
+	private final File file;
+	private final ByteBuffer header = ByteBuffer.allocate(HEADER).order(
+			ByteOrder.LITTLE_ENDIAN);
+	private FileChannel channel;
+	// Format and length of what's in the file so far
+	private AudioFormat format;
+	private long dataBytes;
+	private boolean convert;
+	private volatile long frames;
+	// The caller's array, wrapped; the render thread reuses one array
+	private byte[] wrapped;
+	private ByteBuffer buffer;
+	private byte[] scratch = new byte[0];
+
+	/**
+	 * @param file
+	 *            The file to write. It is replaced if it exists.
+	 */
+	public WaveFileSink(File file) {
+		this.file = file;
+	}
+
+	@Override
+	public void open(AudioFormat format) throws IOException {
+		frames = 0;
+		if (this.format != null && this.format.matches(format)
+				&& file.exists()) {
+			// Carry on where we left off
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+			channel.position(HEADER + dataBytes);
+			return;
+		}
+		this.format = format;
+		dataBytes = 0;
+		int bits = format.getSampleSizeInBits();
+		AudioFormat.Encoding encoding = format.getEncoding();
+		convert = (format.isBigEndian() && bits > 8)
+				|| (bits <= 8 && encoding == AudioFormat.Encoding.PCM_SIGNED)
+				|| (bits > 8 && encoding == AudioFormat.Encoding.PCM_UNSIGNED);
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		writeHeader();
+		channel.position(HEADER);
+	}
+
+	@Override
+	public int write(byte[] b, int off, int len) throws IOException {
+		if (convert) {
+			if (scratch.length < len) {
+				scratch = new byte[len];
+			}
+			toWave(b, off, scratch, len);
+			b = scratch;
+			off = 0;
+		}
+		if (b != wrapped) {
+			wrapped = b;
+			buffer = ByteBuffer.wrap(b);
+		}
+		buffer.limit(off + len).position(off);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		dataBytes += len;
+		frames += len / format.getFrameSize();
+		return len;
+	}
+
+	@Override
+	public void drain() throws IOException {
+		// Everything is in the file already; make the header say so
+		writeHeader();
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			writeHeader();
+			channel.close();
+			channel = null;
+		}
+	}
+
+	@Override
+	public AudioFormat negotiate(AudioFormat wanted) {
+		return wanted;
+	}
+
+	@Override
+	public boolean isRealTime() {
+		return false;
+	}
+
+	@Override
+	public long getFramePosition() {
+		return frames;
+	}
+
+	// -----Privates-----
+
+	/**
+	 * Write the RIFF, fmt and data chunk headers for what we have so far.
+	 * Sizes past 4GB don't fit; they are left at the most the fields hold.
+	 */
+	private void writeHeader() throws IOException {
+		int channels = format.getChannels();
+		int bits = format.getSampleSizeInBits();
+		int rate = Math.round(format.getSampleRate());
+		int blockAlign = format.getFrameSize();
+		int tag = format.getEncoding() == AudioFormat.Encoding.PCM_FLOAT ? WAVE_FORMAT_IEEE_FLOAT
+				: WAVE_FORMAT_PCM;
+		header.clear();
+		header.putInt(0x46464952); // RIFF
+		header.putInt((int) Math.min(0xFFFFFFFFL, HEADER - 8 + dataBytes));
+		header.putInt(0x45564157); // WAVE
+		header.putInt(0x20746D66); // fmt
+		header.putInt(16);
+		header.putShort((short) tag);
+		header.putShort((short) channels);
+		header.putInt(rate);
+		header.putInt(rate * blockAlign);
+		header.putShort((short) blockAlign);
+		header.putShort((short) bits);
+		header.putInt(0x61746164); // data
+		header.putInt((int) Math.min(0xFFFFFFFFL, dataBytes));
+		header.flip();
+		int pos = 0;
+		while (header.hasRemaining()) {
+			pos += channel.write(header, pos);
+		}
+	}
+
+	/**
+	 * Copy samples into WAVE's byte order and signedness.
+	 */
+	private void toWave(byte[] src, int off, byte[] dst, int len) {
+		int bytes = (format.getSampleSizeInBits() + 7) / 8;
+		boolean swap = format.isBigEndian() && bytes > 1;
+		boolean signed = format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED;
+		// WAVE is unsigned at 8 bits and signed above
+		boolean flipSign = bytes == 1 ? signed : !signed
+				&& format.getEncoding() == AudioFormat.Encoding.PCM_UNSIGNED;
+		for (int i = 0; i + bytes <= len; i += bytes) {
+			for (int j = 0; j < bytes; j++) {
+				dst[i + j] = src[off + i + (swap ? bytes - 1 - j : j)];
+			}
+			if (flipSign) {
+				dst[i + bytes - 1] ^= 0x80;
+			}
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import audio.Seekable;
+
+/**
+ * A song opened through the {@link PCMCache}. It reads from the cache as far
+ * as the song is cached; past that it opens the song's file, puts the
+ * decoder where it is, and reads from that, appending what it decodes to
+ * the cache while it is reading on from the end of what's cached, and no
+ * other stream is. Seeking only moves where the next read comes from, and
+ * the decoder is only moved when it is next needed, so going back and forth
+ * within the cached part of a song never touches the file.
+ *
+ * @author Connor Findlay
+ */
+class CachedAudioInputStream extends AudioInputStream implements Seekable {
+	private final Source source;
+
+	/**
+	 * @param decoder
+	 *            The song already opened, at its start, or null to open it
+	 *            only if it is needed.
+	 * @param filling
+	 *            true if this is a fill, which only decodes while it can
+	 *            cache what it decodes, and gives way to players.
+	 * @param generation
+	 *            For a fill, the generation it was started at.
+	 */
+	CachedAudioInputStream(PCMCache cache, PCMCache.Entry entry,
+			AudioInputStream decoder, boolean filling, int generation) {
+		this(new Source(cache, entry, decoder, filling, generation));
+	}
+
+	private CachedAudioInputStream(Source source) {
+		super(source, source.entry.format, source.entry.frameLength);
+		this.source = source;
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len)
+			throws IOException {
+		return super.read(b, off, len);
+	}
+
+	@Override
+	public synchronized void seek(long frame) throws IOException {
+		frame = Math.max(0, frame);
+		if (frameLength != AudioSystem.NOT_SPECIFIED) {
+			frame = Math.min(frame, frameLength);
+		}
+		source.seek(frame * frameSize);
+		framePos = frame;
+	}
+
+	@Override
+	public synchronized long getFramePosition() {
+		return framePos;
+	}
+
+	// -----Privates-----
+
+	/**
+	 * Where the bytes come from: the cache, or the decoder.
+	 */
+	private static final class Source extends InputStream {
+		private final PCMCache cache;
+		private final PCMCache.Entry entry;
+		private final boolean filling;
+		private final int generation;
+		private final int frameSize;
+		// The length of the song, if the decoder said
+		private final long end;
+		private AudioInputStream decoder;
+		// Where the next byte comes from, and where the decoder is
+		private long pos, decoderPos;
+		private boolean writing, closed;
+		private final byte[] single = new byte[1];
+
+		Source(PCMCache cache, PCMCache.Entry entry, AudioInputStream decoder,
+				boolean filling, int generation) {
+			this.cache = cache;
+			this.entry = entry;
+			this.decoder = decoder;
+			this.filling = filling;
+			this.generation = generation;
+			this.frameSize = entry.format.getFrameSize();
+			this.end = entry.frameLength == AudioSystem.NOT_SPECIFIED ? -1
+					: entry.frameLength * frameSize;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (read(single, 0, 1) == -1) {
+				return -1;
+			}
+			return single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			long cached = entry.length;
+			if (pos < cached) {
+				int n = (int) Math.min(len, cached - pos);
+				entry.copy(pos, b, off, n);
+				pos += n;
+				cache.served(n);
+				return n;
+			}
+			if (entry.complete) {
+				return -1;
+			}
+			if (!writing && pos == cached) {
+				writing = cache.claim(entry, this, filling);
+			}
+			if (filling && (!writing || cache.fillGivenUp(entry, generation))) {
+				return -1;
+			}
+			moveDecoder();
+			int n = decoder.read(b, off, len);
+			if (n == -1) {
+				if (writing) {
+					cache.complete(entry, this);
+					writing = false;
+				}
+				return -1;
+			}
+			if (writing && !cache.append(entry, this, b, off, n)) {
+				cache.release(entry, this);
+				writing = false;
+			}
+			pos += n;
+			decoderPos = pos;
+			cache.decoded(n);
+			if (writing && pos == end) {
+				// Read no further than the length, so the decoder never says
+				// it has ended
+				cache.complete(entry, this);
+				writing = false;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// Within the cached part, just move along
+			long cached = Math.min(n, entry.length - pos);
+			if (cached > 0) {
+				pos += cached;
+				return cached;
+			}
+			return super.skip(n);
+		}
+
+		@Override
+		public int available() throws IOException {
+			long cached = entry.length - pos;
+			if (cached > 0) {
+				return (int) Math.min(Integer.MAX_VALUE, cached);
+			}
+			return decoder != null && decoderPos == pos ? decoder.available()
+					: 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (writing) {
+				cache.release(entry, this);
+				writing = false;
+			}
+			cache.unpin(entry, !filling);
+			if (decoder != null) {
+				decoder.close();
+			}
+		}
+
+		void seek(long to) {
+			if (to != pos && writing) {
+				// Only what follows on from the end can be cached
+				cache.release(entry, this);
+				writing = false;
+			}
+			pos = to;
+		}
+
+		/**
+		 * Open the song, if it isn't yet, and put the decoder where the
+		 * next byte comes from: by seeking if it can, or else by reading
+		 * forward, from the start again if it is past there.
+		 */
+		private void moveDecoder() throws IOException {
+			try {
+				if (decoder == null) {
+					decoder = cache.decode(entry.file);
+					decoderPos = 0;
+				}
+				if (decoderPos == pos) {
+					return;
+				}
+				if (decoder instanceof Seekable) {
+					((Seekable) decoder).seek(pos / frameSize);
+					decoderPos = pos;
+					return;
+				}
+				if (decoderPos > pos) {
+					decoder.close();
+					decoder = cache.decode(entry.file);
+					decoderPos = 0;
+				}
+				while (decoderPos < pos) {
+					long n = decoder.skip(pos - decoderPos);
+					if (n <= 0) {
+						break;
+					}
+					decoderPos += n;
+				}
+				// Short of where we wanted if the song is shorter than it said
+				pos = decoderPos;
+			} catch (UnsupportedAudioFileException e) {
+				throw new IOException("Can no longer decode " + entry.file, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package codec;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * A kind of audio file the player can open: how to tell one from the first
+ * few bytes, and how to decode it. Codecs are kept in a
+ * {@link CodecRegistry}; more can be added by registering them there, or
+ * by listing them in META-INF/services/codec.Codec.
+ *
+ * A codec is shared by every thread that opens files, so it must be safe
+ * to use from several at once.
+ *
+ * @author Connor Findlay
+ */
+public interface Codec {
+	/**
+	 * @return A short name for the kind of file, such as "MP3".
+	 */
+	String getName();
+
+	/**
+	 * Decide from the start of a file whether it is this codec's kind.
+	 *
+	 * @param header
+	 *            The first bytes of the file.
+	 * @param len
+	 *            How many there are; up to {@link CodecRegistry#HEADER_SIZE},
+	 *            fewer only if the file is shorter.
+	 * @return true if this codec should open the file.
+	 */
+	boolean accepts(byte[] header, int len);
+
+	/**
+	 * Open a file of this codec's kind.
+	 *
+	 * @param file
+	 *            The file.
+	 * @return The decoded audio. The registry converts anything that isn't
+	 *         PCM to PCM, so it needn't be.
+	 * @throws IOException
+	 *             If the file can't be read.
+	 * @throws UnsupportedAudioFileException
+	 *             If it turns out not to be decodable after all.
+	 */
+	AudioInputStream open(File file) throws IOException,
+			UnsupportedAudioFileException;
+}
@@ -0,0 +1,309 @@
+package codec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import flac.FLACFileReader;
+import mp3.BasicMP3FileReader;
+import wav.WaveFile;
+
+/**
+ * Picks the decoder for an audio file by looking at its first few bytes,
+ * rather than its name or what the operating system thinks it is: one small
+ * read per file, that works the same everywhere.
+ *
+ * The built in codecs know WAV, MP3 (by its ID3 tag or its first frame
+ * header), FLAC, Ogg, AIFF and AU; WAV, MP3 and FLAC are decoded by our own
+ * readers, and the rest by whatever the sound system has. A file none of
+ * them claims is still offered to the sound system, in case it has a
+ * reader we don't know about.
+ *
+ * Codecs registered later are asked first, so they can take over from a
+ * built in one. Codecs listed in META-INF/services/codec.Codec are
+ * registered when the default registry is made. Safe to use from any number
+ * of threads.
+ *
+ * @author Connor Findlay
+ */
+public final class CodecRegistry {
+	/** How many bytes from the start of a file codecs are shown */
+	public static final int HEADER_SIZE = 64;
+
+	private final CopyOnWriteArrayList<Codec> codecs = new CopyOnWriteArrayList<Codec>();
+	// Each thread reads headers into its own buffer, reused for every file
+	private static final ThreadLocal<ByteBuffer> headers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(HEADER_SIZE);
+		}
+	};
+	private static CodecRegistry shared;
+
+	/**
+	 * Get the registry shared by everything in the player, making it the
+	 * first time: the built in codecs, and any listed as services.
+	 *
+	 * @return The registry.
+	 */
+	public static synchronized CodecRegistry getDefault() {
+		if (shared == null) {
+			CodecRegistry r = new CodecRegistry();
+			r.register(new SoundSystemCodec("AU", 0, ".snd"));
+			r.register(new SoundSystemCodec("AIFF", 8, "AIFF", "AIFC"));
+			r.register(new SoundSystemCodec("Ogg", 0, "OggS"));
+			r.register(new FLACCodec());
+			r.register(new MP3Codec());
+			r.register(new WaveCodec());
+			for (Codec c : ServiceLoader.load(Codec.class)) {
+				r.register(c);
+			}
+			shared = r;
+		}
+		return shared;
+	}
+
+	/**
+	 * Make an empty registry; files are only opened by the sound system
+	 * until codecs are registered.
+	 */
+	public CodecRegistry() {
+	}
+
+	/**
+	 * Add a codec, to be asked about files before any already here.
+	 *
+	 * @param codec
+	 *            The codec.
+	 */
+	public void register(Codec codec) {
+		codecs.add(0, codec);
+	}
+
+	/**
+	 * Work out which codec a file belongs to.
+	 *
+	 * @param file
+	 *            The file.
+	 * @return Its codec, or null if none claims it.
+	 * @throws IOException
+	 *             If it can't be read.
+	 */
+	public Codec identify(File file) throws IOException {
+		ByteBuffer b = headers.get();
+		int len = readHeader(file, b);
+		byte[] header = b.array();
+		for (Codec c : codecs) {
+			if (c.accepts(header, len)) {
+				return c;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Open a file with the codec it belongs to, or else with the sound
+	 * system, as PCM.
+	 *
+	 * @param file
+	 *            The file.
+	 * @return The decoded audio, as integer PCM of up to 32 bits, or 32 bit
+	 *         float PCM.
+	 * @throws IOException
+	 *             If it can't be read.
+	 * @throws UnsupportedAudioFileException
+	 *             If nothing can decode it.
+	 */
+	public AudioInputStream open(File file) throws IOException,
+			UnsupportedAudioFileException {
+		Codec codec = identify(file);
+		AudioInputStream in = codec == null ? AudioSystem
+				.getAudioInputStream(file) : codec.open(file);
+		AudioFormat f = in.getFormat();
+		AudioFormat.Encoding encoding = f.getEncoding();
+		int bits = f.getSampleSizeInBits();
+		try {
+			if (encoding.equals(AudioFormat.Encoding.PCM_FLOAT)) {
+				if (bits != 32) {
+					// Such as 64 bit float WAVs, from the sound system
+					in = AudioSystem.getAudioInputStream(new AudioFormat(
+							AudioFormat.Encoding.PCM_FLOAT, f.getSampleRate(),
+							32, f.getChannels(), 4 * f.getChannels(),
+							f.getSampleRate(), f.isBigEndian()), in);
+				}
+			} else if (!encoding.equals(AudioFormat.Encoding.PCM_SIGNED)
+					&& !encoding.equals(AudioFormat.Encoding.PCM_UNSIGNED)) {
+				in = AudioSystem.getAudioInputStream(
+						AudioFormat.Encoding.PCM_SIGNED, in);
+			} else if (bits > 32) {
+				in.close();
+				throw new UnsupportedAudioFileException("Unsupported " + bits
+						+ " bit PCM in " + file);
+			}
+		} catch (IllegalArgumentException e) {
+			// The sound system has no conversion for it
+			in.close();
+			throw new UnsupportedAudioFileException("Can't decode "
+					+ f + " in " + file);
+		}
+		return in;
+	}
+
+	// -----Privates-----
+
+	/**
+	 * Read the start of a file into the buffer, in one read unless the file
+	 * system hands back less. A channel is still opened per file; only the
+	 * buffer is reused.
+	 *
+	 * @return How many bytes were read.
+	 */
+	private static int readHeader(File file, ByteBuffer b) throws IOException {
+		b.clear();
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			while (b.hasRemaining() && channel.read(b) > 0) {
+			}
+		}
+		return b.position();
+	}
+
+	/**
+	 * @return true if the header holds the given ASCII text at an offset.
+	 */
+	static boolean matches(byte[] header, int len, int off, String magic) {
+		if (off + magic.length() > len) {
+			return false;
+		}
+		for (int i = 0; i < magic.length(); i++) {
+			if (header[off + i] != magic.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * RIFF WAVE files, mapped and read in place; any our reader won't take,
+	 * such as compressed ones, go to the sound system.
+	 */
+	private static final class WaveCodec implements Codec {
+		public String getName() {
+			return "WAV";
+		}
+
+		public boolean accepts(byte[] header, int len) {
+			return (matches(header, len, 0, "RIFF") || matches(header, len, 0,
+					"RIFX")) && matches(header, len, 8, "WAVE");
+		}
+
+		public AudioInputStream open(File file) throws IOException,
+				UnsupportedAudioFileException {
+			try {
+				return new WaveFile(file).getAudioInputStream();
+			} catch (UnsupportedAudioFileException e) {
+				return AudioSystem.getAudioInputStream(file);
+			}
+		}
+	}
+
+	/**
+	 * MPEG audio, starting with an ID3v2 tag or straight away with a frame
+	 * header. Our reader checks a second frame before it believes it.
+	 */
+	private static final class MP3Codec implements Codec {
+		private final BasicMP3FileReader reader = new BasicMP3FileReader();
+
+		public String getName() {
+			return "MP3";
+		}
+
+		public boolean accepts(byte[] header, int len) {
+			if (matches(header, len, 0, "ID3")) {
+				return true;
+			}
+			if (len < 4) {
+				return false;
+			}
+			int h = (header[0] & 0xFF) << 24 | (header[1] & 0xFF) << 16
+					| (header[2] & 0xFF) << 8 | header[3] & 0xFF;
+			// Sync word, and no reserved version, layer, bitrate or rate
+			return (h >>> 21) == 0x7FF && (h >>> 19 & 3) != 1
+					&& (h >>> 17 & 3) != 0 && (h >>> 12 & 15) != 15
+					&& (h >>> 10 & 3) != 3;
+		}
+
+		public AudioInputStream open(File file) throws IOException,
+				UnsupportedAudioFileException {
+			try {
+				return reader.getAudioInputStream(file);
+			} catch (UnsupportedAudioFileException e) {
+				// An ID3 tag can front other things, FLAC among them
+				return AudioSystem.getAudioInputStream(file);
+			}
+		}
+	}
+
+	/**
+	 * FLAC, decoded by our own reader, which can seek.
+	 */
+	private static final class FLACCodec implements Codec {
+		private final FLACFileReader reader = new FLACFileReader();
+
+		public String getName() {
+			return "FLAC";
+		}
+
+		public boolean accepts(byte[] header, int len) {
+			return matches(header, len, 0, "fLaC");
+		}
+
+		public AudioInputStream open(File file) throws IOException,
+				UnsupportedAudioFileException {
+			return reader.getAudioInputStream(file);
+		}
+	}
+
+	/**
+	 * A kind of file known by a magic string, decoded by whatever reader
+	 * the sound system has for it.
+	 */
+	private static final class SoundSystemCodec implements Codec {
+		private final String name;
+		private final int offset;
+		private final String[] magic;
+
+		SoundSystemCodec(String name, int offset, String... magic) {
+			this.name = name;
+			this.offset = offset;
+			this.magic = magic;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean accepts(byte[] header, int len) {
+			for (String m : magic) {
+				if (matches(header, len, offset, m)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public AudioInputStream open(File file) throws IOException,
+				UnsupportedAudioFileException {
+			return AudioSystem.getAudioInputStream(file);
+		}
+	}
+}
@@ -0,0 +1,606 @@
+package codec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import wav.WaveAudioInputStream;
+
+/**
+ * The decoded PCM of songs played lately, or coming up next, kept in memory
+ * so that playing a song again, going back to it, or seeking backwards in
+ * it, doesn't mean decoding it all over again.
+ *
+ * Songs are opened through the cache rather than straight from the codec
+ * registry. The stream handed back reads whatever of the song is cached,
+ * and only opens the file and decodes from there on, adding what it decodes
+ * to the cache as it goes, as long as it is reading on from the end of what
+ * is cached. A song can also be decoded into the cache ahead of time, on a
+ * low priority thread, with {@link #fillLater(File)}; it gives way as soon
+ * as the song is opened to be played.
+ *
+ * The PCM is kept outside the Java heap, in direct buffers of
+ * {@link #SEGMENT} bytes, so a large cache adds nothing to garbage
+ * collection. The buffers are allocated as the cache grows, up to its
+ * capacity, and then reused: when the cache is full, the least recently
+ * used song not open anywhere is thrown out to make room. A song is cached
+ * from its start, so a song that doesn't fit is kept as far as it fits. As
+ * with the tag cache, a song is only used while its size and modification
+ * time are the ones it was decoded from.
+ *
+ * Only songs that need decoding are cached. WAVs are read in place from a
+ * mapping of the file, which seeks as well as the cache does and is already
+ * kept in memory by the page cache, so they are handed back as they are.
+ *
+ * Safe to use from any number of threads.
+ *
+ * @author Connor Findlay
+ */
+public final class PCMCache {
+	/** The bytes in each buffer the cache is made of */
+	public static final int SEGMENT = 1 << 20;
+	private static final int FILL_BUFFER = 1 << 16;
+
+	private final CodecRegistry codecs;
+	// In order of use, least recent first
+	private final LinkedHashMap<File, Entry> entries = new LinkedHashMap<File, Entry>(
+			16, 0.75f, true);
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+	private long capacity;
+	private long allocated;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong servedBytes = new AtomicLong();
+	private final AtomicLong decodedBytes = new AtomicLong();
+	// Bumped by every fill asked for, so older ones know to give up
+	private final AtomicInteger fillGeneration = new AtomicInteger();
+	private final ExecutorService filler;
+
+	/**
+	 * What the cache has done so far, and how full it is.
+	 */
+	public static final class Stats {
+		private final long hits, misses, evictions;
+		private final long servedBytes, decodedBytes;
+		private final long heldBytes, capacity;
+		private final int songs;
+
+		Stats(long hits, long misses, long evictions, long servedBytes,
+				long decodedBytes, long heldBytes, long capacity, int songs) {
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.servedBytes = servedBytes;
+			this.decodedBytes = decodedBytes;
+			this.heldBytes = heldBytes;
+			this.capacity = capacity;
+			this.songs = songs;
+		}
+
+		/** @return Songs opened that were at least partly cached. */
+		public long getHits() {
+			return hits;
+		}
+
+		/** @return Songs opened that weren't cached at all. */
+		public long getMisses() {
+			return misses;
+		}
+
+		/** @return Songs thrown out to make room for others. */
+		public long getEvictions() {
+			return evictions;
+		}
+
+		/** @return Bytes of PCM read from the cache. */
+		public long getServedBytes() {
+			return servedBytes;
+		}
+
+		/** @return Bytes of PCM decoded, played or cached ahead. */
+		public long getDecodedBytes() {
+			return decodedBytes;
+		}
+
+		/** @return Bytes of PCM cached now. */
+		public long getHeldBytes() {
+			return heldBytes;
+		}
+
+		/** @return The most the cache holds, in bytes. */
+		public long getCapacity() {
+			return capacity;
+		}
+
+		/** @return Songs cached now, in whole or in part. */
+		public int getSongs() {
+			return songs;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT,
+					"%d hits, %d misses, %d evictions; %.1fMB read from the "
+							+ "cache, %.1fMB decoded; %d songs in %.1f of %.1fMB",
+					hits, misses, evictions, servedBytes / 1e6,
+					decodedBytes / 1e6, songs, heldBytes / 1e6, capacity / 1e6);
+		}
+	}
+
+	/**
+	 * Create an empty cache. Nothing is allocated until songs are cached.
+	 *
+	 * @param codecs
+	 *            Where songs are decoded.
+	 * @param capacity
+	 *            The most PCM to keep, in bytes; less than a
+	 *            {@link #SEGMENT} turns the cache off.
+	 */
+	public PCMCache(CodecRegistry codecs, long capacity) {
+		this.codecs = codecs;
+		this.capacity = capacity;
+		this.filler = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "pcm cache filler");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Open a song as PCM, from the cache as far as it is cached. Close the
+	 * stream when done with it; a song can't be thrown out while it is
+	 * open.
+	 *
+	 * @param file
+	 *            The song.
+	 * @return Its PCM. It can seek, whatever the song's codec; a WAV comes
+	 *         straight from the codec registry.
+	 * @throws IOException
+	 *             If it can't be read.
+	 * @throws UnsupportedAudioFileException
+	 *             If nothing can decode it.
+	 */
+	public AudioInputStream open(File file) throws IOException,
+			UnsupportedAudioFileException {
+		if (getCapacity() < SEGMENT) {
+			misses.incrementAndGet();
+			return codecs.open(file);
+		}
+		long size = file.length();
+		long modified = file.lastModified();
+		Entry e = pin(file, size, modified, true);
+		if (e != null) {
+			(e.length > 0 ? hits : misses).incrementAndGet();
+			return new CachedAudioInputStream(this, e, null, false, 0);
+		}
+		AudioInputStream decoder = codecs.open(file);
+		if (decoder instanceof WaveAudioInputStream) {
+			return decoder;
+		}
+		misses.incrementAndGet();
+		e = pin(new Entry(file, size, modified, decoder.getFormat(),
+				decoder.getFrameLength()), true);
+		return new CachedAudioInputStream(this, e, decoder, false, 0);
+	}
+
+	/**
+	 * Decode a song into the cache, on this thread, unless it is already
+	 * cached or being played. Stops early if the song is opened to be
+	 * played, a fill is asked for after this one, or the rest of the cache
+	 * is in use. Does nothing for a WAV, which is never cached.
+	 *
+	 * @param file
+	 *            The song.
+	 * @return true if the whole song is cached.
+	 * @throws IOException
+	 *             If it can't be read.
+	 * @throws UnsupportedAudioFileException
+	 *             If nothing can decode it.
+	 */
+	public boolean fill(File file) throws IOException,
+			UnsupportedAudioFileException {
+		return fill(file, fillGeneration.get());
+	}
+
+	/**
+	 * Decode a song into the cache on the cache's own low priority thread,
+	 * giving up on any fill asked for before.
+	 *
+	 * @param file
+	 *            The song.
+	 * @return A future holding whether the whole song got cached.
+	 */
+	public Future<Boolean> fillLater(final File file) {
+		final int generation = fillGeneration.incrementAndGet();
+		return filler.submit(new Callable<Boolean>() {
+			public Boolean call() {
+				try {
+					return fill(file, generation);
+				} catch (IOException | UnsupportedAudioFileException e) {
+					// It will fail again, and be reported, when it is played
+					return false;
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return The most PCM the cache keeps, in bytes.
+	 */
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Change the most PCM the cache keeps. Shrinking it throws out songs,
+	 * least recently used first, until it fits, but songs open now stay
+	 * until they are closed.
+	 *
+	 * @param bytes
+	 *            The new capacity; less than a {@link #SEGMENT} turns the
+	 *            cache off.
+	 */
+	public synchronized void setCapacity(long bytes) {
+		capacity = bytes;
+		while (allocated > capacity) {
+			if (free.poll() != null) {
+				allocated -= SEGMENT;
+			} else if (!evictOne(null)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return What the cache has done so far, and how full it is.
+	 */
+	public Stats getStats() {
+		long held;
+		int songs;
+		synchronized (this) {
+			held = allocated - (long) free.size() * SEGMENT;
+			songs = entries.size();
+		}
+		return new Stats(hits.get(), misses.get(), evictions.get(),
+				servedBytes.get(), decodedBytes.get(), held, getCapacity(),
+				songs);
+	}
+
+	// -----Privates-----
+
+	/**
+	 * One song's PCM, from its start: a run of segments, filled up to
+	 * length. Only the stream holding the writer's place appends to it, and
+	 * others read up to the length it has published, so reading takes no
+	 * lock.
+	 */
+	static final class Entry {
+		final File file;
+		final long size, modified;
+		final AudioFormat format;
+		final long frameLength;
+		volatile ByteBuffer[] segments = new ByteBuffer[0];
+		volatile long length;
+		volatile boolean complete;
+		// Guarded by the cache
+		int users, players;
+		Object writer;
+		boolean writerFills, removed;
+
+		Entry(File file, long size, long modified, AudioFormat format,
+				long frameLength) {
+			this.file = file;
+			this.size = size;
+			this.modified = modified;
+			this.format = format;
+			this.frameLength = frameLength;
+		}
+
+		/**
+		 * Copy cached PCM out. The caller has already checked it is all
+		 * below the length.
+		 */
+		void copy(long from, byte[] b, int off, int len) {
+			ByteBuffer[] segs = segments;
+			while (len > 0) {
+				int at = (int) (from % SEGMENT);
+				int n = Math.min(len, SEGMENT - at);
+				ByteBuffer s = segs[(int) (from / SEGMENT)].duplicate();
+				s.position(at);
+				s.get(b, off, n);
+				from += n;
+				off += n;
+				len -= n;
+			}
+		}
+	}
+
+	private boolean fill(File file, int generation) throws IOException,
+			UnsupportedAudioFileException {
+		if (getCapacity() < SEGMENT) {
+			return false;
+		}
+		long size = file.length();
+		long modified = file.lastModified();
+		Entry e = pin(file, size, modified, false);
+		AudioInputStream decoder = null;
+		if (e == null) {
+			decoder = codecs.open(file);
+			if (decoder instanceof WaveAudioInputStream) {
+				decoder.close();
+				return false;
+			}
+			e = pin(new Entry(file, size, modified, decoder.getFormat(),
+					decoder.getFrameLength()), false);
+		}
+		CachedAudioInputStream in = new CachedAudioInputStream(this, e,
+				decoder, true, generation);
+		try {
+			// Start from the end of what's cached
+			in.seek(e.length / e.format.getFrameSize());
+			byte[] buffer = new byte[FILL_BUFFER];
+			while (in.read(buffer) != -1) {
+			}
+			return e.complete;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return true if a fill started at a generation should stop, to leave
+	 *         a song to be played, or for a newer fill.
+	 */
+	boolean fillGivenUp(Entry e, int generation) {
+		synchronized (this) {
+			if (e.players > 0) {
+				return true;
+			}
+		}
+		return generation != fillGeneration.get();
+	}
+
+	/**
+	 * Find a song's entry and hold it in the cache, dropping it if the song
+	 * has changed since it was cached.
+	 *
+	 * @return The entry, or null if the song isn't cached.
+	 */
+	private synchronized Entry pin(File file, long size, long modified,
+			boolean player) {
+		Entry e = entries.get(file);
+		if (e != null && (e.size != size || e.modified != modified)) {
+			remove(e);
+			e = null;
+		}
+		if (e != null) {
+			e.users++;
+			if (player) {
+				e.players++;
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * Add a new entry and hold it, unless another thread got there first,
+	 * in which case theirs is held.
+	 */
+	private synchronized Entry pin(Entry fresh, boolean player) {
+		Entry e = entries.get(fresh.file);
+		if (e == null || e.size != fresh.size || e.modified != fresh.modified) {
+			if (e != null) {
+				remove(e);
+			}
+			entries.put(fresh.file, fresh);
+			e = fresh;
+		}
+		e.users++;
+		if (player) {
+			e.players++;
+		}
+		return e;
+	}
+
+	/**
+	 * Let go of an entry held by a stream being closed. An entry that never
+	 * got anything cached is dropped.
+	 */
+	synchronized void unpin(Entry e, boolean player) {
+		e.users--;
+		if (player) {
+			e.players--;
+		}
+		if (e.users == 0) {
+			if (e.removed) {
+				freeSegments(e);
+			} else if (e.length == 0 && !e.complete) {
+				remove(e);
+			}
+		}
+	}
+
+	/**
+	 * Take the writer's place for an entry. A player takes it from a fill,
+	 * which then stops; the player has to decode the song anyway.
+	 *
+	 * @return false if another stream has it, or there's nothing to write.
+	 */
+	synchronized boolean claim(Entry e, Object writer, boolean fill) {
+		if ((e.writer != null && (fill || !e.writerFills)) || e.complete
+				|| e.removed) {
+			return false;
+		}
+		e.writer = writer;
+		e.writerFills = fill;
+		return true;
+	}
+
+	/**
+	 * Give up the writer's place, if it is ours.
+	 */
+	synchronized void release(Entry e, Object writer) {
+		if (e.writer == writer) {
+			e.writer = null;
+		}
+	}
+
+	/**
+	 * Mark an entry as holding the whole song, if we are its writer.
+	 */
+	synchronized void complete(Entry e, Object writer) {
+		if (e.writer == writer) {
+			e.complete = true;
+			e.writer = null;
+		}
+	}
+
+	/**
+	 * Add PCM to the end of an entry, if we are its writer. The copy is
+	 * made holding the lock, so a player taking over from a fill can't
+	 * start writing halfway through one of the fill's.
+	 *
+	 * @return false if there was no room for all of it, in which case what
+	 *         did fit, to a whole frame, is kept; or if we aren't the writer
+	 *         any more.
+	 */
+	synchronized boolean append(Entry e, Object writer, byte[] b, int off,
+			int len) {
+		if (e.writer != writer) {
+			return false;
+		}
+		long length = e.length;
+		while (len > 0) {
+			int index = (int) (length / SEGMENT);
+			if (index == e.segments.length) {
+				ByteBuffer s = allocate(e);
+				if (s == null) {
+					// Keep whole frames only, so the song can be decoded on
+					// from the end
+					e.length = length - length % e.format.getFrameSize();
+					return false;
+				}
+				ByteBuffer[] segs = Arrays.copyOf(e.segments, index + 1);
+				segs[index] = s;
+				e.segments = segs;
+			}
+			int at = (int) (length % SEGMENT);
+			int n = Math.min(len, SEGMENT - at);
+			ByteBuffer s = e.segments[index].duplicate();
+			s.position(at);
+			s.put(b, off, n);
+			length += n;
+			off += n;
+			len -= n;
+		}
+		e.length = length;
+		return true;
+	}
+
+	/** Count PCM read from the cache. */
+	void served(long bytes) {
+		servedBytes.addAndGet(bytes);
+	}
+
+	/** Count PCM decoded. */
+	void decoded(long bytes) {
+		decodedBytes.addAndGet(bytes);
+	}
+
+	/** Open a song's file to decode. */
+	AudioInputStream decode(File file) throws IOException,
+			UnsupportedAudioFileException {
+		return codecs.open(file);
+	}
+
+	/**
+	 * Get a segment for an entry: a free one, a new one while there is
+	 * room, or one from a song thrown out to make room.
+	 *
+	 * @return The segment, or null if every other song is in use.
+	 */
+	private synchronized ByteBuffer allocate(Entry owner) {
+		if (owner.removed) {
+			// The song changed on disk while it was being played
+			return null;
+		}
+		while (true) {
+			if (allocated <= capacity && !free.isEmpty()) {
+				return free.poll();
+			}
+			if (allocated + SEGMENT <= capacity) {
+				allocated += SEGMENT;
+				return ByteBuffer.allocateDirect(SEGMENT);
+			}
+			if (free.poll() != null) {
+				// Over capacity, after it was shrunk
+				allocated -= SEGMENT;
+			} else if (!evictOne(owner)) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Throw out the least recently used song that isn't open.
+	 *
+	 * @return false if every song is open.
+	 */
+	private boolean evictOne(Entry owner) {
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry e = it.next();
+			if (e.users == 0 && e != owner) {
+				it.remove();
+				e.removed = true;
+				freeSegments(e);
+				evictions.incrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Take an entry out of the cache. Its segments are freed once no stream
+	 * has it open.
+	 */
+	private void remove(Entry e) {
+		if (entries.get(e.file) == e) {
+			entries.remove(e.file);
+		}
+		e.removed = true;
+		if (e.users == 0) {
+			freeSegments(e);
+		}
+	}
+
+	private void freeSegments(Entry e) {
+		for (ByteBuffer s : e.segments) {
+			s.clear();
+			free.add(s);
+		}
+		e.segments = new ByteBuffer[0];
+		e.length = 0;
+	}
+}
@@ -0,0 +1,404 @@
+package convert;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import audio.WaveFileSink;
+import codec.CodecRegistry;
+import m3u.M3UParser;
+
+/**
+ * Decodes a whole library to PCM WAV files, on every core at once. It takes
+ * the place of running convertToWav.sh once per file.
+ *
+ * The sources come from a directory, walked recursively, or an M3U playlist.
+ * They are shared out over a fork/join pool, so a core that finishes its
+ * share early steals work from the others. Each worker decodes through one
+ * fixed size buffer, and writes through a {@link WaveFileSink}, so memory use
+ * doesn't depend on how big the files are.
+ *
+ * Output is written to a temporary file and moved into place once complete,
+ * then given the source's modification time. A source is skipped if its
+ * output has the same modification time and is the size its own header says
+ * it should be, so an interrupted run picks up where it stopped.
+ *
+ * @author Connor Findlay
+ */
+public class BatchConverter {
+	private static final int BUFFER_SIZE = 65536;
+	private static final int HEADER = 44;
+	// File extensions worth trying to decode, when walking a directory
+	private static final String[] EXTENSIONS = { ".mp3", ".wav", ".wave",
+			".aif", ".aiff", ".au", ".flac" };
+
+	private final Path outputDir;
+	private final ForkJoinPool pool;
+	private final CodecRegistry codecs = CodecRegistry.getDefault();
+	private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BUFFER_SIZE];
+		}
+	};
+
+	/**
+	 * The totals for one run.
+	 */
+	public static final class Report {
+		final AtomicLong converted = new AtomicLong();
+		final AtomicLong skipped = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+		// Microseconds, to add up without losing precision
+		final AtomicLong audioMicros = new AtomicLong();
+		long nanos;
+
+		/** @return The number of files decoded. */
+		public long getConverted() {
+			return converted.get();
+		}
+
+		/** @return The number of files already up to date. */
+		public long getSkipped() {
+			return skipped.get();
+		}
+
+		/** @return The number of files that couldn't be decoded. */
+		public long getFailed() {
+			return failed.get();
+		}
+
+		/** @return The bytes of WAV written. */
+		public long getBytesWritten() {
+			return bytes.get();
+		}
+
+		/** @return The seconds of audio decoded. */
+		public double getAudioSeconds() {
+			return audioMicros.get() / 1e6;
+		}
+
+		/** @return How long the run took, in seconds. */
+		public double getWallSeconds() {
+			return nanos / 1e9;
+		}
+
+		@Override
+		public String toString() {
+			double wall = Math.max(getWallSeconds(), 1e-9);
+			return String.format(Locale.ROOT,
+					"%d converted, %d up to date, %d failed in %.1fs: "
+							+ "%.1f files/s, %.1f MB/s written, %.1fx real time",
+					getConverted(), getSkipped(), getFailed(), wall,
+					getConverted() / wall, getBytesWritten() / wall / 1e6,
+					getAudioSeconds() / wall);
+		}
+	}
+
+	/**
+	 * Create a converter that uses every core.
+	 *
+	 * @param outputDir
+	 *            Where the WAV files go.
+	 */
+	public BatchConverter(Path outputDir) {
+		this(outputDir, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a converter.
+	 *
+	 * @param outputDir
+	 *            Where the WAV files go.
+	 * @param threads
+	 *            The number of files to decode at once.
+	 */
+	public BatchConverter(Path outputDir, int threads) {
+		this.outputDir = outputDir;
+		this.pool = new ForkJoinPool(threads);
+	}
+
+	/**
+	 * Convert every audio file under a directory. The output mirrors the
+	 * directory structure.
+	 *
+	 * @param dir
+	 *            The directory to convert.
+	 * @return The totals.
+	 * @throws IOException
+	 *             If the directory can't be walked.
+	 */
+	public Report convertDirectory(final Path dir) throws IOException {
+		final List<Job> jobs = new ArrayList<Job>();
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) {
+				if (attrs.isRegularFile() && isAudio(file)) {
+					jobs.add(new Job(file, outputDir.resolve(dir
+							.relativize(withWavExtension(file)))));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return run(jobs);
+	}
+
+	/**
+	 * Convert every song in a playlist. The output mirrors where the songs
+	 * are relative to the playlist, as for a directory; a song from outside
+	 * the playlist's directory goes under its whole path, from the root, so
+	 * two songs of the same name from different albums never share an
+	 * output.
+	 *
+	 * @param m3u
+	 *            The M3U or M3U8 playlist.
+	 * @return The totals.
+	 * @throws IOException
+	 *             If the playlist can't be read.
+	 */
+	public Report convertPlaylist(Path m3u) throws IOException {
+		final List<Job> jobs = new ArrayList<Job>();
+		final Path base = m3u.toAbsolutePath().normalize().getParent();
+		M3UParser.parse(m3u, new M3UParser.Handler() {
+			public boolean entry(String location, int duration, String title) {
+				Path source = Paths.get(location).toAbsolutePath().normalize();
+				Path wav = withWavExtension(source);
+				Path relative = base != null && wav.startsWith(base) ? base
+						.relativize(wav) : wav.getRoot().relativize(wav);
+				jobs.add(new Job(source, outputDir.resolve(relative)));
+				return true;
+			}
+		});
+		return run(jobs);
+	}
+
+	/**
+	 * Convert a directory or playlist, and print the totals.
+	 */
+	public static void main(String args[]) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: java convert.BatchConverter "
+					+ "<directory|playlist.m3u> [output directory]");
+			System.exit(1);
+		}
+		Path source = Paths.get(args[0]);
+		Path out = Paths.get(args.length > 1 ? args[1] : ".");
+		BatchConverter converter = new BatchConverter(out);
+		Report report = Files.isDirectory(source) ? converter
+				.convertDirectory(source) : converter.convertPlaylist(source);
+		System.out.println(report);
+	}
+
+	// -----Privates-----
+
+	/**
+	 * A source file and where its WAV goes.
+	 */
+	private static final class Job {
+		final Path source;
+		final Path target;
+
+		Job(Path source, Path target) {
+			this.source = source;
+			this.target = target;
+		}
+	}
+
+	/**
+	 * Converts a range of the job list, splitting it in half until each
+	 * piece is a single file, so idle workers have something to steal.
+	 */
+	private final class ConvertTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<Job> jobs;
+		private final int from, to;
+		private final Report report;
+
+		ConvertTask(List<Job> jobs, int from, int to, Report report) {
+			this.jobs = jobs;
+			this.from = from;
+			this.to = to;
+			this.report = report;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				convert(jobs.get(from), report);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new ConvertTask(jobs, from, mid, report),
+					new ConvertTask(jobs, mid, to, report));
+		}
+	}
+
+	private Report run(List<Job> jobs) {
+		Report report = new Report();
+		long start = System.nanoTime();
+		jobs = uniqueTargets(jobs, report);
+		if (!jobs.isEmpty()) {
+			pool.invoke(new ConvertTask(jobs, 0, jobs.size(), report));
+		}
+		report.nanos = System.nanoTime() - start;
+		return report;
+	}
+
+	/**
+	 * Drop jobs whose output another job already writes, before any run at
+	 * once and write over each other. A song listed twice is converted
+	 * once; two songs that would share an output, such as song.mp3 and
+	 * song.flac side by side, can't both be converted, so all but the first
+	 * count as failed.
+	 *
+	 * @return The jobs left.
+	 */
+	private static List<Job> uniqueTargets(List<Job> jobs, Report report) {
+		Map<Path, Job> targets = new HashMap<Path, Job>();
+		List<Job> unique = new ArrayList<Job>(jobs.size());
+		for (Job job : jobs) {
+			Path target = job.target.toAbsolutePath().normalize();
+			Job first = targets.get(target);
+			if (first == null) {
+				targets.put(target, job);
+				unique.add(job);
+			} else if (!first.source.toAbsolutePath().normalize().equals(
+					job.source.toAbsolutePath().normalize())) {
+				System.err.println("Could not convert " + job.source + ": "
+						+ first.source + " is converted to " + job.target);
+				report.failed.incrementAndGet();
+			}
+		}
+		return unique;
+	}
+
+	/**
+	 * Decode one file, unless its output is already up to date.
+	 */
+	private void convert(Job job, Report report) {
+		Path tmp = null;
+		try {
+			FileTime modified = Files.getLastModifiedTime(job.source);
+			if (upToDate(job.target, modified)
+					|| job.target.toAbsolutePath().normalize().equals(
+							job.source.toAbsolutePath().normalize())) {
+				// A WAV converted onto itself counts as up to date
+				report.skipped.incrementAndGet();
+				return;
+			}
+			Path dir = job.target.toAbsolutePath().getParent();
+			Files.createDirectories(dir);
+			// Hidden until complete; the sink creates it with normal permissions
+			tmp = dir.resolve("." + job.target.getFileName() + ".part");
+			WaveFileSink sink = new WaveFileSink(tmp.toFile());
+			long bytes = 0;
+			float frameRate;
+			int frameSize;
+			try (AudioInputStream in = codecs.open(job.source.toFile())) {
+				frameRate = in.getFormat().getFrameRate();
+				frameSize = in.getFormat().getFrameSize();
+				byte[] buffer = buffers.get();
+				// Whole frames only
+				int chunk = buffer.length - buffer.length % frameSize;
+				sink.open(in.getFormat());
+				try {
+					int n;
+					while ((n = in.read(buffer, 0, chunk)) != -1) {
+						sink.write(buffer, 0, n);
+						bytes += n;
+					}
+				} finally {
+					sink.close();
+				}
+			}
+			Files.move(tmp, job.target, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			tmp = null;
+			Files.setLastModifiedTime(job.target, modified);
+			report.converted.incrementAndGet();
+			report.bytes.addAndGet(HEADER + bytes);
+			report.audioMicros.addAndGet((long) (bytes / frameSize
+					/ (double) frameRate * 1e6));
+		} catch (IOException | UnsupportedAudioFileException e) {
+			System.err.println("Could not convert " + job.source + ": " + e);
+			report.failed.incrementAndGet();
+		} finally {
+			if (tmp != null) {
+				try {
+					Files.deleteIfExists(tmp);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if the output exists, has the source's modification
+	 *         time, and is as long as its header says.
+	 */
+	private static boolean upToDate(Path target, FileTime modified) {
+		try {
+			if (!Files.isRegularFile(target)
+					|| !Files.getLastModifiedTime(target).equals(modified)) {
+				return false;
+			}
+			try (FileChannel channel = FileChannel.open(target,
+					StandardOpenOption.READ)) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER).order(
+						ByteOrder.LITTLE_ENDIAN);
+				while (header.hasRemaining()
+						&& channel.read(header, header.position()) > 0) {
+				}
+				if (header.hasRemaining()) {
+					return false;
+				}
+				long riffSize = header.getInt(4) & 0xFFFFFFFFL;
+				return channel.size() == riffSize + 8;
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static boolean isAudio(Path file) {
+		String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+		for (String ext : EXTENSIONS) {
+			if (name.endsWith(ext)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Path withWavExtension(Path file) {
+		String name = file.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		String base = dot > 0 ? name.substring(0, dot) : name;
+		return file.resolveSibling(base + ".wav");
+	}
+}
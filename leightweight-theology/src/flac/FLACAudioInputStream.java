@@ -0,0 +1,164 @@
+package flac;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import audio.Seekable;
+
+/**
+ * A decoded FLAC file. It can be moved to any frame: the SEEKTABLE points
+ * either side of it, if there is a table, bound where in the file it can
+ * be; that part of the file is halved, by the sample numbers in the frame
+ * headers, until it is small; and we decode forward from there. With the
+ * usual table of a point every ten seconds, this decodes a fraction of a
+ * second of audio rather than up to ten seconds of it.
+ *
+ * @author Connor Findlay
+ */
+public class FLACAudioInputStream extends AudioInputStream implements Seekable {
+	// Stop halving once the frame is known to be within this many bytes
+	private static final long SEARCH_SPAN = 1 << 16;
+
+	private final FileChannel channel;
+	private final FLACDecoder decoder;
+	private final FLACMetadata info;
+
+	private FLACAudioInputStream(FileChannel channel, FLACDecoder decoder,
+			FLACMetadata info) {
+		super(decoder, info.getDecodedFormat(), info.getTotalSamples());
+		this.channel = channel;
+		this.decoder = decoder;
+		this.info = info;
+	}
+
+	/**
+	 * Open a FLAC file for decoding.
+	 *
+	 * @param file
+	 *            The file to open.
+	 * @return A stream of PCM, positioned at the first sample.
+	 * @throws UnsupportedAudioFileException
+	 *             If the file isn't FLAC.
+	 * @throws IOException
+	 *             If the file can't be opened.
+	 */
+	static FLACAudioInputStream open(File file) throws IOException,
+			UnsupportedAudioFileException {
+		FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ);
+		try {
+			FLACMetadata info = FLACMetadata.read(Channels
+					.newInputStream(channel));
+			long first = info.getFirstFrameOffset();
+			channel.position(first);
+			FLACDecoder decoder = new FLACDecoder(
+					Channels.newInputStream(channel), info, first);
+			return new FLACAudioInputStream(channel, decoder, info);
+		} catch (IOException | UnsupportedAudioFileException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return The metadata this stream seeks with.
+	 */
+	public FLACMetadata getMetadata() {
+		return info;
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len)
+			throws IOException {
+		return super.read(b, off, len);
+	}
+
+	@Override
+	public synchronized void seek(long frame) throws IOException {
+		frame = Math.max(0, frame);
+		if (frameLength != AudioSystem.NOT_SPECIFIED) {
+			frame = Math.min(frame, frameLength);
+		}
+		int point = info.seekPointBefore(frame);
+		long lo = point >= 0 ? info.getSeekOffset(point) : info
+				.getFirstFrameOffset();
+		long hi = point + 1 < info.getSeekPoints() ? info
+				.getSeekOffset(point + 1) : channel.size();
+		long offset = search(frame, lo, Math.max(lo, hi));
+		if (!decodeTo(offset, frame) && offset != info.getFirstFrameOffset()) {
+			// The table or the search led us astray; go the long way
+			decodeTo(info.getFirstFrameOffset(), frame);
+		}
+		framePos = frame;
+	}
+
+	@Override
+	public synchronized long getFramePosition() {
+		return framePos;
+	}
+
+	// -----Privates-----
+
+	/**
+	 * Decode from a frame at an offset up to the frame holding the wanted
+	 * sample, and drop what comes before the sample in it.
+	 *
+	 * @return false if the first frame found was already past the sample.
+	 */
+	private boolean decodeTo(long offset, long frame) throws IOException {
+		channel.position(offset);
+		decoder.restart(offset);
+		boolean first = true;
+		while (decoder.nextFrame()) {
+			long start = decoder.getFrameSample();
+			if (first && start > frame) {
+				return false;
+			}
+			first = false;
+			if (frame < start + decoder.getBlockSize()) {
+				decoder.drop((int) (frame - start));
+				return true;
+			}
+		}
+		// At the end
+		return true;
+	}
+
+	/**
+	 * Find a frame not far before the one holding a sample.
+	 *
+	 * @param lo
+	 *            Where a frame at or before the sample starts.
+	 * @param hi
+	 *            A place in the file past the sample's frame.
+	 * @return Where the frame found starts in the file.
+	 */
+	private long search(long frame, long lo, long hi) throws IOException {
+		while (hi - lo > SEARCH_SPAN) {
+			long mid = lo + (hi - lo) / 2;
+			channel.position(mid);
+			decoder.restart(mid);
+			if (!decoder.nextFrame() || decoder.getFrameOffset() >= hi) {
+				hi = mid;
+				continue;
+			}
+			long start = decoder.getFrameSample();
+			if (start > frame) {
+				hi = mid;
+			} else {
+				lo = decoder.getFrameOffset();
+				if (frame < start + decoder.getBlockSize()) {
+					break;
+				}
+			}
+		}
+		return lo;
+	}
+}
@@ -0,0 +1,834 @@
+package flac;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream of signed little endian PCM, decoded from a FLAC stream one
+ * frame at a time.
+ *
+ * The encoded stream is read in large blocks into one byte buffer, and bits
+ * are taken from it through a 64 bit cache; each frame's subframes are
+ * decoded into one int array per channel, in place, warm up samples and
+ * residual first and then the prediction run over them; and the frame is
+ * interleaved into one PCM buffer. All of those are allocated up front, from
+ * the sizes the STREAMINFO gives, and reused for every frame, so reading the
+ * stream does not allocate once it is running.
+ *
+ * A frame is decoded only once the whole of it is in the buffer. If it
+ * turns out not to be, the buffer is topped up (and grown, if the frame is
+ * longer than the buffer) and the frame is decoded again from its start. A
+ * frame whose header doesn't check out, as after a seek into the middle of
+ * the file, is skipped a byte at a time until a good one is found.
+ *
+ * @author Connor Findlay
+ */
+class FLACDecoder extends InputStream {
+	private static final int MIN_BUFFER = 1 << 16;
+	// Bytes ahead of a frame kept in the buffer when the frame size isn't
+	// known
+	private static final int READ_AHEAD = 1 << 15;
+	private static final int[] CRC8 = new int[256];
+	private static final int[] CRC16 = new int[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			int c = i;
+			for (int j = 0; j < 8; j++) {
+				c = (c & 0x80) != 0 ? (c << 1) ^ 0x07 : c << 1;
+			}
+			CRC8[i] = c & 0xFF;
+			c = i << 8;
+			for (int j = 0; j < 8; j++) {
+				c = (c & 0x8000) != 0 ? (c << 1) ^ 0x8005 : c << 1;
+			}
+			CRC16[i] = c & 0xFFFF;
+		}
+	}
+
+	/**
+	 * Thrown when a frame runs past the end of the buffered input. Only one
+	 * is ever made, without a stack trace, as it is how the decoder finds
+	 * out it needs more input, not an error.
+	 */
+	private static final class Underflow extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	private static final Underflow UNDERFLOW = new Underflow();
+
+	private final InputStream source;
+	private final FLACMetadata info;
+	private final int channels, bytesPerSample;
+	private final int readAhead;
+	// Encoded input, and where in the file its first byte is
+	private byte[] buf;
+	private int pos, limit;
+	private long base;
+	private boolean sourceDone;
+	// Bits taken from buf but not yet used, from the top bit down; the bits
+	// below cacheBits are always zero
+	private long cache;
+	private int cacheBits;
+	// Decoded samples of the current frame, a channel an array
+	private int[][] samples;
+	private final int[] coefs = new int[32];
+	private byte[] pcm;
+	private final byte[] single = new byte[1];
+	private int pcmPos, pcmLen;
+	private boolean eof;
+	// Whether the next frame must pass its CRC-16, as when we may not be on
+	// a frame boundary
+	private boolean checkFrame;
+	// The current frame's header
+	private int blockSize, frameChannels, channelMode, frameBits;
+	private long frameSample, frameOffset;
+	// Where the frame after it starts, counted from the frames decoded in a
+	// row, which is trusted over the number in the header: some encoders get
+	// the last one wrong
+	private long nextSample;
+
+	/**
+	 * Create a new decoder reading frames from the given stream.
+	 *
+	 * @param source
+	 *            The encoded stream, just past the metadata. It is closed when
+	 *            this stream is closed.
+	 * @param info
+	 *            The stream's metadata.
+	 * @param offset
+	 *            Where in the file the source is.
+	 */
+	FLACDecoder(InputStream source, FLACMetadata info, long offset) {
+		this.source = source;
+		this.info = info;
+		this.channels = info.getChannels();
+		this.bytesPerSample = (info.getBitsPerSample() + 7) / 8;
+		int maxFrame = info.getMaxFrameSize();
+		this.readAhead = maxFrame > 0 ? maxFrame + 16 : READ_AHEAD;
+		this.buf = new byte[Math.max(MIN_BUFFER, 2 * readAhead)];
+		this.samples = new int[channels][info.getMaxBlockSize()];
+		this.pcm = new byte[info.getMaxBlockSize() * channels * bytesPerSample];
+		this.base = offset;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (read(single, 0, 1) == -1) {
+			return -1;
+		}
+		return single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int copied = 0;
+		while (copied < len) {
+			// Refill the frame buffer once it has been read out
+			if (pcmPos == pcmLen && !decodeFrame()) {
+				break;
+			}
+			int n = Math.min(len - copied, pcmLen - pcmPos);
+			System.arraycopy(pcm, pcmPos, b, off + copied, n);
+			pcmPos += n;
+			copied += n;
+		}
+		if (copied == 0 && len > 0) {
+			return -1;
+		}
+		return copied;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while (skipped < n) {
+			if (pcmPos == pcmLen && !decodeFrame()) {
+				break;
+			}
+			int step = (int) Math.min(n - skipped, pcmLen - pcmPos);
+			pcmPos += step;
+			skipped += step;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return pcmLen - pcmPos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		source.close();
+	}
+
+	/**
+	 * Throw away any buffered input and decoded audio, and carry on from the
+	 * source's current position. Used after the source has been moved.
+	 *
+	 * @param offset
+	 *            Where in the file the source now is.
+	 */
+	void restart(long offset) {
+		base = offset;
+		pos = 0;
+		limit = 0;
+		sourceDone = false;
+		pcmPos = 0;
+		pcmLen = 0;
+		eof = false;
+		checkFrame = true;
+	}
+
+	/**
+	 * Decode the next frame, to be read out.
+	 *
+	 * @return false if the stream has no more frames.
+	 */
+	boolean nextFrame() throws IOException {
+		return decodeFrame();
+	}
+
+	/**
+	 * @return The sample frame the last frame decoded starts at.
+	 */
+	long getFrameSample() {
+		return frameSample;
+	}
+
+	/**
+	 * @return Where in the file the last frame decoded starts.
+	 */
+	long getFrameOffset() {
+		return frameOffset;
+	}
+
+	/**
+	 * @return The number of sample frames in the last frame decoded.
+	 */
+	int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Drop sample frames from the start of what's left of the last frame
+	 * decoded.
+	 *
+	 * @param frames
+	 *            How many.
+	 */
+	void drop(int frames) {
+		pcmPos = Math.min(pcmLen, pcmPos + frames * channels * bytesPerSample);
+	}
+
+	// -----Privates-----
+
+	/**
+	 * Decode the next frame into the PCM buffer.
+	 *
+	 * @return false if the stream has no more frames.
+	 * @throws IOException
+	 *             If the source can't be read, or the stream uses something
+	 *             this decoder doesn't support.
+	 */
+	private boolean decodeFrame() throws IOException {
+		if (eof) {
+			return false;
+		}
+		while (true) {
+			fill(readAhead);
+			if (limit - pos < 2) {
+				eof = true;
+				return false;
+			}
+			int start = pos;
+			boolean counted = !checkFrame;
+			cache = 0;
+			cacheBits = 0;
+			try {
+				if (!readHeader(start) || !readSubframes()
+						|| !readFooter(start)) {
+					// Not a frame after all; look for one from the next byte
+					pos = start + 1;
+					checkFrame = true;
+					sync();
+					continue;
+				}
+				checkFrame = false;
+				if (counted) {
+					frameSample = nextSample;
+				}
+				nextSample = frameSample + blockSize;
+				frameOffset = base + start;
+				interleave();
+				return true;
+			} catch (Underflow u) {
+				pos = start;
+				if (sourceDone) {
+					// A frame cut short at the end of the file
+					eof = true;
+					return false;
+				}
+				fill(limit - pos + READ_AHEAD);
+			}
+		}
+	}
+
+	/**
+	 * Skip to the next byte that could start a frame.
+	 */
+	private void sync() throws IOException {
+		while (true) {
+			byte[] b = buf;
+			int end = limit - 1;
+			for (int i = pos; i < end; i++) {
+				if (b[i] == (byte) 0xFF && (b[i + 1] & 0xFE) == 0xF8) {
+					pos = i;
+					return;
+				}
+			}
+			pos = Math.max(pos, end);
+			if (sourceDone) {
+				return;
+			}
+			fill(READ_AHEAD);
+		}
+	}
+
+	/**
+	 * Make sure there are at least want bytes after pos in the buffer, unless
+	 * the source runs out first, moving what's left to the start of the
+	 * buffer, and making it bigger if need be.
+	 */
+	private void fill(int want) throws IOException {
+		if (limit - pos >= want || sourceDone) {
+			return;
+		}
+		if (want > buf.length) {
+			byte[] b = new byte[Math.max(want, 2 * buf.length)];
+			System.arraycopy(buf, pos, b, 0, limit - pos);
+			buf = b;
+		} else {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+		}
+		base += pos;
+		limit -= pos;
+		pos = 0;
+		while (limit < buf.length) {
+			int n = source.read(buf, limit, buf.length - limit);
+			if (n == -1) {
+				sourceDone = true;
+				break;
+			}
+			limit += n;
+			if (limit >= want) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Read a frame header, and check its CRC-8.
+	 *
+	 * @return false if it isn't a frame header.
+	 */
+	private boolean readHeader(int start) throws Underflow {
+		int sync = bits(16);
+		if ((sync & 0xFFFE) != 0xFFF8) {
+			return false;
+		}
+		boolean variable = (sync & 1) != 0;
+		int bsCode = bits(4);
+		int rateCode = bits(4);
+		int chanCode = bits(4);
+		int sizeCode = bits(3);
+		if (bits(1) != 0 || bsCode == 0 || rateCode == 15 || sizeCode == 3
+				|| chanCode > 10) {
+			return false;
+		}
+		// The frame or sample number, UTF-8 style
+		long number = bits(8);
+		int more = 0;
+		if ((number & 0x80) != 0) {
+			if ((number & 0xE0) == 0xC0) {
+				number &= 0x1F;
+				more = 1;
+			} else if ((number & 0xF0) == 0xE0) {
+				number &= 0x0F;
+				more = 2;
+			} else if ((number & 0xF8) == 0xF0) {
+				number &= 0x07;
+				more = 3;
+			} else if ((number & 0xFC) == 0xF8) {
+				number &= 0x03;
+				more = 4;
+			} else if ((number & 0xFE) == 0xFC) {
+				number &= 0x01;
+				more = 5;
+			} else if (number == 0xFE) {
+				number = 0;
+				more = 6;
+			} else {
+				return false;
+			}
+		}
+		for (int i = 0; i < more; i++) {
+			int b = bits(8);
+			if ((b & 0xC0) != 0x80) {
+				return false;
+			}
+			number = number << 6 | b & 0x3F;
+		}
+		if (bsCode == 1) {
+			blockSize = 192;
+		} else if (bsCode <= 5) {
+			blockSize = 576 << (bsCode - 2);
+		} else if (bsCode == 6) {
+			blockSize = bits(8) + 1;
+		} else if (bsCode == 7) {
+			blockSize = bits(16) + 1;
+		} else {
+			blockSize = 256 << (bsCode - 8);
+		}
+		// The rate is the STREAMINFO's; only step over any given here
+		if (rateCode == 12) {
+			bits(8);
+		} else if (rateCode == 13 || rateCode == 14) {
+			bits(16);
+		}
+		int crc = bits(8);
+		int len = pos - start - cacheBits / 8;
+		int c = 0;
+		for (int i = start; i < start + len - 1; i++) {
+			c = CRC8[c ^ buf[i] & 0xFF];
+		}
+		if (c != crc) {
+			return false;
+		}
+		frameChannels = chanCode < 8 ? chanCode + 1 : 2;
+		if (frameChannels != channels) {
+			return false;
+		}
+		channelMode = chanCode;
+		switch (sizeCode) {
+		case 0:
+			frameBits = info.getBitsPerSample();
+			break;
+		case 1:
+			frameBits = 8;
+			break;
+		case 2:
+			frameBits = 12;
+			break;
+		case 4:
+			frameBits = 16;
+			break;
+		case 5:
+			frameBits = 20;
+			break;
+		case 6:
+			frameBits = 24;
+			break;
+		default:
+			frameBits = 32;
+		}
+		if (frameBits > 8 * bytesPerSample) {
+			return false;
+		}
+		if (variable) {
+			frameSample = number;
+		} else {
+			int fixed = info.getMinBlockSize() == info.getMaxBlockSize() ? info
+					.getMaxBlockSize() : blockSize;
+			frameSample = number * fixed;
+		}
+		if (blockSize > samples[0].length) {
+			// Longer than the STREAMINFO said; make room
+			samples = new int[channels][blockSize];
+			pcm = new byte[blockSize * channels * bytesPerSample];
+		}
+		return true;
+	}
+
+	/**
+	 * Decode every channel's subframe.
+	 *
+	 * @return false if one is corrupt.
+	 */
+	private boolean readSubframes() throws Underflow, IOException {
+		for (int ch = 0; ch < channels; ch++) {
+			int bps = frameBits;
+			// The side channel needs a bit more
+			if ((channelMode == 8 && ch == 1) || (channelMode == 9 && ch == 0)
+					|| (channelMode == 10 && ch == 1)) {
+				bps++;
+			}
+			if (bps > 32) {
+				throw new IOException("32 bit FLAC with stereo decorrelation "
+						+ "is not supported");
+			}
+			if (!readSubframe(samples[ch], blockSize, bps)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Byte align, and check the CRC-16 if we aren't yet sure we're on a
+	 * frame.
+	 *
+	 * @return false if the CRC doesn't match.
+	 */
+	private boolean readFooter(int start) throws Underflow {
+		bits(cacheBits & 7);
+		int crc = bits(16);
+		// Give back whole bytes still in the cache
+		pos -= cacheBits / 8;
+		cache = 0;
+		cacheBits = 0;
+		if (!checkFrame) {
+			return true;
+		}
+		int c = 0;
+		byte[] b = buf;
+		for (int i = start; i < pos - 2; i++) {
+			c = (c << 8 ^ CRC16[(c >>> 8) ^ b[i] & 0xFF]) & 0xFFFF;
+		}
+		return c == crc;
+	}
+
+	/**
+	 * Decode one channel's subframe into s.
+	 *
+	 * @return false if it is corrupt.
+	 */
+	private boolean readSubframe(int[] s, int n, int bps) throws Underflow,
+			IOException {
+		if (bits(1) != 0) {
+			return false;
+		}
+		int type = bits(6);
+		int wasted = 0;
+		if (bits(1) != 0) {
+			wasted = 1;
+			while (bits(1) == 0) {
+				wasted++;
+			}
+			bps -= wasted;
+			if (bps <= 0) {
+				return false;
+			}
+		}
+		if (type == 0) {
+			int v = signed(bps);
+			for (int i = 0; i < n; i++) {
+				s[i] = v;
+			}
+		} else if (type == 1) {
+			for (int i = 0; i < n; i++) {
+				s[i] = signed(bps);
+			}
+		} else if (type >= 8 && type <= 12) {
+			int order = type - 8;
+			if (order > n) {
+				return false;
+			}
+			for (int i = 0; i < order; i++) {
+				s[i] = signed(bps);
+			}
+			if (!residual(s, order, n)) {
+				return false;
+			}
+			fixed(s, order, n);
+		} else if (type >= 32) {
+			int order = type - 31;
+			if (order > n) {
+				return false;
+			}
+			for (int i = 0; i < order; i++) {
+				s[i] = signed(bps);
+			}
+			int precision = bits(4) + 1;
+			if (precision == 16) {
+				return false;
+			}
+			int shift = signed(5);
+			if (shift < 0) {
+				return false;
+			}
+			for (int i = 0; i < order; i++) {
+				coefs[i] = signed(precision);
+			}
+			if (!residual(s, order, n)) {
+				return false;
+			}
+			// Whether the sum of products can overflow an int
+			int sumBits = bps + precision + (32 - Integer.numberOfLeadingZeros(order));
+			if (sumBits > 32) {
+				lpcWide(s, order, shift, n);
+			} else {
+				lpc(s, order, shift, n);
+			}
+		} else {
+			return false;
+		}
+		if (wasted > 0) {
+			for (int i = 0; i < n; i++) {
+				s[i] <<= wasted;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Read the Rice coded residual into s, after the warm up samples.
+	 *
+	 * @return false if it is corrupt.
+	 */
+	private boolean residual(int[] s, int order, int n) throws Underflow {
+		int method = bits(2);
+		if (method > 1) {
+			return false;
+		}
+		int paramBits = method == 0 ? 4 : 5;
+		int escape = method == 0 ? 15 : 31;
+		int partitionOrder = bits(4);
+		int partitionSize = n >> partitionOrder;
+		if (partitionSize << partitionOrder != n || partitionSize < order) {
+			return false;
+		}
+		int i = order;
+		for (int p = 0, parts = 1 << partitionOrder; p < parts; p++) {
+			int end = (p + 1) * partitionSize;
+			int k = bits(paramBits);
+			if (k == escape) {
+				int raw = bits(5);
+				for (; i < end; i++) {
+					s[i] = raw == 0 ? 0 : signed(raw);
+				}
+			} else {
+				rice(s, i, end, k);
+				i = end;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Read Rice coded values with parameter k into s, from from up to to.
+	 * This is where nearly all the time goes, so the bit cache is kept in
+	 * locals for the length of it.
+	 */
+	private void rice(int[] s, int from, int to, int k) throws Underflow {
+		long c = cache;
+		int cb = cacheBits;
+		int p = pos;
+		final byte[] b = buf;
+		final int lim = limit;
+		for (int i = from; i < to; i++) {
+			// The quotient, in unary: zeros up to a one
+			int q = 0;
+			while (true) {
+				if (cb < 32) {
+					while (cb <= 56 && p < lim) {
+						c |= (long) (b[p++] & 0xFF) << (56 - cb);
+						cb += 8;
+					}
+				}
+				if (c != 0) {
+					break;
+				}
+				if (p >= lim) {
+					throw UNDERFLOW;
+				}
+				q += cb;
+				cb = 0;
+			}
+			int zeros = Long.numberOfLeadingZeros(c);
+			q += zeros;
+			c = c << zeros << 1;
+			cb -= zeros + 1;
+			if (cb < k) {
+				while (cb <= 56 && p < lim) {
+					c |= (long) (b[p++] & 0xFF) << (56 - cb);
+					cb += 8;
+				}
+				if (cb < k) {
+					throw UNDERFLOW;
+				}
+			}
+			int v = q << k;
+			if (k > 0) {
+				v |= (int) (c >>> (64 - k));
+				c <<= k;
+				cb -= k;
+			}
+			s[i] = (v >>> 1) ^ -(v & 1);
+		}
+		cache = c;
+		cacheBits = cb;
+		pos = p;
+	}
+
+	/**
+	 * Undo one of the fixed polynomial predictors, in place. Working modulo
+	 * 2^32 gives the right answer even if the sums overflow on the way.
+	 */
+	private static void fixed(int[] s, int order, int n) {
+		switch (order) {
+		case 1:
+			for (int i = 1; i < n; i++) {
+				s[i] += s[i - 1];
+			}
+			break;
+		case 2:
+			for (int i = 2; i < n; i++) {
+				s[i] += 2 * s[i - 1] - s[i - 2];
+			}
+			break;
+		case 3:
+			for (int i = 3; i < n; i++) {
+				s[i] += 3 * (s[i - 1] - s[i - 2]) + s[i - 3];
+			}
+			break;
+		case 4:
+			for (int i = 4; i < n; i++) {
+				s[i] += 4 * (s[i - 1] + s[i - 3]) - 6 * s[i - 2] - s[i - 4];
+			}
+			break;
+		default:
+		}
+	}
+
+	/**
+	 * Undo a linear predictor, in place, where the sums fit in an int.
+	 */
+	private void lpc(int[] s, int order, int shift, int n) {
+		int[] q = coefs;
+		if (order == 8) {
+			// The most common order by far; unrolled
+			int q0 = q[0], q1 = q[1], q2 = q[2], q3 = q[3];
+			int q4 = q[4], q5 = q[5], q6 = q[6], q7 = q[7];
+			for (int i = 8; i < n; i++) {
+				int sum = q0 * s[i - 1] + q1 * s[i - 2] + q2 * s[i - 3] + q3
+						* s[i - 4] + q4 * s[i - 5] + q5 * s[i - 6] + q6
+						* s[i - 7] + q7 * s[i - 8];
+				s[i] += sum >> shift;
+			}
+			return;
+		}
+		for (int i = order; i < n; i++) {
+			int sum = 0;
+			for (int j = 0; j < order; j++) {
+				sum += q[j] * s[i - 1 - j];
+			}
+			s[i] += sum >> shift;
+		}
+	}
+
+	/**
+	 * Undo a linear predictor, in place, summing in longs.
+	 */
+	private void lpcWide(int[] s, int order, int shift, int n) {
+		int[] q = coefs;
+		for (int i = order; i < n; i++) {
+			long sum = 0;
+			for (int j = 0; j < order; j++) {
+				sum += (long) q[j] * s[i - 1 - j];
+			}
+			s[i] += (int) (sum >> shift);
+		}
+	}
+
+	/**
+	 * Turn the channels back into left and right if they were coded as a
+	 * sum or difference, and write the frame to the PCM buffer.
+	 */
+	private void interleave() {
+		int n = blockSize;
+		if (channelMode >= 8) {
+			int[] a = samples[0], b = samples[1];
+			if (channelMode == 8) {
+				// Left and side
+				for (int i = 0; i < n; i++) {
+					b[i] = a[i] - b[i];
+				}
+			} else if (channelMode == 9) {
+				// Side and right
+				for (int i = 0; i < n; i++) {
+					a[i] += b[i];
+				}
+			} else {
+				// Mid and side
+				for (int i = 0; i < n; i++) {
+					int side = b[i];
+					int mid = a[i] << 1 | side & 1;
+					a[i] = (mid + side) >> 1;
+					b[i] = (mid - side) >> 1;
+				}
+			}
+		}
+		int shift = 8 * bytesPerSample - frameBits;
+		byte[] out = pcm;
+		int j = 0;
+		if (bytesPerSample == 2 && channels == 2) {
+			int[] l = samples[0], r = samples[1];
+			for (int i = 0; i < n; i++) {
+				int a = l[i] << shift, b = r[i] << shift;
+				out[j] = (byte) a;
+				out[j + 1] = (byte) (a >> 8);
+				out[j + 2] = (byte) b;
+				out[j + 3] = (byte) (b >> 8);
+				j += 4;
+			}
+		} else {
+			for (int i = 0; i < n; i++) {
+				for (int ch = 0; ch < channels; ch++) {
+					int v = samples[ch][i] << shift;
+					for (int k = 0; k < bytesPerSample; k++) {
+						out[j++] = (byte) (v >> 8 * k);
+					}
+				}
+			}
+		}
+		pcmPos = 0;
+		pcmLen = j;
+	}
+
+	/**
+	 * @return The next n bits, 1 to 32 of them, as an unsigned number.
+	 */
+	private int bits(int n) throws Underflow {
+		if (n == 0) {
+			return 0;
+		}
+		if (cacheBits < n) {
+			while (cacheBits <= 56 && pos < limit) {
+				cache |= (long) (buf[pos++] & 0xFF) << (56 - cacheBits);
+				cacheBits += 8;
+			}
+			if (cacheBits < n) {
+				throw UNDERFLOW;
+			}
+		}
+		int v = (int) (cache >>> (64 - n));
+		cache <<= n;
+		cacheBits -= n;
+		return v;
+	}
+
+	/**
+	 * @return The next n bits, 1 to 32 of them, as a two's complement
+	 *         number.
+	 */
+	private int signed(int n) throws Underflow {
+		int v = bits(n);
+		return v << (32 - n) >> (32 - n);
+	}
+}
@@ -0,0 +1,119 @@
+package flac;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import javax.sound.sampled.spi.AudioFileReader;
+
+/**
+ * Reads FLAC files. Like the MP3 reader, it hands out AudioInputStreams that
+ * are already decoded, to signed little endian PCM of 8, 16, 24 or 32 bits,
+ * so the file format reports the decoded format too.
+ *
+ * This reader is registered with the sound system through
+ * META-INF/services/javax.sound.sampled.spi.AudioFileReader, so
+ * AudioSystem.getAudioInputStream will pick it up as well.
+ *
+ * @author Connor Findlay
+ */
+public class FLACFileReader extends AudioFileReader {
+	/** The file type this reader recognizes. */
+	public static final AudioFileFormat.Type FLAC = new AudioFileFormat.Type(
+			"FLAC", "flac");
+	// Pictures in the metadata can run to megabytes, so the mark has to
+	// survive reading past all of it.
+	private static final int MARK_LIMIT = Integer.MAX_VALUE;
+
+	@Override
+	public AudioFileFormat getAudioFileFormat(InputStream stream)
+			throws UnsupportedAudioFileException, IOException {
+		stream.mark(MARK_LIMIT);
+		try {
+			return fileFormat(FLACMetadata.read(stream));
+		} finally {
+			stream.reset();
+			// Drop the mark again, or a BufferedInputStream would keep
+			// buffering the whole file for it.
+			stream.mark(0);
+		}
+	}
+
+	@Override
+	public AudioFileFormat getAudioFileFormat(URL url)
+			throws UnsupportedAudioFileException, IOException {
+		try (InputStream in = new BufferedInputStream(url.openStream())) {
+			return fileFormat(FLACMetadata.read(in));
+		}
+	}
+
+	@Override
+	public AudioFileFormat getAudioFileFormat(File file)
+			throws UnsupportedAudioFileException, IOException {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			return fileFormat(FLACMetadata.read(in));
+		}
+	}
+
+	@Override
+	public AudioInputStream getAudioInputStream(InputStream stream)
+			throws UnsupportedAudioFileException, IOException {
+		stream.mark(MARK_LIMIT);
+		FLACMetadata info;
+		try {
+			info = FLACMetadata.read(stream);
+		} catch (UnsupportedAudioFileException e) {
+			stream.reset();
+			throw e;
+		}
+		stream.mark(0);
+		return new AudioInputStream(new FLACDecoder(stream, info,
+				info.getFirstFrameOffset()), info.getDecodedFormat(),
+				info.getTotalSamples());
+	}
+
+	@Override
+	public AudioInputStream getAudioInputStream(URL url)
+			throws UnsupportedAudioFileException, IOException {
+		InputStream in = new BufferedInputStream(url.openStream());
+		try {
+			return getAudioInputStream(in);
+		} catch (UnsupportedAudioFileException | IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Open a FLAC file. Files, unlike plain streams, can be seeked, through
+	 * the file's SEEKTABLE.
+	 *
+	 * @return A {@link FLACAudioInputStream} over the file.
+	 */
+	@Override
+	public AudioInputStream getAudioInputStream(File file)
+			throws UnsupportedAudioFileException, IOException {
+		return FLACAudioInputStream.open(file);
+	}
+
+	// -----Privates-----
+
+	private static AudioFileFormat fileFormat(FLACMetadata info) {
+		long frames = info.getTotalSamples();
+		Map<String, Object> properties = new HashMap<String, Object>();
+		if (frames > 0) {
+			properties.put("duration", Long.valueOf(frames * 1000000
+					/ info.getSampleRate()));
+		}
+		return new AudioFileFormat(FLAC, info.getDecodedFormat(),
+				(int) Math.min(Integer.MAX_VALUE, frames), properties);
+	}
+}
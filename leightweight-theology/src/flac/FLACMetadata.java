@@ -0,0 +1,282 @@
+package flac;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * The metadata blocks at the start of a FLAC file that the decoder needs:
+ * the STREAMINFO, which says what the audio is, and the SEEKTABLE, if there
+ * is one, which says where in the file each of a number of samples starts.
+ * Everything else (tags, pictures, padding) is skipped over.
+ *
+ * @author Connor Findlay
+ */
+public final class FLACMetadata {
+	private static final int STREAMINFO = 0;
+	private static final int SEEKTABLE = 3;
+	private static final int ID3_HEADER = 10;
+	// Seek points that mark nothing, left for an encoder to fill in later
+	private static final long PLACEHOLDER = -1L;
+
+	private int minBlockSize, maxBlockSize;
+	private int minFrameSize, maxFrameSize;
+	private int sampleRate, channels, bitsPerSample;
+	private long totalSamples;
+	private long[] seekSamples = new long[0];
+	private long[] seekOffsets = new long[0];
+	private long firstFrame;
+
+	private FLACMetadata() {
+	}
+
+	/**
+	 * Read the metadata from the start of a FLAC file, leaving the stream at
+	 * the first audio frame. An ID3v2 tag in front of the FLAC stream, as
+	 * some taggers write, is stepped over.
+	 *
+	 * @param in
+	 *            The stream, at the start of the file.
+	 * @return The metadata.
+	 * @throws UnsupportedAudioFileException
+	 *             If the stream isn't FLAC.
+	 * @throws IOException
+	 *             If it can't be read.
+	 */
+	public static FLACMetadata read(InputStream in)
+			throws UnsupportedAudioFileException, IOException {
+		FLACMetadata m = new FLACMetadata();
+		byte[] b = new byte[ID3_HEADER];
+		long pos = 0;
+		try {
+			readFully(in, b, 4);
+			if (b[0] == 'I' && b[1] == 'D' && b[2] == '3') {
+				readFully(in, b, 4, ID3_HEADER - 4);
+				int size = (b[6] & 0x7F) << 21 | (b[7] & 0x7F) << 14
+						| (b[8] & 0x7F) << 7 | (b[9] & 0x7F);
+				if ((b[5] & 0x10) != 0) {
+					size += ID3_HEADER;
+				}
+				skipFully(in, size);
+				pos += ID3_HEADER + size;
+				readFully(in, b, 4);
+			}
+			if (b[0] != 'f' || b[1] != 'L' || b[2] != 'a' || b[3] != 'C') {
+				throw new UnsupportedAudioFileException("Not a FLAC file");
+			}
+			pos += 4;
+			boolean last, sawInfo = false;
+			do {
+				readFully(in, b, 4);
+				pos += 4;
+				last = (b[0] & 0x80) != 0;
+				int type = b[0] & 0x7F;
+				int len = (b[1] & 0xFF) << 16 | (b[2] & 0xFF) << 8 | b[3]
+						& 0xFF;
+				if (type == STREAMINFO && len >= 34) {
+					byte[] info = new byte[len];
+					readFully(in, info, len);
+					m.parseStreamInfo(info);
+					sawInfo = true;
+				} else if (type == SEEKTABLE) {
+					byte[] table = new byte[len];
+					readFully(in, table, len);
+					m.parseSeekTable(table);
+				} else {
+					skipFully(in, len);
+				}
+				pos += len;
+			} while (!last);
+			if (!sawInfo) {
+				throw new UnsupportedAudioFileException("FLAC file has no STREAMINFO");
+			}
+		} catch (EOFException e) {
+			throw new UnsupportedAudioFileException("Truncated FLAC metadata");
+		}
+		m.firstFrame = pos;
+		return m;
+	}
+
+	/**
+	 * @return The PCM the stream decodes to: signed little endian, in the
+	 *         smallest whole number of bytes that holds a sample.
+	 */
+	public AudioFormat getDecodedFormat() {
+		return new AudioFormat(sampleRate, (bitsPerSample + 7) / 8 * 8,
+				channels, true, false);
+	}
+
+	/** @return Samples per second. */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/** @return Channels in each frame. */
+	public int getChannels() {
+		return channels;
+	}
+
+	/** @return The bits in each encoded sample, 4 to 32. */
+	public int getBitsPerSample() {
+		return bitsPerSample;
+	}
+
+	/**
+	 * @return The length of the stream in sample frames, or
+	 *         AudioSystem.NOT_SPECIFIED if the encoder didn't say.
+	 */
+	public long getTotalSamples() {
+		return totalSamples == 0 ? AudioSystem.NOT_SPECIFIED : totalSamples;
+	}
+
+	/** @return The longest block of samples in any frame. */
+	public int getMaxBlockSize() {
+		return maxBlockSize;
+	}
+
+	/** @return The shortest block of samples in any frame but the last. */
+	public int getMinBlockSize() {
+		return minBlockSize;
+	}
+
+	/** @return The longest frame in bytes, or 0 if not known. */
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	/** @return The shortest frame in bytes, or 0 if not known. */
+	public int getMinFrameSize() {
+		return minFrameSize;
+	}
+
+	/** @return Where the first audio frame starts in the file. */
+	public long getFirstFrameOffset() {
+		return firstFrame;
+	}
+
+	/** @return The number of usable seek points. */
+	public int getSeekPoints() {
+		return seekSamples.length;
+	}
+
+	/**
+	 * Find the last seek point at or before a sample.
+	 *
+	 * @param sample
+	 *            The sample frame wanted.
+	 * @return The seek point's index, or -1 if there is none before it.
+	 */
+	public int seekPointBefore(long sample) {
+		int lo = 0, hi = seekSamples.length - 1, found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (seekSamples[mid] <= sample) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @param point
+	 *            A seek point's index.
+	 * @return The sample frame the seek point's audio frame starts at.
+	 */
+	public long getSeekSample(int point) {
+		return seekSamples[point];
+	}
+
+	/**
+	 * @param point
+	 *            A seek point's index.
+	 * @return Where in the file its audio frame starts.
+	 */
+	public long getSeekOffset(int point) {
+		return firstFrame + seekOffsets[point];
+	}
+
+	// -----Privates-----
+
+	private void parseStreamInfo(byte[] b) throws UnsupportedAudioFileException {
+		minBlockSize = (b[0] & 0xFF) << 8 | b[1] & 0xFF;
+		maxBlockSize = (b[2] & 0xFF) << 8 | b[3] & 0xFF;
+		minFrameSize = (b[4] & 0xFF) << 16 | (b[5] & 0xFF) << 8 | b[6] & 0xFF;
+		maxFrameSize = (b[7] & 0xFF) << 16 | (b[8] & 0xFF) << 8 | b[9] & 0xFF;
+		sampleRate = (b[10] & 0xFF) << 12 | (b[11] & 0xFF) << 4
+				| (b[12] & 0xFF) >>> 4;
+		channels = ((b[12] & 0x0E) >>> 1) + 1;
+		bitsPerSample = ((b[12] & 0x01) << 4 | (b[13] & 0xFF) >>> 4) + 1;
+		totalSamples = (long) (b[13] & 0x0F) << 32 | (long) (b[14] & 0xFF) << 24
+				| (b[15] & 0xFF) << 16 | (b[16] & 0xFF) << 8 | b[17] & 0xFF;
+		if (sampleRate == 0 || maxBlockSize < 16 || bitsPerSample < 4) {
+			throw new UnsupportedAudioFileException("Bad FLAC STREAMINFO");
+		}
+	}
+
+	private void parseSeekTable(byte[] b) {
+		int n = b.length / 18;
+		long[] samples = new long[n];
+		long[] offsets = new long[n];
+		int used = 0;
+		for (int i = 0; i < n; i++) {
+			long sample = getLong(b, 18 * i);
+			long offset = getLong(b, 18 * i + 8);
+			// Points are in order; drop placeholders and repeats
+			if (sample == PLACEHOLDER
+					|| (used > 0 && sample <= samples[used - 1])) {
+				continue;
+			}
+			samples[used] = sample;
+			offsets[used] = offset;
+			used++;
+		}
+		seekSamples = Arrays.copyOf(samples, used);
+		seekOffsets = Arrays.copyOf(offsets, used);
+	}
+
+	private static long getLong(byte[] b, int off) {
+		long v = 0;
+		for (int i = 0; i < 8; i++) {
+			v = v << 8 | b[off + i] & 0xFF;
+		}
+		return v;
+	}
+
+	private static void readFully(InputStream in, byte[] b, int len)
+			throws IOException {
+		readFully(in, b, 0, len);
+	}
+
+	private static void readFully(InputStream in, byte[] b, int off, int len)
+			throws IOException {
+		while (len > 0) {
+			int n = in.read(b, off, len);
+			if (n == -1) {
+				throw new EOFException();
+			}
+			off += n;
+			len -= n;
+		}
+	}
+
+	private static void skipFully(InputStream in, long n) throws IOException {
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				if (in.read() == -1) {
+					throw new EOFException();
+				}
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+}
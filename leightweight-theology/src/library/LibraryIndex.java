@@ -0,0 +1,550 @@
+package library;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Every music file under the library's roots, with its size and modification
+ * time, kept in a file so that starting the player doesn't mean walking the
+ * disk. The file is:
+ *
+ * <pre>
+ * int magic; int version; int roots; int directories; int files
+ * roots:       string path
+ * directories: long modified; string path
+ * files:       int pathHash; int directory; long size; long modified; string name
+ * </pre>
+ *
+ * each string a short length and UTF-8 bytes. Each directory is stored once,
+ * and files only by name, so a file costs its name plus 26 bytes.
+ *
+ * Opening maps the file and reads the directories, which are few; the files
+ * stay in the mapping, found through a table of offsets and a hash table
+ * built from the stored hashes. Changes since opening are held in memory on
+ * top of the mapping until {@link #save()} writes a new file.
+ *
+ * Thread safe.
+ *
+ * @author Connor Findlay
+ */
+public final class LibraryIndex {
+	private static final int MAGIC = 0x4C544C49; // "LTLI"
+	private static final int VERSION = 1;
+	// The size of a file, or modification time of a directory, once removed
+	private static final long REMOVED = -1;
+	// Where the fields are, from the start of a file record
+	private static final int DIR = 4, SIZE = 8, MODIFIED = 16, NAME = 24;
+
+	private final Path file;
+	private ByteBuffer mapped;
+	private int[] offsets;
+	private int mappedCount;
+	// Open addressing, on the path: file number + 1, or 0 for empty
+	private int[] slots;
+	private int[] hashes;
+	private int live;
+	private final ArrayList<String> roots = new ArrayList<String>();
+	// Directories with a trailing separator, and their modification times
+	private final ArrayList<String> dirs = new ArrayList<String>();
+	private long[] dirModified;
+	private final HashMap<String, Integer> dirLookup = new HashMap<String, Integer>();
+	// Files added, changed or removed since the mapping was made
+	private final HashMap<String, Change> changes = new HashMap<String, Change>();
+	private boolean dirty;
+
+	/**
+	 * Visits the files of the library.
+	 */
+	public interface Visitor {
+		/**
+		 * @param path
+		 *            The full path of a file.
+		 * @param size
+		 *            Its size when last seen.
+		 * @param modified
+		 *            Its modification time when last seen, in milliseconds.
+		 */
+		void file(String path, long size, long modified);
+	}
+
+	/**
+	 * Open the index in the user's home directory.
+	 *
+	 * @return The index.
+	 * @throws IOException
+	 *             If it exists but can't be read.
+	 */
+	public static LibraryIndex openDefault() throws IOException {
+		return new LibraryIndex(Paths.get(System.getProperty("user.home"),
+				".lightweight-theology", "library.index"));
+	}
+
+	/**
+	 * Open an index file. If it doesn't exist, or isn't an index, the index
+	 * starts empty, and the file is written on the first save.
+	 *
+	 * @param file
+	 *            The index file.
+	 * @throws IOException
+	 *             If it exists but can't be read.
+	 */
+	public LibraryIndex(Path file) throws IOException {
+		this.file = file;
+		load();
+	}
+
+	/** @return The number of files in the library. */
+	public synchronized int size() {
+		return live;
+	}
+
+	/** @return The music roots the library is made from. */
+	public synchronized List<Path> getRoots() {
+		List<Path> list = new ArrayList<Path>();
+		for (String root : roots) {
+			list.add(Paths.get(root));
+		}
+		return list;
+	}
+
+	/**
+	 * Add a music root. Its files still have to be added.
+	 *
+	 * @return true if it wasn't a root already.
+	 */
+	public synchronized boolean addRoot(Path root) {
+		String path = root.toAbsolutePath().toString();
+		if (roots.contains(path)) {
+			return false;
+		}
+		roots.add(path);
+		dirty = true;
+		return true;
+	}
+
+	/**
+	 * @return true if a file is in the library with this size and
+	 *         modification time.
+	 */
+	public synchronized boolean isCurrent(Path file, long size, long modified) {
+		Change c = current(file.toString());
+		return c != null && c.size == size && c.modified == modified;
+	}
+
+	/**
+	 * Add a file to the library, or update its size and modification time.
+	 */
+	public synchronized void put(Path file, long size, long modified) {
+		String path = file.toString();
+		if (current(path) == null) {
+			live++;
+		}
+		changes.put(path, new Change(size, modified));
+		dirty = true;
+	}
+
+	/**
+	 * Take a file out of the library.
+	 *
+	 * @return true if it was in it.
+	 */
+	public synchronized boolean remove(Path file) {
+		String path = file.toString();
+		if (current(path) == null) {
+			return false;
+		}
+		changes.put(path, Change.GONE);
+		live--;
+		dirty = true;
+		return true;
+	}
+
+	/**
+	 * Take a directory, and everything under it, out of the library.
+	 *
+	 * @return The number of files taken out.
+	 */
+	public synchronized int removeUnder(Path dir) {
+		final String prefix = withSeparator(dir.toString());
+		for (int i = 0; i < dirs.size(); i++) {
+			if (dirs.get(i).startsWith(prefix) && dirModified[i] != REMOVED) {
+				dirModified[i] = REMOVED;
+				dirty = true;
+			}
+		}
+		final List<String> gone = new ArrayList<String>();
+		forEach(new Visitor() {
+			public void file(String path, long size, long modified) {
+				if (path.startsWith(prefix)) {
+					gone.add(path);
+				}
+			}
+		});
+		for (String path : gone) {
+			changes.put(path, Change.GONE);
+		}
+		live -= gone.size();
+		dirty |= !gone.isEmpty();
+		return gone.size();
+	}
+
+	/**
+	 * Take out the files of some directories that weren't seen when those
+	 * directories were listed.
+	 *
+	 * @param listed
+	 *            The directories listed, with a trailing separator.
+	 * @param seen
+	 *            The full paths of the files found in them.
+	 * @return The number of files taken out.
+	 */
+	public synchronized int removeMissing(final Set<String> listed,
+			final Set<String> seen) {
+		final List<String> gone = new ArrayList<String>();
+		forEach(new Visitor() {
+			public void file(String path, long size, long modified) {
+				int split = path.lastIndexOf(File.separatorChar) + 1;
+				if (listed.contains(path.substring(0, split))
+						&& !seen.contains(path)) {
+					gone.add(path);
+				}
+			}
+		});
+		for (String path : gone) {
+			changes.put(path, Change.GONE);
+		}
+		live -= gone.size();
+		dirty |= !gone.isEmpty();
+		return gone.size();
+	}
+
+	/**
+	 * Visit every file in the library, in no particular order. The index is
+	 * locked throughout, so the visitor should be quick.
+	 */
+	public synchronized void forEach(Visitor visitor) {
+		for (int i = 0; i < mappedCount; i++) {
+			int record = offsets[i];
+			String path = path(record);
+			if (!changes.containsKey(path)) {
+				visitor.file(path, mapped.getLong(record + SIZE),
+						mapped.getLong(record + MODIFIED));
+			}
+		}
+		for (Map.Entry<String, Change> e : changes.entrySet()) {
+			Change c = e.getValue();
+			if (c != Change.GONE) {
+				visitor.file(e.getKey(), c.size, c.modified);
+			}
+		}
+	}
+
+	/** @return Every directory in the library. */
+	public synchronized List<Path> getDirectories() {
+		List<Path> list = new ArrayList<Path>();
+		for (int i = 0; i < dirs.size(); i++) {
+			if (dirModified[i] != REMOVED) {
+				list.add(Paths.get(dirs.get(i)));
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * @return The modification time of a directory when last listed, or -1
+	 *         if it isn't in the library.
+	 */
+	public synchronized long getDirectoryModified(Path dir) {
+		Integer i = dirLookup.get(withSeparator(dir.toString()));
+		return i == null ? REMOVED : dirModified[i];
+	}
+
+	/**
+	 * Add a directory, or record the modification time it was listed at.
+	 */
+	public synchronized void putDirectory(Path dir, long modified) {
+		int i = directory(withSeparator(dir.toString()));
+		if (dirModified[i] != modified) {
+			dirModified[i] = modified;
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Write the index to its file, if it has changed, and map the new file.
+	 *
+	 * @throws IOException
+	 *             If it can't be written.
+	 */
+	public synchronized void save() throws IOException {
+		if (!dirty) {
+			return;
+		}
+		Path dir = file.toAbsolutePath().getParent();
+		if (dir != null) {
+			Files.createDirectories(dir);
+		}
+		// The directories are renumbered, leaving out the removed ones
+		final List<String> newDirs = new ArrayList<String>();
+		final List<Long> newModified = new ArrayList<Long>();
+		final HashMap<String, Integer> newLookup = new HashMap<String, Integer>();
+		for (int i = 0; i < dirs.size(); i++) {
+			if (dirModified[i] != REMOVED) {
+				newLookup.put(dirs.get(i), newDirs.size());
+				newDirs.add(dirs.get(i));
+				newModified.add(dirModified[i]);
+			}
+		}
+		final int[] count = new int[1];
+		forEach(new Visitor() {
+			public void file(String path, long size, long modified) {
+				String d = path.substring(0,
+						path.lastIndexOf(File.separatorChar) + 1);
+				if (!newLookup.containsKey(d)) {
+					newLookup.put(d, newDirs.size());
+					newDirs.add(d);
+					newModified.add(0L);
+				}
+				count[0]++;
+			}
+		});
+
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(tmp), 65536))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(roots.size());
+			out.writeInt(newDirs.size());
+			out.writeInt(count[0]);
+			for (String root : roots) {
+				writeString(out, root);
+			}
+			for (int i = 0; i < newDirs.size(); i++) {
+				out.writeLong(newModified.get(i));
+				writeString(out, newDirs.get(i));
+			}
+			final IOException[] failure = new IOException[1];
+			forEach(new Visitor() {
+				public void file(String path, long size, long modified) {
+					int split = path.lastIndexOf(File.separatorChar) + 1;
+					try {
+						out.writeInt(hash(path.getBytes(StandardCharsets.UTF_8)));
+						out.writeInt(newLookup.get(path.substring(0, split)));
+						out.writeLong(size);
+						out.writeLong(modified);
+						writeString(out, path.substring(split));
+					} catch (IOException e) {
+						failure[0] = e;
+					}
+				}
+			});
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		load();
+	}
+
+	// -----Privates-----
+
+	/**
+	 * The size and modification time of a file, as changed since the index
+	 * was mapped.
+	 */
+	private static final class Change {
+		static final Change GONE = new Change(REMOVED, REMOVED);
+		final long size;
+		final long modified;
+
+		Change(long size, long modified) {
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+
+	/**
+	 * Map the index file, and read its roots and directories. Anything
+	 * changed in memory is dropped.
+	 */
+	private void load() throws IOException {
+		clear();
+		ByteBuffer map;
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			if (channel.size() < 20 || channel.size() > Integer.MAX_VALUE) {
+				return;
+			}
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (NoSuchFileException e) {
+			return;
+		}
+		try {
+			if (map.getInt() != MAGIC || map.getInt() != VERSION) {
+				return;
+			}
+			int rootCount = map.getInt();
+			int dirCount = map.getInt();
+			int fileCount = map.getInt();
+			for (int i = 0; i < rootCount; i++) {
+				roots.add(readString(map));
+			}
+			dirModified = new long[Math.max(dirCount, 16)];
+			for (int i = 0; i < dirCount; i++) {
+				dirModified[i] = map.getLong();
+				directory(readString(map));
+			}
+			int[] table = new int[fileCount];
+			int capacity = 16;
+			while (capacity < fileCount * 2) {
+				capacity <<= 1;
+			}
+			slots = new int[capacity];
+			hashes = new int[capacity];
+			for (int i = 0; i < fileCount; i++) {
+				int record = map.position();
+				table[i] = record;
+				int h = map.getInt(record);
+				int nameLength = map.getShort(record + NAME) & 0xFFFF;
+				map.position(record + NAME + 2 + nameLength);
+				int slot = h & (capacity - 1);
+				while (slots[slot] != 0) {
+					slot = (slot + 1) & (capacity - 1);
+				}
+				slots[slot] = i + 1;
+				hashes[slot] = h;
+			}
+			mapped = map;
+			offsets = table;
+			mappedCount = live = fileCount;
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			// Cut short; start over rather than trust any of it
+			System.err.println("Library index " + file
+					+ " is damaged, and will be rebuilt");
+			clear();
+		}
+	}
+
+	/**
+	 * Empty the index, in memory only.
+	 */
+	private void clear() {
+		mapped = ByteBuffer.allocate(0);
+		offsets = new int[0];
+		mappedCount = live = 0;
+		slots = new int[16];
+		hashes = new int[16];
+		roots.clear();
+		dirs.clear();
+		dirLookup.clear();
+		dirModified = new long[16];
+		changes.clear();
+		dirty = false;
+	}
+
+	/**
+	 * @return The size and modification time of a file, or null if it isn't
+	 *         in the library.
+	 */
+	private Change current(String path) {
+		Change c = changes.get(path);
+		if (c != null) {
+			return c == Change.GONE ? null : c;
+		}
+		int record = find(path);
+		if (record < 0) {
+			return null;
+		}
+		return new Change(mapped.getLong(record + SIZE),
+				mapped.getLong(record + MODIFIED));
+	}
+
+	/**
+	 * @return The offset of a path's record in the mapping, or -1.
+	 */
+	private int find(String path) {
+		int h = hash(path.getBytes(StandardCharsets.UTF_8));
+		int mask = slots.length - 1;
+		for (int i = h & mask; slots[i] != 0; i = (i + 1) & mask) {
+			int record = offsets[slots[i] - 1];
+			if (hashes[i] == h && path(record).equals(path)) {
+				return record;
+			}
+		}
+		return -1;
+	}
+
+	private String path(int record) {
+		int len = mapped.getShort(record + NAME) & 0xFFFF;
+		byte[] name = new byte[len];
+		ByteBuffer b = mapped.duplicate();
+		b.position(record + NAME + 2);
+		b.get(name);
+		return dirs.get(mapped.getInt(record + DIR)).concat(
+				new String(name, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return The index of a directory, adding it if new.
+	 */
+	private int directory(String path) {
+		Integer idx = dirLookup.get(path);
+		if (idx == null) {
+			idx = dirs.size();
+			dirs.add(path);
+			dirLookup.put(path, idx);
+			if (idx == dirModified.length) {
+				dirModified = Arrays.copyOf(dirModified, idx * 2);
+			}
+		}
+		return idx;
+	}
+
+	private static String withSeparator(String dir) {
+		return dir.endsWith(File.separator) ? dir : dir + File.separator;
+	}
+
+	/**
+	 * @return The FNV-1a hash of a path's bytes.
+	 */
+	private static int hash(byte[] path) {
+		int h = 0x811C9DC5;
+		for (byte b : path) {
+			h = (h ^ (b & 0xFF)) * 0x01000193;
+		}
+		return h;
+	}
+
+	private static String readString(ByteBuffer b) {
+		byte[] s = new byte[b.getShort() & 0xFFFF];
+		b.get(s);
+		return new String(s, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(b.length);
+		out.write(b);
+	}
+}
@@ -0,0 +1,487 @@
+package library;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tags.TagCache;
+
+/**
+ * Keeps a {@link LibraryIndex} up to date with the music roots on disk, on a
+ * background thread.
+ *
+ * A new root is walked once, over every core, each directory listed by its
+ * own fork/join task. After that the indexer watches every directory in the
+ * library with a {@link WatchService}, and only looks again at what the
+ * watcher reports changed. Changes are gathered until the disk has been
+ * quiet for a second, so a file being copied in is read once, when it's
+ * done.
+ *
+ * Changes made while the player wasn't running are caught on starting,
+ * without walking the disk: each directory in the index is checked against
+ * the modification time it was listed at, and only those that differ are
+ * listed again. Files changed in place don't touch their directory, but
+ * their tags are checked against the file whenever they're asked for.
+ *
+ * Only new and changed files have their tags read, into the tag cache.
+ * Listeners are told once the catch up is done, and after each batch of
+ * changes, on the indexer thread.
+ *
+ * @author Connor Findlay
+ */
+public final class LibraryIndexer implements Closeable {
+	// How long the disk has to be quiet before changes are acted on, and the
+	// longest they're put off while it keeps changing, in milliseconds
+	private static final long QUIET = 1000;
+	private static final long MAX_DELAY = 10000;
+	// File extensions worth indexing
+	private static final String[] EXTENSIONS = { ".mp3", ".wav", ".wave",
+			".aif", ".aiff", ".au", ".flac" };
+
+	private final LibraryIndex index;
+	private final TagCache tags;
+	private final ForkJoinPool pool = new ForkJoinPool();
+	private final ConcurrentHashMap<WatchKey, Path> keys = new ConcurrentHashMap<WatchKey, Path>();
+	private final ConcurrentLinkedQueue<Path> newRoots = new ConcurrentLinkedQueue<Path>();
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private WatchService watcher;
+	private Thread thread;
+	private volatile boolean watchLimitReached;
+	private volatile boolean closed;
+
+	/**
+	 * Told when the library changes.
+	 */
+	public interface Listener {
+		/**
+		 * Called on the indexer thread, once the index has caught up with
+		 * the disk on starting, and after each batch of changes.
+		 *
+		 * @param index
+		 *            The index.
+		 */
+		void libraryChanged(LibraryIndex index);
+	}
+
+	/**
+	 * Create an indexer. Nothing happens until it is started.
+	 *
+	 * @param index
+	 *            The index to keep up to date.
+	 * @param tags
+	 *            Where to put the tags of new and changed files, or null to
+	 *            leave them.
+	 */
+	public LibraryIndexer(LibraryIndex index, TagCache tags) {
+		this.index = index;
+		this.tags = tags;
+	}
+
+	/** @return The index being kept up to date. */
+	public LibraryIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * Add a listener, to be told when the library changes.
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Remove a listener.
+	 */
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Catch up with any changes made while we weren't running, then start
+	 * watching. Returns at once; the work is done on the indexer thread.
+	 *
+	 * @throws IOException
+	 *             If the file system can't be watched.
+	 */
+	public synchronized void start() throws IOException {
+		if (thread != null) {
+			return;
+		}
+		watcher = FileSystems.getDefault().newWatchService();
+		thread = new Thread(new Runnable() {
+			public void run() {
+				index();
+			}
+		}, "library indexer");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.NORM_PRIORITY - 1);
+		thread.start();
+	}
+
+	/**
+	 * Add a music root to the library. It is walked on the indexer thread,
+	 * and watched from then on.
+	 *
+	 * @param root
+	 *            The directory.
+	 */
+	public void addRoot(Path root) {
+		newRoots.add(root.toAbsolutePath());
+	}
+
+	/**
+	 * Stop watching, and wait for the indexer thread to save the index and
+	 * stop. A walk in progress stops where it is, and is finished on the
+	 * next start.
+	 */
+	public void close() throws IOException {
+		Thread t;
+		synchronized (this) {
+			closed = true;
+			if (watcher != null) {
+				watcher.close();
+			}
+			t = thread;
+		}
+		if (t != null && t != Thread.currentThread()) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// -----Privates-----
+
+	/**
+	 * The indexer thread: catch up, then act on what the watcher reports.
+	 */
+	private void index() {
+		try {
+			catchUp();
+			watch();
+		} catch (ClosedWatchServiceException e) {
+			// Closed
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			save();
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * List again the directories that changed while we weren't running, and
+	 * walk the roots that haven't been walked, including any added before
+	 * starting.
+	 */
+	private void catchUp() {
+		Scan scan = new Scan();
+		Path added;
+		while ((added = newRoots.poll()) != null) {
+			index.addRoot(added);
+		}
+		for (Path dir : index.getDirectories()) {
+			if (index.getDirectoryModified(dir) < 0) {
+				// Went with a parent that's gone
+				continue;
+			}
+			BasicFileAttributes attrs = attributes(dir);
+			if (attrs == null || !attrs.isDirectory()) {
+				scan.removed += index.removeUnder(dir);
+				continue;
+			}
+			register(dir);
+			if (attrs.lastModifiedTime().toMillis() != index
+					.getDirectoryModified(dir)) {
+				scan.tasks.add(new ListTask(dir, false, scan));
+			}
+		}
+		for (Path root : index.getRoots()) {
+			if (index.getDirectoryModified(root) < 0
+					&& Files.isDirectory(root)) {
+				scan.tasks.add(new ListTask(root, true, scan));
+			}
+		}
+		finish(scan, true);
+	}
+
+	/**
+	 * Gather what the watcher reports until the disk goes quiet, then act on
+	 * it; until closed.
+	 */
+	private void watch() throws InterruptedException {
+		Set<Path> changed = new HashSet<Path>();
+		Set<Path> overflowed = new HashSet<Path>();
+		long firstChange = 0;
+		while (true) {
+			WatchKey key = watcher.poll(QUIET, TimeUnit.MILLISECONDS);
+			if (key != null) {
+				Path dir = keys.get(key);
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (dir == null) {
+						continue;
+					}
+					if (changed.isEmpty() && overflowed.isEmpty()) {
+						firstChange = System.currentTimeMillis();
+					}
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						// Events were lost; look at the whole directory
+						overflowed.add(dir);
+					} else {
+						changed.add(dir.resolve((Path) event.context()));
+					}
+				}
+				if (!key.reset()) {
+					keys.remove(key);
+				}
+				if (System.currentTimeMillis() - firstChange < MAX_DELAY) {
+					continue;
+				}
+			}
+
+			Scan scan = new Scan();
+			Path root;
+			while ((root = newRoots.poll()) != null) {
+				if (index.addRoot(root) && Files.isDirectory(root)) {
+					scan.tasks.add(new ListTask(root, true, scan));
+				}
+			}
+			for (Path path : changed) {
+				apply(path, scan);
+			}
+			for (Path dir : overflowed) {
+				scan.tasks.add(new ListTask(dir, false, scan));
+			}
+			changed.clear();
+			overflowed.clear();
+			finish(scan, false);
+		}
+	}
+
+	/**
+	 * Act on one path the watcher reported.
+	 */
+	private void apply(Path path, Scan scan) {
+		BasicFileAttributes attrs = attributes(path);
+		if (attrs == null) {
+			if (index.remove(path)) {
+				scan.removed++;
+			}
+			if (index.getDirectoryModified(path) >= 0) {
+				scan.removed += index.removeUnder(path);
+			}
+		} else if (attrs.isDirectory()) {
+			// New, or moved in; either way it has to be walked
+			scan.tasks.add(new ListTask(path, true, scan));
+		} else if (attrs.isRegularFile() && isAudio(path)) {
+			update(path, attrs, scan);
+		}
+	}
+
+	/**
+	 * Run the listing of a scan, take out what it found to be gone, and save
+	 * and tell the listeners if anything changed, or always when asked to.
+	 */
+	private void finish(final Scan scan, boolean tell) {
+		if (!scan.tasks.isEmpty()) {
+			pool.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					invokeAll(scan.tasks);
+				}
+			});
+			scan.removed += index.removeMissing(scan.listed, scan.seen);
+		}
+		boolean changed = scan.removed > 0 || scan.updated.get() > 0;
+		if (changed) {
+			save();
+		}
+		if (changed || tell) {
+			for (Listener listener : listeners) {
+				listener.libraryChanged(index);
+			}
+		}
+	}
+
+	/**
+	 * The work, and findings, of one batch of listing.
+	 */
+	private static final class Scan {
+		final List<ListTask> tasks = new ArrayList<ListTask>();
+		// Directories listed in full, with a trailing separator, and the
+		// files found in them
+		final Set<String> listed = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final Set<String> seen = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final AtomicInteger updated = new AtomicInteger();
+		int removed;
+	}
+
+	/**
+	 * Lists one directory, bringing its files up to date in the index, and
+	 * forks a task for each subdirectory that needs walking.
+	 */
+	private final class ListTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Path dir;
+		private final boolean recursive;
+		private final Scan scan;
+
+		/**
+		 * @param recursive
+		 *            true to walk every subdirectory, false for only those
+		 *            new to the index.
+		 */
+		ListTask(Path dir, boolean recursive, Scan scan) {
+			this.dir = dir;
+			this.recursive = recursive;
+			this.scan = scan;
+		}
+
+		@Override
+		protected void compute() {
+			if (closed) {
+				return;
+			}
+			BasicFileAttributes dirAttrs = attributes(dir);
+			if (dirAttrs == null || !dirAttrs.isDirectory()) {
+				return;
+			}
+			register(dir);
+			List<ListTask> subdirs = new ArrayList<ListTask>();
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+				for (Path entry : entries) {
+					BasicFileAttributes attrs = attributes(entry);
+					if (attrs == null) {
+						continue;
+					}
+					if (attrs.isDirectory()) {
+						if (recursive || index.getDirectoryModified(entry) < 0) {
+							subdirs.add(new ListTask(entry, true, scan));
+						}
+					} else if (attrs.isRegularFile() && isAudio(entry)) {
+						scan.seen.add(entry.toString());
+						update(entry, attrs, scan);
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Could not list " + dir + ": " + e);
+				return;
+			}
+			scan.listed.add(dir.toString().endsWith(File.separator) ? dir
+					.toString() : dir + File.separator);
+			invokeAll(subdirs);
+			// Only once everything under it is in, so a walk cut short is
+			// taken up again on the next start. With the time read before
+			// listing, so a change made meanwhile is seen then too
+			if (!closed) {
+				index.putDirectory(dir, dirAttrs.lastModifiedTime().toMillis());
+			}
+		}
+	}
+
+	/**
+	 * Put a file in the index if it's new or changed, and read its tags.
+	 */
+	private void update(Path file, BasicFileAttributes attrs, Scan scan) {
+		long size = attrs.size();
+		long modified = attrs.lastModifiedTime().toMillis();
+		if (index.isCurrent(file, size, modified)) {
+			return;
+		}
+		index.put(file, size, modified);
+		scan.updated.incrementAndGet();
+		if (tags != null) {
+			tags.get(file.toFile());
+		}
+	}
+
+	/**
+	 * Watch a directory, if it isn't already.
+	 */
+	private void register(Path dir) {
+		if (watchLimitReached) {
+			return;
+		}
+		try {
+			WatchKey key = dir.register(watcher,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			keys.put(key, dir);
+		} catch (ClosedWatchServiceException e) {
+			// Closing
+		} catch (IOException e) {
+			// Most likely the system's limit on watches; what's indexed
+			// stays, and is caught up with on the next start
+			System.err.println("Could not watch " + dir + ": " + e);
+			watchLimitReached = true;
+		}
+	}
+
+	private void save() {
+		try {
+			index.save();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return The attributes of a path, following a link to a file but not
+	 *         to a directory, so a link can't make the walk go round in
+	 *         circles; null if it doesn't exist.
+	 */
+	private static BasicFileAttributes attributes(Path path) {
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(path,
+					BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			if (attrs.isSymbolicLink()) {
+				attrs = Files.readAttributes(path, BasicFileAttributes.class);
+				return attrs.isDirectory() ? null : attrs;
+			}
+			return attrs;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static boolean isAudio(Path file) {
+		String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+		for (String ext : EXTENSIONS) {
+			if (name.endsWith(ext)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,84 @@
+package loudness;
+
+/**
+ * How much to turn a song up or down so it plays at the same loudness as
+ * every other: what was measured of it, and of its album, and the gain that
+ * follows, ReplayGain 2.0 style.
+ *
+ * The gain brings the song, or the whole album, to {@link #REFERENCE}. It
+ * is never so much that the true peak would go over full scale, and never
+ * a boost of more than {@link #MAX_BOOST} dB, however quiet the song.
+ *
+ * @author Connor Findlay
+ */
+public final class Gain {
+	/** The loudness everything is brought to, in LUFS */
+	public static final double REFERENCE = -18;
+	/** The most a song is turned up, in dB */
+	public static final double MAX_BOOST = 12;
+
+	private final float trackLoudness, trackPeak;
+	private final float albumLoudness, albumPeak;
+
+	/**
+	 * @param track
+	 *            The song's loudness.
+	 * @param album
+	 *            Its album's, or the song's again if it isn't on one.
+	 */
+	public Gain(Loudness track, Loudness album) {
+		this((float) track.getIntegrated(), track.getTruePeak(),
+				(float) album.getIntegrated(), album.getTruePeak());
+	}
+
+	Gain(float trackLoudness, float trackPeak, float albumLoudness,
+			float albumPeak) {
+		this.trackLoudness = trackLoudness;
+		this.trackPeak = trackPeak;
+		this.albumLoudness = albumLoudness;
+		this.albumPeak = albumPeak;
+	}
+
+	/**
+	 * @param album
+	 *            true for the album's gain, so songs keep their loudness
+	 *            relative to each other; false for the song's own.
+	 * @return What to multiply each sample by.
+	 */
+	public float getScale(boolean album) {
+		double loudness = album ? albumLoudness : trackLoudness;
+		double peak = album ? albumPeak : trackPeak;
+		double db = Math.min(REFERENCE - loudness, MAX_BOOST);
+		double scale = Math.pow(10, db / 20);
+		if (peak > 0) {
+			scale = Math.min(scale, 1 / peak);
+		}
+		return (float) scale;
+	}
+
+	/** @return The song's integrated loudness, in LUFS. */
+	public float getTrackLoudness() {
+		return trackLoudness;
+	}
+
+	/** @return The song's true peak, where 1 is full scale. */
+	public float getTrackPeak() {
+		return trackPeak;
+	}
+
+	/** @return The album's integrated loudness, in LUFS. */
+	public float getAlbumLoudness() {
+		return albumLoudness;
+	}
+
+	/** @return The album's true peak, where 1 is full scale. */
+	public float getAlbumPeak() {
+		return albumPeak;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("track %.1f LUFS %.2f peak, album %.1f LUFS %.2f peak",
+				trackLoudness, trackPeak, albumLoudness, albumPeak);
+	}
+}
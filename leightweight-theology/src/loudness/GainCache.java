@@ -0,0 +1,284 @@
+package loudness;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The measured loudness of every song analysed, kept on disk so each song
+ * is only analysed once. As with the tag cache, an entry is keyed by the
+ * song's path, and is only used while the song's size and modification time
+ * are the ones it was analysed with.
+ *
+ * The cache file is a header followed by one record per entry:
+ *
+ * <pre>
+ * int length; long size; long modified; float trackLoudness; float trackPeak; float albumLoudness; float albumPeak; path
+ * </pre>
+ *
+ * the path a short length and UTF-8 bytes. Records are small and fixed but
+ * for the path, so the whole file is read into memory when opened; new
+ * entries are appended as they are measured. A song analysed again leaves
+ * its old record behind; when those outnumber the live ones,
+ * {@link #close()} writes a compacted file.
+ *
+ * Safe to use from any number of threads.
+ *
+ * @author Connor Findlay
+ */
+public final class GainCache implements Closeable {
+	private static final int MAGIC = 0x4C544743; // "LTGC"
+	private static final int VERSION = 1;
+	private static final int HEADER = 8;
+	// Everything after the length, with an empty path
+	private static final int MIN_RECORD = 8 + 8 + 4 * 4 + 2;
+
+	private final Path file;
+	private final FileChannel channel;
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	private int records;
+	private long end;
+	private static GainCache shared;
+
+	/**
+	 * Get the cache in the user's home directory, opening it the first time.
+	 * It is shared by everything in the player, and closed when the JVM
+	 * exits.
+	 *
+	 * @return The cache.
+	 * @throws IOException
+	 *             If it can't be opened or created.
+	 */
+	public static synchronized GainCache getDefault() throws IOException {
+		if (shared == null) {
+			final GainCache cache = new GainCache(Paths.get(
+					System.getProperty("user.home"), ".lightweight-theology",
+					"gain.cache"));
+			Runtime.getRuntime().addShutdownHook(new Thread("gain cache") {
+				@Override
+				public void run() {
+					try {
+						cache.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			shared = cache;
+		}
+		return shared;
+	}
+
+	/**
+	 * Open a cache file, creating it if it doesn't exist. A file that isn't
+	 * a cache, or is from another version, is started over.
+	 *
+	 * @param file
+	 *            The cache file.
+	 * @throws IOException
+	 *             If it can't be opened or created.
+	 */
+	public GainCache(Path file) throws IOException {
+		this.file = file;
+		Path dir = file.toAbsolutePath().getParent();
+		if (dir != null) {
+			Files.createDirectories(dir);
+		}
+		channel = FileChannel.open(file, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		long size = channel.size();
+		ByteBuffer map = null;
+		if (size >= HEADER && size <= Integer.MAX_VALUE) {
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+				map = null;
+			}
+		}
+		if (map == null) {
+			channel.truncate(0);
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			header.putInt(MAGIC).putInt(VERSION).flip();
+			write(header, 0);
+			end = HEADER;
+		} else {
+			end = read(map);
+			if (end < size) {
+				// A record cut short when the player died; write over it
+				channel.truncate(end);
+			}
+		}
+	}
+
+	/**
+	 * @param song
+	 *            The song.
+	 * @return What was measured of it, or null if it hasn't been analysed,
+	 *         or has changed since.
+	 */
+	public Gain get(File song) {
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(song.toPath(),
+					BasicFileAttributes.class);
+		} catch (IOException e) {
+			return null;
+		}
+		Entry e;
+		synchronized (this) {
+			e = entries.get(song.getAbsolutePath());
+		}
+		if (e == null || e.size != attrs.size()
+				|| e.modified != attrs.lastModifiedTime().toMillis()) {
+			return null;
+		}
+		return e.gain;
+	}
+
+	/**
+	 * Keep what was measured of a song, as it is now.
+	 *
+	 * @param song
+	 *            The song.
+	 * @param gain
+	 *            What was measured.
+	 */
+	public void put(File song, Gain gain) {
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(song.toPath(),
+					BasicFileAttributes.class);
+		} catch (IOException e) {
+			return;
+		}
+		String path = song.getAbsolutePath();
+		Entry e = new Entry(attrs.size(),
+				attrs.lastModifiedTime().toMillis(), gain);
+		synchronized (this) {
+			entries.put(path, e);
+			if (!channel.isOpen()) {
+				return;
+			}
+			try {
+				ByteBuffer record = encode(path, e);
+				write(record, end);
+				end += record.limit();
+				records++;
+			} catch (IOException x) {
+				x.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Close the cache file, compacting it first if most of it is old
+	 * records.
+	 */
+	public synchronized void close() throws IOException {
+		if (!channel.isOpen()) {
+			return;
+		}
+		if (records > 2 * entries.size()) {
+			compact();
+		}
+		channel.close();
+	}
+
+	// -----Privates-----
+
+	private static final class Entry {
+		final long size;
+		final long modified;
+		final Gain gain;
+
+		Entry(long size, long modified, Gain gain) {
+			this.size = size;
+			this.modified = modified;
+			this.gain = gain;
+		}
+	}
+
+	/**
+	 * Read every whole record. A later record for a path replaces an earlier
+	 * one.
+	 *
+	 * @return Where the last whole record ends.
+	 */
+	private int read(ByteBuffer map) {
+		int pos = HEADER;
+		int limit = map.limit();
+		while (pos + 4 <= limit) {
+			int len = map.getInt(pos);
+			if (len < MIN_RECORD || (long) pos + 4 + len > limit) {
+				break;
+			}
+			ByteBuffer r = map.duplicate();
+			r.position(pos + 4);
+			long size = r.getLong();
+			long modified = r.getLong();
+			Gain gain = new Gain(r.getFloat(), r.getFloat(), r.getFloat(),
+					r.getFloat());
+			byte[] path = new byte[r.getShort() & 0xFFFF];
+			if (MIN_RECORD + path.length != len) {
+				break;
+			}
+			r.get(path);
+			entries.put(new String(path, StandardCharsets.UTF_8), new Entry(
+					size, modified, gain));
+			records++;
+			pos += 4 + len;
+		}
+		return pos;
+	}
+
+	private static ByteBuffer encode(String path, Entry e) {
+		byte[] p = path.getBytes(StandardCharsets.UTF_8);
+		int len = MIN_RECORD + p.length;
+		ByteBuffer record = ByteBuffer.allocate(4 + len);
+		Gain g = e.gain;
+		record.putInt(len).putLong(e.size).putLong(e.modified)
+				.putFloat(g.getTrackLoudness()).putFloat(g.getTrackPeak())
+				.putFloat(g.getAlbumLoudness()).putFloat(g.getAlbumPeak())
+				.putShort((short) p.length).put(p);
+		record.flip();
+		return record;
+	}
+
+	private void write(ByteBuffer b, long pos) throws IOException {
+		while (b.hasRemaining()) {
+			pos += channel.write(b, pos);
+		}
+	}
+
+	/**
+	 * Write only the newest record of each path to a new file, and put it in
+	 * place of the old one.
+	 */
+	private void compact() throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			header.putInt(MAGIC).putInt(VERSION).flip();
+			out.write(header);
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				ByteBuffer b = encode(e.getKey(), e.getValue());
+				while (b.hasRemaining()) {
+					out.write(b);
+				}
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+}
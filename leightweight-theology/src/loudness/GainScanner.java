@@ -0,0 +1,448 @@
+package loudness;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import audio.FormatConverter;
+import codec.CodecRegistry;
+import m3u.M3UParser;
+import tags.TagCache;
+import tags.Tags;
+
+/**
+ * Measures the loudness of songs, and keeps their gains in a
+ * {@link GainCache}, on every core at once; either over a whole library,
+ * from the command line, or in the background over the playlist being
+ * played.
+ *
+ * Songs are grouped into albums, by folder and album tag; a song with no
+ * album tag is an album of its own. An album is measured whole whenever any
+ * of its songs hasn't been, as its gain depends on every song on it. Albums
+ * are shared out over a fork/join pool, as the batch converter shares out
+ * files, and each album forks a task per song, so a single long album still
+ * keeps every core busy. Each worker decodes through one fixed size buffer.
+ *
+ * @author Connor Findlay
+ */
+public class GainScanner {
+	private static final int BUFFER_SIZE = 65536;
+	// File extensions worth trying to decode, when walking a directory
+	private static final String[] EXTENSIONS = { ".mp3", ".wav", ".wave",
+			".aif", ".aiff", ".au", ".flac" };
+
+	private final GainCache cache;
+	private final TagCache tags;
+	private final ForkJoinPool pool;
+	private final CodecRegistry codecs = CodecRegistry.getDefault();
+	private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BUFFER_SIZE];
+		}
+	};
+
+	/**
+	 * The totals for one run.
+	 */
+	public static final class Report {
+		final AtomicLong measured = new AtomicLong();
+		final AtomicLong skipped = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		// Microseconds, to add up without losing precision
+		final AtomicLong audioMicros = new AtomicLong();
+		long nanos;
+
+		/** @return The number of songs measured. */
+		public long getMeasured() {
+			return measured.get();
+		}
+
+		/** @return The number of songs already in the cache. */
+		public long getSkipped() {
+			return skipped.get();
+		}
+
+		/** @return The number of songs that couldn't be decoded. */
+		public long getFailed() {
+			return failed.get();
+		}
+
+		/** @return The seconds of audio measured. */
+		public double getAudioSeconds() {
+			return audioMicros.get() / 1e6;
+		}
+
+		/** @return How long the run took, in seconds. */
+		public double getWallSeconds() {
+			return nanos / 1e9;
+		}
+
+		@Override
+		public String toString() {
+			double wall = Math.max(getWallSeconds(), 1e-9);
+			return String.format(Locale.ROOT,
+					"%d measured, %d up to date, %d failed in %.1fs: "
+							+ "%.1f songs/s, %.1fx real time",
+					getMeasured(), getSkipped(), getFailed(), wall,
+					getMeasured() / wall, getAudioSeconds() / wall);
+		}
+	}
+
+	/**
+	 * Create a scanner that uses every core.
+	 *
+	 * @param cache
+	 *            Where the gains go.
+	 * @param tags
+	 *            Where album tags come from, or null to treat every song as
+	 *            an album of its own.
+	 */
+	public GainScanner(GainCache cache, TagCache tags) {
+		this(cache, tags, Runtime.getRuntime().availableProcessors(), false);
+	}
+
+	/**
+	 * Create a scanner.
+	 *
+	 * @param cache
+	 *            Where the gains go.
+	 * @param tags
+	 *            Where album tags come from, or null to treat every song as
+	 *            an album of its own.
+	 * @param threads
+	 *            The number of songs to measure at once.
+	 * @param background
+	 *            true to run at the lowest priority, so playback and the
+	 *            user interface always come first.
+	 */
+	public GainScanner(GainCache cache, TagCache tags, int threads,
+			final boolean background) {
+		this.cache = cache;
+		this.tags = tags;
+		this.pool = new ForkJoinPool(threads,
+				new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+					public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+						ForkJoinWorkerThread t = new ForkJoinWorkerThread(pool) {
+						};
+						t.setName("gain scanner " + t.getPoolIndex());
+						if (background) {
+							t.setPriority(Thread.MIN_PRIORITY);
+						}
+						return t;
+					}
+				}, null, false);
+	}
+
+	/**
+	 * Measure every song not already in the cache, and wait until done.
+	 *
+	 * @param songs
+	 *            The songs, roughly in the order to measure them.
+	 * @return The totals.
+	 */
+	public Report scan(List<File> songs) {
+		long start = System.nanoTime();
+		Report report = pool.invoke(new ScanTask(songs));
+		report.nanos = System.nanoTime() - start;
+		return report;
+	}
+
+	/**
+	 * Measure every song not already in the cache, in the background. The
+	 * songs are measured roughly in order, so put the ones wanted soonest
+	 * first. Cancelling the returned task stops it starting any more songs.
+	 *
+	 * @param songs
+	 *            The songs.
+	 * @return The running scan, which gives the totals once done.
+	 */
+	public ForkJoinTask<Report> scanLater(List<File> songs) {
+		return pool.submit(new ScanTask(songs));
+	}
+
+	/**
+	 * Measure every audio file under a directory.
+	 *
+	 * @param dir
+	 *            The directory.
+	 * @return The totals.
+	 * @throws IOException
+	 *             If the directory can't be walked.
+	 */
+	public Report scanDirectory(Path dir) throws IOException {
+		final List<File> songs = new ArrayList<File>();
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) {
+				if (attrs.isRegularFile() && isAudio(file)) {
+					songs.add(file.toFile());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return scan(songs);
+	}
+
+	/**
+	 * Measure every song in a playlist.
+	 *
+	 * @param m3u
+	 *            The M3U or M3U8 playlist.
+	 * @return The totals.
+	 * @throws IOException
+	 *             If the playlist can't be read.
+	 */
+	public Report scanPlaylist(Path m3u) throws IOException {
+		final List<File> songs = new ArrayList<File>();
+		M3UParser.parse(m3u, new M3UParser.Handler() {
+			public boolean entry(String location, int duration, String title) {
+				songs.add(new File(location));
+				return true;
+			}
+		});
+		return scan(songs);
+	}
+
+	/**
+	 * Measure a directory or playlist into the user's gain cache, and print
+	 * the totals.
+	 */
+	public static void main(String args[]) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: java loudness.GainScanner "
+					+ "<directory|playlist.m3u> [threads]");
+			System.exit(1);
+		}
+		Path source = Paths.get(args[0]);
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime
+				.getRuntime().availableProcessors();
+		GainScanner scanner = new GainScanner(GainCache.getDefault(),
+				TagCache.getDefault(), threads, false);
+		Report report = Files.isDirectory(source) ? scanner
+				.scanDirectory(source) : scanner.scanPlaylist(source);
+		System.out.println(report);
+	}
+
+	// -----Privates-----
+
+	/**
+	 * Groups the songs into albums, and measures the albums, splitting the
+	 * list in half until each piece is a single album, so idle workers have
+	 * something to steal.
+	 */
+	private final class ScanTask extends RecursiveTask<Report> {
+		private static final long serialVersionUID = 1L;
+		private final List<File> songs;
+
+		ScanTask(List<File> songs) {
+			this.songs = songs;
+		}
+
+		@Override
+		protected Report compute() {
+			Report report = new Report();
+			List<List<File>> albums = albums(songs, report);
+			if (!albums.isEmpty()) {
+				new AlbumsTask(albums, 0, albums.size(), report, this)
+						.invoke();
+			}
+			return report;
+		}
+	}
+
+	private final class AlbumsTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<List<File>> albums;
+		private final int from, to;
+		private final Report report;
+		private final ForkJoinTask<Report> scan;
+
+		AlbumsTask(List<List<File>> albums, int from, int to, Report report,
+				ForkJoinTask<Report> scan) {
+			this.albums = albums;
+			this.from = from;
+			this.to = to;
+			this.report = report;
+			this.scan = scan;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				measureAlbum(albums.get(from), report, scan);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new AlbumsTask(albums, from, mid, report, scan),
+					new AlbumsTask(albums, mid, to, report, scan));
+		}
+	}
+
+	/**
+	 * Measures one song, or gives null if it can't be decoded.
+	 */
+	private final class SongTask extends RecursiveTask<Loudness> {
+		private static final long serialVersionUID = 1L;
+		private final File song;
+		private final Report report;
+		private final ForkJoinTask<Report> scan;
+
+		SongTask(File song, Report report, ForkJoinTask<Report> scan) {
+			this.song = song;
+			this.report = report;
+			this.scan = scan;
+		}
+
+		@Override
+		protected Loudness compute() {
+			if (scan.isCancelled()) {
+				return null;
+			}
+			try {
+				return measure(song, report);
+			} catch (IOException | UnsupportedAudioFileException e) {
+				System.err.println("Could not measure " + song + ": " + e);
+				report.failed.incrementAndGet();
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Group songs into albums, in the order they first come up, leaving out
+	 * albums already measured.
+	 */
+	private List<List<File>> albums(List<File> songs, Report report) {
+		Map<String, List<File>> albums = new LinkedHashMap<String, List<File>>();
+		for (File song : songs) {
+			String album = null;
+			if (tags != null) {
+				Tags t = tags.get(song);
+				album = t.getAlbum();
+			}
+			String key = album == null || album.isEmpty() ? song
+					.getAbsolutePath() : song.getAbsoluteFile().getParent()
+					+ File.separator + album;
+			List<File> list = albums.get(key);
+			if (list == null) {
+				list = new ArrayList<File>();
+				albums.put(key, list);
+			}
+			if (!list.contains(song)) {
+				list.add(song);
+			}
+		}
+		List<List<File>> todo = new ArrayList<List<File>>();
+		for (List<File> album : albums.values()) {
+			boolean measured = true;
+			for (File song : album) {
+				measured &= cache.get(song) != null;
+			}
+			if (measured) {
+				report.skipped.addAndGet(album.size());
+			} else {
+				todo.add(album);
+			}
+		}
+		return todo;
+	}
+
+	/**
+	 * Measure every song on an album at once, then work out the album's
+	 * loudness from theirs and cache each song's gain.
+	 */
+	private void measureAlbum(List<File> album, Report report,
+			ForkJoinTask<Report> scan) {
+		List<SongTask> tasks = new ArrayList<SongTask>(album.size());
+		for (File song : album) {
+			tasks.add(new SongTask(song, report, scan));
+		}
+		ForkJoinTask.invokeAll(tasks);
+		List<Loudness> songs = new ArrayList<Loudness>(album.size());
+		for (SongTask t : tasks) {
+			Loudness l = t.getRawResult();
+			if (l == null) {
+				// Cancelled, or a song couldn't be read; what's left of the
+				// album isn't the album
+				return;
+			}
+			songs.add(l);
+		}
+		Loudness whole = songs.size() == 1 ? songs.get(0) : Loudness
+				.album(songs);
+		for (int i = 0; i < album.size(); i++) {
+			cache.put(album.get(i), new Gain(songs.get(i), whole));
+		}
+	}
+
+	/**
+	 * Decode a whole song through a meter.
+	 */
+	private Loudness measure(File song, Report report) throws IOException,
+			UnsupportedAudioFileException {
+		try (AudioInputStream in = codecs.open(song)) {
+			AudioFormat f = in.getFormat();
+			int channels = f.getChannels();
+			FormatConverter converter = new FormatConverter(new AudioFormat(
+					f.getSampleRate(), 16, channels, true, false));
+			converter.setInput(f);
+			byte[] buffer = buffers.get();
+			// Whole frames only
+			int chunk = buffer.length - buffer.length % f.getFrameSize();
+			int maxFrames = converter.maxOutputBytes(chunk) / (2 * channels);
+			float[] samples = new float[maxFrames * channels];
+			LoudnessMeter meter = new LoudnessMeter(channels, f.getSampleRate(),
+					maxFrames);
+			long frames = 0;
+			int got = 0, n;
+			while ((n = in.read(buffer, got, chunk - got)) != -1) {
+				got += n;
+				int whole = got - got % f.getFrameSize();
+				if (whole == 0) {
+					continue;
+				}
+				int m = converter.toFloats(buffer, 0, whole, samples);
+				meter.add(samples, m);
+				frames += m;
+				System.arraycopy(buffer, whole, buffer, 0, got - whole);
+				got -= whole;
+			}
+			report.measured.incrementAndGet();
+			report.audioMicros.addAndGet((long) (frames / (double) f
+					.getSampleRate() * 1e6));
+			return meter.getLoudness();
+		}
+	}
+
+	private static boolean isAudio(Path file) {
+		String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+		for (String ext : EXTENSIONS) {
+			if (name.endsWith(ext)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,128 @@
+package loudness;
+
+import java.util.List;
+
+/**
+ * The measured loudness of a song, or of an album: the gated blocks of
+ * audio it is made of, from which its integrated loudness is worked out,
+ * and its true peak.
+ *
+ * @author Connor Findlay
+ */
+public final class Loudness {
+	/** What's reported for silence, which has no loudness at all */
+	public static final double SILENCE = -70;
+	// BS.1770's offset, so a full scale 997Hz sine in one channel is -3.01
+	// LUFS
+	static final double OFFSET = -0.691;
+
+	private final Histogram blocks;
+	private final float peak;
+
+	Loudness(Histogram blocks, float peak) {
+		this.blocks = blocks;
+		this.peak = peak;
+	}
+
+	/**
+	 * The loudness of songs played one after the other, as an album: every
+	 * block of every song gated together, and the highest peak.
+	 *
+	 * @param songs
+	 *            The songs' loudness.
+	 * @return The album's.
+	 */
+	public static Loudness album(List<Loudness> songs) {
+		Histogram h = new Histogram();
+		float peak = 0;
+		for (Loudness l : songs) {
+			h.add(l.blocks);
+			peak = Math.max(peak, l.peak);
+		}
+		return new Loudness(h, peak);
+	}
+
+	/**
+	 * @return The integrated loudness in LUFS, or {@link #SILENCE} if
+	 *         nothing was loud enough to count.
+	 */
+	public double getIntegrated() {
+		return blocks.integrated();
+	}
+
+	/**
+	 * @return The true peak, where 1 is full scale.
+	 */
+	public float getTruePeak() {
+		return peak;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%.1f LUFS, %.1f dBTP", getIntegrated(),
+				20 * Math.log10(peak));
+	}
+
+	/**
+	 * The 400ms blocks that passed the absolute gate, in bins a tenth of an
+	 * LU wide from -70 LUFS up; anything louder than the top bin goes in it.
+	 * Each bin holds how many blocks fell in it and their summed energy, so
+	 * the mean energy over any run of bins is exact.
+	 */
+	static final class Histogram {
+		private static final double BIN = 0.1;
+		private static final int BINS = (int) (-SILENCE / BIN) + 100;
+		private final long[] counts = new long[BINS];
+		private final double[] energies = new double[BINS];
+
+		void add(double loudness, double energy) {
+			if (loudness < SILENCE) {
+				return;
+			}
+			int bin = Math.min((int) ((loudness - SILENCE) / BIN), BINS - 1);
+			counts[bin]++;
+			energies[bin] += energy;
+		}
+
+		void add(Histogram other) {
+			for (int i = 0; i < BINS; i++) {
+				counts[i] += other.counts[i];
+				energies[i] += other.energies[i];
+			}
+		}
+
+		Histogram copy() {
+			Histogram h = new Histogram();
+			h.add(this);
+			return h;
+		}
+
+		/**
+		 * Gate relative to the loudness of the blocks past the absolute
+		 * gate, to a bin's width, and take the mean of what's left.
+		 */
+		double integrated() {
+			double relative = loudness(0) - 10;
+			if (relative < SILENCE) {
+				return loudness(0);
+			}
+			return loudness((int) Math.ceil((relative - SILENCE) / BIN));
+		}
+
+		/**
+		 * @return The loudness of the blocks from a bin up.
+		 */
+		private double loudness(int from) {
+			long n = 0;
+			double energy = 0;
+			for (int i = Math.max(from, 0); i < BINS; i++) {
+				n += counts[i];
+				energy += energies[i];
+			}
+			if (n == 0) {
+				return SILENCE;
+			}
+			return Math.max(OFFSET + 10 * Math.log10(energy / n), SILENCE);
+		}
+	}
+}
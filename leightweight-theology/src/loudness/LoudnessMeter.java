@@ -0,0 +1,172 @@
+package loudness;
+
+import audio.Resampler;
+
+/**
+ * Measures how loud a song sounds, the way EBU R128 and ITU-R BS.1770 say
+ * to, and its true peak.
+ *
+ * The audio is first K weighted, by a high shelf that stands in for the
+ * head and a high pass that discounts the bass, then the mean square of each
+ * channel is taken over 400ms blocks, overlapping by three quarters, and
+ * summed over the channels, surrounds counting for a little more and the
+ * LFE not at all. Blocks quieter than -70 LUFS are dropped as silence; so
+ * are blocks more than 10 LU below the loudness of what's left, so quiet
+ * passages don't drag down the loudness of a loud song. The integrated
+ * loudness is the mean of the blocks that pass.
+ *
+ * Rather than keep every block, the meter keeps a histogram of them in
+ * tenth of an LU bins, holding the count and the summed energy of each, so
+ * the gating can be done at the end, and done again over a whole album by
+ * adding the histograms of its songs; see {@link Loudness}.
+ *
+ * The true peak is the highest sample after oversampling four times (twice
+ * at 96kHz), so peaks that fall between samples, and would clip once turned
+ * back into sound, are seen.
+ *
+ * @author Connor Findlay
+ */
+public final class LoudnessMeter {
+	// Taps a phase of the true peak oversampler; 4 phases of 12 is the
+	// length BS.1770 suggests
+	private static final int PEAK_TAPS = 12;
+
+	private final int channels;
+	private final double[] weights;
+	// The two K weighting stages, as biquads: b0 b1 b2 a1 a2 each
+	private final double[] shelf, highPass;
+	// Filter state, transposed direct form II; two a stage a channel
+	private final double[] state;
+	// Frames in a 100ms step, and how far into the current step we are
+	private final int step;
+	private int stepFrames;
+	// Energy of each channel so far in the current step, and of the last
+	// four steps summed over the channels
+	private final double[] stepEnergy;
+	private final double[] steps = new double[4];
+	private int stepCount;
+	private final Loudness.Histogram histogram = new Loudness.Histogram();
+	private final Resampler oversampler;
+	private float[] oversampled;
+	private float peak;
+
+	/**
+	 * @param channels
+	 *            Channels in each frame.
+	 * @param rate
+	 *            Frames per second.
+	 * @param maxFrames
+	 *            The most frames passed to one call of
+	 *            {@link #add(float[], int)}.
+	 */
+	public LoudnessMeter(int channels, float rate, int maxFrames) {
+		this.channels = channels;
+		this.weights = new double[channels];
+		for (int c = 0; c < channels; c++) {
+			// In the usual 5.1 order, L R C LFE Ls Rs
+			weights[c] = channels == 6 ? (c == 3 ? 0 : c > 3 ? 1.41 : 1) : 1;
+		}
+		// The filters of BS.1770, worked out again for this sample rate
+		double k = Math.tan(Math.PI * 1681.974450955533 / rate);
+		double q = 0.7071752369554196;
+		double vh = Math.pow(10, 3.999843853973347 / 20);
+		double vb = Math.pow(vh, 0.4996667741545416);
+		double a0 = 1 + k / q + k * k;
+		shelf = new double[] { (vh + vb * k / q + k * k) / a0,
+				2 * (k * k - vh) / a0, (vh - vb * k / q + k * k) / a0,
+				2 * (k * k - 1) / a0, (1 - k / q + k * k) / a0 };
+		k = Math.tan(Math.PI * 38.13547087602444 / rate);
+		q = 0.5003270373238773;
+		a0 = 1 + k / q + k * k;
+		highPass = new double[] { 1, -2, 1, 2 * (k * k - 1) / a0,
+				(1 - k / q + k * k) / a0 };
+		state = new double[4 * channels];
+		step = Math.max(1, Math.round(rate / 10));
+		stepEnergy = new double[channels];
+		int r = Math.round(rate);
+		int factor = r >= 176400 ? 1 : r >= 88200 ? 2 : 4;
+		oversampler = factor == 1 ? null : new Resampler(channels, r, r
+				* factor, maxFrames, PEAK_TAPS);
+		if (oversampler != null) {
+			oversampled = new float[oversampler.maxOutputFrames(maxFrames)
+					* channels];
+		}
+	}
+
+	/**
+	 * Measure some more of the song.
+	 *
+	 * @param samples
+	 *            Interleaved frames, from -1 to 1.
+	 * @param frames
+	 *            How many.
+	 */
+	public void add(float[] samples, int frames) {
+		truePeak(samples, frames);
+		int ch = channels;
+		double[] s = state, e = stepEnergy;
+		double s0 = shelf[0], s1 = shelf[1], s2 = shelf[2];
+		double s3 = shelf[3], s4 = shelf[4];
+		double h3 = highPass[3], h4 = highPass[4];
+		for (int f = 0, i = 0; f < frames; f++) {
+			for (int c = 0; c < ch; c++, i++) {
+				int z = 4 * c;
+				double x = samples[i];
+				double y = s0 * x + s[z];
+				s[z] = s1 * x - s3 * y + s[z + 1];
+				s[z + 1] = s2 * x - s4 * y;
+				// The high pass's numerator is 1 -2 1
+				double w = y + s[z + 2];
+				s[z + 2] = -2 * y - h3 * w + s[z + 3];
+				s[z + 3] = y - h4 * w;
+				e[c] += w * w;
+			}
+			if (++stepFrames == step) {
+				endStep();
+			}
+		}
+	}
+
+	/**
+	 * @return What has been measured so far.
+	 */
+	public Loudness getLoudness() {
+		return new Loudness(histogram.copy(), peak);
+	}
+
+	// -----Privates-----
+
+	/**
+	 * A 100ms step is done; if it completes a 400ms block, add the block to
+	 * the histogram.
+	 */
+	private void endStep() {
+		double sum = 0;
+		for (int c = 0; c < channels; c++) {
+			sum += weights[c] * stepEnergy[c];
+			stepEnergy[c] = 0;
+		}
+		steps[stepCount++ & 3] = sum;
+		stepFrames = 0;
+		if (stepCount >= 4) {
+			double z = (steps[0] + steps[1] + steps[2] + steps[3]) / (4.0 * step);
+			histogram.add(Loudness.OFFSET + 10 * Math.log10(z), z);
+		}
+	}
+
+	private void truePeak(float[] samples, int frames) {
+		float p = peak;
+		int n = frames * channels;
+		for (int i = 0; i < n; i++) {
+			p = Math.max(p, Math.abs(samples[i]));
+		}
+		if (oversampler != null) {
+			n = oversampler.process(samples, frames, oversampled) * channels;
+			float[] o = oversampled;
+			for (int i = 0; i < n; i++) {
+				p = Math.max(p, Math.abs(o[i]));
+			}
+		}
+		peak = p;
+	}
+}
@@ -2,37 +2,306 @@ package m3u;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 
-import christophedelory.playlist.SpecificPlaylist;
-import christophedelory.playlist.SpecificPlaylistFactory;
-import christophedelory.playlist.m3u.M3U;
-import christophedelory.playlist.m3u.Resource;
-
+/**
+ * Reads M3U and M3U8 playlists. The file is streamed through a fixed size
+ * buffer a line at a time, and each entry is handed over as soon as it is
+ * read, so memory use doesn't grow with the length of the playlist and the
+ * first songs can be played before the last are read.
+ *
+ * Extended M3U is understood: the duration and title from an #EXTINF line
+ * are delivered with the entry that follows it. Other directives, and
+ * comments, are skipped.
+ *
+ * Lines are read as UTF-8, which covers M3U8 and plain ASCII playlists; a
+ * line that isn't valid UTF-8 is read as Latin-1, the usual encoding of
+ * older M3U files. Relative paths are resolved against the directory the
+ * playlist is in.
+ *
+ * @author Connor Findlay
+ */
 public class M3UParser {
+	private static final int BUFFER_SIZE = 65536;
+	private static final String EXTINF = "#EXTINF:";
+
+	/**
+	 * Receives the entries of a playlist as they are parsed.
+	 */
+	public interface Handler {
+		/**
+		 * Called for each entry, in playlist order.
+		 *
+		 * @param location
+		 *            The entry's absolute path, or a URL as written.
+		 * @param duration
+		 *            The length in seconds from #EXTINF, or -1 if not known.
+		 * @param title
+		 *            The title from #EXTINF, or null if there wasn't one.
+		 * @return true to carry on, false to stop parsing.
+		 */
+		boolean entry(String location, int duration, String title);
+	}
+
 	/**
 	 * Parse an M3UList and return a list of File objects associated with the
-	 * resources in the list.
-	 * 
+	 * resources in the list. If the playlist can't be read all the way
+	 * through, the songs read before the problem are returned.
+	 *
 	 * @param file The M3U file to be parsed
 	 * @return A list of the File objects in the M3U file.
 	 */
 	public static ArrayList<File> parse(String file) {
-		File listAsFile = new File(file);
-		SpecificPlaylist specificList = null;
-		M3U m3uList = null;
+		final ArrayList<File> fileList = new ArrayList<File>();
 		try {
-			specificList = SpecificPlaylistFactory.getInstance().readFrom(
-					listAsFile);
-			m3uList = (M3U) specificList;
+			parse(Paths.get(file), new Handler() {
+				public boolean entry(String location, int duration,
+						String title) {
+					fileList.add(new File(location));
+					return true;
+				}
+			});
 		} catch (IOException e) {
 			System.err.println("Playlist parser encountered malformed data");
 			e.printStackTrace();
 		}
-		ArrayList<File> fileList = new ArrayList<File>();
-		for (Resource r : m3uList.getResources()) {
-			fileList.add(new File(r.getLocation()));
-		}
 		return fileList;
 	}
+
+	/**
+	 * Parse a playlist, handing each entry to the handler as it is read.
+	 *
+	 * @param file
+	 *            The M3U or M3U8 file to be parsed.
+	 * @param handler
+	 *            Receives the entries.
+	 * @throws IOException
+	 *             If the file can't be read.
+	 */
+	public static void parse(Path file, Handler handler) throws IOException {
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			Path base = file.toAbsolutePath().getParent();
+			new LineReader(channel, base, handler).run();
+		}
+	}
+
+	// -----Privates-----
+
+	/**
+	 * The state of one parse. The byte buffer is reused for the whole file,
+	 * and only grows if a single line doesn't fit in it.
+	 */
+	private static final class LineReader {
+		private final FileChannel channel;
+		private final Path base;
+		private final Handler handler;
+		private final CharsetDecoder utf8 = StandardCharsets.UTF_8
+				.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+		private byte[] bytes = new byte[BUFFER_SIZE];
+		private ByteBuffer in = ByteBuffer.wrap(bytes);
+		private CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+		// Waiting for the entry after an #EXTINF line
+		private int duration = -1;
+		private String title;
+
+		LineReader(FileChannel channel, Path base, Handler handler) {
+			this.channel = channel;
+			this.base = base;
+			this.handler = handler;
+		}
+
+		void run() throws IOException {
+			int start = 0, end = 0;
+			boolean first = true, eof = false;
+			while (true) {
+				// Look for the end of the next line in what we have
+				int nl = start;
+				while (nl < end && bytes[nl] != '\n') {
+					nl++;
+				}
+				if (nl == end && !eof) {
+					// Line runs past the buffer; shift it down and read more
+					if (start == 0 && end == bytes.length) {
+						bytes = Arrays.copyOf(bytes, bytes.length * 2);
+						in = ByteBuffer.wrap(bytes);
+					} else {
+						System.arraycopy(bytes, start, bytes, 0, end - start);
+						end -= start;
+						start = 0;
+					}
+					in.limit(bytes.length).position(end);
+					int n = channel.read(in);
+					if (n < 0) {
+						eof = true;
+					} else {
+						end += n;
+					}
+					continue;
+				}
+				int lineStart = start;
+				if (first) {
+					first = false;
+					// Skip a UTF-8 byte order mark
+					if (nl - lineStart >= 3 && bytes[lineStart] == (byte) 0xEF
+							&& bytes[lineStart + 1] == (byte) 0xBB
+							&& bytes[lineStart + 2] == (byte) 0xBF) {
+						lineStart += 3;
+					}
+				}
+				if (!line(lineStart, nl)) {
+					return;
+				}
+				if (nl >= end) {
+					// Last line, with no newline after it
+					return;
+				}
+				start = nl + 1;
+			}
+		}
+
+		/**
+		 * Deal with the line in bytes[from, to).
+		 *
+		 * @return false if the handler wants us to stop.
+		 */
+		private boolean line(int from, int to) {
+			// Trim the carriage return of a DOS line ending, and blanks
+			while (to > from && (bytes[to - 1] == '\r' || bytes[to - 1] == ' '
+					|| bytes[to - 1] == '\t')) {
+				to--;
+			}
+			while (from < to && (bytes[from] == ' ' || bytes[from] == '\t')) {
+				from++;
+			}
+			if (from == to) {
+				return true;
+			}
+			if (bytes[from] == '#') {
+				if (startsWith(from, to, EXTINF)) {
+					extinf(decode(from + EXTINF.length(), to));
+				}
+				return true;
+			}
+			String location = resolve(decode(from, to));
+			boolean more = handler.entry(location, duration, title);
+			duration = -1;
+			title = null;
+			return more;
+		}
+
+		/**
+		 * Read the part of an #EXTINF line after the colon:
+		 * {@code <seconds>[ attributes],<title>}
+		 */
+		private void extinf(String info) {
+			int i = 0, len = info.length();
+			boolean negative = i < len && info.charAt(i) == '-';
+			if (negative) {
+				i++;
+			}
+			long seconds = 0;
+			boolean digits = false;
+			while (i < len && Character.isDigit(info.charAt(i))) {
+				seconds = Math.min(Integer.MAX_VALUE, seconds * 10
+						+ info.charAt(i++) - '0');
+				digits = true;
+			}
+			duration = digits && !negative ? (int) seconds : -1;
+			// The title starts after the first comma not inside quotes
+			boolean quoted = false;
+			for (; i < len; i++) {
+				char c = info.charAt(i);
+				if (c == '"') {
+					quoted = !quoted;
+				} else if (c == ',' && !quoted) {
+					String t = info.substring(i + 1).trim();
+					title = t.isEmpty() ? null : t;
+					return;
+				}
+			}
+			title = null;
+		}
+
+		/**
+		 * Turn an entry as written into an absolute path. URLs are left
+		 * alone, except file URLs, which become paths.
+		 */
+		private String resolve(String location) {
+			int scheme = location.indexOf("://");
+			if (scheme > 1) {
+				if (location.regionMatches(true, 0, "file", 0, scheme)) {
+					try {
+						return Paths.get(URI.create(location)).toString();
+					} catch (IllegalArgumentException e) {
+						// Not a usable file URL; keep it as written
+					}
+				}
+				return location;
+			}
+			File f = new File(location);
+			if (f.isAbsolute() || base == null) {
+				return location;
+			}
+			try {
+				return base.resolve(location).toString();
+			} catch (InvalidPathException e) {
+				return location;
+			}
+		}
+
+		private boolean startsWith(int from, int to, String prefix) {
+			if (to - from < prefix.length()) {
+				return false;
+			}
+			for (int i = 0; i < prefix.length(); i++) {
+				if ((bytes[from + i] | 0x20) != (prefix.charAt(i) | 0x20)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Decode bytes[from, to) as UTF-8, or Latin-1 if it isn't valid.
+		 */
+		private String decode(int from, int to) {
+			boolean ascii = true;
+			for (int i = from; i < to && ascii; i++) {
+				ascii = bytes[i] >= 0;
+			}
+			if (ascii) {
+				return new String(bytes, from, to - from,
+						StandardCharsets.ISO_8859_1);
+			}
+			if (chars.capacity() < to - from) {
+				chars = CharBuffer.allocate(to - from);
+			}
+			in.limit(to).position(from);
+			chars.clear();
+			utf8.reset();
+			CoderResult result = utf8.decode(in, chars, true);
+			if (result.isError()) {
+				return new String(bytes, from, to - from,
+						StandardCharsets.ISO_8859_1);
+			}
+			utf8.flush(chars);
+			chars.flip();
+			return chars.toString();
+		}
+	}
 }
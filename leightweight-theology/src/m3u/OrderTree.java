@@ -0,0 +1,264 @@
+package m3u;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * An ordering of song indexes that can be edited anywhere in O(log n): the
+ * song at a position, the position of a song, inserting and removing are all
+ * logarithmic. It is a treap keyed by position, each node counting the songs
+ * below it, so positions never need renumbering.
+ *
+ * There are no node objects. The song index is the node, and the links live
+ * in int arrays indexed by it, four ints a song. A song can only be in the
+ * tree once. Not thread safe; the owner locks around it.
+ *
+ * @author Connor Findlay
+ */
+final class OrderTree {
+	private static final int NIL = -1;
+
+	private int[] left, right, parent, size;
+	private int root = NIL;
+	// Mixed into the priorities, so two trees over the same songs differ
+	private final int seed = new Random().nextInt();
+	// The two halves from the last split
+	private int splitLeft, splitRight;
+
+	/**
+	 * Build a tree holding the given songs, in the given order, in O(n).
+	 *
+	 * @param order
+	 *            The songs, first to last.
+	 * @param count
+	 *            The number of songs in order to use.
+	 * @param capacity
+	 *            One more than the largest song index expected.
+	 */
+	OrderTree(int[] order, int count, int capacity) {
+		capacity = Math.max(capacity, 1);
+		left = new int[capacity];
+		right = new int[capacity];
+		parent = new int[capacity];
+		size = new int[capacity];
+		Arrays.fill(parent, NIL);
+		// Cartesian tree on the priorities: a stack holds the right spine
+		int[] spine = new int[Math.max(count, 1)];
+		int top = 0;
+		for (int i = 0; i < count; i++) {
+			int id = order[i];
+			ensureCapacity(id);
+			left[id] = right[id] = NIL;
+			int last = NIL;
+			while (top > 0 && priority(spine[top - 1]) < priority(id)) {
+				last = spine[--top];
+			}
+			link(id, last, true);
+			if (top > 0) {
+				link(spine[top - 1], id, false);
+			} else {
+				parent[id] = NIL;
+			}
+			spine[top++] = id;
+		}
+		root = top > 0 ? spine[0] : NIL;
+		count(root);
+	}
+
+	/** @return The number of songs in the tree. */
+	int size() {
+		return sizeOf(root);
+	}
+
+	/**
+	 * @return The song at a position.
+	 * @throws IndexOutOfBoundsException
+	 *             If there's no such position.
+	 */
+	int get(int pos) {
+		if (pos < 0 || pos >= size()) {
+			throw new IndexOutOfBoundsException("Position " + pos + " of "
+					+ size());
+		}
+		int t = root;
+		while (true) {
+			int ls = sizeOf(left[t]);
+			if (pos < ls) {
+				t = left[t];
+			} else if (pos == ls) {
+				return t;
+			} else {
+				pos -= ls + 1;
+				t = right[t];
+			}
+		}
+	}
+
+	/** @return The position of a song, or -1 if it isn't in the tree. */
+	int indexOf(int id) {
+		if (!contains(id)) {
+			return -1;
+		}
+		int pos = sizeOf(left[id]);
+		for (int t = id; parent[t] != NIL; t = parent[t]) {
+			int p = parent[t];
+			if (right[p] == t) {
+				pos += sizeOf(left[p]) + 1;
+			}
+		}
+		return pos;
+	}
+
+	/** @return true if the song is in the tree. */
+	boolean contains(int id) {
+		return id >= 0 && id < size.length && size[id] > 0;
+	}
+
+	/**
+	 * Put a song in at a position, moving everything from there on up one.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the song is already in the tree.
+	 */
+	void insert(int pos, int id) {
+		if (pos < 0 || pos > size()) {
+			throw new IndexOutOfBoundsException("Position " + pos + " of "
+					+ size());
+		}
+		ensureCapacity(id);
+		if (contains(id)) {
+			throw new IllegalArgumentException("Song " + id
+					+ " is already in the order");
+		}
+		left[id] = right[id] = parent[id] = NIL;
+		size[id] = 1;
+		split(root, pos);
+		int r = splitRight;
+		root = merge(merge(splitLeft, id), r);
+		parent[root] = NIL;
+	}
+
+	/**
+	 * Take a song out, moving everything after it down one. Does nothing if
+	 * the song isn't in the tree.
+	 */
+	void remove(int id) {
+		int pos = indexOf(id);
+		if (pos < 0) {
+			return;
+		}
+		split(root, pos);
+		int l = splitLeft;
+		split(splitRight, 1);
+		root = merge(l, splitRight);
+		if (root != NIL) {
+			parent[root] = NIL;
+		}
+		left[id] = right[id] = parent[id] = NIL;
+		size[id] = 0;
+	}
+
+	// -----Privates-----
+
+	/**
+	 * Split a subtree into its first k songs, left in splitLeft, and the
+	 * rest, left in splitRight. Both come back with no parent.
+	 */
+	private void split(int t, int k) {
+		if (t == NIL) {
+			splitLeft = splitRight = NIL;
+			return;
+		}
+		parent[t] = NIL;
+		int ls = sizeOf(left[t]);
+		if (k <= ls) {
+			split(left[t], k);
+			link(t, splitRight, true);
+			update(t);
+			splitRight = t;
+		} else {
+			split(right[t], k - ls - 1);
+			link(t, splitLeft, false);
+			update(t);
+			splitLeft = t;
+		}
+	}
+
+	/**
+	 * Join two subtrees, all of a before all of b.
+	 *
+	 * @return The root of the joined tree.
+	 */
+	private int merge(int a, int b) {
+		if (a == NIL) {
+			return b;
+		}
+		if (b == NIL) {
+			return a;
+		}
+		if (priority(a) > priority(b)) {
+			link(a, merge(right[a], b), false);
+			update(a);
+			return a;
+		}
+		link(b, merge(a, left[b]), true);
+		update(b);
+		return b;
+	}
+
+	private void link(int p, int child, boolean isLeft) {
+		if (isLeft) {
+			left[p] = child;
+		} else {
+			right[p] = child;
+		}
+		if (child != NIL) {
+			parent[child] = p;
+		}
+	}
+
+	private void update(int t) {
+		size[t] = sizeOf(left[t]) + sizeOf(right[t]) + 1;
+	}
+
+	private int sizeOf(int t) {
+		return t == NIL ? 0 : size[t];
+	}
+
+	/**
+	 * Fill in the sizes of a freshly built subtree.
+	 */
+	private int count(int t) {
+		if (t == NIL) {
+			return 0;
+		}
+		size[t] = count(left[t]) + count(right[t]) + 1;
+		return size[t];
+	}
+
+	/**
+	 * A pseudo random priority for a song; the murmur3 finalizer.
+	 */
+	private int priority(int id) {
+		int h = id * 0x9E3779B9 ^ seed;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private void ensureCapacity(int id) {
+		if (id < size.length) {
+			return;
+		}
+		int capacity = Math.max(id + 1, size.length * 2);
+		int old = size.length;
+		left = Arrays.copyOf(left, capacity);
+		right = Arrays.copyOf(right, capacity);
+		parent = Arrays.copyOf(parent, capacity);
+		size = Arrays.copyOf(size, capacity);
+		Arrays.fill(parent, old, capacity, NIL);
+	}
+}
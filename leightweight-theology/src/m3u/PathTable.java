@@ -0,0 +1,248 @@
+package m3u;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Column store for the entries of a playlist. Instead of an object per song,
+ * each column is one array shared by every song:
+ * <ul>
+ * <li>file names, as UTF-8, end to end in one byte array, found by offset;</li>
+ * <li>the directory of each song, as an index into a table holding each
+ * distinct directory once (albums put many songs in the same one);</li>
+ * <li>the #EXTINF duration and title, the titles stored like the names.</li>
+ * </ul>
+ * A song costs its name and title in bytes plus 24 bytes, where a
+ * {@link File} costs well over a hundred. Files and Strings are only made
+ * when asked for.
+ *
+ * Entries keep their index until they are removed, and the index of a
+ * removed entry is handed to the next one added, so the table, and the
+ * arrays its owner indexes by it, only grow as far as the most songs held
+ * at once. The bytes of removed names and titles are squeezed out once they
+ * are more than half of a column. Not thread safe; the owner locks around
+ * it.
+ *
+ * @author Connor Findlay
+ */
+final class PathTable {
+	private static final int INITIAL = 64;
+	private static final int FREE = -1;
+
+	private byte[] names = new byte[INITIAL * 16];
+	private byte[] titles = new byte[0];
+	// Entry i's name is names[nameStart[i], nameEnd[i]); same for titles
+	private int[] nameStart = new int[INITIAL];
+	private int[] nameEnd = new int[INITIAL];
+	private int[] titleStart = new int[INITIAL];
+	private int[] titleEnd = new int[INITIAL];
+	// FREE for a removed entry
+	private int[] dir = new int[INITIAL];
+	private int[] duration = new int[INITIAL];
+	private int size;
+	private int namesLength, titlesLength;
+	// Bytes of removed entries still in the columns
+	private int deadNames, deadTitles;
+	// Indexes of removed entries, to be handed out again
+	private int[] free = new int[0];
+	private int freeCount;
+	// Distinct directories, with a trailing separator
+	private final ArrayList<String> dirs = new ArrayList<String>();
+	private HashMap<String, Integer> dirLookup = new HashMap<String, Integer>();
+
+	/**
+	 * Add an entry, in the place of a removed one if there is one, or else at
+	 * the end of the table.
+	 *
+	 * @param path
+	 *            The path of the song.
+	 * @param seconds
+	 *            Its length, or -1 if not known.
+	 * @param title
+	 *            Its title, or null.
+	 * @return The new entry's index.
+	 */
+	int add(String path, int seconds, String title) {
+		int i;
+		if (freeCount > 0) {
+			i = free[--freeCount];
+		} else {
+			if (size == nameEnd.length) {
+				resize(size * 2);
+			}
+			i = size++;
+		}
+		int split = Math.max(path.lastIndexOf('/'),
+				path.lastIndexOf(File.separatorChar)) + 1;
+		dir[i] = directory(path.substring(0, split));
+		nameStart[i] = namesLength;
+		namesLength = append(path.substring(split), true);
+		nameEnd[i] = namesLength;
+		titleStart[i] = titlesLength;
+		if (title != null) {
+			titlesLength = append(title, false);
+		}
+		titleEnd[i] = titlesLength;
+		duration[i] = seconds;
+		return i;
+	}
+
+	/**
+	 * Remove an entry. Its index will be handed out again by add.
+	 *
+	 * @param i
+	 *            The index of an entry still in the table.
+	 */
+	void remove(int i) {
+		deadNames += nameEnd[i] - nameStart[i];
+		deadTitles += titleEnd[i] - titleStart[i];
+		nameStart[i] = nameEnd[i] = titleStart[i] = titleEnd[i] = 0;
+		dir[i] = FREE;
+		if (freeCount == free.length) {
+			free = Arrays.copyOf(free, Math.max(freeCount * 2, 16));
+		}
+		free[freeCount++] = i;
+		if (deadNames > namesLength / 2) {
+			names = compact(names, nameStart, nameEnd, namesLength
+					- deadNames);
+			namesLength -= deadNames;
+			deadNames = 0;
+		}
+		if (deadTitles > titlesLength / 2) {
+			titles = compact(titles, titleStart, titleEnd, titlesLength
+					- deadTitles);
+			titlesLength -= deadTitles;
+			deadTitles = 0;
+		}
+	}
+
+	/**
+	 * @return One more than the largest index in use; the number of entries,
+	 *         if none were removed.
+	 */
+	int size() {
+		return size;
+	}
+
+	/** @return The file name of an entry, without its directory. */
+	String getName(int i) {
+		return new String(names, nameStart[i], nameEnd[i] - nameStart[i],
+				StandardCharsets.UTF_8);
+	}
+
+	/** @return The full path of an entry. */
+	String getPath(int i) {
+		return dirs.get(dir[i]).concat(getName(i));
+	}
+
+	/** @return An entry as a File. */
+	File getFile(int i) {
+		return new File(getPath(i));
+	}
+
+	/** @return The #EXTINF title of an entry, or null if it had none. */
+	String getTitle(int i) {
+		if (titleEnd[i] == titleStart[i]) {
+			return null;
+		}
+		return new String(titles, titleStart[i], titleEnd[i] - titleStart[i],
+				StandardCharsets.UTF_8);
+	}
+
+	/** @return The #EXTINF length of an entry in seconds, or -1. */
+	int getDuration(int i) {
+		return duration[i];
+	}
+
+	/**
+	 * Give back the spare room at the end of each column, once the table is
+	 * fully loaded. More entries can still be added afterwards.
+	 */
+	void trim() {
+		names = Arrays.copyOf(names, namesLength);
+		titles = Arrays.copyOf(titles, titlesLength);
+		resize(Math.max(size, 1));
+		dirs.trimToSize();
+		// Only needed while adding; rebuilt if more entries come
+		dirLookup = null;
+	}
+
+	// -----Privates-----
+
+	private void resize(int capacity) {
+		nameStart = Arrays.copyOf(nameStart, capacity);
+		nameEnd = Arrays.copyOf(nameEnd, capacity);
+		titleStart = Arrays.copyOf(titleStart, capacity);
+		titleEnd = Arrays.copyOf(titleEnd, capacity);
+		dir = Arrays.copyOf(dir, capacity);
+		duration = Arrays.copyOf(duration, capacity);
+	}
+
+	/**
+	 * Copy the names or titles of the entries still in the table end to end
+	 * into a new column, moving their offsets with them.
+	 *
+	 * @param length
+	 *            The number of bytes they take.
+	 * @return The new column.
+	 */
+	private byte[] compact(byte[] column, int[] start, int[] end, int length) {
+		byte[] packed = new byte[length];
+		int at = 0;
+		for (int i = 0; i < size; i++) {
+			if (dir[i] == FREE) {
+				continue;
+			}
+			int n = end[i] - start[i];
+			System.arraycopy(column, start[i], packed, at, n);
+			start[i] = at;
+			at += n;
+			end[i] = at;
+		}
+		return packed;
+	}
+
+	/**
+	 * @return The index of a directory in the table, adding it if new.
+	 */
+	private int directory(String path) {
+		if (dirLookup == null) {
+			dirLookup = new HashMap<String, Integer>();
+			for (int i = 0; i < dirs.size(); i++) {
+				dirLookup.put(dirs.get(i), i);
+			}
+		}
+		Integer idx = dirLookup.get(path);
+		if (idx == null) {
+			idx = dirs.size();
+			dirs.add(path);
+			dirLookup.put(path, idx);
+		}
+		return idx;
+	}
+
+	/**
+	 * Append a string as UTF-8 to the names or titles.
+	 *
+	 * @return The new length of that column.
+	 */
+	private int append(String s, boolean name) {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		byte[] column = name ? names : titles;
+		int length = name ? namesLength : titlesLength;
+		if (length + b.length > column.length) {
+			column = Arrays.copyOf(column,
+					Math.max(column.length * 2, length + b.length));
+			if (name) {
+				names = column;
+			} else {
+				titles = column;
+			}
+		}
+		System.arraycopy(b, 0, column, length, b.length);
+		return length + b.length;
+	}
+}
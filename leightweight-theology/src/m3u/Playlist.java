@@ -4,23 +4,50 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
 
 /**
  * Represents a playlist of music. Provides storage for a playlist of files,
  * parsing m3u playlists, and what song is next in the list.
  * 
+ * Songs are kept in a compact {@link PathTable} rather than as File objects.
+ * The playing order and the shuffled order are each an {@link OrderTree} of
+ * indexes into the table, so songs can be added, removed and moved anywhere
+ * in O(log n), while playback carries on. The index of a removed song is
+ * reused by the next one added, so edits don't grow either. Every method is
+ * synchronized, and edits keep the playlist counter on the same next song.
+ * A {@link Listener} is told of each edit.
+ * 
  * @author Connor Findlay
  */
 public class Playlist {
-	private ArrayList<File> playlist;
+	/**
+	 * Told when songs are added, removed or moved.
+	 */
+	public interface Listener {
+		/**
+		 * Called on the thread that made the edit, once the playlist is no
+		 * longer locked, so it may call back into the playlist.
+		 * 
+		 * @param p
+		 *            The playlist edited.
+		 */
+		void playlistEdited(Playlist p);
+	}
+
+	private final PathTable songs = new PathTable();
 	private volatile boolean shuffled;
 	private String listName;
 	private volatile int currentSong;
-	private ArrayList<File> shuffledList;
-	private Iterator<File> shuffleItr;
+	// Indexes into songs, in playing order and in shuffled order
+	private OrderTree order;
+	private OrderTree shuffleOrder;
+	private final Random random = new Random();
+	// Bumped by every edit, so a copy of the list can tell it is stale
+	private int edits;
+	private volatile Listener listener;
 
 	/**
 	 * Create a new playlist object, with the contents of the specified file. We
@@ -33,8 +60,6 @@ public class Playlist {
 	 *             If the specified file is not a valid M3U file.
 	 */
 	public Playlist(String file) throws IllegalArgumentException {
-		// Initialize empty collections
-		playlist = new ArrayList<File>();
 		shuffled = false;
 		// Initialize the song count
 		currentSong = 1;
@@ -42,26 +67,49 @@ public class Playlist {
 		// occur.
 		loadM3U(file);
 		// Set up for shuffled playing.
-		shuffledList = new ArrayList<File>(playlist);
-		Collections.shuffle(shuffledList);
-		shuffleItr = shuffledList.iterator();
+		int count = songs.size();
+		int[] ids = new int[count];
+		for (int i = 0; i < count; i++) {
+			ids[i] = i;
+		}
+		order = new OrderTree(ids, count, count);
+		for (int i = 0; i < count; i++) {
+			int j = random.nextInt(i + 1);
+			ids[i] = ids[j];
+			ids[j] = i;
+		}
+		shuffleOrder = new OrderTree(ids, count, count);
 	}
 
 	/**
 	 * Return an iterator over this list. This method can be used to get an
 	 * iterator over this playlist. This is *not* recommended behavior, but it
-	 * may be useful. However, if used, the internal iterator the other methods
-	 * in this class use will not be consistent with the one returned by this
-	 * method. (I think). If the playlist is currently shuffled, you will get an
-	 * iterator over the shuffled collection.
+	 * may be useful. The iterator is independent of the playlist counter the
+	 * other methods in this class use, and makes a File for each song as it
+	 * goes. If the playlist is currently shuffled, you will get an iterator
+	 * over the shuffled order.
 	 * 
 	 * @return An Iterator over this playlist.
 	 */
 	public Iterator<File> getIterator() {
-		// Choose the right iterator
-		if (!shuffled)
-			return playlist.iterator();
-		return shuffleItr;
+		final boolean inShuffle = shuffled;
+		return new Iterator<File>() {
+			private int pos = 0;
+
+			public boolean hasNext() {
+				return pos < songCount();
+			}
+
+			public File next() {
+				synchronized (Playlist.this) {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					OrderTree tree = inShuffle ? shuffleOrder : order;
+					return songs.getFile(tree.get(pos++));
+				}
+			}
+		};
 	}
 
 	/**
@@ -72,29 +120,70 @@ public class Playlist {
 	 * @throws IOException
 	 *             If the file doesn't actually exist.
 	 */
-	public String nextFile() throws IOException {
+	public synchronized String nextFile() throws IOException {
 		// Sanity checking
 		if (currentSong < 1 || currentSong == Integer.MAX_VALUE) {
 			throw new IllegalStateException(
 					"Playlist counter is invalid. It should not be: "
 							+ currentSong);
 		}
-		// Initialize the file object
-		File f = null;
-		// Check if we are shuffled
-		if (!shuffled) {
-			// If we aren't shuffled, return the next song, index based.
-			f = playlist.get(currentSong - 1);
-			currentSong++;
-		} else {
-			// If we *are* shuffled, we need to grab the next song in the
-			// shuffled list.
-			f = shuffleItr.next();
-			currentSong++;
+		if (currentSong - 1 >= order.size()) {
+			throw new IndexOutOfBoundsException("No song after "
+					+ (currentSong - 1));
 		}
+		// Index based, through the shuffled order if we are shuffled
+		File f = songs.getFile(songIndex(currentSong - 1));
+		currentSong++;
 		return f.getCanonicalPath();
 	}
 
+	/**
+	 * Look at the song nextFile() would return, without moving on to it. The
+	 * player uses this to open the next song before the current one ends.
+	 * 
+	 * @return The canonical path of the next song, or null if we are at the
+	 *         end of the list.
+	 * @throws IOException
+	 *             If the file doesn't actually exist.
+	 */
+	public synchronized String peekNextFile() throws IOException {
+		if (currentSong - 1 >= order.size()) {
+			return null;
+		}
+		return songs.getFile(songIndex(currentSong - 1)).getCanonicalPath();
+	}
+
+	/**
+	 * Make the song at the given index the current one. nextFile() will then
+	 * carry on from the song after it, in the current play order.
+	 * 
+	 * @param idx
+	 *            The index of the song, 0-based, as displayed.
+	 * @return The song at that index, or null if there is no such song.
+	 */
+	public synchronized File select(int idx) {
+		if (idx < 0 || idx >= order.size()) {
+			return null;
+		}
+		int id = order.get(idx);
+		// Where the song sits in the order we are playing in
+		int pos = shuffled ? shuffleOrder.indexOf(id) : idx;
+		currentSong = pos + 2;
+		return songs.getFile(id);
+	}
+
+	/**
+	 * Put the playlist counter back to a value from getCurrentSong(). The
+	 * player uses this to undo moving on to songs it decoded ahead of time but
+	 * never played.
+	 * 
+	 * @param song
+	 *            The new counter value, 1-based.
+	 */
+	public synchronized void setCurrentSong(int song) {
+		currentSong = Math.max(1, Math.min(song, order.size() + 1));
+	}
+
 	/**
 	 * Set the shuffle status of this list to the specified boolean. If true,
 	 * the list is shuffled. If false, it isn't.
@@ -126,33 +215,164 @@ public class Playlist {
 	 *            The index of the item.
 	 * @return The item
 	 */
-	public String getSongAt(int idx) {
-		if (idx >= playlist.size() || idx <= 0) {
+	public synchronized String getSongAt(int idx) {
+		if (idx >= order.size() || idx < 0) {
 			return null;
 		} else {
-			return playlist.get(idx).getName();
+			return songs.getName(order.get(idx));
+		}
+
+	}
+
+	/**
+	 * Get the file of the song at the specified index.
+	 * 
+	 * @param idx
+	 *            The index of the item.
+	 * @return The file, or null if there's no such item.
+	 */
+	public synchronized File getFileAt(int idx) {
+		if (idx >= order.size() || idx < 0) {
+			return null;
+		}
+		return songs.getFile(order.get(idx));
+	}
+
+	/**
+	 * Get the file of the song at a position in the order the list plays in,
+	 * which is the shuffled order while it is shuffled.
+	 * 
+	 * @param pos
+	 *            The position, 0-based; the song nextFile() would return is
+	 *            at getCurrentSong() - 1.
+	 * @return The file, or null if there's no such position.
+	 */
+	public synchronized File getFileInPlayOrder(int pos) {
+		if (pos >= order.size() || pos < 0) {
+			return null;
 		}
+		return songs.getFile(songIndex(pos));
+	}
 
+	/**
+	 * Get the title given to the song at the specified index by the
+	 * playlist's #EXTINF line.
+	 * 
+	 * @param idx
+	 *            The index of the item.
+	 * @return The title, or null if the playlist didn't give one.
+	 */
+	public synchronized String getTitleAt(int idx) {
+		if (idx >= order.size() || idx < 0) {
+			return null;
+		}
+		return songs.getTitle(order.get(idx));
 	}
 
 	/**
-	 * Add a file to the playlist. Not yet supported.
+	 * Get the length given to the song at the specified index by the
+	 * playlist's #EXTINF line.
+	 * 
+	 * @param idx
+	 *            The index of the item.
+	 * @return The length in seconds, or -1 if the playlist didn't say.
+	 */
+	public synchronized int getDurationAt(int idx) {
+		if (idx >= order.size() || idx < 0) {
+			return -1;
+		}
+		return songs.getDuration(order.get(idx));
+	}
+
+	/**
+	 * Add a file to the end of the playlist.
 	 * 
 	 * @param f
 	 *            The file to add to the list.
 	 */
 	public void add(File f) {
-		throw new UnsupportedOperationException();
+		synchronized (this) {
+			insertAt(order.size(), f);
+		}
+		edited();
+	}
+
+	/**
+	 * Insert a file into the playlist, before the song at the given index.
+	 * In the shuffled order it goes somewhere among the songs still to be
+	 * played. Takes O(log n).
+	 * 
+	 * @param idx
+	 *            The index it will have, 0-based, as displayed.
+	 * @param f
+	 *            The file to add to the list.
+	 * @throws IndexOutOfBoundsException
+	 *             If idx is less than 0 or more than songCount().
+	 */
+	public void insert(int idx, File f) {
+		synchronized (this) {
+			insertAt(idx, f);
+		}
+		edited();
 	}
 
 	/**
-	 * Remove a file from the list. Not yet supported.
+	 * Remove a file from the list. Only the first song with the same path
+	 * goes. Finding it takes a pass over the list; removing by index is
+	 * faster.
 	 * 
 	 * @param f
 	 *            The file to be removed from the list.
+	 * @return true if the file was in the list.
+	 */
+	public boolean remove(File f) {
+		String path = f.getAbsolutePath();
+		synchronized (this) {
+			int i = 0;
+			int n = order.size();
+			while (i < n && !songs.getPath(order.get(i)).equals(path)) {
+				i++;
+			}
+			if (i == n) {
+				return false;
+			}
+			removeAt(i);
+		}
+		edited();
+		return true;
+	}
+
+	/**
+	 * Remove the song at the given index from the list. Takes O(log n).
+	 * 
+	 * @param idx
+	 *            The index of the song, 0-based, as displayed.
+	 * @throws IndexOutOfBoundsException
+	 *             If there is no such song.
 	 */
-	public void remove(File f) {
-		throw new UnsupportedOperationException();
+	public void remove(int idx) {
+		synchronized (this) {
+			removeAt(idx);
+		}
+		edited();
+	}
+
+	/**
+	 * Move a song to another place in the list. The shuffled order is left
+	 * alone. Takes O(log n).
+	 * 
+	 * @param from
+	 *            The index of the song to move, 0-based, as displayed.
+	 * @param to
+	 *            The index it will have afterwards.
+	 * @throws IndexOutOfBoundsException
+	 *             If either index is out of range.
+	 */
+	public void move(int from, int to) {
+		synchronized (this) {
+			moveAt(from, to);
+		}
+		edited();
 	}
 
 	/**
@@ -161,8 +381,28 @@ public class Playlist {
 	 * @return The number of songs in this playlist. Again, this is a 1-based
 	 *         answer.
 	 */
-	public int songCount() {
-		return playlist.size();
+	public synchronized int songCount() {
+		return order.size();
+	}
+
+	/**
+	 * Count the edits made to the list. Anything built from the list, such
+	 * as a search index, can keep the count it was built at, and is out of
+	 * date once the count has moved on.
+	 * 
+	 * @return The number of songs added, removed or moved so far.
+	 */
+	public synchronized int getEditCount() {
+		return edits;
+	}
+
+	/**
+	 * @param l
+	 *            Told of every edit from now on, in place of any listener
+	 *            before it; or null.
+	 */
+	public void setListener(Listener l) {
+		listener = l;
 	}
 
 	/**
@@ -178,13 +418,80 @@ public class Playlist {
 	 * Restarts this playlist from the beginning of the list. Basically
 	 * initializes the values again.
 	 */
-	public void resetPlaylist() {
+	public synchronized void resetPlaylist() {
 		currentSong = 1;
-		shuffleItr = shuffledList.iterator();
 	}
 
 	// -----Privates-----
 
+	private void insertAt(int idx, File f) {
+		if (idx < 0 || idx > order.size()) {
+			throw new IndexOutOfBoundsException("Index " + idx + " of "
+					+ order.size());
+		}
+		int id = songs.add(f.getAbsolutePath(), -1, null);
+		order.insert(idx, id);
+		if (!shuffled && idx < currentSong - 1) {
+			currentSong++;
+		}
+		int next = Math.min(currentSong - 1, shuffleOrder.size());
+		shuffleOrder.insert(next
+				+ random.nextInt(shuffleOrder.size() - next + 1), id);
+		edits++;
+	}
+
+	private void removeAt(int idx) {
+		int id = order.get(idx);
+		// Songs before the counter move it down with them
+		int pos = shuffled ? shuffleOrder.indexOf(id) : idx;
+		if (pos < currentSong - 1) {
+			currentSong--;
+		}
+		order.remove(id);
+		shuffleOrder.remove(id);
+		// The next song added takes its index
+		songs.remove(id);
+		edits++;
+	}
+
+	private void moveAt(int from, int to) {
+		int id = order.get(from);
+		if (to < 0 || to >= order.size()) {
+			throw new IndexOutOfBoundsException("Index " + to + " of "
+					+ order.size());
+		}
+		order.remove(id);
+		order.insert(to, id);
+		edits++;
+		if (shuffled) {
+			return;
+		}
+		// Keep the counter on the same next song
+		if (from < currentSong - 1 && to >= currentSong - 1) {
+			currentSong--;
+		} else if (from >= currentSong - 1 && to < currentSong - 1) {
+			currentSong++;
+		}
+	}
+
+	/**
+	 * Tell the listener of an edit. Called without the lock held.
+	 */
+	private void edited() {
+		Listener l = listener;
+		if (l != null) {
+			l.playlistEdited(this);
+		}
+	}
+
+	/**
+	 * @return The index of the song at the given position in the order we
+	 *         are playing in.
+	 */
+	private int songIndex(int pos) {
+		return shuffled ? shuffleOrder.get(pos) : order.get(pos);
+	}
+
 	/**
 	 * Calls the M3U parser and parses the file. This method extracts the
 	 * filename and sets
@@ -194,8 +501,20 @@ public class Playlist {
 	private void loadM3U(String list) {
 		// Determine file name
 		listName = getListName(list);
-		// Parse M3U data
-		playlist = m3u.M3UParser.parse(list);
+		// Parse M3U data straight into the table, with no File objects
+		try {
+			M3UParser.parse(Paths.get(list), new M3UParser.Handler() {
+				public boolean entry(String location, int duration,
+						String title) {
+					songs.add(location, duration, title);
+					return true;
+				}
+			});
+		} catch (IOException e) {
+			System.err.println("Playlist parser encountered malformed data");
+			e.printStackTrace();
+		}
+		songs.trim();
 	}
 
 	/**
@@ -1,57 +1,241 @@
 package mp3;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 import javax.sound.sampled.spi.AudioFileReader;
 
-
+/**
+ * Reads MPEG-1/2 Layer III audio files: MP3s. The file format reports the
+ * stream as {@link BasicMP3Encoding#MP3}; the AudioInputStreams handed out are
+ * already decoded to 16 bit signed little endian PCM, so they can be written
+ * straight to a SourceDataLine.
+ *
+ * This reader is registered with the sound system through
+ * META-INF/services/javax.sound.sampled.spi.AudioFileReader, so
+ * AudioSystem.getAudioInputStream will pick it up as well.
+ *
+ * @author Connor Findlay
+ */
 public class BasicMP3FileReader extends AudioFileReader {
+	/** The file type this reader recognizes. */
+	public static final AudioFileFormat.Type MP3 = new AudioFileFormat.Type(
+			"MP3", "mp3");
+	// ID3 tags with cover art can run to megabytes, so the mark has to
+	// survive reading past all of it.
+	private static final int MARK_LIMIT = Integer.MAX_VALUE;
+	private static final int ID3_HEADER = 10;
 
 	@Override
 	public AudioFileFormat getAudioFileFormat(InputStream stream)
 			throws UnsupportedAudioFileException, IOException {
-		// TODO Auto-generated method stub
-		return null;
+		stream.mark(MARK_LIMIT);
+		try {
+			return sniff(stream);
+		} finally {
+			stream.reset();
+			// Drop the mark again, or a BufferedInputStream would keep
+			// buffering the whole file for it.
+			stream.mark(0);
+		}
 	}
 
 	@Override
 	public AudioFileFormat getAudioFileFormat(URL url)
 			throws UnsupportedAudioFileException, IOException {
-		// TODO Auto-generated method stub
-		return null;
+		try (InputStream in = new BufferedInputStream(url.openStream())) {
+			return sniff(in);
+		}
 	}
 
 	@Override
 	public AudioFileFormat getAudioFileFormat(File file)
 			throws UnsupportedAudioFileException, IOException {
-		// TODO Auto-generated method stub
-		return null;
+		AudioFileFormat sniffed;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			sniffed = sniff(in);
+		}
+		// With the whole file to hand, the index can give the exact length
+		MP3FrameIndex index = MP3FrameIndex.forFile(file);
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("duration",
+				Long.valueOf((long) (index.getDuration() * 1000000)));
+		return new AudioFileFormat(MP3, sniffed.getFormat(),
+				(int) Math.min(Integer.MAX_VALUE, index.getMpegFrameCount()),
+				properties);
 	}
 
 	@Override
 	public AudioInputStream getAudioInputStream(InputStream stream)
 			throws UnsupportedAudioFileException, IOException {
-		// TODO Auto-generated method stub
-		return null;
+		AudioFileFormat fileFormat = getAudioFileFormat(stream);
+		return new AudioInputStream(new MP3Decoder(stream),
+				decodedFormat(fileFormat.getFormat()),
+				AudioSystem.NOT_SPECIFIED);
 	}
 
 	@Override
 	public AudioInputStream getAudioInputStream(URL url)
 			throws UnsupportedAudioFileException, IOException {
-		// TODO Auto-generated method stub
-		return null;
+		InputStream in = new BufferedInputStream(url.openStream());
+		try {
+			return getAudioInputStream(in);
+		} catch (UnsupportedAudioFileException | IOException e) {
+			in.close();
+			throw e;
+		}
 	}
 
+	/**
+	 * Open an MP3 file. Files, unlike plain streams, get an exact frame
+	 * length and can be seeked, through the file's {@link MP3FrameIndex}.
+	 *
+	 * @return An {@link MP3AudioInputStream} over the file.
+	 */
 	@Override
 	public AudioInputStream getAudioInputStream(File file)
 			throws UnsupportedAudioFileException, IOException {
-		// TODO Auto-generated method stub
-		return null;
+		// Reject anything else cheaply before indexing it
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			sniff(in);
+		}
+		return MP3AudioInputStream.open(file, MP3FrameIndex.forFile(file));
+	}
+
+	/**
+	 * Work out the PCM format an MPEG stream decodes to.
+	 *
+	 * @param encoded
+	 *            The encoded format, as reported by getAudioFileFormat.
+	 * @return 16 bit signed little endian PCM at the stream's rate.
+	 */
+	public static AudioFormat decodedFormat(AudioFormat encoded) {
+		return new AudioFormat(encoded.getSampleRate(), 16,
+				encoded.getChannels(), true, false);
+	}
+
+	// -----Privates-----
+
+	/**
+	 * Decide whether the stream holds MPEG audio. We skip an ID3v2 tag if
+	 * there is one, then demand two consecutive, consistent frame headers;
+	 * a single sync word turns up in random data far too often to trust.
+	 *
+	 * @param in
+	 *            The stream, positioned at the start of the file. It is read
+	 *            from, so the caller must reset or close it.
+	 * @return The format of the file.
+	 * @throws UnsupportedAudioFileException
+	 *             If the stream does not start with MPEG audio.
+	 */
+	private AudioFileFormat sniff(InputStream in)
+			throws UnsupportedAudioFileException, IOException {
+		byte[] head = new byte[ID3_HEADER];
+		int first;
+		try {
+			readFully(in, head, ID3_HEADER);
+			if (head[0] == 'I' && head[1] == 'D' && head[2] == '3') {
+				// Syncsafe size, plus a footer if the flag says so.
+				int size = (head[6] & 0x7F) << 21 | (head[7] & 0x7F) << 14
+						| (head[8] & 0x7F) << 7 | (head[9] & 0x7F);
+				if ((head[5] & 0x10) != 0) {
+					size += ID3_HEADER;
+				}
+				skipFully(in, size);
+				// Some taggers pad with zeros past the declared size
+				int b;
+				while ((b = in.read()) == 0) {
+				}
+				if (b == -1) {
+					throw new EOFException();
+				}
+				head[0] = (byte) b;
+				readFully(in, head, 1, MP3Header.SIZE - 1);
+				first = toInt(head);
+				skipFully(in, frameLength(first) - MP3Header.SIZE);
+			} else {
+				first = toInt(head);
+				skipFully(in, frameLength(first) - ID3_HEADER);
+			}
+			readFully(in, head, MP3Header.SIZE);
+		} catch (EOFException e) {
+			throw new UnsupportedAudioFileException("Not an MPEG audio file");
+		}
+		int second = toInt(head);
+		if (!MP3Header.isValid(second)
+				|| !MP3Header.isCompatible(first, second)) {
+			throw new UnsupportedAudioFileException("Not an MPEG audio file");
+		}
+		if (MP3Header.layer(first) != 3) {
+			// Left to whichever reader the sound system has for them
+			throw new UnsupportedAudioFileException(
+					"Only MPEG Layer III is supported");
+		}
+		float rate = MP3Header.sampleRate(first);
+		AudioFormat format = new AudioFormat(BasicMP3Encoding.MP3, rate,
+				AudioSystem.NOT_SPECIFIED, MP3Header.channels(first),
+				AudioSystem.NOT_SPECIFIED, rate
+						/ MP3Header.samplesPerFrame(first), false);
+		return new AudioFileFormat(MP3, format, AudioSystem.NOT_SPECIFIED);
+	}
+
+	/**
+	 * @return The length of the frame with the given header.
+	 * @throws UnsupportedAudioFileException
+	 *             If the int is not a frame header at all.
+	 */
+	private static int frameLength(int header)
+			throws UnsupportedAudioFileException {
+		if (!MP3Header.isValid(header)) {
+			throw new UnsupportedAudioFileException("Not an MPEG audio file");
+		}
+		return MP3Header.frameLength(header);
+	}
+
+	private static int toInt(byte[] b) {
+		return (b[0] & 0xFF) << 24 | (b[1] & 0xFF) << 16 | (b[2] & 0xFF) << 8
+				| (b[3] & 0xFF);
+	}
+
+	private static void readFully(InputStream in, byte[] b, int len)
+			throws IOException {
+		readFully(in, b, 0, len);
+	}
+
+	private static void readFully(InputStream in, byte[] b, int off, int len)
+			throws IOException {
+		while (len > 0) {
+			int n = in.read(b, off, len);
+			if (n == -1) {
+				throw new EOFException();
+			}
+			off += n;
+			len -= n;
+		}
 	}
 
+	private static void skipFully(InputStream in, long n) throws IOException {
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				// skip() may refuse to move; read a byte to tell EOF apart
+				if (in.read() == -1) {
+					throw new EOFException();
+				}
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
 }
@@ -0,0 +1,974 @@
+package mp3;
+
+import java.util.Arrays;
+
+/**
+ * Decodes MPEG-1, MPEG-2 and MPEG-2.5 Layer III frames into PCM, one frame
+ * at a time. Everything it works in is allocated once, up front.
+ *
+ * A frame's audio data can start in the frames before it, in the bit
+ * reservoir, so the decoder keeps the tail of the data it has been given.
+ * Each granule of each channel then goes: scale factors and Huffman codes,
+ * requantized to the spectrum; joint stereo; short blocks put back in
+ * order; alias reduction; the IMDCT, overlapped with the granule before;
+ * and the synthesis filterbank.
+ *
+ * Every frame is checked before it is decoded: its side information must
+ * hold no reserved values and fit the data there is, and the reservoir must
+ * reach back as far as the frame says. A frame that doesn't is decoded as
+ * silence, so the stream keeps its length; that is also what the first
+ * frames after a seek give, until the reservoir fills again. Reading the
+ * codes never goes past the end of a granule's data, and never writes past
+ * its 576 lines, whatever the data holds.
+ *
+ * @author Connor Findlay
+ */
+final class Layer3Decoder {
+	/** The furthest back a frame's data can start, in bytes */
+	static final int MAX_RESERVOIR = 511;
+	// Lines in a granule of one channel
+	private static final int LINES = 576;
+	private static final int MAX_FRAME = 1441;
+	// Room past the end of the data for codes that run over it
+	private static final int PADDING = 64;
+	private static final int GAIN_OFFSET = 400;
+	private static final float INV_SQRT2 = (float) (1 / Math.sqrt(2));
+
+	// Scale factor band edges, long then short, for 44.1, 48 and 32kHz
+	// (MPEG-1), 22.05, 24 and 16kHz (MPEG-2), and 11.025, 12 and 8kHz
+	// (MPEG-2.5)
+	private static final int[][] LONG_BANDS = {
+			{ 0, 4, 8, 12, 16, 20, 24, 30, 36, 44, 52, 62, 74, 90, 110, 134,
+					162, 196, 238, 288, 342, 418, 576 },
+			{ 0, 4, 8, 12, 16, 20, 24, 30, 36, 42, 50, 60, 72, 88, 106, 128,
+					156, 190, 230, 276, 330, 384, 576 },
+			{ 0, 4, 8, 12, 16, 20, 24, 30, 36, 44, 54, 66, 82, 102, 126, 156,
+					194, 240, 296, 364, 448, 550, 576 },
+			{ 0, 6, 12, 18, 24, 30, 36, 44, 54, 66, 80, 96, 116, 140, 168,
+					200, 238, 284, 336, 396, 464, 522, 576 },
+			{ 0, 6, 12, 18, 24, 30, 36, 44, 54, 66, 80, 96, 114, 136, 162,
+					194, 232, 278, 330, 394, 464, 540, 576 },
+			{ 0, 6, 12, 18, 24, 30, 36, 44, 54, 66, 80, 96, 116, 140, 168,
+					200, 238, 284, 336, 396, 464, 522, 576 },
+			{ 0, 6, 12, 18, 24, 30, 36, 44, 54, 66, 80, 96, 116, 140, 168,
+					200, 238, 284, 336, 396, 464, 522, 576 },
+			{ 0, 6, 12, 18, 24, 30, 36, 44, 54, 66, 80, 96, 116, 140, 168,
+					200, 238, 284, 336, 396, 464, 522, 576 },
+			{ 0, 12, 24, 36, 48, 60, 72, 88, 108, 132, 160, 192, 232, 280,
+					336, 400, 476, 566, 568, 570, 572, 574, 576 } };
+	private static final int[][] SHORT_BANDS = {
+			{ 0, 4, 8, 12, 16, 22, 30, 40, 52, 66, 84, 106, 136, 192 },
+			{ 0, 4, 8, 12, 16, 22, 28, 38, 50, 64, 80, 100, 126, 192 },
+			{ 0, 4, 8, 12, 16, 22, 30, 42, 58, 78, 104, 138, 180, 192 },
+			{ 0, 4, 8, 12, 18, 24, 32, 42, 56, 74, 100, 132, 174, 192 },
+			{ 0, 4, 8, 12, 18, 26, 36, 48, 62, 80, 104, 136, 180, 192 },
+			{ 0, 4, 8, 12, 18, 26, 36, 48, 62, 80, 104, 134, 174, 192 },
+			{ 0, 4, 8, 12, 18, 26, 36, 48, 62, 80, 104, 134, 174, 192 },
+			{ 0, 4, 8, 12, 18, 26, 36, 48, 62, 80, 104, 134, 174, 192 },
+			{ 0, 8, 16, 24, 36, 52, 72, 96, 124, 160, 162, 164, 166, 192 } };
+	// Added to the long scale factors when preflag is set
+	private static final int[] PRETAB = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1,
+			1, 1, 1, 2, 2, 3, 3, 3, 2, 0 };
+	// MPEG-1 scale factor lengths, by scalefac_compress
+	private static final int[] SLEN1 = { 0, 0, 0, 0, 3, 1, 1, 1, 2, 2, 2, 3,
+			3, 3, 4, 4 };
+	private static final int[] SLEN2 = { 0, 1, 2, 3, 0, 1, 2, 3, 1, 2, 3, 1,
+			2, 3, 2, 3 };
+	// MPEG-1 long scale factor bands, in the groups scfsi can reuse
+	private static final int[] SCFSI_BANDS = { 0, 6, 11, 16, 21 };
+	// MPEG-2 scale factors in each of four groups, by how the lengths were
+	// coded, then long, short or mixed blocks
+	private static final int[][][] LSF_COUNTS = {
+			{ { 6, 5, 5, 5 }, { 9, 9, 9, 9 }, { 6, 9, 9, 9 } },
+			{ { 6, 5, 7, 3 }, { 9, 9, 12, 6 }, { 6, 9, 12, 6 } },
+			{ { 11, 10, 0, 0 }, { 18, 18, 0, 0 }, { 15, 18, 0, 0 } },
+			{ { 7, 7, 7, 0 }, { 12, 12, 12, 0 }, { 6, 15, 12, 0 } },
+			{ { 6, 6, 6, 3 }, { 12, 9, 9, 6 }, { 6, 12, 9, 6 } },
+			{ { 8, 8, 5, 0 }, { 15, 12, 9, 0 }, { 6, 18, 9, 0 } } };
+	// Alias reduction coefficients
+	private static final double[] ALIAS = { -0.6, -0.535, -0.33, -0.185,
+			-0.095, -0.041, -0.0142, -0.0037 };
+
+	// |i| to the 4/3, for every value the codes can give
+	private static final float[] POW43 = new float[8207];
+	// 2 to the (i - GAIN_OFFSET) / 4
+	private static final float[] GAIN = new float[GAIN_OFFSET + 64];
+	private static final float[] CS = new float[8], CA = new float[8];
+	// IMDCT windows by block type; type 2 is the short window
+	private static final float[][] WINDOWS = new float[4][36];
+	// The IMDCT outputs worth working out, the rest following by symmetry:
+	// rows for outputs 0-8 and 18-26 of the long, 0-2 and 6-8 of the short
+	private static final float[] COS36 = new float[18 * 18];
+	private static final float[] COS12 = new float[6 * 6];
+	// MPEG-1 intensity stereo, left and right, by position
+	private static final float[] IS_LEFT = new float[7];
+	private static final float[] IS_RIGHT = new float[7];
+	// MPEG-2 intensity stereo steps, by intensity scale, then power
+	private static final float[][] IS_STEPS = new float[2][17];
+
+	static {
+		for (int i = 0; i < POW43.length; i++) {
+			POW43[i] = (float) Math.pow(i, 4.0 / 3);
+		}
+		for (int i = 0; i < GAIN.length; i++) {
+			GAIN[i] = (float) Math.pow(2, (i - GAIN_OFFSET) / 4.0);
+		}
+		for (int i = 0; i < 8; i++) {
+			double root = Math.sqrt(1 + ALIAS[i] * ALIAS[i]);
+			CS[i] = (float) (1 / root);
+			CA[i] = (float) (ALIAS[i] / root);
+		}
+		for (int i = 0; i < 36; i++) {
+			WINDOWS[0][i] = (float) Math.sin(Math.PI / 36 * (i + 0.5));
+		}
+		for (int i = 0; i < 18; i++) {
+			WINDOWS[1][i] = WINDOWS[0][i];
+			WINDOWS[3][i + 18] = WINDOWS[0][i + 18];
+		}
+		for (int i = 0; i < 6; i++) {
+			WINDOWS[1][i + 18] = 1;
+			WINDOWS[1][i + 24] = (float) Math.sin(Math.PI / 12 * (i + 6.5));
+			WINDOWS[3][i + 6] = (float) Math.sin(Math.PI / 12 * (i + 0.5));
+			WINDOWS[3][i + 12] = 1;
+		}
+		for (int i = 0; i < 12; i++) {
+			WINDOWS[2][i] = (float) Math.sin(Math.PI / 12 * (i + 0.5));
+		}
+		for (int r = 0; r < 18; r++) {
+			int i = r < 9 ? r : r + 9;
+			for (int k = 0; k < 18; k++) {
+				COS36[r * 18 + k] = (float) Math.cos(Math.PI / 72
+						* (2 * i + 19) * (2 * k + 1));
+			}
+		}
+		for (int r = 0; r < 6; r++) {
+			int i = r < 3 ? r : r + 3;
+			for (int k = 0; k < 6; k++) {
+				COS12[r * 6 + k] = (float) Math.cos(Math.PI / 24
+						* (2 * i + 7) * (2 * k + 1));
+			}
+		}
+		for (int p = 0; p < 7; p++) {
+			double sin = Math.sin(p * Math.PI / 12);
+			double cos = Math.cos(p * Math.PI / 12);
+			IS_LEFT[p] = (float) (sin / (sin + cos));
+			IS_RIGHT[p] = (float) (cos / (sin + cos));
+		}
+		for (int n = 0; n < 17; n++) {
+			IS_STEPS[0][n] = (float) Math.pow(2, -n / 4.0);
+			IS_STEPS[1][n] = (float) Math.pow(2, -n / 2.0);
+		}
+	}
+
+	// The reservoir, then the frame's own data
+	private final byte[] main = new byte[MAX_RESERVOIR + MAX_FRAME + PADDING];
+	private int mainLen;
+	private int bitPos;
+	private final byte[] side = new byte[32 + 4];
+	private int sidePos;
+
+	// Side information, by granule * 2 + channel
+	private int mainDataBegin;
+	private final int[][] scfsi = new int[2][4];
+	private final int[] part23 = new int[4];
+	private final int[] bigValues = new int[4];
+	private final int[] globalGain = new int[4];
+	private final int[] sfCompress = new int[4];
+	private final int[] blockType = new int[4];
+	private final boolean[] switched = new boolean[4];
+	private final boolean[] mixed = new boolean[4];
+	private final int[][] tables = new int[4][3];
+	private final int[][] subblockGain = new int[4][3];
+	private final int[] region0 = new int[4];
+	private final int[] region1 = new int[4];
+	private final boolean[] preflag = new boolean[4];
+	private final int[] sfScale = new int[4];
+	private final int[] count1Table = new int[4];
+
+	// Scale factors by channel: long by band, short by band * 3 + window
+	private final int[][] scalefacL = new int[2][22];
+	private final int[][] scalefacS = new int[2][39];
+	// The largest value each of the right channel's scale factors could
+	// take; an MPEG-2 intensity position that large is no position at all
+	private final int[] isMaxL = new int[22];
+	private final int[] isMaxS = new int[39];
+	private int intensityScale;
+	private final int[] slen = new int[4];
+	private final int[] lsf = new int[36];
+	private final int[] lsfMax = new int[36];
+
+	private final int[] codes = new int[LINES + 4];
+	private final float[][] xr = new float[2][LINES];
+	// How far each channel's lines may be anything but zero
+	private final int[] nonzero = new int[2];
+	private final float[] reordered = new float[LINES];
+	private final float[][] overlap = new float[2][LINES];
+	private final float[] imdct = new float[36];
+	private final float[] window = new float[12];
+	private final SynthesisFilter[] synthesis = { new SynthesisFilter(),
+			new SynthesisFilter() };
+
+	/**
+	 * Decode a frame.
+	 *
+	 * @param header
+	 *            The frame's header, which must be a valid Layer III header.
+	 * @param frame
+	 *            Holds the frame, header and all.
+	 * @param off
+	 *            Where the frame starts.
+	 * @param len
+	 *            Its length.
+	 * @param pcm
+	 *            Where the PCM goes: 16 bit little endian samples, channels
+	 *            interleaved, from the start.
+	 * @return The bytes of PCM the frame made.
+	 */
+	int decode(int header, byte[] frame, int off, int len, byte[] pcm) {
+		boolean mpeg1 = MP3Header.version(header) == MP3Header.MPEG1;
+		int channels = MP3Header.channels(header);
+		int granules = mpeg1 ? 2 : 1;
+		int sideStart = off + MP3Header.SIZE
+				+ (((header >>> 16) & 1) == 0 ? 2 : 0);
+		int sideLen = sideInfoLength(mpeg1, channels);
+		int dataStart = sideStart + sideLen;
+		int dataLen = off + len - dataStart;
+		boolean ok = dataLen >= 0 && dataLen <= MAX_FRAME;
+		if (ok) {
+			System.arraycopy(frame, sideStart, side, 0, sideLen);
+			ok = readSideInfo(mpeg1, channels, granules);
+		}
+		int available = ok ? mainDataBegin + dataLen : 0;
+		int bits = 0;
+		for (int gr = 0; gr < granules; gr++) {
+			for (int ch = 0; ch < channels; ch++) {
+				bits += part23[gr * 2 + ch];
+			}
+		}
+		ok = ok && mainDataBegin <= mainLen && bits <= available * 8;
+		int start = (mainLen - mainDataBegin) * 8;
+		append(frame, dataStart, dataLen);
+
+		int rate = rateIndex(header);
+		int mode = (header >>> 6) & 3;
+		int modeExt = (header >>> 4) & 3;
+		for (int gr = 0; gr < granules; gr++) {
+			for (int ch = 0; ch < channels; ch++) {
+				int gc = gr * 2 + ch;
+				if (ok) {
+					bitPos = start;
+					int end = start + part23[gc];
+					start = end;
+					if (mpeg1) {
+						readScalefactors(gr, ch);
+					} else {
+						readLsfScalefactors(ch, ch == 1 && mode == 1
+								&& (modeExt & 1) != 0);
+					}
+					int n = bitPos <= end ? readCodes(gc, rate, end) : 0;
+					requantize(gc, ch, rate, n);
+				} else {
+					Arrays.fill(xr[ch], 0);
+					nonzero[ch] = 0;
+				}
+			}
+			if (ok && channels == 2 && mode == 1) {
+				stereo(gr, rate, mpeg1, modeExt);
+			}
+			for (int ch = 0; ch < channels; ch++) {
+				hybrid(gr * 2 + ch, ch, rate, ok);
+				int step = channels * 2;
+				int at = gr * LINES * step + ch * 2;
+				for (int t = 0; t < 18; t++) {
+					synthesis[ch].synthesize(xr[ch], t, 18, pcm, at, step);
+					at += 32 * step;
+				}
+			}
+		}
+		trimReservoir();
+		return granules * LINES * channels * 2;
+	}
+
+	/**
+	 * Keep a frame's data in the reservoir without decoding it, as when
+	 * passing over frames.
+	 */
+	void skip(int header, byte[] frame, int off, int len) {
+		boolean mpeg1 = MP3Header.version(header) == MP3Header.MPEG1;
+		int dataStart = off + MP3Header.SIZE
+				+ (((header >>> 16) & 1) == 0 ? 2 : 0)
+				+ sideInfoLength(mpeg1, MP3Header.channels(header));
+		int dataLen = off + len - dataStart;
+		if (dataLen >= 0 && dataLen <= MAX_FRAME) {
+			append(frame, dataStart, dataLen);
+			trimReservoir();
+		}
+	}
+
+	/**
+	 * Forget everything from the frames so far, as after a seek.
+	 */
+	void reset() {
+		mainLen = 0;
+		for (int ch = 0; ch < 2; ch++) {
+			Arrays.fill(overlap[ch], 0);
+			synthesis[ch].reset();
+		}
+	}
+
+	// -----Privates-----
+
+	private static int sideInfoLength(boolean mpeg1, int channels) {
+		if (mpeg1) {
+			return channels == 1 ? 17 : 32;
+		}
+		return channels == 1 ? 9 : 17;
+	}
+
+	/**
+	 * @return The row of the band tables for the frame's sample rate.
+	 */
+	private static int rateIndex(int header) {
+		int version = MP3Header.version(header);
+		int base = version == MP3Header.MPEG1 ? 0
+				: version == MP3Header.MPEG2 ? 3 : 6;
+		return base + ((header >>> 10) & 3);
+	}
+
+	private void append(byte[] frame, int off, int len) {
+		if (len > 0 && len <= MAX_FRAME) {
+			System.arraycopy(frame, off, main, mainLen, len);
+			mainLen += len;
+		}
+	}
+
+	private void trimReservoir() {
+		int keep = Math.min(mainLen, MAX_RESERVOIR);
+		System.arraycopy(main, mainLen - keep, main, 0, keep);
+		mainLen = keep;
+	}
+
+	/**
+	 * Read and check the side information.
+	 *
+	 * @return false if it holds reserved values, or more than a granule
+	 *         has lines.
+	 */
+	private boolean readSideInfo(boolean mpeg1, int channels, int granules) {
+		sidePos = 0;
+		if (mpeg1) {
+			mainDataBegin = sideBits(9);
+			sideBits(channels == 1 ? 5 : 3);
+			for (int ch = 0; ch < channels; ch++) {
+				for (int band = 0; band < 4; band++) {
+					scfsi[ch][band] = sideBits(1);
+				}
+			}
+		} else {
+			mainDataBegin = sideBits(8);
+			sideBits(channels == 1 ? 1 : 2);
+		}
+		for (int gr = 0; gr < granules; gr++) {
+			for (int ch = 0; ch < channels; ch++) {
+				int gc = gr * 2 + ch;
+				part23[gc] = sideBits(12);
+				bigValues[gc] = sideBits(9);
+				globalGain[gc] = sideBits(8);
+				sfCompress[gc] = sideBits(mpeg1 ? 4 : 9);
+				switched[gc] = sideBits(1) != 0;
+				if (switched[gc]) {
+					blockType[gc] = sideBits(2);
+					mixed[gc] = sideBits(1) != 0;
+					tables[gc][0] = sideBits(5);
+					tables[gc][1] = sideBits(5);
+					tables[gc][2] = 0;
+					for (int w = 0; w < 3; w++) {
+						subblockGain[gc][w] = sideBits(3);
+					}
+					region0[gc] = blockType[gc] == 2 && !mixed[gc] ? 8 : 7;
+					region1[gc] = 20 - region0[gc];
+				} else {
+					blockType[gc] = 0;
+					mixed[gc] = false;
+					for (int r = 0; r < 3; r++) {
+						tables[gc][r] = sideBits(5);
+					}
+					Arrays.fill(subblockGain[gc], 0);
+					region0[gc] = sideBits(4);
+					region1[gc] = sideBits(3);
+				}
+				preflag[gc] = mpeg1 && sideBits(1) != 0;
+				sfScale[gc] = sideBits(1);
+				count1Table[gc] = sideBits(1);
+				if (bigValues[gc] * 2 > LINES || switched[gc]
+						&& blockType[gc] == 0) {
+					return false;
+				}
+				for (int r = 0; r < 3; r++) {
+					if (tables[gc][r] == 4 || tables[gc][r] == 14) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	private int sideBits(int n) {
+		int p = sidePos >>> 3;
+		int v = (side[p] & 0xFF) << 24 | (side[p + 1] & 0xFF) << 16
+				| (side[p + 2] & 0xFF) << 8 | side[p + 3] & 0xFF;
+		v <<= sidePos & 7;
+		sidePos += n;
+		return v >>> 32 - n;
+	}
+
+	/**
+	 * @return The data from bitPos on, from the top bit down: at least 25
+	 *         bits of it, which is more than any code takes.
+	 */
+	private int peek() {
+		int p = bitPos >>> 3;
+		int v = (main[p] & 0xFF) << 24 | (main[p + 1] & 0xFF) << 16
+				| (main[p + 2] & 0xFF) << 8 | main[p + 3] & 0xFF;
+		return v << (bitPos & 7);
+	}
+
+	private int bits(int n) {
+		if (n == 0) {
+			return 0;
+		}
+		int v = peek() >>> 32 - n;
+		bitPos += n;
+		return v;
+	}
+
+	/**
+	 * Read an MPEG-1 granule's scale factors, reusing the first granule's
+	 * where scfsi says to.
+	 */
+	private void readScalefactors(int gr, int ch) {
+		int gc = gr * 2 + ch;
+		int slen1 = SLEN1[sfCompress[gc]];
+		int slen2 = SLEN2[sfCompress[gc]];
+		int[] l = scalefacL[ch];
+		int[] s = scalefacS[ch];
+		if (blockType[gc] == 2) {
+			int sfb = 0;
+			if (mixed[gc]) {
+				for (; sfb < 8; sfb++) {
+					l[sfb] = bits(slen1);
+				}
+				sfb = 3;
+			}
+			for (; sfb < 12; sfb++) {
+				int len = sfb < 6 ? slen1 : slen2;
+				for (int w = 0; w < 3; w++) {
+					s[sfb * 3 + w] = bits(len);
+				}
+			}
+			s[36] = s[37] = s[38] = 0;
+		} else {
+			for (int band = 0; band < 4; band++) {
+				if (gr == 1 && scfsi[ch][band] != 0) {
+					continue;
+				}
+				int len = band < 2 ? slen1 : slen2;
+				int to = SCFSI_BANDS[band + 1];
+				for (int sfb = SCFSI_BANDS[band]; sfb < to; sfb++) {
+					l[sfb] = bits(len);
+				}
+			}
+			l[21] = 0;
+		}
+	}
+
+	/**
+	 * Read an MPEG-2 granule's scale factors, whose lengths are coded in
+	 * scalefac_compress, differently for the right channel of intensity
+	 * stereo.
+	 */
+	private void readLsfScalefactors(int ch, boolean intensity) {
+		int sfc = sfCompress[ch];
+		int kind;
+		if (intensity) {
+			intensityScale = sfc & 1;
+			int c = sfc >>> 1;
+			if (c < 180) {
+				set(c / 36, c % 36 / 6, c % 6, 0);
+				kind = 3;
+			} else if (c < 244) {
+				c -= 180;
+				set(c % 64 >> 4, c % 16 >> 2, c % 4, 0);
+				kind = 4;
+			} else {
+				c -= 244;
+				set(c / 3, c % 3, 0, 0);
+				kind = 5;
+			}
+			preflag[ch] = false;
+		} else if (sfc < 400) {
+			set((sfc >> 4) / 5, (sfc >> 4) % 5, (sfc & 15) >> 2, sfc & 3);
+			kind = 0;
+			preflag[ch] = false;
+		} else if (sfc < 500) {
+			sfc -= 400;
+			set((sfc >> 2) / 5, (sfc >> 2) % 5, sfc & 3, 0);
+			kind = 1;
+			preflag[ch] = false;
+		} else {
+			sfc -= 500;
+			set(sfc / 3, sfc % 3, 0, 0);
+			kind = 2;
+			preflag[ch] = true;
+		}
+		int blocks = blockType[ch] != 2 ? 0 : mixed[ch] ? 2 : 1;
+		int[] counts = LSF_COUNTS[kind][blocks];
+		int n = 0;
+		for (int g = 0; g < 4; g++) {
+			for (int i = 0; i < counts[g]; i++, n++) {
+				lsf[n] = bits(slen[g]);
+				lsfMax[n] = (1 << slen[g]) - 1;
+			}
+		}
+		Arrays.fill(lsf, n, lsf.length, 0);
+		Arrays.fill(lsfMax, n, lsfMax.length, 0);
+		int[] l = scalefacL[ch];
+		int[] s = scalefacS[ch];
+		if (blocks == 0) {
+			System.arraycopy(lsf, 0, l, 0, 21);
+			l[21] = 0;
+			System.arraycopy(lsfMax, 0, isMaxL, 0, 21);
+			isMaxL[21] = isMaxL[20];
+		} else {
+			// Mixed blocks have six long bands, then short from the fourth
+			int first = blocks == 2 ? 6 : 0;
+			int from = blocks == 2 ? 9 : 0;
+			System.arraycopy(lsf, 0, l, 0, first);
+			System.arraycopy(lsfMax, 0, isMaxL, 0, first);
+			System.arraycopy(lsf, first, s, from, 36 - from);
+			System.arraycopy(lsfMax, first, isMaxS, from, 36 - from);
+			s[36] = s[37] = s[38] = 0;
+			for (int w = 0; w < 3; w++) {
+				isMaxS[36 + w] = isMaxS[33 + w];
+			}
+		}
+	}
+
+	private void set(int a, int b, int c, int d) {
+		slen[0] = a;
+		slen[1] = b;
+		slen[2] = c;
+		slen[3] = d;
+	}
+
+	/**
+	 * Read a granule's Huffman codes, the big value pairs then the count1
+	 * quads, stopping at the end of its data.
+	 *
+	 * @return How far the lines may be anything but zero.
+	 */
+	private int readCodes(int gc, int rate, int end) {
+		int[] bands = LONG_BANDS[rate];
+		int big = bigValues[gc] * 2;
+		int r1, r2;
+		if (switched[gc] && blockType[gc] == 2) {
+			// The first three short bands, which is 36 lines but at 8kHz
+			r1 = SHORT_BANDS[rate][3] * 3;
+			r2 = LINES;
+		} else {
+			r1 = bands[Math.min(region0[gc] + 1, 22)];
+			r2 = bands[Math.min(region0[gc] + region1[gc] + 2, 22)];
+		}
+		r1 = Math.min(r1, big);
+		r2 = Math.min(Math.max(r2, r1), big);
+		int i = 0;
+		for (int region = 0; region < 3; region++) {
+			int to = region == 0 ? r1 : region == 1 ? r2 : big;
+			int t = tables[gc][region];
+			if (t == 0) {
+				for (; i < to; i++) {
+					codes[i] = 0;
+				}
+				continue;
+			}
+			int[] lookup = Layer3Huffman.PAIRS[t];
+			int first = Layer3Huffman.PAIR_BITS[t];
+			int linbits = Layer3Huffman.LINBITS[t];
+			for (; i < to; i += 2) {
+				if (bitPos >= end) {
+					// The codes ran out early: the data is damaged
+					return i;
+				}
+				int b = peek();
+				int e = lookup[b >>> 32 - first];
+				if (e < 0) {
+					e = -e;
+					e = lookup[(e >>> 8) + ((b << first) >>> 32 - (e & 0xFF))];
+				}
+				bitPos += e & 0xFF;
+				int x = e >>> 12;
+				int y = e >>> 8 & 15;
+				if (x != 0) {
+					if (x == 15) {
+						x += bits(linbits);
+					}
+					if (bits(1) != 0) {
+						x = -x;
+					}
+				}
+				if (y != 0) {
+					if (y == 15) {
+						y += bits(linbits);
+					}
+					if (bits(1) != 0) {
+						y = -y;
+					}
+				}
+				codes[i] = x;
+				codes[i + 1] = y;
+			}
+		}
+		int[] quads = Layer3Huffman.QUADS;
+		int first = Layer3Huffman.QUAD_BITS;
+		while (i + 4 <= LINES && bitPos < end) {
+			int v;
+			if (count1Table[gc] == 0) {
+				int b = peek();
+				int e = quads[b >>> 32 - first];
+				if (e < 0) {
+					e = -e;
+					e = quads[(e >>> 8) + ((b << first) >>> 32 - (e & 0xFF))];
+				}
+				bitPos += e & 0xFF;
+				v = e >>> 8;
+			} else {
+				v = 15 - bits(4);
+			}
+			for (int k = 0; k < 4; k++) {
+				codes[i + k] = (v & 8 >> k) == 0 ? 0 : bits(1) != 0 ? -1 : 1;
+			}
+			if (bitPos > end) {
+				// Only part of the last quad was there
+				break;
+			}
+			i += 4;
+		}
+		while (i > 0 && codes[i - 1] == 0) {
+			i--;
+		}
+		return i;
+	}
+
+	/**
+	 * Turn the codes into the spectrum, scaled by the global gain, the
+	 * subblock gains and the scale factors.
+	 */
+	private void requantize(int gc, int ch, int rate, int n) {
+		float[] x = xr[ch];
+		Arrays.fill(x, 0);
+		nonzero[ch] = n;
+		int gain = globalGain[gc] - 210 + GAIN_OFFSET;
+		int shift = 2 * (1 + sfScale[gc]);
+		int[] l = scalefacL[ch];
+		int[] s = scalefacS[ch];
+		int[] longBands = LONG_BANDS[rate];
+		int[] shortBands = SHORT_BANDS[rate];
+		int shortFrom = 0;
+		if (blockType[gc] != 2 || mixed[gc]) {
+			int limit = blockType[gc] == 2 ? Math.min(n, 36) : n;
+			for (int sfb = 0; sfb < 22 && longBands[sfb] < limit; sfb++) {
+				int pre = preflag[gc] ? PRETAB[sfb] : 0;
+				float g = GAIN[gain - shift * (l[sfb] + pre)];
+				int to = Math.min(longBands[sfb + 1], limit);
+				for (int i = longBands[sfb]; i < to; i++) {
+					x[i] = scale(codes[i], g);
+				}
+			}
+			if (blockType[gc] != 2) {
+				return;
+			}
+			shortFrom = 3;
+		}
+		for (int sfb = shortFrom; sfb < 13; sfb++) {
+			int width = shortBands[sfb + 1] - shortBands[sfb];
+			for (int w = 0; w < 3; w++) {
+				int from = shortBands[sfb] * 3 + w * width;
+				if (from >= n) {
+					return;
+				}
+				float g = GAIN[gain - 8 * subblockGain[gc][w] - shift
+						* s[sfb * 3 + w]];
+				int to = Math.min(from + width, n);
+				for (int i = from; i < to; i++) {
+					x[i] = scale(codes[i], g);
+				}
+			}
+		}
+	}
+
+	private static float scale(int code, float gain) {
+		if (code == 0) {
+			return 0;
+		}
+		return code > 0 ? POW43[code] * gain : -POW43[-code] * gain;
+	}
+
+	/**
+	 * Undo joint stereo: mid/side, intensity, or both, in which case the
+	 * bands intensity coded are left out of mid/side.
+	 */
+	private void stereo(int gr, int rate, boolean mpeg1, int modeExt) {
+		boolean ms = (modeExt & 2) != 0;
+		if ((modeExt & 1) == 0) {
+			if (ms) {
+				int n = Math.max(nonzero[0], nonzero[1]);
+				midSide(0, n);
+				nonzero[0] = nonzero[1] = n;
+			}
+			return;
+		}
+		int gc = gr * 2 + 1;
+		float[] r = xr[1];
+		int[] longBands = LONG_BANDS[rate];
+		int[] shortBands = SHORT_BANDS[rate];
+		int[] l = scalefacL[1];
+		int[] s = scalefacS[1];
+		if (blockType[gc] != 2) {
+			int last = lastBand(longBands, nonzero[1]);
+			for (int sfb = 0; sfb < 22; sfb++) {
+				int band = Math.min(sfb, 20);
+				stereoBand(longBands[sfb], longBands[sfb + 1], sfb > last,
+						l[band], isMaxL[band], mpeg1, ms);
+			}
+		} else {
+			int shortFrom = mixed[gc] ? 3 : 0;
+			// The last band of each window with anything in the right
+			int[] last = { shortFrom - 1, shortFrom - 1, shortFrom - 1 };
+			boolean anyShort = false;
+			for (int sfb = shortFrom; sfb < 13; sfb++) {
+				int width = shortBands[sfb + 1] - shortBands[sfb];
+				for (int w = 0; w < 3; w++) {
+					int from = shortBands[sfb] * 3 + w * width;
+					for (int i = from; i < from + width; i++) {
+						if (r[i] != 0) {
+							last[w] = sfb;
+							anyShort = true;
+							break;
+						}
+					}
+				}
+			}
+			if (mixed[gc]) {
+				int lastLong = anyShort ? 22 : lastBand(longBands,
+						Math.min(nonzero[1], 36));
+				for (int sfb = 0; sfb < 22 && longBands[sfb] < 36; sfb++) {
+					stereoBand(longBands[sfb], Math.min(longBands[sfb + 1], 36),
+							sfb > lastLong, l[sfb], isMaxL[sfb], mpeg1, ms);
+				}
+			}
+			for (int sfb = shortFrom; sfb < 13; sfb++) {
+				int width = shortBands[sfb + 1] - shortBands[sfb];
+				int band = Math.min(sfb, 11);
+				for (int w = 0; w < 3; w++) {
+					int from = shortBands[sfb] * 3 + w * width;
+					stereoBand(from, from + width, sfb > last[w],
+							s[band * 3 + w], isMaxS[band * 3 + w], mpeg1, ms);
+				}
+			}
+		}
+		nonzero[0] = nonzero[1] = LINES;
+	}
+
+	/**
+	 * @return The band holding the last line before n, or -1 if n is 0.
+	 */
+	private static int lastBand(int[] bands, int n) {
+		int sfb = -1;
+		while (sfb + 1 < bands.length - 1 && bands[sfb + 1] < n) {
+			sfb++;
+		}
+		return sfb;
+	}
+
+	/**
+	 * Undo joint stereo for one band.
+	 *
+	 * @param intensity
+	 *            true if the band is past the last with anything in the
+	 *            right channel, so it may be intensity coded.
+	 * @param pos
+	 *            The band's intensity position.
+	 * @param max
+	 *            For MPEG-2, the position that means the band isn't
+	 *            intensity coded after all.
+	 */
+	private void stereoBand(int from, int to, boolean intensity, int pos,
+			int max, boolean mpeg1, boolean ms) {
+		float[] left = xr[0];
+		float[] right = xr[1];
+		if (intensity && (mpeg1 ? pos < 7 : pos != max)) {
+			float kl, kr;
+			if (mpeg1) {
+				kl = IS_LEFT[pos];
+				kr = IS_RIGHT[pos];
+			} else if (pos == 0) {
+				kl = kr = 1;
+			} else if ((pos & 1) != 0) {
+				kl = IS_STEPS[intensityScale][(pos + 1) / 2];
+				kr = 1;
+			} else {
+				kl = 1;
+				kr = IS_STEPS[intensityScale][pos / 2];
+			}
+			for (int i = from; i < to; i++) {
+				right[i] = left[i] * kr;
+				left[i] *= kl;
+			}
+		} else if (ms) {
+			midSide(from, to);
+		}
+	}
+
+	private void midSide(int from, int to) {
+		float[] left = xr[0];
+		float[] right = xr[1];
+		for (int i = from; i < to; i++) {
+			float m = left[i];
+			float s = right[i];
+			left[i] = (m + s) * INV_SQRT2;
+			right[i] = (m - s) * INV_SQRT2;
+		}
+	}
+
+	/**
+	 * Turn a granule of a channel's spectrum into 18 samples of each
+	 * subband, in place: short blocks put back in order, alias reduction,
+	 * the IMDCT and overlap with the granule before, and every other sample
+	 * of every other subband inverted.
+	 *
+	 * @param ok
+	 *            false if the frame wasn't decoded, and its lines are zero.
+	 */
+	private void hybrid(int gc, int ch, int rate, boolean ok) {
+		float[] x = xr[ch];
+		int n = nonzero[ch];
+		int type = ok ? blockType[gc] : 0;
+		boolean mix = ok && mixed[gc];
+		if (type == 2) {
+			n = reorder(x, SHORT_BANDS[rate], mix ? 3 : 0, n);
+		}
+		if (type != 2 || mix) {
+			int limit = type != 2 ? 32 : 2;
+			int sb = 1;
+			for (; sb < limit && sb * 18 - 8 < n; sb++) {
+				int edge = sb * 18;
+				for (int i = 0; i < 8; i++) {
+					float lo = x[edge - 1 - i];
+					float hi = x[edge + i];
+					x[edge - 1 - i] = lo * CS[i] - hi * CA[i];
+					x[edge + i] = hi * CS[i] + lo * CA[i];
+				}
+			}
+			n = Math.max(n, Math.min(LINES, sb * 18));
+		}
+		float[] prev = overlap[ch];
+		for (int sb = 0; sb < 32; sb++) {
+			int base = sb * 18;
+			int t = mix && sb < 2 ? 0 : type;
+			if (base >= n) {
+				for (int i = 0; i < 18; i++) {
+					x[base + i] = prev[base + i];
+					prev[base + i] = 0;
+				}
+			} else {
+				if (t == 2) {
+					imdctShort(x, base);
+				} else {
+					imdctLong(x, base, WINDOWS[t]);
+				}
+				for (int i = 0; i < 18; i++) {
+					x[base + i] = imdct[i] + prev[base + i];
+					prev[base + i] = imdct[i + 18];
+				}
+			}
+			if ((sb & 1) != 0) {
+				for (int i = 1; i < 18; i += 2) {
+					x[base + i] = -x[base + i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Put the short blocks' lines, stored band by band and window by
+	 * window, in order of frequency, each line's three windows together.
+	 *
+	 * @return How far the lines may now be anything but zero.
+	 */
+	private int reorder(float[] x, int[] bands, int from, int n) {
+		int end = bands[from] * 3;
+		for (int sfb = from; sfb < 13 && bands[sfb] * 3 < n; sfb++) {
+			int width = bands[sfb + 1] - bands[sfb];
+			int start = bands[sfb] * 3;
+			for (int w = 0; w < 3; w++) {
+				for (int j = 0; j < width; j++) {
+					reordered[start + j * 3 + w] = x[start + w * width + j];
+				}
+			}
+			end = start + width * 3;
+		}
+		int start = bands[from] * 3;
+		System.arraycopy(reordered, start, x, start, end - start);
+		return Math.max(n, end);
+	}
+
+	/**
+	 * The 36 point IMDCT of a subband's 18 lines, windowed, into imdct.
+	 */
+	private void imdctLong(float[] x, int base, float[] win) {
+		for (int r = 0; r < 9; r++) {
+			float a = 0, b = 0;
+			int ra = r * 18;
+			int rb = (r + 9) * 18;
+			for (int k = 0; k < 18; k++) {
+				float v = x[base + k];
+				a += v * COS36[ra + k];
+				b += v * COS36[rb + k];
+			}
+			imdct[r] = a * win[r];
+			imdct[17 - r] = -a * win[17 - r];
+			imdct[18 + r] = b * win[18 + r];
+			imdct[35 - r] = b * win[35 - r];
+		}
+	}
+
+	/**
+	 * The three 12 point IMDCTs of a subband's short windows, windowed and
+	 * overlapped into imdct.
+	 */
+	private void imdctShort(float[] x, int base) {
+		Arrays.fill(imdct, 0);
+		float[] win = WINDOWS[2];
+		for (int w = 0; w < 3; w++) {
+			for (int r = 0; r < 3; r++) {
+				float a = 0, b = 0;
+				int ra = r * 6;
+				int rb = (r + 3) * 6;
+				for (int k = 0; k < 6; k++) {
+					float v = x[base + k * 3 + w];
+					a += v * COS12[ra + k];
+					b += v * COS12[rb + k];
+				}
+				window[r] = a;
+				window[5 - r] = -a;
+				window[6 + r] = b;
+				window[11 - r] = b;
+			}
+			int at = 6 + 6 * w;
+			for (int i = 0; i < 12; i++) {
+				imdct[at + i] += window[i] * win[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package mp3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import audio.Seekable;
+
+/**
+ * A decoded MP3 file. The length of the stream is exact, and it can be moved
+ * to any frame using the file's {@link MP3FrameIndex}: we jump to the nearest
+ * seek point, step over frame headers up to just before the target, and only
+ * decode the last few frames.
+ *
+ * @author Connor Findlay
+ */
+public class MP3AudioInputStream extends AudioInputStream implements Seekable {
+	private final FileChannel channel;
+	private final MP3Decoder decoder;
+	private final MP3FrameIndex index;
+
+	private MP3AudioInputStream(FileChannel channel, MP3Decoder decoder,
+			MP3FrameIndex index, AudioFormat format) {
+		super(decoder, format, index.getFrameLength());
+		this.channel = channel;
+		this.decoder = decoder;
+		this.index = index;
+	}
+
+	/**
+	 * Open an MP3 file for decoding.
+	 *
+	 * @param file
+	 *            The file to open.
+	 * @param index
+	 *            The frame index of that file.
+	 * @return A stream of 16 bit PCM, positioned at the first sample.
+	 * @throws IOException
+	 *             If the file can't be opened.
+	 */
+	static MP3AudioInputStream open(File file, MP3FrameIndex index)
+			throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ);
+		AudioFormat format = new AudioFormat(index.getSampleRate(), 16,
+				index.getChannels(), true, false);
+		MP3Decoder decoder = new MP3Decoder(Channels.newInputStream(channel));
+		MP3AudioInputStream stream = new MP3AudioInputStream(channel, decoder,
+				index, format);
+		stream.seek(0);
+		return stream;
+	}
+
+	/**
+	 * @return The frame index this stream seeks with.
+	 */
+	public MP3FrameIndex getIndex() {
+		return index;
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len)
+			throws IOException {
+		return super.read(b, off, len);
+	}
+
+	@Override
+	public synchronized void seek(long frame) throws IOException {
+		frame = Math.max(0, Math.min(frame, frameLength));
+		int spf = index.getSamplesPerFrame();
+		// Decoded samples include the encoder delay; audio frames don't.
+		long sample = frame + index.getStartPadding();
+		long target = sample / spf;
+		long primeFrom = Math.max(0, target - index.getPrimingFrames());
+		int point = index.pointBefore(primeFrom);
+		long offset = index.pointOffset(point);
+		if (!index.isExact()) {
+			// Table of contents entries don't land on frame boundaries
+			offset = index.sync(channel, offset);
+		}
+		channel.position(offset);
+		decoder.restart();
+		decoder.skipFrames(primeFrom - index.pointFrame(point));
+		decoder.primeFrames(target - primeFrom);
+		decoder.skip((sample - target * spf) * format.getFrameSize());
+		framePos = frame;
+	}
+
+	@Override
+	public synchronized long getFramePosition() {
+		return framePos;
+	}
+}
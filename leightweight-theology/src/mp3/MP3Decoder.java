@@ -0,0 +1,279 @@
+package mp3;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream of 16 bit little endian PCM, decoded from an MPEG Layer III
+ * stream one frame at a time. The stream is read into a buffer which holds
+ * whole frames; each frame's header is checked before its frame is handed to
+ * the {@link Layer3Decoder}, and the decoded frame is held in a second
+ * buffer. Both are reused for every frame, so reading the stream does not
+ * allocate once it is running.
+ *
+ * Anything between frames that isn't a frame, such as a tag or damage, is
+ * stepped over the way {@link MP3FrameIndex} steps over it: a header is only
+ * believed once the frame after it starts with a header too.
+ *
+ * @author Connor Findlay
+ */
+class MP3Decoder extends InputStream {
+	// Largest decoded frame: 1152 samples, two channels, two bytes a sample.
+	private static final int MAX_FRAME_BYTES = 1152 * 2 * 2;
+	// Room for the longest frame and the header after it, several times
+	private static final int INPUT_BYTES = 8192;
+	private static final int ID3_HEADER = 10;
+
+	private final InputStream source;
+	private final Layer3Decoder layer3 = new Layer3Decoder();
+	private final byte[] input = new byte[INPUT_BYTES];
+	private int inputPos;
+	private int inputLen;
+	private boolean sourceEnded;
+	// The first frame's header, which every frame must be compatible with
+	private int first;
+	// Whether the input is at the end of a frame, rather than anywhere
+	private boolean inSequence;
+	private boolean started;
+	private final byte[] pcm = new byte[MAX_FRAME_BYTES];
+	private final byte[] single = new byte[1];
+	private int pcmPos;
+	private int pcmLen;
+	private boolean eof;
+
+	/**
+	 * Create a new decoder reading MPEG frames from the given stream.
+	 *
+	 * @param source
+	 *            The encoded stream. It is closed when this stream is closed.
+	 */
+	MP3Decoder(InputStream source) {
+		this.source = source;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (read(single, 0, 1) == -1) {
+			return -1;
+		}
+		return single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int copied = 0;
+		while (copied < len) {
+			// Refill the frame buffer once it has been read out
+			if (pcmPos == pcmLen && !decodeFrame()) {
+				break;
+			}
+			int n = Math.min(len - copied, pcmLen - pcmPos);
+			System.arraycopy(pcm, pcmPos, b, off + copied, n);
+			pcmPos += n;
+			copied += n;
+		}
+		if (copied == 0 && len > 0) {
+			return -1;
+		}
+		return copied;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while (skipped < n) {
+			if (pcmPos == pcmLen && !decodeFrame()) {
+				break;
+			}
+			int step = (int) Math.min(n - skipped, pcmLen - pcmPos);
+			pcmPos += step;
+			skipped += step;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return pcmLen - pcmPos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		source.close();
+	}
+
+	/**
+	 * Throw away any buffered input and decoded audio, and carry on from the
+	 * source's current position. Used after the source has been moved.
+	 */
+	void restart() {
+		inputPos = 0;
+		inputLen = 0;
+		sourceEnded = false;
+		inSequence = false;
+		// The bit reservoir and filterbanks belong to another part of the
+		// file, and would smear it into the frames from here.
+		layer3.reset();
+		pcmPos = 0;
+		pcmLen = 0;
+		eof = false;
+	}
+
+	/**
+	 * Step over frames by their headers alone, without decoding them. Their
+	 * data is still kept for the frames after them to draw on.
+	 *
+	 * @param frames
+	 *            The number of frames to pass over.
+	 */
+	void skipFrames(long frames) throws IOException {
+		for (long i = 0; i < frames; i++) {
+			int header = nextFrame();
+			if (header == 0) {
+				eof = true;
+				return;
+			}
+			int length = MP3Header.frameLength(header);
+			layer3.skip(header, input, inputPos, length);
+			inputPos += length;
+			inSequence = true;
+		}
+	}
+
+	/**
+	 * Decode frames and throw their audio away. Decoding, rather than
+	 * skipping, fills the bit reservoir and filterbank state so the frames
+	 * after them decode cleanly.
+	 *
+	 * @param frames
+	 *            The number of frames to decode.
+	 */
+	void primeFrames(long frames) throws IOException {
+		for (long i = 0; i < frames && decodeFrame(); i++) {
+		}
+		pcmPos = pcmLen;
+	}
+
+	// -----Privates-----
+
+	/**
+	 * Decode the next frame into the PCM buffer.
+	 *
+	 * @return false if the stream has no more frames.
+	 */
+	private boolean decodeFrame() throws IOException {
+		if (eof) {
+			return false;
+		}
+		int header = nextFrame();
+		if (header == 0) {
+			eof = true;
+			return false;
+		}
+		int length = MP3Header.frameLength(header);
+		pcmLen = layer3.decode(header, input, inputPos, length, pcm);
+		pcmPos = 0;
+		inputPos += length;
+		inSequence = true;
+		return true;
+	}
+
+	/**
+	 * Find the next frame, and have all of it in the input buffer.
+	 *
+	 * @return The frame's header, with the frame at inputPos; or 0 if the
+	 *         stream has no more whole frames.
+	 */
+	private int nextFrame() throws IOException {
+		if (!started) {
+			started = true;
+			skipID3();
+		}
+		while (fill(MP3Header.SIZE)) {
+			int h = intAt(inputPos);
+			if (isFrame(h)) {
+				int length = MP3Header.frameLength(h);
+				if (inSequence && first != 0) {
+					// Straight after a frame: the header is enough
+					if (fill(length)) {
+						return h;
+					}
+					// A truncated last frame is common; treat it as the end
+					return 0;
+				}
+				boolean whole = fill(length + MP3Header.SIZE);
+				int next = whole ? intAt(inputPos + length) : 0;
+				if (whole ? isFrame(next) && MP3Header.isCompatible(h, next)
+						: inputLen - inputPos == length) {
+					if (first == 0) {
+						first = h;
+					}
+					return h;
+				}
+			}
+			// Junk, a tag or damage; look for the next real frame
+			inputPos++;
+			inSequence = false;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return true if h is a valid Layer III header, compatible with the
+	 *         first frame if there has been one.
+	 */
+	private boolean isFrame(int h) {
+		return MP3Header.isValid(h) && MP3Header.layer(h) == 3
+				&& (first == 0 || MP3Header.isCompatible(first, h));
+	}
+
+	/**
+	 * Step over an ID3v2 tag at the start of the stream, if there is one.
+	 */
+	private void skipID3() throws IOException {
+		if (!fill(ID3_HEADER) || input[inputPos] != 'I'
+				|| input[inputPos + 1] != 'D' || input[inputPos + 2] != '3') {
+			return;
+		}
+		// Syncsafe size, plus the header and a footer if the flag says so
+		long size = (input[inputPos + 6] & 0x7F) << 21
+				| (input[inputPos + 7] & 0x7F) << 14
+				| (input[inputPos + 8] & 0x7F) << 7
+				| (input[inputPos + 9] & 0x7F);
+		size += ID3_HEADER + ((input[inputPos + 5] & 0x10) != 0 ? 10 : 0);
+		while (size > 0 && fill(1)) {
+			int n = (int) Math.min(size, inputLen - inputPos);
+			inputPos += n;
+			size -= n;
+		}
+	}
+
+	private int intAt(int pos) {
+		return (input[pos] & 0xFF) << 24 | (input[pos + 1] & 0xFF) << 16
+				| (input[pos + 2] & 0xFF) << 8 | input[pos + 3] & 0xFF;
+	}
+
+	/**
+	 * Read from the source until at least n bytes are buffered past
+	 * inputPos, moving what is left to the front of the buffer first.
+	 *
+	 * @return false if the source ends first.
+	 */
+	private boolean fill(int n) throws IOException {
+		if (inputLen - inputPos >= n) {
+			return true;
+		}
+		System.arraycopy(input, inputPos, input, 0, inputLen - inputPos);
+		inputLen -= inputPos;
+		inputPos = 0;
+		while (inputLen < n && !sourceEnded) {
+			int read = source.read(input, inputLen, input.length - inputLen);
+			if (read == -1) {
+				sourceEnded = true;
+			} else {
+				inputLen += read;
+			}
+		}
+		return inputLen >= n;
+	}
+}
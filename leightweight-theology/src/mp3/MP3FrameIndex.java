@@ -0,0 +1,468 @@
+package mp3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * An index of the frames in an MP3 file, used to find its exact length and to
+ * jump to any point in it without decoding from the start.
+ *
+ * If the first frame carries a Xing/Info or VBRI tag, the frame count comes
+ * from the tag and its table of contents supplies the seek points; nothing
+ * else in the file is read. Otherwise the file is scanned once, reading only
+ * frame headers, and the offset of every frame is recorded. A LAME tag, if
+ * present, also gives us the encoder delay and padding, so the decoded length
+ * is sample exact. Without one only the decoder's own delay is known and taken
+ * off the start; the length then still counts the encoder's delay and
+ * padding, which is at most a frame or two of silence.
+ *
+ * Seeks through a table of contents are only as accurate as the table; a
+ * Xing TOC gives the offset of each percent of the track to 1/256 of the
+ * file, so the position reported after such a seek is an estimate. Scanned
+ * indexes know where every frame is, so their seeks land on the sample asked
+ * for.
+ *
+ * Indexes are cached per file, keyed on the canonical path; a cached index is
+ * thrown away if the file's size or modification time changes.
+ *
+ * @author Connor Findlay
+ */
+public final class MP3FrameIndex {
+	// Decoders add 528 + 1 samples of delay on top of the encoder's own.
+	private static final int DECODER_DELAY = 529;
+	// The bit reservoir lets a frame's data start up to 511 bytes back.
+	private static final int MAX_RESERVOIR = 511;
+	private static final int CACHE_SIZE = 32;
+	private static final int SCAN_WINDOW = 64 * 1024;
+	private static final int SYNC_WINDOW = 4 * 1024;
+	private static final int XING = 0x58696E67, INFO = 0x496E666F,
+			VBRI = 0x56425249, LAME = 0x4C414D45, LAVC = 0x4C617663,
+			LAVF = 0x4C617666;
+
+	private static final Map<String, MP3FrameIndex> cache = new LinkedHashMap<String, MP3FrameIndex>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, MP3FrameIndex> e) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private final long fileLength;
+	private final long lastModified;
+	// Header of the first audio frame; the stream format comes from this.
+	private int header;
+	// Offset of the first frame of audio, past any ID3 or VBR tag frame.
+	private long audioStart;
+	private long audioEnd;
+	private long frameCount;
+	// Seek points, held as unsigned ints (MP3s never reach 4GB).
+	private int[] points;
+	private int pointCount;
+	private double framesPerPoint;
+	private boolean exact;
+	private int startPadding;
+	private int endPadding;
+
+	/**
+	 * Get the index for the given file, building it if it isn't cached.
+	 *
+	 * @param file
+	 *            An MP3 file.
+	 * @return The index of that file's frames.
+	 * @throws IOException
+	 *             If the file can not be read.
+	 * @throws UnsupportedAudioFileException
+	 *             If no MPEG frames could be found in the file.
+	 */
+	public static MP3FrameIndex forFile(File file) throws IOException,
+			UnsupportedAudioFileException {
+		String key = file.getCanonicalPath();
+		long length = file.length();
+		long modified = file.lastModified();
+		MP3FrameIndex index;
+		synchronized (cache) {
+			index = cache.get(key);
+		}
+		if (index != null && index.fileLength == length
+				&& index.lastModified == modified) {
+			return index;
+		}
+		// Build outside the lock; a long scan must not block other files.
+		index = new MP3FrameIndex(file, length, modified);
+		synchronized (cache) {
+			cache.put(key, index);
+		}
+		return index;
+	}
+
+	private MP3FrameIndex(File file, long length, long modified)
+			throws IOException, UnsupportedAudioFileException {
+		fileLength = length;
+		lastModified = modified;
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			FileWindow in = new FileWindow(channel, SCAN_WINDOW);
+			long first = in.sync(id3Length(in), 0);
+			if (first < 0) {
+				throw new UnsupportedAudioFileException("No MPEG frames in "
+						+ file);
+			}
+			header = in.intAt(first);
+			audioStart = first;
+			// A LAME tag replaces this with the encoder's delay on top
+			startPadding = DECODER_DELAY;
+			boolean tagged = MP3Header.layer(header) == 3
+					&& (readXing(in, first) || readVbri(in, first));
+			if (!tagged) {
+				scan(in);
+			}
+		}
+	}
+
+	/** @return The sample rate of the stream, in Hz. */
+	public int getSampleRate() {
+		return MP3Header.sampleRate(header);
+	}
+
+	/** @return The number of channels in the stream. */
+	public int getChannels() {
+		return MP3Header.channels(header);
+	}
+
+	/** @return The number of PCM frames each MPEG frame decodes to. */
+	public int getSamplesPerFrame() {
+		return MP3Header.samplesPerFrame(header);
+	}
+
+	/** @return The number of MPEG frames of audio in the file. */
+	public long getMpegFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * @return The number of PCM frames the file decodes to, with the delay
+	 *         and end padding taken off. Exact if the file has a LAME tag;
+	 *         otherwise only the decoder delay is known to take off.
+	 */
+	public long getFrameLength() {
+		return Math.max(0, frameCount * getSamplesPerFrame() - startPadding
+				- endPadding);
+	}
+
+	/** @return The length of the audio in seconds. */
+	public double getDuration() {
+		return getFrameLength() / (double) getSampleRate();
+	}
+
+	/**
+	 * @return The number of decoded PCM frames at the start of the stream
+	 *         that are delay rather than audio: the decoder's own, plus the
+	 *         encoder's if a LAME tag gave it.
+	 */
+	public int getStartPadding() {
+		return startPadding;
+	}
+
+	/** @return The byte offset of the first frame of audio. */
+	public long getAudioOffset() {
+		return audioStart;
+	}
+
+	/**
+	 * @return true if every frame's offset is known; false if seek points
+	 *         come from a tag's table of contents, and are approximate.
+	 */
+	public boolean isExact() {
+		return exact;
+	}
+
+	/**
+	 * @return How many frames have to be decoded and thrown away after a
+	 *         seek before the bit reservoir and overlap state are valid.
+	 */
+	public int getPrimingFrames() {
+		double frameBytes = frameCount == 0 ? 1
+				: (audioEnd - audioStart) / (double) frameCount;
+		return 1 + (int) Math.ceil(MAX_RESERVOIR / frameBytes);
+	}
+
+	/**
+	 * Find the last seek point at or before the given MPEG frame.
+	 *
+	 * @param mpegFrame
+	 *            The frame we want to decode from, 0 being the first frame
+	 *            of audio.
+	 * @return The number of the seek point.
+	 */
+	public int pointBefore(long mpegFrame) {
+		if (pointCount == 0 || mpegFrame <= 0) {
+			return 0;
+		}
+		return (int) Math.min(pointCount - 1, (long) (mpegFrame / framesPerPoint));
+	}
+
+	/** @return The MPEG frame the given seek point starts at. */
+	public long pointFrame(int point) {
+		return (long) (point * framesPerPoint);
+	}
+
+	/** @return The byte offset of the given seek point. */
+	public long pointOffset(int point) {
+		if (pointCount == 0) {
+			return audioStart;
+		}
+		return Math.max(audioStart, points[point] & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Find the first frame header at or after the given offset. Only needed
+	 * for approximate seek points, which may land in the middle of a frame.
+	 *
+	 * @param channel
+	 *            The file this index belongs to.
+	 * @param offset
+	 *            Where to start looking.
+	 * @return The offset of the frame, or the end of the audio if there are
+	 *         no frames left.
+	 */
+	long sync(FileChannel channel, long offset) throws IOException {
+		long pos = new FileWindow(channel, SYNC_WINDOW).sync(offset, header);
+		return pos < 0 ? audioEnd : pos;
+	}
+
+	// -----Privates-----
+
+	/**
+	 * @return The length of the ID3v2 tag at the start of the file, or 0.
+	 */
+	private static long id3Length(FileWindow in) throws IOException {
+		if (in.intAt(0) >>> 8 != 0x494433) { // "ID3"
+			return 0;
+		}
+		int flags = in.byteAt(5);
+		long size = (in.byteAt(6) & 0x7F) << 21 | (in.byteAt(7) & 0x7F) << 14
+				| (in.byteAt(8) & 0x7F) << 7 | (in.byteAt(9) & 0x7F);
+		// Header, body and optional footer
+		return 10 + size + ((flags & 0x10) != 0 ? 10 : 0);
+	}
+
+	/**
+	 * Read a Xing (VBR) or Info (CBR) tag from the first frame, and the LAME
+	 * extension that usually follows it.
+	 *
+	 * @return true if the tag had both a frame count and a table of contents,
+	 *         so no scan is needed.
+	 */
+	private boolean readXing(FileWindow in, long first) throws IOException {
+		long pos = first + MP3Header.sideInfoEnd(header);
+		int id = in.intAt(pos);
+		if (id != XING && id != INFO) {
+			return false;
+		}
+		// The tag frame itself holds no audio
+		audioStart = first + MP3Header.frameLength(header);
+		int flags = in.intAt(pos + 4);
+		pos += 8;
+		long frames = -1, bytes = -1, toc = -1;
+		if ((flags & 1) != 0) {
+			frames = in.intAt(pos) & 0xFFFFFFFFL;
+			pos += 4;
+		}
+		if ((flags & 2) != 0) {
+			bytes = in.intAt(pos) & 0xFFFFFFFFL;
+			pos += 4;
+		}
+		if ((flags & 4) != 0) {
+			toc = pos;
+			pos += 100;
+		}
+		if ((flags & 8) != 0) {
+			pos += 4;
+		}
+		int encoder = in.intAt(pos);
+		if (encoder == LAME || encoder == LAVC || encoder == LAVF) {
+			// 12 bits of delay then 12 bits of padding, 21 bytes in. These
+			// make the length sample exact; untagged files only lose the
+			// decoder delay.
+			int delays = in.intAt(pos + 20) & 0xFFFFFF;
+			startPadding = (delays >>> 12) + DECODER_DELAY;
+			endPadding = Math.max(0, (delays & 0xFFF) - DECODER_DELAY);
+		}
+		if (frames <= 0 || bytes <= 0 || toc < 0) {
+			return false;
+		}
+		frameCount = frames;
+		audioEnd = Math.min(fileLength, first + bytes);
+		// Each TOC entry is the offset of a percentage of the track, in
+		// 256ths of the stream length.
+		points = new int[100];
+		for (int i = 0; i < 100; i++) {
+			points[i] = (int) (first + in.byteAt(toc + i) * bytes / 256);
+		}
+		pointCount = 100;
+		framesPerPoint = frames / 100.0;
+		exact = false;
+		return true;
+	}
+
+	/**
+	 * Read a VBRI tag (written by Fraunhofer's encoder) from the first frame.
+	 *
+	 * @return true if there was one.
+	 */
+	private boolean readVbri(FileWindow in, long first) throws IOException {
+		long pos = first + MP3Header.SIZE + 32;
+		if (in.intAt(pos) != VBRI) {
+			return false;
+		}
+		audioStart = first + MP3Header.frameLength(header);
+		long bytes = in.intAt(pos + 10) & 0xFFFFFFFFL;
+		long frames = in.intAt(pos + 14) & 0xFFFFFFFFL;
+		int entries = in.intAt(pos + 18) >>> 16;
+		int scale = in.intAt(pos + 20) >>> 16;
+		int entrySize = in.intAt(pos + 22) >>> 16;
+		int framesPerEntry = in.intAt(pos + 24) >>> 16;
+		if (frames == 0 || entries == 0 || entrySize < 1 || entrySize > 4) {
+			return false;
+		}
+		frameCount = frames;
+		audioEnd = Math.min(fileLength, first + bytes);
+		// Entries are the byte lengths of each run of frames, so the seek
+		// points are their running total.
+		points = new int[entries + 1];
+		long offset = first;
+		long entry = pos + 26;
+		points[0] = (int) offset;
+		for (int i = 0; i < entries; i++, entry += entrySize) {
+			int size = 0;
+			for (int b = 0; b < entrySize; b++) {
+				size = size << 8 | in.byteAt(entry + b);
+			}
+			offset += (long) size * scale;
+			points[i + 1] = (int) offset;
+		}
+		pointCount = entries + 1;
+		framesPerPoint = framesPerEntry;
+		exact = false;
+		return true;
+	}
+
+	/**
+	 * Walk the file from header to header, recording where every frame
+	 * starts. Only the four header bytes of each frame are looked at.
+	 */
+	private void scan(FileWindow in) throws IOException {
+		int first = MP3Header.frameLength(header);
+		points = new int[(int) Math.min(Integer.MAX_VALUE - 8,
+				(fileLength - audioStart) / first + 16)];
+		long pos = audioStart;
+		while (pos >= 0) {
+			int h = in.intAt(pos);
+			int length;
+			if (MP3Header.isValid(h) && MP3Header.isCompatible(header, h)
+					&& pos + (length = MP3Header.frameLength(h)) <= fileLength) {
+				if (pointCount == points.length) {
+					points = Arrays.copyOf(points, pointCount + pointCount / 2);
+				}
+				points[pointCount++] = (int) pos;
+				pos += length;
+				audioEnd = pos;
+			} else {
+				// Junk or a trailing tag; look for the next real frame
+				pos = in.sync(pos + 1, header);
+			}
+		}
+		points = Arrays.copyOf(points, pointCount);
+		frameCount = pointCount;
+		framesPerPoint = 1;
+		exact = true;
+	}
+
+	/**
+	 * A window onto a file, refilled from the channel as reads move past its
+	 * ends. Used only while reading headers.
+	 */
+	private static final class FileWindow {
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private final long size;
+		private long start;
+
+		FileWindow(FileChannel channel, int capacity) throws IOException {
+			this.channel = channel;
+			buffer = ByteBuffer.allocate(capacity);
+			buffer.limit(0);
+			size = channel.size();
+		}
+
+		/**
+		 * @return The big endian int at the given offset; 0 (which is never
+		 *         a valid header) past the end of the file.
+		 */
+		int intAt(long pos) throws IOException {
+			if (!fill(pos, 4)) {
+				return 0;
+			}
+			return buffer.getInt((int) (pos - start));
+		}
+
+		int byteAt(long pos) throws IOException {
+			if (!fill(pos, 1)) {
+				return 0;
+			}
+			return buffer.get((int) (pos - start)) & 0xFF;
+		}
+
+		/**
+		 * Find the next frame header at or after pos. To avoid being fooled
+		 * by a stray sync word, the frame after it must also start with a
+		 * header (unless it runs exactly to the end of the file).
+		 *
+		 * @param like
+		 *            A header the frame must be compatible with, or 0.
+		 * @return The offset of the frame, or -1 if there is none.
+		 */
+		long sync(long pos, int like) throws IOException {
+			for (; pos + 4 <= size; pos++) {
+				int h = intAt(pos);
+				if (!MP3Header.isValid(h)
+						|| (like != 0 && !MP3Header.isCompatible(like, h))) {
+					continue;
+				}
+				long next = pos + MP3Header.frameLength(h);
+				int h2 = intAt(next);
+				if (next == size
+						|| (MP3Header.isValid(h2) && MP3Header.isCompatible(h, h2))) {
+					return pos;
+				}
+			}
+			return -1;
+		}
+
+		private boolean fill(long pos, int len) throws IOException {
+			if (pos >= start && pos + len <= start + buffer.limit()) {
+				return true;
+			}
+			if (pos + len > size) {
+				return false;
+			}
+			buffer.clear();
+			start = pos;
+			while (buffer.hasRemaining()
+					&& channel.read(buffer, start + buffer.position()) > 0) {
+			}
+			buffer.flip();
+			return buffer.limit() >= len;
+		}
+	}
+}
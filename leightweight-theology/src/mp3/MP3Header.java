@@ -0,0 +1,120 @@
+package mp3;
+
+/**
+ * Decodes the fields of a 32 bit MPEG audio frame header. The header is kept
+ * as a plain int so the frame scanners in this package can validate and step
+ * over frames without creating an object per frame.
+ *
+ * @author Connor Findlay
+ */
+final class MP3Header {
+	/** Size of a frame header in bytes. */
+	static final int SIZE = 4;
+	/** Version constants, as stored in the two version bits. */
+	static final int MPEG1 = 3, MPEG2 = 2, MPEG25 = 0;
+
+	// Bitrates in kbit/s, indexed [table][bitrate index]
+	private static final int[][] BITRATES = {
+			// MPEG-1 Layer I
+			{ 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416,
+					448 },
+			// MPEG-1 Layer II
+			{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 },
+			// MPEG-1 Layer III
+			{ 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 },
+			// MPEG-2/2.5 Layer I
+			{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 },
+			// MPEG-2/2.5 Layer II & III
+			{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 } };
+	// Sample rates, indexed [version][sample rate index]
+	private static final int[][] SAMPLE_RATES = { { 11025, 12000, 8000 }, {},
+			{ 22050, 24000, 16000 }, { 44100, 48000, 32000 } };
+
+	private MP3Header() {
+	}
+
+	/**
+	 * Check whether the given int could be a frame header. Free format
+	 * (bitrate index 0) streams are not supported, as their frame length can
+	 * not be worked out from the header alone.
+	 *
+	 * @param h
+	 *            The four header bytes, big endian.
+	 * @return true if every field of the header holds a legal value.
+	 */
+	static boolean isValid(int h) {
+		return (h & 0xFFE00000) == 0xFFE00000 // Frame sync
+				&& ((h >>> 19) & 3) != 1 // Reserved version
+				&& ((h >>> 17) & 3) != 0 // Reserved layer
+				&& ((h >>> 12) & 15) != 0 // Free format
+				&& ((h >>> 12) & 15) != 15 // Bad bitrate
+				&& ((h >>> 10) & 3) != 3 // Reserved sample rate
+				&& (h & 3) != 2; // Reserved emphasis
+	}
+
+	/**
+	 * Check whether two headers belong to the same stream; the version, layer
+	 * and sample rate of a stream never change between frames.
+	 */
+	static boolean isCompatible(int a, int b) {
+		return (a & 0xFFFE0C00) == (b & 0xFFFE0C00);
+	}
+
+	static int version(int h) {
+		return (h >>> 19) & 3;
+	}
+
+	/** @return The layer of the frame, 1, 2 or 3. */
+	static int layer(int h) {
+		return 4 - ((h >>> 17) & 3);
+	}
+
+	/** @return The bitrate of the frame in kbit/s. */
+	static int bitrate(int h) {
+		int layer = layer(h);
+		int table = version(h) == MPEG1 ? layer - 1 : (layer == 1 ? 3 : 4);
+		return BITRATES[table][(h >>> 12) & 15];
+	}
+
+	static int sampleRate(int h) {
+		return SAMPLE_RATES[version(h)][(h >>> 10) & 3];
+	}
+
+	static int channels(int h) {
+		return ((h >>> 6) & 3) == 3 ? 1 : 2;
+	}
+
+	/** @return The number of PCM frames one MPEG frame decodes to. */
+	static int samplesPerFrame(int h) {
+		switch (layer(h)) {
+		case 1:
+			return 384;
+		case 2:
+			return 1152;
+		default:
+			return version(h) == MPEG1 ? 1152 : 576;
+		}
+	}
+
+	/** @return The length of the whole frame in bytes, header included. */
+	static int frameLength(int h) {
+		int padding = (h >>> 9) & 1;
+		int bitrate = bitrate(h) * 1000;
+		int rate = sampleRate(h);
+		if (layer(h) == 1) {
+			return (12 * bitrate / rate + padding) * 4;
+		}
+		return samplesPerFrame(h) / 8 * bitrate / rate + padding;
+	}
+
+	/**
+	 * @return The offset from the start of a Layer III frame to the end of
+	 *         its side information, which is where a Xing/Info tag sits.
+	 */
+	static int sideInfoEnd(int h) {
+		boolean mono = channels(h) == 1;
+		int sideInfo = version(h) == MPEG1 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+		// A CRC, if the frame is protected, comes straight after the header
+		return SIZE + sideInfo + (((h >>> 16) & 1) == 0 ? 2 : 0);
+	}
+}
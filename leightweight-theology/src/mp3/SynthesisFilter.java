@@ -0,0 +1,148 @@
+package mp3;
+
+import java.util.Arrays;
+
+/**
+ * The polyphase filterbank that turns the 32 subbands of MPEG audio back
+ * into PCM, for one channel. Each step takes one sample of every subband,
+ * transforms them into 64 values with a 32 point DCT, and gives 32 samples
+ * of PCM by adding up the values of the last sixteen steps under the
+ * synthesis window.
+ *
+ * @author Connor Findlay
+ */
+final class SynthesisFilter {
+	// The synthesis window D of the standard, in 65536ths, up to its middle;
+	// the rest mirrors it
+	private static final int[] WINDOW = { 0, -1, -1, -1, -1, -1, -1, -2, -2, -2,
+			-2, -3, -3, -4, -4, -5, -5, -6, -7, -7, -8, -9, -10, -11, -13, -14,
+			-16, -17, -19, -21, -24, -26, -29, -31, -35, -38, -41, -45, -49,
+			-53, -58, -63, -68, -73, -79, -85, -91, -97, -104, -111, -117, -125,
+			-132, -139, -147, -154, -161, -169, -176, -183, -190, -196, -202,
+			-208, 213, 218, 222, 225, 227, 228, 228, 227, 224, 221, 215, 208,
+			200, 189, 177, 163, 146, 127, 106, 83, 57, 29, -2, -36, -72, -111,
+			-153, -197, -244, -294, -347, -401, -459, -519, -581, -645, -711,
+			-779, -848, -919, -991, -1064, -1137, -1210, -1283, -1356, -1428,
+			-1498, -1567, -1634, -1698, -1759, -1817, -1870, -1919, -1962,
+			-2001, -2032, -2057, -2075, -2085, -2087, -2080, -2063, 2037, 2000,
+			1952, 1893, 1822, 1739, 1644, 1535, 1414, 1280, 1131, 970, 794, 605,
+			402, 185, -45, -288, -545, -814, -1095, -1388, -1692, -2006, -2330,
+			-2663, -3004, -3351, -3705, -4063, -4425, -4788, -5153, -5517,
+			-5879, -6237, -6589, -6935, -7271, -7597, -7910, -8209, -8491,
+			-8755, -8998, -9219, -9416, -9585, -9727, -9838, -9916, -9959,
+			-9966, -9935, -9863, -9750, -9592, -9389, -9139, -8840, -8492,
+			-8092, -7640, -7134, 6574, 5959, 5288, 4561, 3776, 2935, 2037, 1082,
+			70, -998, -2122, -3300, -4533, -5818, -7154, -8540, -9975, -11455,
+			-12980, -14548, -16155, -17799, -19478, -21189, -22929, -24694,
+			-26482, -28289, -30112, -31947, -33791, -35640, -37489, -39336,
+			-41176, -43006, -44821, -46617, -48390, -50137, -51853, -53534,
+			-55178, -56778, -58333, -59838, -61289, -62684, -64019, -65290,
+			-66494, -67629, -68692, -69679, -70590, -71420, -72169, -72835,
+			-73415, -73908, -74313, -74630, -74856, -74992, 75038 };
+	private static final float[] D = new float[512];
+	// cos((2k + 1) m pi / 64), at m * 16 + k; the cosines for k of 16 and up
+	// are those of 31 - k, negated for odd m
+	private static final float[] DCT = new float[32 * 16];
+
+	static {
+		for (int i = 0; i <= 256; i++) {
+			D[i] = WINDOW[i] / 65536f;
+		}
+		for (int i = 257; i < 512; i++) {
+			// Negated, but for every 64th
+			D[i] = (i & 63) == 0 ? D[512 - i] : -D[512 - i];
+		}
+		for (int m = 0; m < 32; m++) {
+			for (int k = 0; k < 16; k++) {
+				DCT[m * 16 + k] = (float) Math.cos((2 * k + 1) * m * Math.PI
+						/ 64);
+			}
+		}
+	}
+
+	// The 64 values of each of the last sixteen steps, the newest at newest
+	private final float[] v = new float[16 * 64];
+	private int newest;
+	private final float[] c = new float[32];
+	private final float[] s = new float[32];
+
+	/**
+	 * Turn one sample of each subband into 32 samples of PCM.
+	 *
+	 * @param in
+	 *            The subband samples: subband sb's at in[off + sb * stride].
+	 * @param out
+	 *            Where the PCM goes, as 16 bit little endian samples.
+	 * @param at
+	 *            Where the first sample goes in out.
+	 * @param step
+	 *            The bytes from one sample to the next in out.
+	 */
+	void synthesize(float[] in, int off, int stride, byte[] out, int at,
+			int step) {
+		// Sums of the subbands from the two ends for the even rows of the
+		// DCT, differences for the odd, so each row is half as long
+		for (int k = 0; k < 16; k++) {
+			float a = in[off + k * stride];
+			float b = in[off + (31 - k) * stride];
+			s[k] = a + b;
+			s[16 + k] = a - b;
+		}
+		for (int m = 0; m < 32; m++) {
+			float sum = 0;
+			int row = m * 16;
+			int from = (m & 1) * 16;
+			for (int k = 0; k < 16; k++) {
+				sum += s[from + k] * DCT[row + k];
+			}
+			c[m] = sum;
+		}
+		// The 64 values of the matrixing follow from the DCT by symmetry
+		newest = (newest - 1) & 15;
+		int n = newest * 64;
+		for (int i = 0; i < 16; i++) {
+			v[n + i] = c[16 + i];
+		}
+		v[n + 16] = 0;
+		for (int d = 1; d <= 16; d++) {
+			v[n + 16 + d] = -c[32 - d];
+		}
+		for (int i = 33; i < 48; i++) {
+			v[n + i] = -c[48 - i];
+		}
+		v[n + 48] = -c[0];
+		for (int i = 49; i < 64; i++) {
+			v[n + i] = -c[i - 48];
+		}
+		// Window the values of the last sixteen steps
+		for (int j = 0; j < 32; j++) {
+			s[j] = 0;
+		}
+		for (int i = 0; i < 8; i++) {
+			int a = ((newest + 2 * i) & 15) * 64;
+			int b = ((newest + 2 * i + 1) & 15) * 64 + 32;
+			int d = i * 64;
+			for (int j = 0; j < 32; j++) {
+				s[j] += v[a + j] * D[d + j] + v[b + j] * D[d + 32 + j];
+			}
+		}
+		for (int j = 0; j < 32; j++) {
+			int pcm = Math.round(s[j] * 32768);
+			if (pcm > Short.MAX_VALUE) {
+				pcm = Short.MAX_VALUE;
+			} else if (pcm < Short.MIN_VALUE) {
+				pcm = Short.MIN_VALUE;
+			}
+			out[at] = (byte) pcm;
+			out[at + 1] = (byte) (pcm >> 8);
+			at += step;
+		}
+	}
+
+	/**
+	 * Forget the steps so far, as after a seek.
+	 */
+	void reset() {
+		Arrays.fill(v, 0);
+	}
+}
@@ -0,0 +1,109 @@
+package player;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Hands {@link PlayerEvent}s from the player's threads to its listeners.
+ *
+ * Firing an event never blocks and never runs a listener: it goes on a
+ * queue, and the queue is drained on another thread, the event dispatch
+ * thread unless told otherwise. Events of a type that coalesces replace any
+ * of the same type still waiting, in its place in the queue, so however
+ * often they are fired and however slow the listeners, at most one of each
+ * is waiting. Only one drain is waiting at a time.
+ *
+ * Listeners may be added and removed from any thread, even while events
+ * are being delivered.
+ *
+ * @author Connor Findlay
+ */
+final class EventDispatcher {
+	private final CopyOnWriteArrayList<PlayerListener> listeners = new CopyOnWriteArrayList<PlayerListener>();
+	private final Executor executor;
+	// Events waiting, in order; for a type that coalesces, the event here
+	// only holds its place, and latest has the one to deliver
+	private final ConcurrentLinkedQueue<PlayerEvent> queue = new ConcurrentLinkedQueue<PlayerEvent>();
+	private final AtomicReferenceArray<PlayerEvent> latest = new AtomicReferenceArray<PlayerEvent>(
+			PlayerEvent.Type.values().length);
+	private final AtomicBoolean drainWaiting = new AtomicBoolean();
+	private final Runnable drain = new Runnable() {
+		public void run() {
+			deliver();
+		}
+	};
+
+	/**
+	 * A dispatcher that delivers on the event dispatch thread.
+	 */
+	EventDispatcher() {
+		this(new Executor() {
+			public void execute(Runnable r) {
+				SwingUtilities.invokeLater(r);
+			}
+		});
+	}
+
+	/**
+	 * @param executor
+	 *            Runs the deliveries.
+	 */
+	EventDispatcher(Executor executor) {
+		this.executor = executor;
+	}
+
+	void addListener(PlayerListener l) {
+		listeners.add(l);
+	}
+
+	void removeListener(PlayerListener l) {
+		listeners.remove(l);
+	}
+
+	/**
+	 * Queue an event for the listeners. Safe to call from any thread,
+	 * including the audio threads; it doesn't wait.
+	 */
+	void fire(PlayerEvent e) {
+		PlayerEvent.Type type = e.getType();
+		if (type.coalesces()) {
+			if (latest.getAndSet(type.ordinal(), e) != null) {
+				// One is already waiting; it goes out as this one
+				return;
+			}
+		}
+		queue.add(e);
+		if (drainWaiting.compareAndSet(false, true)) {
+			executor.execute(drain);
+		}
+	}
+
+	// -----Privates-----
+
+	private void deliver() {
+		// Anything fired from here on gets another drain
+		drainWaiting.set(false);
+		PlayerEvent e;
+		while ((e = queue.poll()) != null) {
+			if (e.getType().coalesces()) {
+				e = latest.getAndSet(e.getType().ordinal(), null);
+				if (e == null) {
+					continue;
+				}
+			}
+			for (PlayerListener l : listeners) {
+				try {
+					l.playerPerfomed(e);
+				} catch (RuntimeException x) {
+					// One listener's bug shouldn't cost the others the event
+					x.printStackTrace();
+				}
+			}
+		}
+	}
+}
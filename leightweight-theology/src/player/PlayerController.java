@@ -2,24 +2,44 @@ package player;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.io.File;
 import java.io.IOException;
 
-import javax.sound.sampled.LineUnavailableException;
-import javax.sound.sampled.UnsupportedAudioFileException;
 import javax.swing.JTable;
+import javax.swing.ListSelectionModel;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import javax.swing.table.AbstractTableModel;
 
+import library.LibraryIndex;
+import library.LibraryIndexer;
 import m3u.Playlist;
+import tags.TagCache;
+import visual.SpectrumAnalyzer;
 
 public class PlayerController extends AbstractTableModel implements
-ActionListener, ListSelectionListener, PlayerListener {
+ActionListener, ListSelectionListener, PlayerListener, DocumentListener {
 	private static final long serialVersionUID = -7305209832418092647L;
+	// Rows of the playlist kept for repainting; many screens' worth
+	private static final int ROW_CACHE_SIZE = 4096;
+	// Bands of the spectrum, and how often it's redrawn while playing
+	private static final int SPECTRUM_BANDS = 32, SPECTRUM_FPS = 30;
 	// Model and View Components.
 	PlayerView view;
 	PlayerModel model;
+	LibraryIndexer library;
+	// Playlist positions of the rows shown while searching; null shows the
+	// whole playlist
+	int[] filter;
+	// The playlist rows lately on screen, by playlist position
+	RowCache rows;
+	SpectrumAnalyzer spectrum;
 
 	/**Construct a new controller instance. 
 	 * As the controller constructs the model and view instances, this 
@@ -28,6 +48,26 @@ ActionListener, ListSelectionListener, PlayerListener {
 	 */
 	public PlayerController() {
 		model = new PlayerModel("test.wav");
+		rows = new RowCache(ROW_CACHE_SIZE, new RowCache.Source() {
+			public String quickName(int row) {
+				return model.getPlaylistItemName(row);
+			}
+
+			public String name(int row) {
+				return model.getPlaylistItem(row);
+			}
+		});
+		rows.setListener(new RowCache.Listener() {
+			public void rowsLoaded(int first, int last) {
+				if (filter == null) {
+					fireTableRowsUpdated(first, last);
+				} else if (getRowCount() > 0) {
+					// Searching shuffles the rows; repainting all of them
+					// still only draws the ones on screen
+					fireTableRowsUpdated(0, getRowCount() - 1);
+				}
+			}
+		});
 		view = new PlayerView();
 
 		view.addStopListener(this);
@@ -35,6 +75,34 @@ ActionListener, ListSelectionListener, PlayerListener {
 		view.addBrowseListener(this);
 		view.setPlaylistDataModel(this);
 		view.addPlaylistListener(this);
+		view.addSearchListener(this);
+		view.addCornerListener(this);
+		view.addCrossfadeListener(new ChangeListener() {
+			public void stateChanged(ChangeEvent e) {
+				model.setCrossfade(view.getCrossfadeSeconds());
+			}
+		});
+		view.addSeekListener(new ChangeListener() {
+			public void stateChanged(ChangeEvent e) {
+				// Seek once the user lets go, not at every step of a drag
+				if (!view.isSeeking()) {
+					model.seek((long) (view.getSeekMillis()
+							* (double) model.getFrameRate() / 1000));
+				}
+			}
+		});
+		view.addCornerBarListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				// Back to the full player
+				view.showCornerBar(false);
+			}
+		});
+
+		spectrum = new SpectrumAnalyzer(model.getSpectrumTap(),
+				SPECTRUM_BANDS, SPECTRUM_FPS);
+		view.setSpectrumAnalyzer(spectrum);
+		spectrum.start();
 		
 		if (model == null){
 			System.out.println("Error: Model is null when it should most definitly not be.");
@@ -42,43 +110,78 @@ ActionListener, ListSelectionListener, PlayerListener {
 		} else {
 			model.addPlayerListener(this);
 		}
+
+		// Bring the music library up to date in the background
+		try {
+			library = new LibraryIndexer(LibraryIndex.openDefault(),
+					TagCache.getDefault());
+			library.start();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	// -----Listeners ----
 
+	/**
+	 * PlayerListener. The model moves through the playlist by itself, so all
+	 * we have to do is keep the view up to date: show the new song when it
+	 * moves on, and the play button once the playlist has run out. Events
+	 * come on the event dispatch thread, so the view can be changed here.
+	 */
 	public void playerPerfomed(PlayerEvent e) {
-		int songID = e.id();
-		String eventType = e.message();
-		if(eventType.equalsIgnoreCase("stop")){
-			try {
-				model.stopFile();
-				String name = model.getPlaylistItem(songID++);
-				if(!(name == null)){
-					model.setFilename(new File(name));
-					model.playFile();
-				}
-			} catch (IOException | UnsupportedAudioFileException
-					| LineUnavailableException e1) {
-				e1.printStackTrace();
-			} //Should be pointless
+		switch (e.getType()) {
+		case STOP:
+			view.isFilePaused(true);
+			break;
+		case NEXT:
+			view.showNowPlaying(model.getFilename());
+			showPosition();
+			break;
+		case POSITION:
+			showPosition();
+			break;
+		case PLAYLIST:
+		case EDITED:
+			// Any row may be a different song now
+			rows.clear();
+			updateFilter();
+			break;
+		case INDEXED:
+			// Apply anything typed while the playlist was being indexed
+			updateFilter();
+			break;
 		}
 	}
 
+	/**
+	 * DocumentListener. Each letter typed in the search field narrows the
+	 * playlist down to the songs matching it, best first.
+	 */
+	public void insertUpdate(DocumentEvent e) {
+		updateFilter();
+	}
+
+	public void removeUpdate(DocumentEvent e) {
+		updateFilter();
+	}
+
+	public void changedUpdate(DocumentEvent e) {
+		updateFilter();
+	}
+
 	public void valueChanged(ListSelectionEvent e) {
-		int selectedSong = e.getLastIndex();
-		System.out.println("Hello! Row: " + selectedSong);
-		try {
-			model.stopFile();
-			String name = model.getPlaylistItem(selectedSong);
-			if(name == null){
-				return;
-			}
-			model.setFilename(new File(name));
-			model.playFile();
-		} catch (IOException | UnsupportedAudioFileException
-				| LineUnavailableException e1) {
-			e1.printStackTrace();
+		if (((ListSelectionModel) e.getSource()).isSelectionEmpty()) {
+			// Cleared, as when the search changes the rows
+			return;
 		}
+		int selectedSong = toPlaylist(e.getLastIndex());
+		System.out.println("Hello! Row: " + selectedSong);
+		// The model carries these out in order; it tells us when the new
+		// song is loaded
+		model.selectPlaylistItem(selectedSong);
+		model.playFile();
+		view.isFilePaused(false);
 	}
 
 	/**
@@ -99,6 +202,7 @@ ActionListener, ListSelectionListener, PlayerListener {
 		 * file, then tell us which file the user wants. The controller uses
 		 * this to tell the model which file we now want to play. We then play
 		 * the file, and notify the view that we are now in the 'playing' state.
+		 * A directory is added to the music library instead.
 		 */
 		if (event.getActionCommand().equalsIgnoreCase("browse")) {
 			try {
@@ -106,10 +210,14 @@ ActionListener, ListSelectionListener, PlayerListener {
 				if (file == null) {
 					return;
 				}
-				if (file.getName().matches(".*m3u$")) {
+				if (file.isDirectory()) {
+					if (library != null) {
+						library.addRoot(file.toPath());
+					}
+				} else if (file.getName().matches(".*m3u$")) {
 					model.setPlaylist(new Playlist(file.getPath()));
 					view.isFilePaused(true);
-					model.setFilename(new File(model.getPlaylistItem(1)));
+					model.selectPlaylistItem(0);
 				} else {
 					model.setFilename(file);
 					view.isFilePaused(true);
@@ -124,13 +232,7 @@ ActionListener, ListSelectionListener, PlayerListener {
 		 * play/pause button to act as a pause button.
 		 */
 		else if (event.getActionCommand().equalsIgnoreCase("play")) {
-			try {
-				model.playFile();
-			} catch (IOException | UnsupportedAudioFileException
-					| LineUnavailableException e) {
-				System.err.println("Cannot initalize audio system");
-				e.printStackTrace();
-			}
+			model.playFile();
 			view.isFilePaused(false);
 		}
 		/*
@@ -140,22 +242,11 @@ ActionListener, ListSelectionListener, PlayerListener {
 		 * to stop the file, and reset it to the beginning.
 		 */
 		else if (event.getActionCommand().equalsIgnoreCase("stop")) {
-			try {
-				// Stop playback and reset play button state
-				model.pauseFile();
-				view.isFilePaused(true);
-				// Rewind the file
-				model.stopFile();
-			} catch (IOException err) {
-				System.out.println("Problem reading the selected file");
-				err.printStackTrace();
-			} catch (LineUnavailableException err) {
-				System.out.println("The Audio System has no Line avaliable");
-				err.printStackTrace();
-			} catch (UnsupportedAudioFileException err) {
-				System.out.println("The Audio file is not supported");
-				err.printStackTrace();
-			}
+			// Stop playback and reset play button state
+			model.pauseFile();
+			view.isFilePaused(true);
+			// Rewind the file
+			model.stopFile();
 		}
 		/*
 		 * Handle the pause button. When the user presses the pause button, we
@@ -166,6 +257,13 @@ ActionListener, ListSelectionListener, PlayerListener {
 			model.pauseFile();
 			view.isFilePaused(true);
 		}
+		/*
+		 * Handle the corner button. The player shrinks to a bar in the corner
+		 * of the screen; clicking the bar brings it back.
+		 */
+		else if (event.getActionCommand().equalsIgnoreCase("corner")) {
+			view.showCornerBar(true);
+		}
 		/*
 		 * Handle any other button. If we start receiving events we shouldn't,
 		 * we just state the function is not implemented in this version of the
@@ -182,10 +280,12 @@ ActionListener, ListSelectionListener, PlayerListener {
 	 * the controller as a subclass of {@link AbstractTableModel} gives us this
 	 * capability.
 	 * 
-	 * @return playlist.size(), effectively
+	 * @return playlist.size(), effectively, or the number of songs matching
+	 *         the search
 	 */
 	public int getRowCount() {
-		return model.getPlaylistSongCount();
+		int[] f = filter;
+		return f == null ? model.getPlaylistSongCount() : f.length;
 	}
 
 	/**
@@ -201,17 +301,20 @@ ActionListener, ListSelectionListener, PlayerListener {
 	/**
 	 * Given a row and a column, what should be displayed? This is easy in the
 	 * case of column 1; we display the index of an item. Column 2 is the index
-	 * in the list, otherwise known as the rowIndex; so we use
-	 * playlist.get(rowIndex) here.
+	 * in the list, otherwise known as the rowIndex, or the song's position
+	 * in the playlist while searching; so we use playlist.get(rowIndex) here.
+	 * Both come from the row cache, which shows the song's file name until
+	 * its tags are read.
 	 * 
 	 * @return Some object representing the relevant data
 	 * 
 	 */
 	public Object getValueAt(int rowIndex, int columnIndex) {
+		int song = toPlaylist(rowIndex);
 		if (columnIndex == 0) {
-			return new Integer(rowIndex + 1);
+			return rows.getNumber(song);
 		} else if (columnIndex == 1) {
-			return model.getPlaylistItem(rowIndex);
+			return rows.getName(song);
 		} else {
 			return "wtf";
 		}
@@ -234,6 +337,37 @@ ActionListener, ListSelectionListener, PlayerListener {
 		}
 	}
 
+	// -----Privates-----
+
+	/**
+	 * Move the seek bar to where playback is.
+	 */
+	private void showPosition() {
+		double rate = model.getFrameRate() / 1000.0;
+		long length = model.getFrameLength();
+		view.showPosition((int) (model.getFramePosition() / rate),
+				length < 0 ? -1 : (int) (length / rate));
+	}
+
+	/**
+	 * Search the playlist for what's typed in the search field, and show only
+	 * the matches. Everything is shown while the field is empty, or until
+	 * the playlist has been indexed.
+	 */
+	private void updateFilter() {
+		String query = view.getSearchText().trim();
+		filter = query.isEmpty() ? null : model.searchPlaylist(query);
+		fireTableDataChanged();
+	}
+
+	/**
+	 * @return The playlist position of a row of the table.
+	 */
+	private int toPlaylist(int row) {
+		int[] f = filter;
+		return f == null || row < 0 || row >= f.length ? row : f[row];
+	}
+
 	public static void main(String[] args) {
 		new PlayerController();
 	}
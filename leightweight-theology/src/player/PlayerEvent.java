@@ -2,42 +2,80 @@ package player;
 
 import java.util.EventObject;
 
+/**
+ * Something that happened in the player. Events are delivered to
+ * {@link PlayerListener}s on the event dispatch thread, never on the audio
+ * threads.
+ */
 public class PlayerEvent extends EventObject {
 	private static final long serialVersionUID = -2477413425775169651L;
-	private PlayerEvent _event;
-	private String mess;
-	private int id;
-	
-	public PlayerEvent(Object source, PlayerEvent e){
-		super(source);
-		_event = e;
-	}
-	
-	public PlayerEvent(String m){
-		super(m);
-		mess = m;
-		id = -1;
-	}
-	
-	public PlayerEvent(String m, int idx){
-		super(m);
-		mess = m;
-		this.id = idx;
+
+	/**
+	 * What happened.
+	 */
+	public enum Type {
+		/** The playlist has run out. */
+		STOP(false),
+		/** A new song is now the current one. */
+		NEXT(true),
+		/** A new playlist is in place. */
+		PLAYLIST(true),
+		/** Songs have been added to, removed from or moved in the playlist. */
+		EDITED(true),
+		/** The playlist can be searched now. */
+		INDEXED(true),
+		/** Playback has moved on, or been moved; a few times a second. */
+		POSITION(true);
+
+		private final boolean coalesces;
+
+		private Type(boolean coalesces) {
+			this.coalesces = coalesces;
+		}
+
+		/**
+		 * @return true if only the latest of these matters, so any not yet
+		 *         delivered may be dropped when a new one comes.
+		 */
+		public boolean coalesces() {
+			return coalesces;
+		}
 	}
-	
-	public String toString(){
-		return mess;
+
+	private final Type type;
+	private final int song;
+
+	/**
+	 * @param source
+	 *            The player.
+	 * @param type
+	 *            What happened.
+	 * @param song
+	 *            The position of the current song in the playlist, or -1 if
+	 *            there is no playlist.
+	 */
+	public PlayerEvent(Object source, Type type, int song) {
+		super(source);
+		this.type = type;
+		this.song = song;
 	}
-	
-	public PlayerEvent event(){
-		return _event;
+
+	/**
+	 * @return What happened.
+	 */
+	public Type getType() {
+		return type;
 	}
-	
-	public String message(){
-		return mess;
+
+	/**
+	 * @return The position of the current song in the playlist when it
+	 *         happened, or -1 if there is no playlist.
+	 */
+	public int getSong() {
+		return song;
 	}
-	
-	public int id(){
-		return id;
+
+	public String toString() {
+		return type + " (song " + song + ")";
 	}
-}
\ No newline at end of file
+}
@@ -7,6 +7,9 @@ package player;
  * Currently I only plan to have two signals - the song is over, and the song 
  * progress updates.
  * 
+ * Events come on the event dispatch thread, never on the audio threads, so a
+ * listener may take its time, and may change the GUI.
+ * 
  * @author findlaconn
  *
  */
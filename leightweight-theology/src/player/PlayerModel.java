@@ -2,31 +2,117 @@ package player;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.LineUnavailableException;
-import javax.sound.sampled.SourceDataLine;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
+import audio.AudioScheduler;
+import audio.AudioSink;
+import audio.Crossfader;
+import audio.FormatConverter;
+import audio.LineSink;
+import audio.PlaybackPosition;
+import audio.RingBuffer;
+import audio.Seekable;
+import codec.CodecRegistry;
+import codec.PCMCache;
+import loudness.Gain;
+import loudness.GainCache;
+import loudness.GainScanner;
 import m3u.Playlist;
+import search.SearchIndex;
+import tags.TagCache;
+import tags.Tags;
+import visual.SpectrumTap;
 
 public class PlayerModel {
 	// Data
-	private File audioFile;
-	private AudioFormat format;
+	private volatile File audioFile;
+	private volatile AudioFormat format;
 	private AudioInputStream stream;
-	private SourceDataLine dataline;
+	private final AudioSink sink;
 	private volatile boolean stop = false;
 	private volatile boolean reset = false;
-	private ExecutorService es = Executors.newCachedThreadPool();
-	private Playlist playlist;
-	private ArrayList<PlayerListener> _listeners;
+	// Seconds before the end of a song that we open the next one
+	private static final int PREPARE_AHEAD = 3;
+	// Bytes of decoded audio buffered ahead of the line; about three seconds
+	// of CD audio
+	private static final int RING_SIZE = 1 << 19;
+	// Bytes moved at a time, on either side of the ring
+	private static final int BLOCK = 16384;
+	// How long a thread waits when the ring is full or empty, in nanoseconds
+	private static final long IDLE_WAIT = 1000000;
+	private final RingBuffer ring = new RingBuffer(RING_SIZE);
+	// How often listeners are told the position while playing, in
+	// milliseconds
+	private static final long POSITION_INTERVAL = 100;
+	// The frame being heard
+	private final PlaybackPosition position;
+	// Song changes in the ring that the render thread has not reached yet
+	private final ConcurrentLinkedQueue<TrackBoundary> boundaries = new ConcurrentLinkedQueue<>();
+	// Decoded audio that didn't fit in the ring yet; decoder thread only
+	private final byte[] decodeBuffer = new byte[BLOCK];
+	private int pendingOff, pendingLen;
+	// Seconds the end of each song is mixed with the start of the next, or 0
+	// to go straight from one to the other
+	private volatile float crossfade = 0;
+	private final Crossfader crossfader = new Crossfader(BLOCK);
+	// Songs are evened out in loudness by gains measured in the background;
+	// the gain of the song the decoder is on, and of what the render thread
+	// is playing, which is 1 over a crossfade, as it's mixed with the gains
+	// already applied
+	private volatile GainMode gainMode = GainMode.TRACK;
+	private GainCache gainCache;
+	private GainScanner gainScanner;
+	private Future<?> gainScan;
+	private volatile float decodeGain = 1, playGain = 1;
+	private final byte[] renderBuffer = new byte[BLOCK];
+	// The sink is opened in one format, settled the first time it's opened,
+	// and every song is converted to it; render thread only
+	private static final float OUTPUT_RATE = 44100;
+	private FormatConverter converter;
+	private byte[] outputBuffer;
+	// A copy of what's played, for the spectrum; never blocks the render
+	// thread
+	private final SpectrumTap spectrumTap = new SpectrumTap(1 << 14);
+	private volatile boolean decoderDone = false;
+	private volatile long frameLength = AudioSystem.NOT_SPECIFIED;
+	private Future<?> decodeTask, renderTask;
+	private final AudioScheduler scheduler = new AudioScheduler("player");
+	private volatile Playlist playlist;
+	// Hands events to the listeners off the audio threads
+	private final EventDispatcher events = new EventDispatcher();
+	private final CodecRegistry codecs = CodecRegistry.getDefault();
+	// Songs decoded lately or coming up, so a repeat, going back to a song
+	// or seeking back in it doesn't decode it again. Direct buffers count
+	// against the heap's limit unless told otherwise, so take a share of it.
+	private static final long PCM_CACHE_SIZE = Math.min(256L << 20, Runtime
+			.getRuntime().maxMemory() / 4);
+	private final PCMCache pcmCache = new PCMCache(codecs, PCM_CACHE_SIZE);
+	private TagCache tagCache;
+	// Search index of the playlist, null until built, and the playlist's
+	// edit count when it was built; and the playlist being indexed, if any
+	private SearchIndex playlistIndex;
+	private int playlistIndexEdits;
+	private Playlist indexing;
+	// Passes edits to the playlist on to the listeners
+	private final Playlist.Listener playlistListener = new Playlist.Listener() {
+		public void playlistEdited(Playlist p) {
+			if (p == playlist) {
+				firePlayerEvent(PlayerEvent.Type.EDITED);
+			}
+		}
+	};
 
 	/**
 	 * Creates a new Model. The created model has all of the audio system set up
@@ -37,7 +123,36 @@ public class PlayerModel {
 	 *            The filename of the audio file to play.
 	 */
 	public PlayerModel(String filename) {
-		_listeners = new ArrayList<>();
+		this(filename, new LineSink());
+	}
+
+	/**
+	 * Creates a new Model that plays to the given sink rather than the sound
+	 * card. A sink that isn't real time, such as a file, runs the player as
+	 * fast as it can decode.
+	 *
+	 * @param filename
+	 *            The filename of the audio file to play.
+	 * @param sink
+	 *            Where the audio goes.
+	 */
+	public PlayerModel(String filename, AudioSink sink) {
+		this.sink = sink;
+		position = new PlaybackPosition(sink, POSITION_INTERVAL);
+		try {
+			tagCache = TagCache.getDefault();
+		} catch (IOException e) {
+			// Songs are shown by file name instead
+			e.printStackTrace();
+		}
+		try {
+			gainCache = GainCache.getDefault();
+			gainScanner = new GainScanner(gainCache, tagCache, Runtime
+					.getRuntime().availableProcessors(), true);
+		} catch (IOException e) {
+			// Songs play as they are
+			e.printStackTrace();
+		}
 		try {
 			audioFile = new File(filename);
 			setupAudioSystem();
@@ -48,104 +163,398 @@ public class PlayerModel {
 
 	/**
 	 * Play the selected file.
-	 * It does this by wrapping all the 'play stream' logic in an anonymous 
-	 * instance of Runnable, and uses java's concurrency libraries to 
-	 * get it running.
+	 * Playback is split over two threads, joined by a ring buffer. The decoder
+	 * thread reads the stream as fast as the buffer has room; the render
+	 * thread takes whole frames out of the buffer and writes them to the line.
+	 * A slow disk read or frame decode just eats into the buffered audio, and
+	 * the line keeps playing.
 	 *
 	 * As the stop boolean is volatile, it will be monitored even in a multiple
 	 * core environment.
-	 * 
-	 * @throws LineUnavailableException
-	 * @throws UnsupportedAudioFileException
-	 * @throws IOException
+	 *
+	 * Playback is gapless: a few seconds before the file ends, the next song
+	 * in the playlist is opened in the background. When the file runs out the
+	 * decoder carries straight on into it, and marks the spot in the buffer.
+	 * With a crossfade set, it starts reading the next song that many seconds
+	 * before then, and mixes the two before they go in the buffer, so the
+	 * rest of the player only ever sees one stream of audio. Either way,
+	 * when the render thread reaches the mark it keeps the same line open,
+	 * and just converts the new song to the line's format, without draining
+	 * or closing anything.
+	 *
+	 * Like every other command, this goes on the scheduler's command queue,
+	 * and returns straight away.
+	 */
+	public void playFile() {
+		scheduler.command(new AudioScheduler.Command() {
+			public void run() {
+				startSession();
+			}
+		});
+	}
+
+	/**
+	 * Stops playback of the current file. Whatever was buffered is kept, so
+	 * playback picks up exactly where it left off.
+	 */
+	public void pauseFile() {
+		scheduler.command(new AudioScheduler.Command() {
+			public void run() {
+				stop = true;
+			}
+		});
+	}
+
+	/**
+	 * Resets the file to the beginning. This method is effectively a 'rewind'
+	 * method. It resets the stream to the beginning, ready to be played again.
+	 */
+	public void stopFile() {
+		scheduler.command(new AudioScheduler.Command() {
+			public void run() throws Exception {
+				haltPlayback();
+				seekStream(0);
+				firePlayerEvent(PlayerEvent.Type.POSITION);
+			}
+		});
+	}
+
+	/**
+	 * Move playback to the given frame of the current file. If we were
+	 * playing, we carry on playing from there.
+	 *
+	 * @param frame
+	 *            The sample frame to go to.
+	 */
+	public void seek(final long frame) {
+		scheduler.command(new AudioScheduler.Command() {
+			public void run() throws Exception {
+				boolean playing = isPlaying();
+				haltPlayback();
+				seekStream(frame);
+				firePlayerEvent(PlayerEvent.Type.POSITION);
+				if (playing) {
+					startSession();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Skip to the next song in the playlist. If we were playing, we carry on
+	 * playing the new song.
+	 */
+	public void nextFile() {
+		scheduler.command(new AudioScheduler.Command() {
+			public void run() throws Exception {
+				if (playlist == null) {
+					return;
+				}
+				boolean playing = isPlaying();
+				haltPlayback();
+				String path = playlist.peekNextFile();
+				if (path == null) {
+					return;
+				}
+				playlist.nextFile();
+				load(new File(path));
+				fireNextEvent();
+				if (playing) {
+					startSession();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Set how long the end of each song overlaps the start of the next, one
+	 * fading out as the other fades in. Songs of different sample rates, and
+	 * songs whose length isn't known, still follow each other without a gap,
+	 * but aren't faded. Takes effect from the next song change not already
+	 * under way.
+	 *
+	 * @param seconds
+	 *            The length of the fade; 0 for none.
+	 */
+	public void setCrossfade(float seconds) {
+		crossfade = Math.max(0, seconds);
+	}
+
+	/**
+	 * @return The length of the crossfade between songs, in seconds; 0 if
+	 *         there is none.
+	 */
+	public float getCrossfade() {
+		return crossfade;
+	}
+
+	/**
+	 * How songs are evened out in loudness.
+	 */
+	public enum GainMode {
+		/** Play every song as it is */
+		OFF,
+		/** Bring every song to the same loudness */
+		TRACK,
+		/** Bring every album to the same loudness, its songs keeping theirs
+		 * relative to each other */
+		ALBUM
+	}
+
+	/**
+	 * Set how songs are evened out in loudness, using the gains measured of
+	 * them in the background. A song not yet measured plays as it is. Takes
+	 * effect from the next song.
+	 *
+	 * @param mode
+	 *            Whether to even out songs, albums, or neither.
+	 */
+	public void setGainMode(GainMode mode) {
+		gainMode = mode;
+	}
+
+	/**
+	 * @return How songs are evened out in loudness.
 	 */
-	public void playFile() throws IOException, UnsupportedAudioFileException,
-	LineUnavailableException {
+	public GainMode getGainMode() {
+		return gainMode;
+	}
+
+	/**
+	 * Set the filename to a new File object. Allows dynamic changing of the 
+	 * file to be played by the user.
+	 *
+	 * @param args
+	 *            File to change it to.
+	 */
+	public void setFilename(final File file) {
+		if (file == null) {
+			return;
+		}
+		scheduler.command(new AudioScheduler.Command() {
+			public void run() throws Exception {
+				endSession();
+				load(file);
+			}
+		});
+	}
+
+	/**
+	 * Start the decoder and render threads, unless they are already running.
+	 * Only the command thread calls this.
+	 */
+	private void startSession() {
+		if (isPlaying()) {
+			return;
+		}
+		// Let the last session wind down, so there is only ever one thread
+		// on each end of the ring buffer
+		awaitSession();
 		// Set up for play back
 		stop = false;
 		reset = false;
-		byte tempBuffer[] = new byte[10000];
+		decoderDone = false;
+		// Wrap decode logic in a runnable
+		Runnable decodeTask = new Runnable() {
+			public void run() {
+				Future<PreparedTrack> next = null;
+				// The next song, once taken from next to fade into
+				PreparedTrack incoming = null;
+				boolean fadeTried = false;
+				try {
+					while (!stop && !reset) {
+						if (pendingLen == 0) {
+							int cnt = stream.read(decodeBuffer, 0,
+									decodeBuffer.length);
+							if (cnt == -1) {
+								// Out of audio; move on to the next song, if any,
+								// from wherever a fade into it got to
+								PreparedTrack track;
+								long startFrame = 0;
+								if (incoming != null) {
+									track = incoming;
+									incoming = null;
+									if (crossfader.isFading()) {
+										startFrame = crossfader.getIncomingFrames();
+										crossfader.stop();
+									}
+								} else {
+									track = next == null ? prepareNext() : next.get();
+								}
+								next = null;
+								fadeTried = false;
+								if (!startTrack(track, startFrame)) {
+									decoderDone = true;
+									break;
+								}
+								continue;
+							}
+							pendingOff = 0;
+							pendingLen = cnt;
+							float rate = stream.getFormat().getFrameRate();
+							long remaining = framesRemaining();
+							float fade = crossfade;
+							// Get the next song ready while this one finishes
+							if (next == null && !fadeTried
+									&& remaining < (PREPARE_AHEAD + fade) * rate) {
+								next = scheduler.decode(new Callable<PreparedTrack>() {
+									public PreparedTrack call() {
+										return prepareNext();
+									}
+								});
+							}
+							if (!fadeTried && next != null && remaining > 0
+									&& remaining <= fade * rate) {
+								// Fade from the start of this block to the end of
+								// the song; if the songs can't be mixed, the next
+								// one just follows on as usual
+								fadeTried = true;
+								incoming = next.get();
+								next = null;
+								if (incoming != null) {
+									AudioFormat f = stream.getFormat();
+									if (crossfader.start(f, incoming.stream.getFormat(),
+											remaining + cnt / f.getFrameSize(),
+											decodeGain, incoming.gain)) {
+										// The mix has both gains in already
+										boundaries.add(new TrackBoundary(
+												ring.writePosition(), 1));
+									}
+								}
+							}
+							if (crossfader.isFading()) {
+								crossfader.mix(decodeBuffer, 0, cnt, incoming.stream);
+							}
+						}
+						int n = ring.write(decodeBuffer, pendingOff, pendingLen);
+						if (n == 0) {
+							// Buffer is full; the line has a while to go yet
+							LockSupport.parkNanos(IDLE_WAIT);
+						}
+						pendingOff += n;
+						pendingLen -= n;
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+					decoderDone = true;
+				} finally {
+					if (next != null) {
+						discard(next);
+					}
+					crossfader.stop();
+					if (incoming != null) {
+						try {
+							incoming.stream.close();
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+			}
+		};
 		// Wrap play logic in a runnable
-		Runnable playTask = new Runnable() {
+		Runnable renderTask = new Runnable() {
 			public void run() {
+				boolean finished = false;
 				try {
-					dataline.open(format);
-					dataline.start();
-					int cnt = 0;
-					while ((cnt = stream.read(tempBuffer, 0, tempBuffer.length)) != -1
-							&& !stop) {
+					openSink();
+					while (!stop) {
 						if (reset) {
 							System.out.println("reset == true");
 							return;
 						}
+						TrackBoundary boundary = boundaries.peek();
+						long readPos = ring.readPosition();
+						if (boundary != null && boundary.position == readPos) {
+							// The last song is all written out; on to the next
+							boundaries.poll();
+							changeTrack(boundary);
+							continue;
+						}
+						// Only whole frames, and not past the end of this song
+						int frameSize = format.getFrameSize();
+						long want = ring.available();
+						if (boundary != null) {
+							want = Math.min(want, boundary.position - readPos);
+						}
+						want = Math.min(want, renderBuffer.length);
+						int cnt = ring.read(renderBuffer, 0,
+								(int) (want - want % frameSize));
 						if (cnt > 0) {
-							dataline.write(tempBuffer, 0, cnt);
+							int sinkFrames = writeSink(cnt);
+							spectrumTap.write(renderBuffer, 0, cnt, format);
+							if (position.written(cnt / frameSize, sinkFrames)) {
+								firePlayerEvent(PlayerEvent.Type.POSITION);
+							}
+						} else if (decoderDone && ring.available() == 0
+								&& boundaries.isEmpty()) {
+							finished = true;
+							break;
+						} else {
+							// Decoder has fallen behind; give it a moment
+							LockSupport.parkNanos(IDLE_WAIT);
 						}
 					}
 				} catch (Exception e) {
 					e.printStackTrace();
 				} finally {
-					dataline.drain();
-					dataline.close();
-					fireStopEvent();
+					try {
+						if (reset) {
+							sink.flush();
+						} else {
+							sink.drain();
+						}
+						sink.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					position.sinkClosed();
+					if (finished) {
+						fireStopEvent();
+					}
 				}
 			}
 		};
-		// Run the runnable somewhere asynchronously.
-		es.execute(playTask);
+		// Run the runnables on the scheduler's threads.
+		this.decodeTask = scheduler.decode(decodeTask);
+		this.renderTask = scheduler.render(renderTask);
 	}
 
-	protected void fireStopEvent() {
-		PlayerEvent e = new PlayerEvent(this, new PlayerEvent("stop", playlist.getCurrentSong()));
-		for(PlayerListener l : _listeners)
-			l.playerPerfomed(e);
+	/**
+	 * @return A copy of the audio as it's played, for visualisations.
+	 */
+	public SpectrumTap getSpectrumTap() {
+		return spectrumTap;
 	}
 
 	/**
-	 * Stops playback of the current file.
-	 *
+	 * @return The cache of decoded songs; its counters show how well it is
+	 *         sized, and it can be made smaller on a machine short of memory.
 	 */
-	public void pauseFile() {
-		stop = true;
+	public PCMCache getPCMCache() {
+		return pcmCache;
 	}
 
 	/**
-	 * Resets the file to the beginning. This method is effectively a 'rewind'
-	 * method. It resets the stream to the beginning, and then plays the stream.
-	 *
-	 * @throws LineUnavailableException
-	 *             If we can't get an Audio Line
-	 * @throws UnsupportedAudioFileException
-	 *             The Audio file is *wrong*
-	 * @throws IOException
-	 *             There was an IO related error in reading the file
+	 * Tell the listeners the playlist has run out.
 	 */
-	public void stopFile() throws IOException, UnsupportedAudioFileException,
-	LineUnavailableException {
-		// Signal to play back mechanism we want to not play back
-		reset = true;
-		// Reset back to the intial state
-		setupAudioSystem();
+	protected void fireStopEvent() {
+		firePlayerEvent(PlayerEvent.Type.STOP);
 	}
 
 	/**
-	 * Set the filename to a new File object. Allows dynamic changing of the 
-	 * file to be played by the user.
-	 *
-	 * @param args
-	 *            File to change it to.
+	 * Tell the listeners a new song is now the current one.
 	 */
-	public void setFilename(File file) {
-		if (file != null) {
-			try {
-				audioFile = file;
-				setupAudioSystem();
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-		} else {
-			return;
-		}
+	protected void fireNextEvent() {
+		firePlayerEvent(PlayerEvent.Type.NEXT);
+	}
+
+	/**
+	 * @return How full the buffer between the decoder and the line is, from 0
+	 *         (empty, the line is about to run dry) to 1 (full).
+	 */
+	public float getBufferFill() {
+		return ring.getFillLevel();
 	}
 
 	/**
@@ -159,8 +568,12 @@ public class PlayerModel {
 		if (!audioFile.exists()) {
 			return -1;
 		}
-		// Total file size in frames
-		long fileLengthInFrames = stream.getFrameLength();
+		// Total file size in frames. MP3 streams get an exact count from
+		// their frame index; anything that can't say returns -1.
+		long fileLengthInFrames = frameLength;
+		if (fileLengthInFrames == AudioSystem.NOT_SPECIFIED) {
+			return -1;
+		}
 		// Frames per second.
 		float fileFramesPerSecond = format.getFrameRate();
 		// Total duration is Length / framerate
@@ -169,55 +582,380 @@ public class PlayerModel {
 	}
 
 	/**
-	 * Set up the system for playing audio. We initialize the stream, grab the
-	 * format of the file,decode mp3 first, and finally grab a line so we can
-	 * play the file itself.
+	 * Get the frame of the current song being heard: what has been played
+	 * through the sink, not what has been decoded. It takes no locks and
+	 * allocates nothing, so it is fine to call every time the screen is
+	 * drawn. Listeners get a "position" event every so often while playing,
+	 * and after a seek.
+	 *
+	 * @return The frame being heard.
+	 */
+	public long getFramePosition() {
+		return position.getFrame();
+	}
+
+	/**
+	 * @return The length of the current song in frames, or -1 if it can't be
+	 *         told.
+	 */
+	public long getFrameLength() {
+		return position.getFrameLength();
+	}
+
+	/**
+	 * @return The frames a second of the current song.
+	 */
+	public float getFrameRate() {
+		return position.getFrameRate();
+	}
+
+	/**
+	 * Set up the system for playing audio. We initialize the stream, and grab
+	 * the format of the file, decoding mp3 first. The song is converted to the
+	 * sink's format as it plays.
 	 *
 	 * @throws IOException
 	 *             If the file is non-existent
 	 * @throws UnsupportedAudioFileException
 	 *             If the format is not supported on this hardware
-	 * @throws LineUnavailableException
-	 *             If there are no source lines for the program to use.
 	 */
 	private void setupAudioSystem() throws IOException,
-	UnsupportedAudioFileException, LineUnavailableException {
-		if (!audioFile.exists()) {
+	UnsupportedAudioFileException {
+		stream = openStream(audioFile);
+		format = stream.getFormat();
+		frameLength = stream.getFrameLength();
+		position.setSong(0, frameLength, format.getFrameRate());
+		decodeGain = playGain = gainOf(audioFile);
+	}
+
+	/**
+	 * Make the given file the current one, and open it.
+	 *
+	 * @param file
+	 *            The file to open.
+	 */
+	private void load(File file) throws IOException,
+	UnsupportedAudioFileException {
+		if (stream != null) {
+			stream.close();
+		}
+		audioFile = file;
+		setupAudioSystem();
+		cacheNext();
+	}
+
+	/**
+	 * Go to a frame of the current stream. Streams that can't seek are opened
+	 * again and read forward.
+	 *
+	 * @param frame
+	 *            The sample frame to go to.
+	 */
+	private void seekStream(long frame) throws IOException,
+	UnsupportedAudioFileException {
+		if (stream instanceof Seekable) {
+			// Seek in place, rather than opening the file again.
+			((Seekable) stream).seek(frame);
+		} else {
+			// Reset back to the intial state
+			load(audioFile);
+			long bytes = frame * format.getFrameSize();
+			while (bytes > 0) {
+				long n = stream.skip(bytes);
+				if (n <= 0) {
+					break;
+				}
+				bytes -= n;
+			}
+		}
+		position.setSong(frame, frameLength, format.getFrameRate());
+	}
+
+	/**
+	 * Open a file as a stream of PCM, with the right decoder for it from the
+	 * codec registry, by the first few bytes of the file. Songs that need
+	 * decoding come from the cache of decoded songs as far as they are
+	 * cached; WAVs are read in place.
+	 *
+	 * @param file
+	 *            The audio file to open.
+	 * @return A PCM stream, ready to be converted to the sink's format.
+	 * @throws IOException
+	 *             If the file is non-existent
+	 * @throws UnsupportedAudioFileException
+	 *             If we have no decoder for the file
+	 */
+	private AudioInputStream openStream(File file) throws IOException,
+	UnsupportedAudioFileException {
+		if (!file.exists()) {
 			System.out.println("Not exist!");
 			throw new IOException();
 		}
-		stream = AudioSystem.getAudioInputStream(audioFile);
-		// Get file MIME type, to determine between WAV or MP3
-		String MIMEType = Files.probeContentType(audioFile.toPath());
-		if (MIMEType.matches(".*mpeg[123]*$")) {
-			AudioFormat rawFormat = stream.getFormat();
-			format = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED,// Encoding
-					rawFormat.getSampleRate(), // Sample Rate
-					16,// Sample size (bits)
-					rawFormat.getChannels(),// channels
-					rawFormat.getChannels() * 2, // frame size
-					rawFormat.getSampleRate(), // frame rate
-					false);// big endian?
-			stream = AudioSystem.getAudioInputStream(format, stream);
-		}
-		/*
-		 * This is not a MP3. So, it must be a WAV file, with the restrictions
-		 * on File types in this application. WAV needs no decoding.
-		 */
-		else {
-			format = stream.getFormat();
+		return pcmCache.open(file);
+	}
+
+	/**
+	 * Start decoding the next song in the playlist into the cache, in the
+	 * background, so it is ready however it is got to.
+	 */
+	private void cacheNext() {
+		Playlist p = playlist;
+		if (p == null) {
+			return;
+		}
+		try {
+			String path = p.peekNextFile();
+			if (path != null) {
+				pcmCache.fillLater(new File(path));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
-		dataline = AudioSystem.getSourceDataLine(format);
 	}
 
-	public static void main(String args[]) {
-		PlayerModel pm = new PlayerModel("test.wav");
+	/**
+	 * Open the next song in the playlist, so it can start the moment the
+	 * current song ends. Songs that can't be opened are skipped over.
+	 *
+	 * @return The next song, or null if the playlist has run out.
+	 */
+	private PreparedTrack prepareNext() {
+		if (playlist == null) {
+			return null;
+		}
+		try {
+			String path;
+			while ((path = playlist.peekNextFile()) != null) {
+				File file = new File(path);
+				try {
+					return new PreparedTrack(file, path, openStream(file),
+							gainOf(file));
+				} catch (IOException | UnsupportedAudioFileException e) {
+					System.err.println("Skipping unplayable song " + path);
+					e.printStackTrace();
+					playlist.nextFile();
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Switch decoding over to a prepared song, and leave a mark in the ring
+	 * buffer where it starts, for the render thread. Only the decoder thread
+	 * calls this.
+	 *
+	 * @param track
+	 *            The song to switch to, or null.
+	 * @param startFrame
+	 *            The frame its stream is at; not the start if some of it has
+	 *            already been mixed into the end of the last song.
+	 * @return false if there was nothing to switch to.
+	 */
+	private boolean startTrack(PreparedTrack track, long startFrame)
+			throws IOException {
+		if (track == null) {
+			return false;
+		}
+		// The user may have picked another song since this one was opened
+		if (!track.path.equals(playlist.peekNextFile())) {
+			track.stream.close();
+			return startTrack(prepareNext(), 0);
+		}
+		int song = playlist.getCurrentSong();
+		playlist.nextFile();
+		cacheNext();
+		stream.close();
+		stream = track.stream;
+		decodeGain = track.gain;
+		boundaries.add(new TrackBoundary(ring.writePosition(), track.file,
+				stream.getFormat(), stream.getFrameLength(), startFrame, song,
+				track.gain));
+		return true;
+	}
+
+	/**
+	 * Switch playback over to the song starting at a mark. The line is kept
+	 * open whatever the new song's format; if it differs from the last one,
+	 * the converter is set up for it. A mark with no song just changes the
+	 * gain. Only the render thread calls this.
+	 *
+	 * @param boundary
+	 *            The mark the render thread has just reached.
+	 */
+	private void changeTrack(TrackBoundary boundary)
+			throws LineUnavailableException, IOException {
+		playGain = boundary.gain;
+		converter.setGain(playGain);
+		if (boundary.file == null) {
+			return;
+		}
+		audioFile = boundary.file;
+		frameLength = boundary.frameLength;
+		if (!boundary.format.matches(format)) {
+			format = boundary.format;
+			converter.setInput(format);
+			fitOutputBuffer();
+		}
+		position.setSong(boundary.startFrame, frameLength,
+				format.getFrameRate());
+		fireNextEvent();
+	}
+
+	/**
+	 * Open the sink for a playback session. The first time, the sink is asked
+	 * what format it would like, offered CD quality stereo or better; that
+	 * format is kept from then on. Only the render thread calls this.
+	 */
+	private void openSink() throws LineUnavailableException, IOException {
+		if (converter == null) {
+			float rate = Math.max(format.getSampleRate(), OUTPUT_RATE);
+			converter = new FormatConverter(sink.negotiate(new AudioFormat(
+					rate, 16, 2, true, false)));
+		}
+		AudioFormat output = converter.getOutputFormat();
+		sink.open(output);
+		position.sinkOpened(output.getFrameRate());
+		converter.setInput(format);
+		converter.setGain(playGain);
+		// Whatever was in the resampler is from before a seek or a pause
+		converter.reset();
+		fitOutputBuffer();
+	}
+
+	/**
+	 * Make sure the output buffer can take a block of the song converted.
+	 */
+	private void fitOutputBuffer() {
+		int size = converter.maxOutputBytes(BLOCK);
+		if (outputBuffer == null || outputBuffer.length < size) {
+			outputBuffer = new byte[size];
+		}
+	}
+
+	/**
+	 * Write frames of the song from the render buffer to the sink, converted
+	 * to its format.
+	 *
+	 * @param len
+	 *            The bytes of the song to write.
+	 * @return The number of frames written to the sink.
+	 */
+	private int writeSink(int len) throws IOException {
+		if (converter.isPassThrough()) {
+			sink.write(renderBuffer, 0, len);
+			return len / format.getFrameSize();
+		}
+		int n = converter.convert(renderBuffer, 0, len, outputBuffer, 0);
+		sink.write(outputBuffer, 0, n);
+		return n / converter.getOutputFormat().getFrameSize();
+	}
+
+	/**
+	 * End the playback session, and get back to the song that was actually
+	 * being heard. The position within that song is lost; callers seek to
+	 * where they want to be.
+	 */
+	private void haltPlayback() throws IOException,
+	UnsupportedAudioFileException {
+		TrackBoundary boundary = endSession();
+		if (boundary != null) {
+			// The decoder had already moved on to songs we never got to hear.
+			// Wind the playlist back, and open this song again.
+			playlist.setCurrentSong(boundary.song);
+			load(audioFile);
+		}
+	}
+
+	/**
+	 * @return true if the render thread is playing, or about to.
+	 */
+	private boolean isPlaying() {
+		return !stop && !reset && renderTask != null && !renderTask.isDone();
+	}
+
+	/**
+	 * End the playback session, if there is one, and throw away whatever was
+	 * buffered.
+	 *
+	 * @return The first song the decoder had moved on to that never got
+	 *         played, or null if it was still on the current song.
+	 */
+	private TrackBoundary endSession() {
+		// Signal to play back mechanism we want to not play back
+		reset = true;
+		awaitSession();
+		TrackBoundary boundary = null;
+		for (TrackBoundary b : boundaries) {
+			if (b.file != null) {
+				boundary = b;
+				break;
+			}
+		}
+		boundaries.clear();
+		ring.clear();
+		pendingLen = 0;
+		return boundary;
+	}
+
+	/**
+	 * Wait for the decoder and render threads to finish.
+	 */
+	private void awaitSession() {
+		try {
+			if (decodeTask != null) {
+				decodeTask.get();
+			}
+			if (renderTask != null) {
+				renderTask.get();
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Close a song that was prepared but will not be played.
+	 */
+	private void discard(Future<PreparedTrack> next) {
 		try {
-			pm.playFile();
-		} catch (IOException | UnsupportedAudioFileException
-				| LineUnavailableException e1) {
-			e1.printStackTrace();
+			PreparedTrack track = next.get();
+			if (track != null) {
+				track.stream.close();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return The number of frames left in the current song, or 0 if we can't
+	 *         tell, so the next song is prepared straight away.
+	 */
+	private long framesRemaining() {
+		long length = stream.getFrameLength();
+		if (length == AudioSystem.NOT_SPECIFIED
+				|| !(stream instanceof Seekable)) {
+			return 0;
 		}
+		return length - ((Seekable) stream).getFramePosition();
+	}
+
+	/**
+	 * Queue an event for the listeners. It is delivered on the event dispatch
+	 * thread, so this never waits on them, whichever thread fires it.
+	 */
+	private void firePlayerEvent(PlayerEvent.Type type) {
+		Playlist p = playlist;
+		int song = p == null ? -1 : p.getCurrentSong();
+		events.fire(new PlayerEvent(this, type, song));
+	}
+
+	public static void main(String args[]) {
+		PlayerModel pm = new PlayerModel("test.wav");
+		pm.playFile();
 		try {
 			Thread.sleep(10000);
 			pm.stopFile();
@@ -227,31 +965,140 @@ public class PlayerModel {
 	}
 
 	/**
-	 * Return the name of the specified item in the playlist. If the playlist is
-	 * null, (because there is no playlist loaded) then we return the name of
-	 * the currently loaded song.
+	 * Return the name of the specified item in the playlist: "Artist - Title"
+	 * from its tags, or else the playlist's title for it, or else its file
+	 * name. If the playlist is null, (because there is no playlist loaded)
+	 * then we return the name of the currently loaded song.
 	 * 
 	 * @param idx
 	 *            Index of the item.
 	 * @return The item's name.
 	 */
 	public String getPlaylistItem(int idx) {
-		if (playlist == null) {
-			return audioFile.getName();
-		} else {
-			return playlist.getSongAt(idx);
+		String name = getPlaylistTags(idx).getDisplayName();
+		return name == null ? getPlaylistItemName(idx) : name;
+	}
+
+	/**
+	 * Return the name of the specified item in the playlist without reading
+	 * its tags: the playlist's title for it, or else its file name. This is
+	 * quick, for showing until {@link #getPlaylistItem(int)} has the tags.
+	 * 
+	 * @param idx
+	 *            Index of the item.
+	 * @return The item's name.
+	 */
+	public String getPlaylistItemName(int idx) {
+		Playlist p = playlist;
+		File file = p == null ? audioFile : p.getFileAt(idx);
+		if (file == null) {
+			return null;
+		}
+		String name = p == null ? null : p.getTitleAt(idx);
+		return name == null ? file.getName() : name;
+	}
+
+	/**
+	 * Get the tags of the specified item in the playlist, or of the currently
+	 * loaded song if there is no playlist. They come from the tag cache, so
+	 * only songs never seen before are read.
+	 * 
+	 * @param idx
+	 *            Index of the item.
+	 * @return The item's tags; empty if it has none.
+	 */
+	public Tags getPlaylistTags(int idx) {
+		Playlist p = playlist;
+		File file = p == null ? audioFile : p.getFileAt(idx);
+		if (file == null || tagCache == null) {
+			return Tags.EMPTY;
 		}
+		return tagCache.get(file);
+	}
+
+	/**
+	 * Make the given playlist item the current song, and load it. Playback
+	 * carries on through the playlist from there. Listeners get a "next"
+	 * event once it is loaded.
+	 * 
+	 * @param idx
+	 *            Index of the item.
+	 */
+	public void selectPlaylistItem(final int idx) {
+		scheduler.command(new AudioScheduler.Command() {
+			public void run() throws Exception {
+				if (playlist == null) {
+					return;
+				}
+				endSession();
+				File song = playlist.select(idx);
+				if (song != null) {
+					load(song);
+					fireNextEvent();
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return The name of the file currently loaded.
+	 */
+	public String getFilename() {
+		return audioFile.getName();
 	}
 
 	/**
 	 * Set the value of the playlist field. This is designed to accept a fully
-	 * populated playlist, and place it in the playlist field.
+	 * populated playlist, and place it in the playlist field. Listeners get a
+	 * "playlist" event once it's in place, and an "edited" event whenever
+	 * songs are added to, removed from or moved in it after that.
 	 * 
 	 * @param p
 	 *            The playlist to set as the current playlist.
 	 */
-	public void setPlaylist(Playlist p) {
-		playlist = p;
+	public void setPlaylist(final Playlist p) {
+		scheduler.command(new AudioScheduler.Command() {
+			public void run() {
+				// The old playlist's songs may already be buffered
+				endSession();
+				if (playlist != null) {
+					playlist.setListener(null);
+				}
+				playlist = p;
+				if (p != null) {
+					p.setListener(playlistListener);
+				}
+				indexPlaylist(p);
+				measurePlaylist(p);
+				firePlayerEvent(PlayerEvent.Type.PLAYLIST);
+			}
+		});
+	}
+
+	/**
+	 * Search the playlist's titles, artists, albums and paths.
+	 * 
+	 * @param query
+	 *            What the user typed.
+	 * @return The positions of the matching songs in the playlist, best
+	 *         first; or null if the playlist isn't searchable yet, in which
+	 *         case listeners get an "indexed" event when it is.
+	 */
+	public int[] searchPlaylist(String query) {
+		Playlist p = playlist;
+		if (p == null) {
+			return null;
+		}
+		SearchIndex index;
+		synchronized (this) {
+			index = playlistIndex;
+			if (index == null || playlistIndexEdits != p.getEditCount()) {
+				// Not built yet, or songs were added, removed or moved since
+				indexPlaylist(p);
+				return null;
+			}
+		}
+		return index.search(query);
 	}
 
 	/**
@@ -268,11 +1115,182 @@ public class PlayerModel {
 		}
 	}
 
+	/**
+	 * Build the search index of a playlist on the scheduler's decode pool, at
+	 * low priority; reading the tags of songs never seen before can take a
+	 * while. Listeners get an "indexed" event once it's ready.
+	 * 
+	 * @param p
+	 *            The playlist to index.
+	 */
+	private synchronized void indexPlaylist(final Playlist p) {
+		if (indexing == p) {
+			return;
+		}
+		indexing = p;
+		playlistIndex = null;
+		scheduler.decode(new Runnable() {
+			public void run() {
+				// The pool is shared with decoding, which must keep up
+				Thread thread = Thread.currentThread();
+				int priority = thread.getPriority();
+				thread.setPriority(Thread.MIN_PRIORITY);
+				try {
+					index(p);
+				} finally {
+					thread.setPriority(priority);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Build the search index of a playlist, and put it in place unless the
+	 * playlist has been replaced meanwhile.
+	 * 
+	 * @param p
+	 *            The playlist to index.
+	 */
+	private void index(Playlist p) {
+		// Songs edited from here on leave the index stale
+		int edits = p.getEditCount();
+		SearchIndex.Builder b = new SearchIndex.Builder();
+		int n = p.songCount();
+		for (int i = 0; i < n; i++) {
+			if (playlist != p) {
+				// Replaced while we were at it
+				break;
+			}
+			File file = p.getFileAt(i);
+			Tags tags = file == null || tagCache == null ? Tags.EMPTY
+					: tagCache.get(file);
+			String title = tags.getTitle();
+			b.add(file == null ? null : file.getPath(),
+					title == null ? p.getTitleAt(i) : title,
+					tags.getArtist(), tags.getAlbum());
+		}
+		SearchIndex index = b.build();
+		synchronized (this) {
+			if (indexing != p) {
+				return;
+			}
+			indexing = null;
+			if (playlist != p) {
+				return;
+			}
+			playlistIndex = index;
+			playlistIndexEdits = edits;
+		}
+		firePlayerEvent(PlayerEvent.Type.INDEXED);
+	}
+
+	/**
+	 * Measure the loudness of the playlist's songs in the background, those
+	 * coming up next first, so their gains are ready by the time they play.
+	 * Any measuring of the last playlist is given up.
+	 *
+	 * @param p
+	 *            The playlist to measure.
+	 */
+	private void measurePlaylist(Playlist p) {
+		if (gainScan != null) {
+			gainScan.cancel(false);
+		}
+		if (gainScanner == null || p == null) {
+			return;
+		}
+		List<File> songs = new ArrayList<File>();
+		int n = p.songCount();
+		// The next song to play, then round the list in the order it plays
+		int from = p.getCurrentSong() - 1;
+		for (int i = 0; i < n; i++) {
+			File file = p.getFileInPlayOrder((from + i) % n);
+			if (file != null) {
+				songs.add(file);
+			}
+		}
+		gainScan = gainScanner.scanLater(songs);
+	}
+
+	/**
+	 * @return What to multiply a song's samples by, under the gain mode; 1
+	 *         if it hasn't been measured.
+	 */
+	private float gainOf(File file) {
+		GainMode mode = gainMode;
+		if (mode == GainMode.OFF || gainCache == null) {
+			return 1;
+		}
+		Gain gain = gainCache.get(file);
+		return gain == null ? 1 : gain.getScale(mode == GainMode.ALBUM);
+	}
+
+	/**
+	 * Add a listener, told of events on the event dispatch thread. Safe to
+	 * call from any thread.
+	 * 
+	 * @param pl
+	 *            The listener.
+	 */
 	public void addPlayerListener(PlayerListener pl) {
-		_listeners.add(pl);
+		events.addListener(pl);
+	}
+
+	public void removePlayerListener(PlayerListener pl) {
+		events.removeListener(pl);
 	}
-	
-	public void removePlayerListener(PlayerListener pl){
-		_listeners.remove(pl);
+
+	/**
+	 * A song opened ahead of time.
+	 */
+	private static class PreparedTrack {
+		final File file;
+		final String path;
+		final AudioInputStream stream;
+		final float gain;
+
+		PreparedTrack(File file, String path, AudioInputStream stream,
+				float gain) {
+			this.file = file;
+			this.path = path;
+			this.stream = stream;
+			this.gain = gain;
+		}
+	}
+
+	/**
+	 * A mark in the ring buffer where one song ends and the next begins, or
+	 * where the gain changes partway through a song.
+	 */
+	private static class TrackBoundary {
+		// Write position of the first byte of the new song
+		final long position;
+		// What the render thread multiplies the samples by from here
+		final float gain;
+		final File file;
+		final AudioFormat format;
+		final long frameLength;
+		// The new song's frame at the mark; past the start after a crossfade
+		final long startFrame;
+		// Playlist position before we moved on to the new song
+		final int song;
+
+		TrackBoundary(long position, File file, AudioFormat format,
+				long frameLength, long startFrame, int song, float gain) {
+			this.position = position;
+			this.gain = gain;
+			this.file = file;
+			this.format = format;
+			this.frameLength = frameLength;
+			this.startFrame = startFrame;
+			this.song = song;
+		}
+
+		/**
+		 * A mark that only changes the gain; the song carries on.
+		 */
+		TrackBoundary(long position, float gain) {
+			this(position, null, null, AudioSystem.NOT_SPECIFIED, 0, -1, gain);
+		}
 	}
 }
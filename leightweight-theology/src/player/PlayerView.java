@@ -4,6 +4,7 @@ import java.awt.FlowLayout;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.event.ActionListener;
+import java.awt.event.MouseListener;
 import java.io.File;
 import java.io.IOException;
 
@@ -15,12 +16,23 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
+import javax.swing.JSlider;
+import javax.swing.JSpinner;
 import javax.swing.JTable;
+import javax.swing.JTextField;
 import javax.swing.ListSelectionModel;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.DocumentListener;
 import javax.swing.event.ListSelectionListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.table.AbstractTableModel;
 
+import visual.CornerBar;
+import visual.SpectrumAnalyzer;
+import visual.SpectrumView;
+
 /**
  * Represents the view in the MVC model of the lightweight-theology application.
  * This class is the view; it is purely a GUI for the application, and holds no
@@ -34,10 +46,19 @@ public class PlayerView extends JFrame {
 	private static final long serialVersionUID = 1L;
 	// UI elements
 	private JLabel filename;
-	private JButton openFile, start, stop;
+	private JButton openFile, start, stop, corner;
 	private JPanel viewPanel;
 	private String filenameString = "test.wav";
 	private JTable playlistTable;
+	private JTextField search;
+	private JSlider seekBar;
+	private JLabel crossfadeLabel;
+	private JSpinner crossfade;
+	// True while the seek bar is being moved to show the position, rather
+	// than by the user
+	private boolean showingPosition;
+	private SpectrumView spectrum;
+	private CornerBar cornerBar;
 
 	/**
 	 * Construct a new view. Constructs a new view object for the
@@ -85,13 +106,150 @@ public class PlayerView extends JFrame {
 		stop.addActionListener(listener);
 	}
 
+	/**
+	 * Add an ActionListener to the corner component. Adds to the
+	 * actionListeners of the corner button, which shrinks the player to the
+	 * corner bar.
+	 * 
+	 * @param listener
+	 *            The component to set as the ActionListener
+	 */
+	public void addCornerListener(ActionListener listener) {
+		corner.setActionCommand("corner");
+		corner.addActionListener(listener);
+	}
+
+	/**
+	 * Add a MouseListener to the corner bar, told when it is clicked.
+	 * 
+	 * @param listener
+	 *            The component to set as the MouseListener
+	 */
+	public void addCornerBarListener(MouseListener listener) {
+		cornerBar.addClickListener(listener);
+	}
+
+	/**
+	 * Show the spectrum of what's playing, in the player and in the corner
+	 * bar.
+	 * 
+	 * @param analyzer
+	 *            Where the spectrum comes from.
+	 */
+	public void setSpectrumAnalyzer(SpectrumAnalyzer analyzer) {
+		analyzer.addListener(spectrum);
+		analyzer.addListener(cornerBar.getView());
+	}
+
+	/**
+	 * Swap between the full player and the corner bar.
+	 * 
+	 * @param inCorner
+	 *            true to hide the player and show the bar, false for the
+	 *            other way round.
+	 */
+	public void showCornerBar(boolean inCorner) {
+		cornerBar.setVisible(inCorner);
+		setVisible(!inCorner);
+	}
+
+	/**
+	 * Add a ChangeListener to the seek bar. It is told only when the user
+	 * moves it; {@link #getSeekMillis()} says where to.
+	 * 
+	 * @param listener
+	 *            The component to set as the ChangeListener
+	 */
+	public void addSeekListener(final ChangeListener listener) {
+		seekBar.addChangeListener(new ChangeListener() {
+			public void stateChanged(ChangeEvent e) {
+				if (!showingPosition) {
+					listener.stateChanged(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Add a ChangeListener to the crossfade field, told when the user changes
+	 * the length of the fade between songs.
+	 * 
+	 * @param listener
+	 *            The component to set as the ChangeListener
+	 */
+	public void addCrossfadeListener(ChangeListener listener) {
+		crossfade.addChangeListener(listener);
+	}
+
+	/**
+	 * @return The crossfade between songs the user has asked for, in
+	 *         seconds; 0 for none.
+	 */
+	public int getCrossfadeSeconds() {
+		return ((Number) crossfade.getValue()).intValue();
+	}
+
+	/**
+	 * @return Where the user has put the seek bar, in milliseconds.
+	 */
+	public int getSeekMillis() {
+		return seekBar.getValue();
+	}
+
+	/**
+	 * @return true while the user is dragging the seek bar.
+	 */
+	public boolean isSeeking() {
+		return seekBar.getValueIsAdjusting();
+	}
+
+	/**
+	 * Move the seek bar to show how far through the song playback is. Left
+	 * alone while the user is dragging it.
+	 * 
+	 * @param millis
+	 *            The position in milliseconds.
+	 * @param lengthMillis
+	 *            The length of the song in milliseconds, or -1 if unknown,
+	 *            in which case the bar is disabled.
+	 */
+	public void showPosition(int millis, int lengthMillis) {
+		if (seekBar.getValueIsAdjusting()) {
+			return;
+		}
+		showingPosition = true;
+		seekBar.setEnabled(lengthMillis > 0);
+		seekBar.setMaximum(Math.max(lengthMillis, 1));
+		seekBar.setValue(millis);
+		showingPosition = false;
+	}
+
 	public void addPlaylistListener(ListSelectionListener listener){
 		playlistTable.getSelectionModel().addListSelectionListener(listener);
 	}
+
+	/**
+	 * Add a DocumentListener to the search field, which is told of every
+	 * letter typed.
+	 * 
+	 * @param listener
+	 *            The component to set as the DocumentListener
+	 */
+	public void addSearchListener(DocumentListener listener) {
+		search.getDocument().addDocumentListener(listener);
+	}
+
+	/**
+	 * @return What is typed in the search field.
+	 */
+	public String getSearchText() {
+		return search.getText();
+	}
 	
 	/**
-	 * Choose a file to play. I am unsure if this should be in the model; most
-	 * of it is fiddling with JFileChoosers.
+	 * Choose a file to play, or a directory of music to add to the library. I
+	 * am unsure if this should be in the model; most of it is fiddling with
+	 * JFileChoosers.
 	 * 
 	 * @throws IOException
 	 *             If we somehow select a non-existent file.
@@ -107,15 +265,23 @@ public class PlayerView extends JFrame {
 				"wav", "WAV");
 		FileNameExtensionFilter mp3 = new FileNameExtensionFilter("MP3 Files",
 				"mp3", "MP3");
+		FileNameExtensionFilter flac = new FileNameExtensionFilter(
+				"FLAC Files", "flac", "FLAC");
 		fc.addChoosableFileFilter(wav);
 		fc.addChoosableFileFilter(mp3);
+		fc.addChoosableFileFilter(flac);
 		fc.setFileFilter(wav);
+		// A directory is added to the library
+		fc.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
 		int retVal = fc.showOpenDialog(null);
 		if (retVal == JFileChooser.APPROVE_OPTION) {
 			File f = fc.getSelectedFile();
 			if (!f.exists()) {
 				throw new IOException();
 			}
+			if (f.isDirectory()) {
+				return f;
+			}
 			updateFilenameString(f.getName());
 			// Revalidates everything so the JFrame resizes to new string size.
 			viewPanel.revalidate();
@@ -145,6 +311,19 @@ public class PlayerView extends JFrame {
 		}
 	}
 
+	/**
+	 * Show the name of the song now playing, for when the song changes
+	 * without the user browsing for it.
+	 * 
+	 * @param name
+	 *            The name of the song.
+	 */
+	public void showNowPlaying(String name) {
+		updateFilenameString(name);
+		viewPanel.revalidate();
+		this.pack();
+	}
+
 	public void setPlaylistDataModel(AbstractTableModel model) {
 		playlistTable.setModel(model);
 		playlistTable.getColumnModel().getColumn(0).setMaxWidth(5);
@@ -182,7 +361,18 @@ public class PlayerView extends JFrame {
 		openFile = new JButton("Browse...");
 		start = new JButton("Play");
 		stop = new JButton("Stop");
+		corner = new JButton("Corner");
+		corner.setToolTipText("Shrink to a bar in the corner of the screen");
 		playlistTable = new JTable();
+		search = new JTextField(20);
+		seekBar = new JSlider(0, 1, 0);
+		seekBar.setEnabled(false);
+		crossfadeLabel = new JLabel("Crossfade (s)");
+		crossfade = new JSpinner(new SpinnerNumberModel(0, 0, 12, 1));
+		crossfade.setToolTipText("Fade each song into the next over this many seconds");
+		spectrum = new SpectrumView(240, 48);
+		cornerBar = new CornerBar();
+		search.setToolTipText("Search the playlist");
 		viewPanel = new JPanel(new GridBagLayout());
 
 		// Place UI elements
@@ -211,6 +401,14 @@ public class PlayerView extends JFrame {
 		gbc.gridy = 0;
 		viewPanel.add(filename, gbc);
 
+		// Add Crossfade field
+		gbc.gridx = 2;
+		gbc.anchor = GridBagConstraints.LINE_END;
+		viewPanel.add(crossfadeLabel, gbc);
+		gbc.gridx = 3;
+		gbc.anchor = GridBagConstraints.LINE_START;
+		viewPanel.add(crossfade, gbc);
+
 		// Add Browse button
 		gbc.gridy = GridBagConstraints.RELATIVE;
 		gbc.gridx = 0;
@@ -227,10 +425,36 @@ public class PlayerView extends JFrame {
 		gbc.gridx = GridBagConstraints.RELATIVE;
 		viewPanel.add(stop, gbc);
 
-		// Add Playlist table
+		// Add Corner button
+		gbc.gridy = 1;
 		gbc.gridx = GridBagConstraints.RELATIVE;
+		viewPanel.add(corner, gbc);
+
+		// Add Seek bar
+		gbc.gridy = 2;
+		gbc.gridx = 0;
+		gbc.gridwidth = 4;
+		gbc.fill = GridBagConstraints.HORIZONTAL;
+		viewPanel.add(seekBar, gbc);
+
+		// Add Search field
+		gbc.gridy = 3;
+		gbc.gridx = 0;
+		gbc.gridwidth = 4;
+		gbc.fill = GridBagConstraints.HORIZONTAL;
+		viewPanel.add(search, gbc);
+
+		// Add Spectrum
+		gbc.gridy = 4;
+		gbc.fill = GridBagConstraints.BOTH;
+		viewPanel.add(spectrum, gbc);
+		gbc.gridwidth = 1;
+		gbc.fill = GridBagConstraints.NONE;
+
+		// Add Playlist table
+		gbc.gridx = 4;
 		gbc.gridy = 0;
-		gbc.gridheight = 3;
+		gbc.gridheight = 5;
 		JScrollPane sp = setUpPlaylistTable();
 		viewPanel.add(sp, gbc);
 	}
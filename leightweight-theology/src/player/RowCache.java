@@ -0,0 +1,235 @@
+package player;
+
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * The rows of the playlist table that are on screen, or were lately, so a
+ * repaint doesn't go back to the playlist for every cell. A table of a
+ * million songs only ever shows a few dozen at once; this holds a fixed
+ * number of rows however long the playlist is.
+ *
+ * A row's name takes reading the song's tags, which can mean the disk, so
+ * it is loaded on a background thread. Until it is, the row shows a quick
+ * name. Loaded rows are handed back to the table together, on the event
+ * dispatch thread, however many came in between.
+ *
+ * Rows are cached by their number; row n goes in slot n modulo the size, so
+ * the rows on screen, which are next to each other, never push each other
+ * out.
+ *
+ * @author Connor Findlay
+ */
+public class RowCache {
+	/**
+	 * Where rows come from.
+	 */
+	public interface Source {
+		/**
+		 * @return A name for the row that's quick to get, to show until it's
+		 *         loaded.
+		 */
+		String quickName(int row);
+
+		/**
+		 * Called on the loading thread.
+		 *
+		 * @return The row's name.
+		 */
+		String name(int row);
+	}
+
+	/**
+	 * Told when rows have loaded.
+	 */
+	public interface Listener {
+		/**
+		 * Called on the event dispatch thread.
+		 *
+		 * @param first
+		 *            The lowest row loaded since last time.
+		 * @param last
+		 *            The highest.
+		 */
+		void rowsLoaded(int first, int last);
+	}
+
+	private final Source source;
+	private final int mask;
+	// Slot -> the row in it, or -1; its number, and its names
+	private final int[] rows;
+	private final Integer[] numbers;
+	private final String[] quickNames;
+	private final String[] names;
+	// Goes up on every clear, so rows loaded from before are dropped
+	private int generation;
+	// Rows to load, the latest asked for at the front
+	private final LinkedBlockingDeque<Integer> pending = new LinkedBlockingDeque<Integer>();
+	// Rows loaded since the listener was last told
+	private int loadedFirst = Integer.MAX_VALUE, loadedLast = -1;
+	private final AtomicBoolean flushQueued = new AtomicBoolean();
+	private volatile Listener listener;
+
+	/**
+	 * Make a cache, and start its loading thread.
+	 *
+	 * @param size
+	 *            The number of rows to hold, rounded up to a power of two. It
+	 *            should be well over the number that fit on screen.
+	 * @param source
+	 *            Where rows come from.
+	 */
+	public RowCache(int size, Source source) {
+		this.source = source;
+		int slots = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+		mask = slots - 1;
+		rows = new int[slots];
+		Arrays.fill(rows, -1);
+		numbers = new Integer[slots];
+		quickNames = new String[slots];
+		names = new String[slots];
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				load();
+			}
+		}, "row loader");
+		t.setDaemon(true);
+		t.setPriority(Thread.NORM_PRIORITY - 1);
+		t.start();
+	}
+
+	/**
+	 * @param l
+	 *            Told when rows have loaded.
+	 */
+	public void setListener(Listener l) {
+		listener = l;
+	}
+
+	/**
+	 * @return The row's number, counting from one.
+	 */
+	public synchronized Integer getNumber(int row) {
+		return numbers[slot(row)];
+	}
+
+	/**
+	 * @return The row's name, or its quick name until it's loaded.
+	 */
+	public synchronized String getName(int row) {
+		int s = slot(row);
+		return names[s] != null ? names[s] : quickNames[s];
+	}
+
+	/**
+	 * Forget every row, as when the rows are different songs now. Rows
+	 * still being loaded are thrown away.
+	 */
+	public synchronized void clear() {
+		pending.clear();
+		generation++;
+		Arrays.fill(rows, -1);
+		Arrays.fill(numbers, null);
+		Arrays.fill(quickNames, null);
+		Arrays.fill(names, null);
+	}
+
+	// -----Privates-----
+
+	/**
+	 * @return The slot holding a row, putting it there if it isn't, and
+	 *         asking for it to be loaded.
+	 */
+	private int slot(int row) {
+		int s = row & mask;
+		if (rows[s] != row) {
+			rows[s] = row;
+			numbers[s] = row + 1;
+			quickNames[s] = source.quickName(row);
+			names[s] = null;
+			pending.offerFirst(row);
+			// Rows scrolled past long ago aren't worth loading
+			while (pending.size() > rows.length) {
+				pending.pollLast();
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * The loading thread. Loads the rows most lately asked for first, and
+	 * skips any that have been pushed out since.
+	 */
+	private void load() {
+		while (true) {
+			int row;
+			try {
+				row = pending.takeFirst();
+			} catch (InterruptedException e) {
+				return;
+			}
+			int gen = wanted(row);
+			if (gen < 0) {
+				continue;
+			}
+			String name;
+			try {
+				name = source.name(row);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				continue;
+			}
+			loaded(row, name, gen);
+		}
+	}
+
+	/**
+	 * @return The generation, if the row still needs loading; else -1.
+	 */
+	private synchronized int wanted(int row) {
+		int s = row & mask;
+		return rows[s] == row && names[s] == null ? generation & 0x7FFFFFFF : -1;
+	}
+
+	/**
+	 * Keep a loaded row, and have the listener told on the event dispatch
+	 * thread, once for everything loaded before it gets there.
+	 */
+	private void loaded(int row, String name, int gen) {
+		synchronized (this) {
+			int s = row & mask;
+			if (rows[s] != row || (generation & 0x7FFFFFFF) != gen
+					|| name == null) {
+				return;
+			}
+			names[s] = name;
+			loadedFirst = Math.min(loadedFirst, row);
+			loadedLast = Math.max(loadedLast, row);
+		}
+		if (flushQueued.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					flush();
+				}
+			});
+		}
+	}
+
+	private void flush() {
+		int first, last;
+		synchronized (this) {
+			flushQueued.set(false);
+			first = loadedFirst;
+			last = loadedLast;
+			loadedFirst = Integer.MAX_VALUE;
+			loadedLast = -1;
+		}
+		Listener l = listener;
+		if (l != null && last >= 0) {
+			l.rowsLoaded(first, last);
+		}
+	}
+}
@@ -0,0 +1,724 @@
+package search;
+
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Search as you type over songs: their title, artist, album and path. A
+ * query is split into words, and finds the songs that have every word
+ * somewhere, ranked by where.
+ *
+ * It is an n-gram index. Every word of a song gives its trigrams, so a
+ * query word of three or more letters can be found anywhere inside a word,
+ * and the first one and two letters with a mark for the start of a word, so
+ * shorter query words find words they begin. A query intersects the
+ * posting lists of its grams, rarest first.
+ *
+ * Each posting also says which fields of the song have the gram, and in
+ * which it starts the field or a word. So a match is scored without going
+ * back to the song's text: a word's grams must all be in one field, and its
+ * first gram says how the match starts there. Grams that matched in
+ * different words of the same field slip through, which is rare and
+ * harmless when searching a library.
+ *
+ * Everything is primitive arrays. Text is folded (lower case, accents
+ * dropped, punctuation made spaces) before it's split into grams. Each
+ * posting is the gap from the last song number, as a variable length
+ * integer, then two bytes of where, so the common grams cost about three
+ * bytes a song.
+ *
+ * Immutable once built, and so thread safe.
+ *
+ * @author Connor Findlay
+ */
+public final class SearchIndex {
+	// Where a match was: the fields of a song, best first
+	private static final int TITLE = 0, ARTIST = 1, ALBUM = 2, NAME = 3,
+			DIRECTORY = 4, FIELDS = 5;
+	private static final int[] FIELD_WEIGHT = { 4, 3, 2, 1, 1 };
+	// How a match starts: the start of its field, of a word, or inside one
+	private static final int FIELD_START = 3, WORD_START = 2, INSIDE = 1;
+	// Where a gram is in a song, by field: in it, at the start of a word,
+	// at the start of the field
+	private static final int IN_FIELD = 0, AT_WORD = FIELDS,
+			AT_FIELD = 2 * FIELDS, ALL_FIELDS = (1 << FIELDS) - 1;
+	// Where flags -> the best score they give
+	private static final byte[] BEST = bestScores();
+	// Separates the fields of a song in its text
+	private static final byte SEPARATOR = 0;
+	private static final char WORD_MARK = ' ';
+	private static final int SKIP = 64;
+
+	private final int size;
+	// Gram key -> gram number, open addressing on keys, 0 for empty
+	private final long[] gramKeys;
+	private final int[] gramIds;
+	private final int[] docFreq;
+	private final int[] postStart;
+	private final byte[] postings;
+	// Every SKIP postings of a list, the song before and where the next
+	// starts, so a short list can be intersected with a long one quickly
+	private final int[] skipStart;
+	private final int[] skipDoc;
+	private final int[] skipPos;
+
+	/**
+	 * Collects songs, then builds the index.
+	 */
+	public static final class Builder {
+		private byte[] text = new byte[4096];
+		private int textLength;
+		private int[] textEnd = new int[256];
+		private int[] dirOf = new int[256];
+		private int size;
+		private final HashMap<String, Integer> dirLookup = new HashMap<String, Integer>();
+		private byte[] dirText = new byte[1024];
+		private int dirTextLength;
+		private int[] dirEnd = new int[64];
+		private int dirs;
+		private final Grams grams = new Grams();
+
+		/**
+		 * Add a song. Any of its fields may be null.
+		 *
+		 * @param path
+		 *            The path of the song.
+		 * @param title
+		 *            Its title.
+		 * @param artist
+		 *            Its artist.
+		 * @param album
+		 *            Its album.
+		 * @return The song's number, which searches return.
+		 */
+		public int add(String path, String title, String artist, String album) {
+			String name = path == null ? "" : path;
+			int split = Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1;
+			String dir = name.substring(0, split);
+			name = name.substring(split);
+			int dot = name.lastIndexOf('.');
+			if (dot > 0) {
+				name = name.substring(0, dot);
+			}
+
+			if (size == textEnd.length) {
+				textEnd = Arrays.copyOf(textEnd, size * 2);
+				dirOf = Arrays.copyOf(dirOf, size * 2);
+			}
+			String[] fields = { fold(title), fold(artist), fold(album),
+					fold(name) };
+			for (int f = 0; f < fields.length; f++) {
+				if (f > 0) {
+					appendText(new byte[] { SEPARATOR });
+				}
+				appendText(fields[f].getBytes(StandardCharsets.UTF_8));
+				grams.addWords(fields[f], f, size);
+			}
+			textEnd[size] = textLength;
+			int d = directory(dir);
+			dirOf[size] = d;
+			grams.addWords(dirString(d), DIRECTORY, size);
+			return size++;
+		}
+
+		/**
+		 * @return The index of the songs added.
+		 */
+		public SearchIndex build() {
+			grams.allocate();
+			// Go over the text again, writing each song into the posting
+			// lists of its grams
+			for (int doc = 0; doc < size; doc++) {
+				int start = doc == 0 ? 0 : textEnd[doc - 1];
+				String s = new String(text, start, textEnd[doc] - start,
+						StandardCharsets.UTF_8);
+				String[] fields = s.split("\0", -1);
+				for (int f = 0; f < fields.length; f++) {
+					grams.writeWords(fields[f], f, doc);
+				}
+				grams.writeWords(dirString(dirOf[doc]), DIRECTORY, doc);
+				grams.endSong(doc);
+			}
+			return new SearchIndex(this);
+		}
+
+		private void appendText(byte[] b) {
+			if (textLength + b.length > text.length) {
+				text = Arrays.copyOf(text, Math.max(text.length * 2, textLength
+						+ b.length));
+			}
+			System.arraycopy(b, 0, text, textLength, b.length);
+			textLength += b.length;
+		}
+
+		/**
+		 * @return The number of a directory, adding it if new. Only the last
+		 *         two names of its path are kept; in a library laid out by
+		 *         artist and album they are the ones worth searching.
+		 */
+		private int directory(String path) {
+			Integer idx = dirLookup.get(path);
+			if (idx != null) {
+				return idx;
+			}
+			String trimmed = path;
+			int end = trimmed.length() - 1;
+			int names = 0;
+			for (int i = end; i >= 0; i--) {
+				char c = trimmed.charAt(i);
+				if ((c == '/' || c == '\\') && i < end && ++names == 2) {
+					trimmed = trimmed.substring(i + 1);
+					break;
+				}
+			}
+			byte[] b = fold(trimmed).getBytes(StandardCharsets.UTF_8);
+			if (dirTextLength + b.length > dirText.length) {
+				dirText = Arrays.copyOf(dirText, Math.max(dirText.length * 2,
+						dirTextLength + b.length));
+			}
+			System.arraycopy(b, 0, dirText, dirTextLength, b.length);
+			dirTextLength += b.length;
+			if (dirs == dirEnd.length) {
+				dirEnd = Arrays.copyOf(dirEnd, dirs * 2);
+			}
+			dirEnd[dirs] = dirTextLength;
+			dirLookup.put(path, dirs);
+			return dirs++;
+		}
+
+		private String dirString(int d) {
+			int start = d == 0 ? 0 : dirEnd[d - 1];
+			return new String(dirText, start, dirEnd[d] - start,
+					StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * @return The number of songs in the index.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Search for the songs matching a query, best first. Songs that match
+	 * equally well come in the order they were added.
+	 *
+	 * @param query
+	 *            What was typed.
+	 * @return The matching songs' numbers. Every song, in order, if the query
+	 *         has no words.
+	 */
+	public int[] search(String query) {
+		int[] out = new int[size];
+		int n = search(query, out);
+		return n == out.length ? out : Arrays.copyOf(out, n);
+	}
+
+	/**
+	 * Search for the songs matching a query, best first, into an array the
+	 * caller keeps; for showing the top few as the user types.
+	 *
+	 * @param query
+	 *            What was typed.
+	 * @param out
+	 *            Filled with as many of the best matches as fit.
+	 * @return The number of matches put in out.
+	 */
+	public int search(String query, int[] out) {
+		String folded = fold(query);
+		if (folded.isEmpty()) {
+			int n = Math.min(size, out.length);
+			for (int i = 0; i < n; i++) {
+				out[i] = i;
+			}
+			return n;
+		}
+		String[] words = folded.split(" ");
+
+		// The grams every match must have, each with its word; a word's
+		// first gram is its anchor, which says how the match starts
+		long[] need = new long[16];
+		int needed = 0;
+		for (int w = 0; w < words.length; w++) {
+			String word = words[w];
+			int count = word.length() < 3 ? 1 : word.length() - 2;
+			for (int i = 0; i < count; i++) {
+				long key = word.length() == 1 ? key(WORD_MARK, word.charAt(0),
+						'\0') : word.length() == 2 ? key(WORD_MARK, word
+						.charAt(0), word.charAt(1)) : key(word.charAt(i), word
+						.charAt(i + 1), word.charAt(i + 2));
+				int gram = gram(key);
+				if (gram < 0) {
+					return 0;
+				}
+				if (needed == need.length) {
+					need = Arrays.copyOf(need, needed * 2);
+				}
+				need[needed++] = (long) docFreq[gram] << 32 | gram;
+				need[needed++] = (long) w << 1 | (i == 0 ? 1 : 0);
+			}
+		}
+
+		// Intersect, rarest list first, so the candidates only shrink
+		sortByFrequency(need, needed);
+		Candidates c = new Candidates(words.length, (int) (need[0] >>> 32));
+		decode(c, (int) need[0], (int) need[1]);
+		for (int i = 2; i < needed && c.count > 0; i += 2) {
+			retain(c, (int) need[i], (int) need[i + 1]);
+		}
+
+		// Score each candidate; scores are small, so they're ranked by
+		// counting sort
+		int maxScore = FIELD_WEIGHT[TITLE] * FIELD_START * words.length;
+		int[] scores = new int[c.count];
+		int[] perScore = new int[maxScore + 1];
+		for (int i = 0; i < c.count; i++) {
+			int total = 0;
+			for (int w = i; w < c.fields.length; w += c.stride) {
+				int has = c.fields[w];
+				if (has == 0) {
+					// Not all in one field
+					total = 0;
+					break;
+				}
+				total += BEST[c.anchor[w] & (has | has << AT_WORD | has << AT_FIELD)];
+			}
+			scores[i] = total;
+			perScore[total]++;
+		}
+		int[] next = new int[maxScore + 1];
+		int pos = 0;
+		for (int s = maxScore; s > 0; s--) {
+			next[s] = pos;
+			pos += perScore[s];
+		}
+		int matches = Math.min(pos, out.length);
+		for (int i = 0; i < c.count; i++) {
+			int s = scores[i];
+			if (s > 0 && next[s] < matches) {
+				out[next[s]] = c.docs[i];
+			}
+			next[s]++;
+		}
+		return matches;
+	}
+
+	// -----Privates-----
+
+	private SearchIndex(Builder b) {
+		size = b.size;
+		gramKeys = b.grams.keys;
+		gramIds = b.grams.ids;
+		docFreq = Arrays.copyOf(b.grams.docFreq, b.grams.count);
+		postStart = b.grams.postStart;
+		postings = b.grams.postings;
+		skipStart = b.grams.skipStart;
+		skipDoc = b.grams.skipDoc;
+		skipPos = b.grams.skipPos;
+	}
+
+	/**
+	 * The grams of the songs being added, and then their posting lists.
+	 * Songs are added in order, so each list comes out ascending.
+	 */
+	private static final class Grams {
+		long[] keys = new long[1024];
+		int[] ids = new int[1024];
+		int count;
+		int[] docFreq = new int[256];
+		int[] lastDoc = new int[256];
+		int[] bytes = new int[256];
+		int[] postStart;
+		int[] writePos;
+		byte[] postings;
+		int[] skipStart;
+		int[] skipDoc;
+		int[] skipPos;
+		int[] written;
+		// The second pass: the grams of the song being written, with their
+		// gaps and where flags
+		int[] gap;
+		int[] where;
+		int[] touched = new int[256];
+		int touchedCount;
+
+		/**
+		 * Count the grams of a field, for the first pass.
+		 */
+		void addWords(String field, int f, int doc) {
+			forEachGram(field, f, doc, true);
+		}
+
+		/**
+		 * Gather the grams of a field, for the second pass.
+		 */
+		void writeWords(String field, int f, int doc) {
+			forEachGram(field, f, doc, false);
+		}
+
+		/**
+		 * Write a song into the posting lists of the grams gathered for it.
+		 */
+		void endSong(int doc) {
+			for (int i = 0; i < touchedCount; i++) {
+				int g = touched[i];
+				int p = writePos[g];
+				int v = gap[g];
+				int n = written[g]++;
+				if (n > 0 && n % SKIP == 0) {
+					int k = skipStart[g] + n / SKIP - 1;
+					skipDoc[k] = doc - v;
+					skipPos[k] = p;
+				}
+				while ((v & ~0x7F) != 0) {
+					postings[p++] = (byte) (v & 0x7F | 0x80);
+					v >>>= 7;
+				}
+				postings[p++] = (byte) v;
+				postings[p++] = (byte) (where[g] >> 8);
+				postings[p++] = (byte) where[g];
+				writePos[g] = p;
+			}
+			touchedCount = 0;
+		}
+
+		/**
+		 * Lay out the posting lists, now their sizes are known.
+		 */
+		void allocate() {
+			postStart = new int[count + 1];
+			for (int g = 0; g < count; g++) {
+				postStart[g + 1] = postStart[g] + bytes[g];
+			}
+			postings = new byte[postStart[count]];
+			writePos = Arrays.copyOf(postStart, count);
+			skipStart = new int[count + 1];
+			for (int g = 0; g < count; g++) {
+				skipStart[g + 1] = skipStart[g] + (docFreq[g] - 1) / SKIP;
+			}
+			skipDoc = new int[skipStart[count]];
+			skipPos = new int[skipStart[count]];
+			written = new int[count];
+			Arrays.fill(lastDoc, -1);
+			gap = new int[count];
+			where = new int[count];
+			bytes = null;
+		}
+
+		private void forEachGram(String field, int f, int doc, boolean counting) {
+			int start = 0;
+			int len = field.length();
+			while (start < len) {
+				int end = field.indexOf(' ', start);
+				if (end < 0) {
+					end = len;
+				}
+				if (end > start) {
+					int at = 1 << f | 1 << AT_WORD + f;
+					if (start == 0) {
+						at |= 1 << AT_FIELD + f;
+					}
+					gram(key(WORD_MARK, field.charAt(start), '\0'), doc, at,
+							counting);
+					if (end - start >= 2) {
+						gram(key(WORD_MARK, field.charAt(start), field
+								.charAt(start + 1)), doc, at, counting);
+					}
+					for (int i = start; i + 3 <= end; i++) {
+						gram(key(field.charAt(i), field.charAt(i + 1), field
+								.charAt(i + 2)), doc, i == start ? at
+								: 1 << f, counting);
+					}
+				}
+				start = end + 1;
+			}
+		}
+
+		private void gram(long key, int doc, int at, boolean counting) {
+			int g = counting ? intern(key) : lookup(key);
+			if (lastDoc[g] == doc) {
+				// Once per song
+				if (!counting) {
+					where[g] |= at;
+				}
+				return;
+			}
+			int gap = lastDoc[g] < 0 ? doc : doc - lastDoc[g];
+			lastDoc[g] = doc;
+			if (counting) {
+				docFreq[g]++;
+				bytes[g] += varintSize(gap) + 2;
+			} else {
+				this.gap[g] = gap;
+				where[g] = at;
+				if (touchedCount == touched.length) {
+					touched = Arrays.copyOf(touched, touchedCount * 2);
+				}
+				touched[touchedCount++] = g;
+			}
+		}
+
+		private int intern(long key) {
+			int mask = keys.length - 1;
+			int i = mix(key) & mask;
+			while (keys[i] != 0) {
+				if (keys[i] == key) {
+					return ids[i];
+				}
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			ids[i] = count;
+			if (count == docFreq.length) {
+				docFreq = Arrays.copyOf(docFreq, count * 2);
+				bytes = Arrays.copyOf(bytes, count * 2);
+				lastDoc = Arrays.copyOf(lastDoc, count * 2);
+				Arrays.fill(lastDoc, count, count * 2, -1);
+			}
+			lastDoc[count] = -1;
+			if (++count * 2 > keys.length) {
+				grow();
+			}
+			return ids[i];
+		}
+
+		private int lookup(long key) {
+			int mask = keys.length - 1;
+			int i = mix(key) & mask;
+			while (keys[i] != key) {
+				i = (i + 1) & mask;
+			}
+			return ids[i];
+		}
+
+		private void grow() {
+			long[] oldKeys = keys;
+			int[] oldIds = ids;
+			keys = new long[oldKeys.length * 2];
+			ids = new int[keys.length];
+			int mask = keys.length - 1;
+			for (int j = 0; j < oldKeys.length; j++) {
+				if (oldKeys[j] != 0) {
+					int i = mix(oldKeys[j]) & mask;
+					while (keys[i] != 0) {
+						i = (i + 1) & mask;
+					}
+					keys[i] = oldKeys[j];
+					ids[i] = oldIds[j];
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The number of a gram, or -1 if no song has it.
+	 */
+	private int gram(long key) {
+		int mask = gramKeys.length - 1;
+		for (int i = mix(key) & mask; gramKeys[i] != 0; i = (i + 1) & mask) {
+			if (gramKeys[i] == key) {
+				return gramIds[i];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * The songs still matching during a search. For each query word and
+	 * song, the fields that have all the word's grams so far, and where its
+	 * anchor gram is; a word's entries are a stride apart.
+	 */
+	private static final class Candidates {
+		final int stride;
+		final int[] docs;
+		final int[] fields;
+		final int[] anchor;
+		int count;
+
+		Candidates(int words, int most) {
+			stride = most;
+			docs = new int[most];
+			fields = new int[words * most];
+			anchor = new int[words * most];
+		}
+
+		/**
+		 * Keep a song, from its old place to its new one, and fold in where
+		 * a gram of one of its words is.
+		 */
+		void keep(int from, int to, int doc, int word, boolean isAnchor,
+				int where) {
+			docs[to] = doc;
+			if (from != to) {
+				for (int i = 0; i < fields.length; i += stride) {
+					fields[i + to] = fields[i + from];
+					anchor[i + to] = anchor[i + from];
+				}
+			}
+			int w = word * stride + to;
+			fields[w] &= where;
+			if (isAnchor) {
+				anchor[w] = where;
+			}
+		}
+	}
+
+	/**
+	 * The candidates to start with: every song in a gram's posting list.
+	 *
+	 * @param word
+	 *            The query word the gram is from, shifted left one, plus one
+	 *            if it's the word's anchor.
+	 */
+	private void decode(Candidates c, int gram, int word) {
+		Arrays.fill(c.fields, ALL_FIELDS);
+		int p = postStart[gram], end = postStart[gram + 1];
+		int doc = 0, n = 0;
+		while (p < end) {
+			int gap = 0, shift = 0;
+			byte b;
+			do {
+				b = postings[p++];
+				gap |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			doc += gap;
+			int where = (postings[p] & 0xFF) << 8 | postings[p + 1] & 0xFF;
+			p += 2;
+			c.keep(n, n, doc, word >> 1, (word & 1) != 0, where);
+			n++;
+		}
+		c.count = n;
+	}
+
+	/**
+	 * Keep only the candidates in a gram's posting list, walking the two
+	 * together, and skipping ahead in the list past songs that aren't
+	 * candidates.
+	 */
+	private void retain(Candidates c, int gram, int word) {
+		int p = postStart[gram], end = postStart[gram + 1];
+		int skip = skipStart[gram] - 1, skipEnd = skipStart[gram + 1];
+		int doc = 0, kept = 0, i = 0;
+		int[] docs = c.docs;
+		while (p < end && i < c.count) {
+			if (skip + 1 < skipEnd && skipDoc[skip + 1] < docs[i]) {
+				do {
+					skip++;
+				} while (skip + 1 < skipEnd && skipDoc[skip + 1] < docs[i]);
+				if (skipPos[skip] > p) {
+					p = skipPos[skip];
+					doc = skipDoc[skip];
+				}
+			}
+			int gap = 0, shift = 0;
+			byte b;
+			do {
+				b = postings[p++];
+				gap |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			doc += gap;
+			while (i < c.count && docs[i] < doc) {
+				i++;
+			}
+			if (i < c.count && docs[i] == doc) {
+				int where = (postings[p] & 0xFF) << 8 | postings[p + 1] & 0xFF;
+				c.keep(i, kept++, doc, word >> 1, (word & 1) != 0, where);
+				i++;
+			}
+			p += 2;
+		}
+		c.count = kept;
+	}
+
+	/**
+	 * Sort the grams of a query, as pairs of (doc frequency, gram) then
+	 * (word), by how many songs have them, fewest first. There are only a
+	 * few, so insertion sort.
+	 */
+	private static void sortByFrequency(long[] need, int n) {
+		for (int i = 2; i < n; i += 2) {
+			long g = need[i], w = need[i + 1];
+			int j = i - 2;
+			while (j >= 0 && need[j] > g) {
+				need[j + 2] = need[j];
+				need[j + 3] = need[j + 1];
+				j -= 2;
+			}
+			need[j + 2] = g;
+			need[j + 3] = w;
+		}
+	}
+
+	/**
+	 * @return For every where flags, the best score they give: the weight
+	 *         of a field they're in times how they start there.
+	 */
+	private static byte[] bestScores() {
+		byte[] best = new byte[1 << 3 * FIELDS];
+		for (int where = 0; where < best.length; where++) {
+			int score = 0;
+			for (int f = 0; f < FIELDS; f++) {
+				int how = (where >> AT_FIELD + f & 1) != 0 ? FIELD_START
+						: (where >> AT_WORD + f & 1) != 0 ? WORD_START
+								: (where >> IN_FIELD + f & 1) != 0 ? INSIDE : 0;
+				score = Math.max(score, FIELD_WEIGHT[f] * how);
+			}
+			best[where] = (byte) score;
+		}
+		return best;
+	}
+
+	/**
+	 * Fold text for searching: lower case, accents dropped, and anything but
+	 * letters and digits made a single space between words.
+	 */
+	private static String fold(String s) {
+		if (s == null || s.isEmpty()) {
+			return "";
+		}
+		String d = Normalizer.normalize(s, Normalizer.Form.NFD);
+		StringBuilder out = new StringBuilder(d.length());
+		boolean space = true;
+		for (int i = 0; i < d.length(); i++) {
+			char c = d.charAt(i);
+			if (Character.getType(c) == Character.NON_SPACING_MARK) {
+				continue;
+			}
+			if (Character.isLetterOrDigit(c)) {
+				out.append(Character.toLowerCase(c));
+				space = false;
+			} else if (!space) {
+				out.append(WORD_MARK);
+				space = true;
+			}
+		}
+		int len = out.length();
+		if (len > 0 && out.charAt(len - 1) == WORD_MARK) {
+			out.setLength(len - 1);
+		}
+		return out.toString();
+	}
+
+	private static long key(char a, char b, char c) {
+		return (long) a << 32 | (long) b << 16 | c;
+	}
+
+	private static int mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ h >>> 32);
+	}
+
+	private static int varintSize(int v) {
+		int n = 1;
+		while ((v & ~0x7F) != 0) {
+			v >>>= 7;
+			n++;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,604 @@
+package tags;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads the tags of a song: ID3v2 (versions 2.2 to 2.4) and ID3v1 tags in
+ * MP3s, and the LIST/INFO chunk, or an embedded ID3v2 tag, in WAV files.
+ *
+ * Only tag bytes are read, never the audio. An ID3v2 tag is read in one
+ * small block from the front of the file, and any text frame outside that
+ * block is read on its own; other frames, such as cover art, are skipped
+ * over. A WAV file is walked chunk header by chunk header, stepping over the
+ * data chunk without reading it. ID3v1 is the last 128 bytes.
+ *
+ * Where a file has both, ID3v2 fields win over ID3v1 ones, and ID3v1 fills in
+ * what ID3v2 lacks.
+ *
+ * @author Connor Findlay
+ */
+public final class TagReader {
+	private static final int ID3V2_HEADER = 10;
+	private static final int ID3V1_SIZE = 128;
+	// Read at once from the front of an ID3v2 tag. The text frames are
+	// nearly always in here; what comes after is mostly pictures
+	private static final int WINDOW = 8192;
+	// The largest text frame read, and the largest tag read whole when it
+	// has to be resynchronised first
+	private static final int MAX_FRAME = 1 << 16;
+	private static final int MAX_TAG = 1 << 20;
+
+	// The fields of a Tags, in constructor order, then the album artist,
+	// used when there's no artist
+	private static final int TITLE = 0, ARTIST = 1, ALBUM = 2, YEAR = 3,
+			TRACK = 4, GENRE = 5, ALBUM_ARTIST = 6, FIELDS = 7;
+
+	// The ID3v1 genres, with Winamp's additions
+	private static final String[] GENRES = { "Blues", "Classic Rock",
+			"Country", "Dance", "Disco", "Funk", "Grunge", "Hip-Hop", "Jazz",
+			"Metal", "New Age", "Oldies", "Other", "Pop", "R&B", "Rap",
+			"Reggae", "Rock", "Techno", "Industrial", "Alternative", "Ska",
+			"Death Metal", "Pranks", "Soundtrack", "Euro-Techno", "Ambient",
+			"Trip-Hop", "Vocal", "Jazz+Funk", "Fusion", "Trance", "Classical",
+			"Instrumental", "Acid", "House", "Game", "Sound Clip", "Gospel",
+			"Noise", "AlternRock", "Bass", "Soul", "Punk", "Space",
+			"Meditative", "Instrumental Pop", "Instrumental Rock", "Ethnic",
+			"Gothic", "Darkwave", "Techno-Industrial", "Electronic",
+			"Pop-Folk", "Eurodance", "Dream", "Southern Rock", "Comedy",
+			"Cult", "Gangsta", "Top 40", "Christian Rap", "Pop/Funk",
+			"Jungle", "Native American", "Cabaret", "New Wave", "Psychadelic",
+			"Rave", "Showtunes", "Trailer", "Lo-Fi", "Tribal", "Acid Punk",
+			"Acid Jazz", "Polka", "Retro", "Musical", "Rock & Roll",
+			"Hard Rock", "Folk", "Folk-Rock", "National Folk", "Swing",
+			"Fast Fusion", "Bebob", "Latin", "Revival", "Celtic", "Bluegrass",
+			"Avantgarde", "Gothic Rock", "Progressive Rock",
+			"Psychedelic Rock", "Symphonic Rock", "Slow Rock", "Big Band",
+			"Chorus", "Easy Listening", "Acoustic", "Humour", "Speech",
+			"Chanson", "Opera", "Chamber Music", "Sonata", "Symphony",
+			"Booty Bass", "Primus", "Porn Groove", "Satire", "Slow Jam",
+			"Club", "Tango", "Samba", "Folklore", "Ballad", "Power Ballad",
+			"Rhythmic Soul", "Freestyle", "Duet", "Punk Rock", "Drum Solo",
+			"A capella", "Euro-House", "Dance Hall" };
+
+	private TagReader() {
+	}
+
+	/**
+	 * Read the tags of a file.
+	 *
+	 * @param file
+	 *            The song.
+	 * @return Its tags; {@link Tags#EMPTY} if it has none we understand.
+	 * @throws IOException
+	 *             If the file can't be read.
+	 */
+	public static Tags read(File file) throws IOException {
+		return read(file.toPath());
+	}
+
+	/**
+	 * Read the tags of a file.
+	 *
+	 * @param file
+	 *            The song.
+	 * @return Its tags; {@link Tags#EMPTY} if it has none we understand.
+	 * @throws IOException
+	 *             If the file can't be read.
+	 */
+	public static Tags read(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			ByteBuffer head = readAt(channel, 0, 12);
+			if (head == null) {
+				return Tags.EMPTY;
+			}
+			Tags tags = null;
+			if (is(head, 0, "RIFF") && is(head, 8, "WAVE")) {
+				tags = readRiff(channel, head.order(ByteOrder.LITTLE_ENDIAN)
+						.getInt(4) & 0xFFFFFFFFL);
+			} else {
+				if (is(head, 0, "ID3")) {
+					tags = readID3v2(channel, 0);
+				}
+				Tags v1 = readID3v1(channel);
+				if (v1 != null) {
+					tags = tags == null ? v1 : tags.or(v1);
+				}
+			}
+			return tags == null ? Tags.EMPTY : tags;
+		}
+	}
+
+	// -----Privates-----
+
+	/**
+	 * Read an ID3v2 tag.
+	 *
+	 * @param start
+	 *            Where the tag's header is in the file.
+	 * @return The tags, or null if there isn't a tag we can read there.
+	 */
+	private static Tags readID3v2(FileChannel channel, long start)
+			throws IOException {
+		ByteBuffer header = readAt(channel, start, ID3V2_HEADER);
+		if (header == null || !is(header, 0, "ID3")) {
+			return null;
+		}
+		int version = header.get(3) & 0xFF;
+		int flags = header.get(5) & 0xFF;
+		int size = syncsafe(header, 6);
+		if (version < 2 || version > 4 || size <= 0) {
+			return null;
+		}
+		long first = start + ID3V2_HEADER;
+		long end = Math.min(first + size, channel.size());
+		Frames frames;
+		if ((flags & 0x80) != 0 && version < 4) {
+			// Unsynchronised as a whole; the frame sizes only make sense once
+			// it has been put back, so it's read in one go
+			if (size > MAX_TAG) {
+				return null;
+			}
+			ByteBuffer tag = readAt(channel, first, (int) (end - first));
+			if (tag == null) {
+				return null;
+			}
+			byte[] bytes = resync(tag.array(), 0, tag.limit());
+			frames = new Frames(null, ByteBuffer.wrap(bytes), first);
+			end = first + bytes.length;
+		} else {
+			int window = (int) Math.min(end - first, WINDOW);
+			ByteBuffer front = readAt(channel, first, window);
+			if (front == null) {
+				return null;
+			}
+			frames = new Frames(channel, front, first);
+		}
+
+		long pos = first;
+		if ((flags & 0x40) != 0 && version > 2) {
+			// Skip the extended header
+			ByteBuffer ext = frames.get(pos, 4);
+			if (ext == null) {
+				return null;
+			}
+			pos += version == 3 ? 4 + ext.getInt(0) : syncsafe(ext, 0);
+		}
+
+		String[] fields = new String[FIELDS];
+		int headerSize = version == 2 ? 6 : 10;
+		while (pos + headerSize <= end) {
+			ByteBuffer frame = frames.get(pos, headerSize);
+			if (frame == null || !isFrameId(frame, version == 2 ? 3 : 4)) {
+				// Padding, or junk
+				break;
+			}
+			String id;
+			int frameSize, format = 0;
+			if (version == 2) {
+				id = ascii(frame, 0, 3);
+				frameSize = (frame.get(3) & 0xFF) << 16
+						| (frame.get(4) & 0xFF) << 8 | frame.get(5) & 0xFF;
+			} else {
+				id = ascii(frame, 0, 4);
+				frameSize = version == 4 && isSyncsafe(frame, 4) ? syncsafe(
+						frame, 4) : frame.getInt(4);
+				format = frame.get(9) & 0xFF;
+			}
+			pos += headerSize;
+			if (frameSize <= 0 || pos + frameSize > end) {
+				break;
+			}
+			int field = field(id);
+			if (field >= 0 && fields[field] == null && frameSize <= MAX_FRAME
+					&& readable(version, format)) {
+				ByteBuffer body = frames.get(pos, frameSize);
+				if (body != null) {
+					fields[field] = frameText(body, version, format);
+				}
+			}
+			pos += frameSize;
+		}
+
+		if (fields[ARTIST] == null) {
+			fields[ARTIST] = fields[ALBUM_ARTIST];
+		}
+		fields[GENRE] = genre(fields[GENRE]);
+		return new Tags(fields[TITLE], fields[ARTIST], fields[ALBUM],
+				fields[YEAR], fields[TRACK], fields[GENRE]);
+	}
+
+	/**
+	 * The bytes of an ID3v2 tag: the front of the tag, already read, and the
+	 * file for anything past it.
+	 */
+	private static final class Frames {
+		final FileChannel channel;
+		final ByteBuffer front;
+		final long frontStart;
+
+		Frames(FileChannel channel, ByteBuffer front, long frontStart) {
+			this.channel = channel;
+			this.front = front;
+			this.frontStart = frontStart;
+		}
+
+		/**
+		 * @return len bytes from pos in the file, as a big endian buffer
+		 *         starting at zero, or null if they aren't there.
+		 */
+		ByteBuffer get(long pos, int len) throws IOException {
+			long off = pos - frontStart;
+			if (off >= 0 && off + len <= front.limit()) {
+				ByteBuffer b = front.duplicate();
+				b.position((int) off).limit((int) off + len);
+				return b.slice();
+			}
+			return channel == null ? null : readAt(channel, pos, len);
+		}
+	}
+
+	/**
+	 * @return The text of a frame, read from its body.
+	 */
+	private static String frameText(ByteBuffer body, int version, int format) {
+		int skip = 0;
+		if (version == 3 && (format & 0x20) != 0) {
+			// Group id
+			skip = 1;
+		} else if (version == 4) {
+			skip = ((format & 0x40) != 0 ? 1 : 0)
+					+ ((format & 0x01) != 0 ? 4 : 0);
+		}
+		byte[] bytes = new byte[body.limit() - Math.min(skip, body.limit())];
+		body.position(body.limit() - bytes.length);
+		body.get(bytes);
+		int len = bytes.length;
+		if (version == 4 && (format & 0x02) != 0) {
+			bytes = resync(bytes, 0, len);
+			len = bytes.length;
+		}
+		return text(bytes, len);
+	}
+
+	/**
+	 * Decode an ID3v2 text frame: an encoding byte, then the text, which may
+	 * be several values split by terminators. Only the first is kept.
+	 */
+	private static String text(byte[] b, int len) {
+		if (len < 1) {
+			return null;
+		}
+		Charset charset;
+		switch (b[0]) {
+		case 0:
+			charset = StandardCharsets.ISO_8859_1;
+			break;
+		case 1:
+			charset = StandardCharsets.UTF_16;
+			break;
+		case 2:
+			charset = StandardCharsets.UTF_16BE;
+			break;
+		case 3:
+			charset = StandardCharsets.UTF_8;
+			break;
+		default:
+			return null;
+		}
+		int stop = 1;
+		if (b[0] == 1 || b[0] == 2) {
+			while (stop + 1 < len && (b[stop] != 0 || b[stop + 1] != 0)) {
+				stop += 2;
+			}
+		} else {
+			while (stop < len && b[stop] != 0) {
+				stop++;
+			}
+		}
+		return new String(b, 1, Math.min(stop, len) - 1, charset);
+	}
+
+	/**
+	 * @return false for frames that are compressed or encrypted.
+	 */
+	private static boolean readable(int version, int format) {
+		if (version == 3) {
+			return (format & 0xC0) == 0;
+		}
+		if (version == 4) {
+			return (format & 0x0C) == 0;
+		}
+		return true;
+	}
+
+	/**
+	 * @return The field a frame holds, or -1 if we don't keep it.
+	 */
+	private static int field(String id) {
+		switch (id) {
+		case "TIT2":
+		case "TT2":
+			return TITLE;
+		case "TPE1":
+		case "TP1":
+			return ARTIST;
+		case "TPE2":
+		case "TP2":
+			return ALBUM_ARTIST;
+		case "TALB":
+		case "TAL":
+			return ALBUM;
+		case "TDRC":
+		case "TYER":
+		case "TYE":
+			return YEAR;
+		case "TRCK":
+		case "TRK":
+			return TRACK;
+		case "TCON":
+		case "TCO":
+			return GENRE;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Turn an ID3 genre into a name. ID3v2 allows "(17)", "17" and
+	 * "(17)Rock" for an ID3v1 genre, the last with a refinement.
+	 */
+	private static String genre(String genre) {
+		if (genre == null) {
+			return null;
+		}
+		String number = genre;
+		if (genre.startsWith("(")) {
+			int close = genre.indexOf(')');
+			if (close < 0) {
+				return genre;
+			}
+			if (close + 1 < genre.length()) {
+				return genre.substring(close + 1);
+			}
+			number = genre.substring(1, close);
+		}
+		try {
+			int g = Integer.parseInt(number);
+			return g >= 0 && g < GENRES.length ? GENRES[g] : genre;
+		} catch (NumberFormatException e) {
+			return genre;
+		}
+	}
+
+	/**
+	 * Read the ID3v1 tag at the end of a file.
+	 *
+	 * @return The tags, or null if there isn't one.
+	 */
+	private static Tags readID3v1(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size < ID3V1_SIZE) {
+			return null;
+		}
+		ByteBuffer tag = readAt(channel, size - ID3V1_SIZE, ID3V1_SIZE);
+		if (tag == null || !is(tag, 0, "TAG")) {
+			return null;
+		}
+		String track = null;
+		// ID3v1.1 puts the track in the last two bytes of the comment
+		if (tag.get(125) == 0 && tag.get(126) != 0) {
+			track = String.valueOf(tag.get(126) & 0xFF);
+		}
+		int genre = tag.get(127) & 0xFF;
+		return new Tags(latin1(tag, 3, 30), latin1(tag, 33, 30), latin1(tag,
+				63, 30), latin1(tag, 93, 4), track,
+				genre < GENRES.length ? GENRES[genre] : null);
+	}
+
+	/**
+	 * Walk the chunks of a WAV file for a LIST/INFO chunk and an ID3v2 chunk.
+	 *
+	 * @param riffSize
+	 *            The size from the RIFF header.
+	 * @return The tags, or null if there are none.
+	 */
+	private static Tags readRiff(FileChannel channel, long riffSize)
+			throws IOException {
+		long end = Math.min(channel.size(), 8 + riffSize);
+		long pos = 12;
+		Tags info = null, id3 = null;
+		while (pos + 8 <= end) {
+			ByteBuffer chunk = readAt(channel, pos, 8);
+			if (chunk == null) {
+				break;
+			}
+			long size = chunk.order(ByteOrder.LITTLE_ENDIAN).getInt(4) & 0xFFFFFFFFL;
+			long body = pos + 8;
+			if (is(chunk, 0, "LIST") && size >= 4 && size <= MAX_FRAME
+					&& info == null) {
+				ByteBuffer list = readAt(channel, body, (int) Math.min(size,
+						end - body));
+				if (list != null && is(list, 0, "INFO")) {
+					info = readInfo(list.order(ByteOrder.LITTLE_ENDIAN));
+				}
+			} else if ((is(chunk, 0, "id3 ") || is(chunk, 0, "ID3 "))
+					&& id3 == null) {
+				id3 = readID3v2(channel, body);
+			}
+			// Chunks are padded to an even length
+			pos = body + size + (size & 1);
+		}
+		if (id3 != null) {
+			return info == null ? id3 : id3.or(info);
+		}
+		return info;
+	}
+
+	/**
+	 * Read the sub-chunks of a LIST/INFO chunk.
+	 */
+	private static Tags readInfo(ByteBuffer list) {
+		String[] fields = new String[FIELDS];
+		int pos = 4;
+		while (pos + 8 <= list.limit()) {
+			String id = ascii(list, pos, 4);
+			int size = list.getInt(pos + 4);
+			int body = pos + 8;
+			if (size < 0 || body + size > list.limit()) {
+				break;
+			}
+			int field = infoField(id);
+			if (field >= 0 && fields[field] == null) {
+				fields[field] = infoText(list, body, size);
+			}
+			pos = body + size + (size & 1);
+		}
+		return new Tags(fields[TITLE], fields[ARTIST], fields[ALBUM],
+				fields[YEAR], fields[TRACK], genre(fields[GENRE]));
+	}
+
+	private static int infoField(String id) {
+		switch (id) {
+		case "INAM":
+			return TITLE;
+		case "IART":
+			return ARTIST;
+		case "IPRD":
+			return ALBUM;
+		case "ICRD":
+			return YEAR;
+		case "ITRK":
+		case "IPRT":
+			return TRACK;
+		case "IGNR":
+			return GENRE;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Decode an INFO string. The format says nothing of its charset; UTF-8
+	 * is tried first, and anything that isn't valid UTF-8 read as Latin-1.
+	 */
+	private static String infoText(ByteBuffer list, int off, int len) {
+		int stop = off;
+		while (stop < off + len && list.get(stop) != 0) {
+			stop++;
+		}
+		ByteBuffer text = list.duplicate();
+		text.position(off).limit(stop);
+		try {
+			CharBuffer chars = StandardCharsets.UTF_8.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT)
+					.decode(text);
+			return chars.toString();
+		} catch (CharacterCodingException e) {
+			text.position(off);
+			return StandardCharsets.ISO_8859_1.decode(text).toString();
+		}
+	}
+
+	/**
+	 * Undo unsynchronisation: drop the zero byte placed after every 0xFF.
+	 */
+	private static byte[] resync(byte[] b, int off, int len) {
+		byte[] out = new byte[len];
+		int n = 0;
+		for (int i = off; i < off + len; i++) {
+			out[n++] = b[i];
+			if (b[i] == (byte) 0xFF && i + 1 < off + len && b[i + 1] == 0) {
+				i++;
+			}
+		}
+		return n == len ? out : Arrays.copyOf(out, n);
+	}
+
+	/**
+	 * @return A 28 bit syncsafe integer: four bytes of seven bits each.
+	 */
+	private static int syncsafe(ByteBuffer b, int off) {
+		return (b.get(off) & 0x7F) << 21 | (b.get(off + 1) & 0x7F) << 14
+				| (b.get(off + 2) & 0x7F) << 7 | b.get(off + 3) & 0x7F;
+	}
+
+	/**
+	 * Some ID3v2.4 writers store plain sizes, as in 2.3; a size with a top
+	 * bit set can't be syncsafe.
+	 */
+	private static boolean isSyncsafe(ByteBuffer b, int off) {
+		return ((b.get(off) | b.get(off + 1) | b.get(off + 2) | b
+				.get(off + 3)) & 0x80) == 0;
+	}
+
+	private static boolean isFrameId(ByteBuffer b, int len) {
+		for (int i = 0; i < len; i++) {
+			byte c = b.get(i);
+			if (!(c >= 'A' && c <= 'Z' || c >= '0' && c <= '9')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean is(ByteBuffer b, int off, String id) {
+		if (b.limit() < off + id.length()) {
+			return false;
+		}
+		for (int i = 0; i < id.length(); i++) {
+			if (b.get(off + i) != id.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String ascii(ByteBuffer b, int off, int len) {
+		char[] c = new char[len];
+		for (int i = 0; i < len; i++) {
+			c[i] = (char) (b.get(off + i) & 0xFF);
+		}
+		return new String(c);
+	}
+
+	/**
+	 * @return A fixed width ID3v1 field, up to its first zero byte.
+	 */
+	private static String latin1(ByteBuffer b, int off, int len) {
+		int stop = off;
+		while (stop < off + len && b.get(stop) != 0) {
+			stop++;
+		}
+		return ascii(b, off, stop - off);
+	}
+
+	/**
+	 * @return len bytes from pos, as a big endian heap buffer, or null if
+	 *         the file ends first.
+	 */
+	private static ByteBuffer readAt(FileChannel channel, long pos, int len)
+			throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(len);
+		while (b.hasRemaining()) {
+			if (channel.read(b, pos + b.position()) < 0) {
+				return null;
+			}
+		}
+		b.flip();
+		return b;
+	}
+}
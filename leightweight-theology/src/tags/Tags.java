@@ -0,0 +1,117 @@
+package tags;
+
+/**
+ * The tags of one song: who made it and what it's called. Any of the fields
+ * may be null when the file doesn't say.
+ *
+ * @author Connor Findlay
+ */
+public final class Tags {
+	/** Tags for a file that has none. */
+	public static final Tags EMPTY = new Tags(null, null, null, null, null,
+			null);
+
+	private final String title;
+	private final String artist;
+	private final String album;
+	private final String year;
+	private final String track;
+	private final String genre;
+
+	/**
+	 * Create a set of tags. Empty strings are taken to mean no value.
+	 */
+	public Tags(String title, String artist, String album, String year,
+			String track, String genre) {
+		this.title = clean(title);
+		this.artist = clean(artist);
+		this.album = clean(album);
+		this.year = clean(year);
+		this.track = clean(track);
+		this.genre = clean(genre);
+	}
+
+	/** @return The title of the song. */
+	public String getTitle() {
+		return title;
+	}
+
+	/** @return The artist. */
+	public String getArtist() {
+		return artist;
+	}
+
+	/** @return The album the song is from. */
+	public String getAlbum() {
+		return album;
+	}
+
+	/** @return The year, or full date, of release. */
+	public String getYear() {
+		return year;
+	}
+
+	/** @return The track number, possibly as "n/total". */
+	public String getTrack() {
+		return track;
+	}
+
+	/** @return The genre. */
+	public String getGenre() {
+		return genre;
+	}
+
+	/** @return true if no field has a value. */
+	public boolean isEmpty() {
+		return title == null && artist == null && album == null
+				&& year == null && track == null && genre == null;
+	}
+
+	/**
+	 * Fill in the fields this set is missing from another set.
+	 *
+	 * @param other
+	 *            Tags of lower priority, such as an ID3v1 tag behind an ID3v2
+	 *            one.
+	 * @return The combined tags.
+	 */
+	public Tags or(Tags other) {
+		return new Tags(pick(title, other.title), pick(artist, other.artist),
+				pick(album, other.album), pick(year, other.year), pick(track,
+						other.track), pick(genre, other.genre));
+	}
+
+	/**
+	 * @return "Artist - Title", or just the title, or null if there isn't
+	 *         one.
+	 */
+	public String getDisplayName() {
+		if (title == null) {
+			return null;
+		}
+		return artist == null ? title : artist + " - " + title;
+	}
+
+	/**
+	 * @return The display name, or an empty string if there is no title.
+	 */
+	@Override
+	public String toString() {
+		String name = getDisplayName();
+		return name == null ? "" : name;
+	}
+
+	// -----Privates-----
+
+	private static String pick(String a, String b) {
+		return a != null ? a : b;
+	}
+
+	private static String clean(String s) {
+		if (s == null) {
+			return null;
+		}
+		s = s.trim();
+		return s.isEmpty() ? null : s;
+	}
+}
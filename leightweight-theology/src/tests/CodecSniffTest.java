@@ -0,0 +1,107 @@
+package tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import codec.Codec;
+import codec.CodecRegistry;
+
+/**
+ * Checks the codec registry tells files apart by their first bytes, whatever
+ * they are called: a real WAV, and files that only start like an MP3 with an
+ * ID3 tag, a bare MP3 frame, FLAC, Ogg and AIFF, each given the wrong
+ * extension, plus one that is none of them, next to what the operating
+ * system guesses from each file, as the player used to ask it. Then times
+ * the two. Run with: java tests.CodecSniffTest
+ */
+public class CodecSniffTest {
+	private static final int ROUNDS = 20000;
+
+	public static void main(String args[]) throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"),
+				"codec-sniff-test");
+		dir.mkdirs();
+		File wav = new File(dir, "song.mp3");
+		AudioFormat f = new AudioFormat(44100, 16, 2, true, false);
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(
+				new byte[4 * 4410]), f, 4410), AudioFileFormat.Type.WAVE, wav);
+		File[] files = {
+				wav,
+				write(new File(dir, "id3.wav"), bytes("ID3", 0x04, 0, 0, 0, 0, 0,
+						0)),
+				// MPEG-1 layer III, 128kbit/s, 44.1kHz
+				write(new File(dir, "frame.ogg"), bytes("", 0xFF, 0xFB, 0x90,
+						0x64)),
+				write(new File(dir, "lossless.wav"), bytes("fLaC", 0, 0, 0, 34)),
+				write(new File(dir, "vorbis.flac"), bytes("OggS", 0, 2)),
+				write(new File(dir, "apple.wav"), bytes("FORM", 0, 0, 0, 4,
+						'A', 'I', 'F', 'F')),
+				write(new File(dir, "notes.mp3"), bytes("Dear diary")), };
+		String[] expected = { "WAV", "MP3", "MP3", "FLAC", "Ogg", "AIFF", null };
+		CodecRegistry codecs = CodecRegistry.getDefault();
+		boolean ok = true;
+		for (int i = 0; i < files.length; i++) {
+			Codec c = codecs.identify(files[i]);
+			String name = c == null ? null : c.getName();
+			boolean right = expected[i] == null ? name == null : expected[i]
+					.equals(name);
+			ok &= right;
+			System.out.printf("%-14s %-5s %-26s %s%n", files[i].getName(), name,
+					right ? "" : "WRONG, expected " + expected[i],
+					"(system says " + Files.probeContentType(files[i].toPath())
+							+ ")");
+		}
+		System.out.println(ok ? "All identified" : "FAILED");
+		AudioInputStream in = codecs.open(wav);
+		System.out.println("Opened " + wav.getName() + ": " + in.getFormat());
+		in.close();
+
+		for (int round = 0; round < 2; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < ROUNDS; i++) {
+				codecs.identify(files[i % files.length]);
+			}
+			double sniff = (System.nanoTime() - start) / 1e3 / ROUNDS;
+			start = System.nanoTime();
+			for (int i = 0; i < ROUNDS; i++) {
+				Files.probeContentType(files[i % files.length].toPath());
+			}
+			double probe = (System.nanoTime() - start) / 1e3 / ROUNDS;
+			System.out.printf("%s: identify %.1fus a file, probeContentType "
+					+ "%.1fus%n", round == 0 ? "Warm up" : "Timed", sniff, probe);
+		}
+	}
+
+	// -----Privates-----
+
+	/**
+	 * @return Some ASCII text followed by bytes.
+	 */
+	private static byte[] bytes(String text, int... rest) {
+		byte[] b = new byte[text.length() + rest.length];
+		for (int i = 0; i < text.length(); i++) {
+			b[i] = (byte) text.charAt(i);
+		}
+		for (int i = 0; i < rest.length; i++) {
+			b[text.length() + i] = (byte) rest[i];
+		}
+		return b;
+	}
+
+	private static File write(File file, byte[] b) throws IOException {
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(b);
+			// Padding, so the file is as long as a header
+			out.write(new byte[CodecRegistry.HEADER_SIZE]);
+		}
+		return file;
+	}
+}
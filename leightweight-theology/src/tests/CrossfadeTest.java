@@ -0,0 +1,176 @@
+package tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import audio.Crossfader;
+import audio.WaveFileSink;
+import m3u.Playlist;
+import player.PlayerEvent;
+import player.PlayerListener;
+import player.PlayerModel;
+
+/**
+ * Plays a playlist of two generated tones through the whole player with a
+ * crossfade, into a WAV file, and checks what came out: that it is as long
+ * as the two songs less the overlap, and that the loudness holds steady
+ * through the fade, within a decibel, rather than dipping in the middle.
+ * Then times the mixer on its own, as a share of one core while playing.
+ * Needs no sound card or music. Exits with 1 if the output is wrong. Run
+ * with: java tests.CrossfadeTest
+ */
+public class CrossfadeTest {
+	private static final int RATE = 44100;
+	private static final int SONG_SECONDS = 6;
+	private static final int FADE_SECONDS = 2;
+	private static final int BLOCK = 16384;
+	// The tones are mono 16 bit, and the player decodes a block at a time
+	private static final int BLOCK_FRAMES = BLOCK / 2;
+	private static final double MAX_DIP_DB = 1;
+
+	public static void main(String args[]) throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"),
+				"crossfade-test");
+		dir.mkdirs();
+		File a = tone(new File(dir, "a.wav"), 440);
+		File b = tone(new File(dir, "b.wav"), 660);
+		File m3u = new File(dir, "songs.m3u");
+		PrintWriter w = new PrintWriter(m3u, "UTF-8");
+		w.println(a.getAbsolutePath());
+		w.println(b.getAbsolutePath());
+		w.close();
+		File out = new File(dir, "out.wav");
+
+		PlayerModel model = new PlayerModel(a.getPath(), new WaveFileSink(out));
+		final CountDownLatch done = new CountDownLatch(1);
+		model.addPlayerListener(new PlayerListener() {
+			public void playerPerfomed(PlayerEvent e) {
+				if (e.getType() == PlayerEvent.Type.STOP) {
+					done.countDown();
+				}
+			}
+		});
+		model.setPlaylist(new Playlist(m3u.getPath()));
+		model.selectPlaylistItem(0);
+		model.setCrossfade(FADE_SECONDS);
+		// The tones are the same loudness; leave them as they are rather than
+		// depend on whether they've been measured yet
+		model.setGainMode(PlayerModel.GainMode.OFF);
+		model.playFile();
+		done.await();
+
+		AudioInputStream in = AudioSystem.getAudioInputStream(out);
+		AudioFormat f = in.getFormat();
+		byte[] pcm = new byte[(int) in.getFrameLength() * f.getFrameSize()];
+		int got = 0, n;
+		while (got < pcm.length
+				&& (n = in.read(pcm, got, pcm.length - got)) != -1) {
+			got += n;
+		}
+		in.close();
+		boolean ok = got == pcm.length;
+		long played = got / f.getFrameSize();
+		// The fade starts at the first block within reach of the end, so it
+		// may run a block long
+		long expected = (long) RATE * (2 * SONG_SECONDS - FADE_SECONDS);
+		boolean length = played <= expected
+				&& played >= expected - BLOCK_FRAMES;
+		ok &= length;
+		System.out.printf("%s%n%.3fs played; %ds expected, less up to a block"
+				+ " %s%n", f, played / f.getFrameRate(), 2 * SONG_SECONDS
+				- FADE_SECONDS, length ? "" : "WRONG");
+		// Loudness over a tenth of a second, every quarter, across the fade
+		int frames = (int) f.getFrameRate() / 10;
+		double start = SONG_SECONDS - FADE_SECONDS - 0.5;
+		double quietest = Double.MAX_VALUE, loudest = -Double.MAX_VALUE;
+		for (double t = start; t < SONG_SECONDS + 0.5; t += 0.25) {
+			int from = (int) (t * f.getFrameRate());
+			if ((long) from + frames > played) {
+				ok = false;
+				break;
+			}
+			double db = rms(pcm, f, from, frames);
+			quietest = Math.min(quietest, db);
+			loudest = Math.max(loudest, db);
+			System.out.printf("  %5.2fs: %6.1fdB%n", t, db);
+		}
+		boolean steady = loudest - quietest <= MAX_DIP_DB;
+		ok &= steady;
+		System.out.printf("Loudness moved %.1fdB; up to %.0fdB allowed %s%n",
+				loudest - quietest, MAX_DIP_DB, steady ? "" : "WRONG");
+
+		timeMixer();
+		System.out.println(ok ? "All correct" : "FAILED");
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+
+	// -----Privates-----
+
+	/**
+	 * Write a mono tone at a quarter of full scale.
+	 */
+	private static File tone(File file, double hz) throws IOException {
+		AudioFormat f = new AudioFormat(RATE, 16, 1, true, false);
+		int frames = RATE * SONG_SECONDS;
+		byte[] b = new byte[frames * 2];
+		for (int i = 0; i < frames; i++) {
+			int v = (int) (8192 * Math.sin(2 * Math.PI * hz * i / RATE));
+			b[2 * i] = (byte) v;
+			b[2 * i + 1] = (byte) (v >> 8);
+		}
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(b), f,
+				frames), AudioFileFormat.Type.WAVE, file);
+		return file;
+	}
+
+	/**
+	 * @return The level of some 16 bit little endian frames, in dB below
+	 *         full scale.
+	 */
+	private static double rms(byte[] pcm, AudioFormat f, int from, int frames) {
+		double sum = 0;
+		int size = f.getFrameSize();
+		for (int i = from; i < from + frames; i++) {
+			int p = i * size;
+			int v = pcm[p + 1] << 8 | pcm[p] & 0xFF;
+			sum += (double) v * v;
+		}
+		return 10 * Math.log10(sum / frames / (32768.0 * 32768.0));
+	}
+
+	/**
+	 * Time fading a minute of one block of noise into another.
+	 */
+	private static void timeMixer() throws IOException {
+		AudioFormat f = new AudioFormat(RATE, 16, 2, true, false);
+		final byte[] noise = new byte[BLOCK];
+		new Random(1).nextBytes(noise);
+		byte[] block = new byte[BLOCK];
+		Crossfader fader = new Crossfader(BLOCK);
+		long frames = (long) RATE * 60;
+		for (int round = 0; round < 2; round++) {
+			fader.start(f, f, frames, 1, 1);
+			long start = System.nanoTime();
+			for (long done = 0; done < frames; done += BLOCK / 4) {
+				System.arraycopy(noise, 0, block, 0, BLOCK);
+				fader.mix(block, 0, BLOCK, new ByteArrayInputStream(noise));
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.printf("%s: a minute of fade in %.3fs, %.3f%% of a core%n",
+					round == 0 ? "Warm up" : "Timed", seconds,
+					100 * seconds / 60);
+			fader.stop();
+		}
+	}
+}
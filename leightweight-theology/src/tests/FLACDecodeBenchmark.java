@@ -0,0 +1,376 @@
+package tests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import codec.CodecRegistry;
+import flac.FLACAudioInputStream;
+import flac.FLACFileReader;
+
+/**
+ * Checks and times the FLAC decoder. With no arguments, a minute of stereo
+ * CD audio is made up and written out as FLAC by a small encoder here (fixed
+ * prediction, Rice coding, left/side stereo), once with a SEEKTABLE and once
+ * without; both are decoded and compared with what went in, sample for
+ * sample, then moved to random places and compared again, and timed. Given a
+ * file, only times that. Run with: java tests.FLACDecodeBenchmark [file.flac]
+ * [passes]
+ */
+public class FLACDecodeBenchmark {
+	private static final int WARMUP_PASSES = 2;
+	private static final int RATE = 44100;
+	private static final int SECONDS = 60;
+	private static final int BLOCK = 4096;
+	private static final int SEEKS = 200;
+	private static final int SEEK_FRAMES = 1000;
+
+	public static void main(String args[]) throws IOException,
+			UnsupportedAudioFileException {
+		int passes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		byte[] buffer = new byte[16384];
+		if (args.length > 0) {
+			time(new File(args[0]), passes, buffer);
+			return;
+		}
+		File dir = new File(System.getProperty("java.io.tmpdir"),
+				"flac-decode-benchmark");
+		dir.mkdirs();
+		short[] audio = makeAudio();
+		File indexed = new File(dir, "indexed.flac");
+		File plain = new File(dir, "plain.flac");
+		encode(audio, indexed, true);
+		encode(audio, plain, false);
+		byte[] pcm = new byte[audio.length * 2];
+		for (int i = 0; i < audio.length; i++) {
+			pcm[2 * i] = (byte) audio[i];
+			pcm[2 * i + 1] = (byte) (audio[i] >> 8);
+		}
+		System.out.printf("Encoded %ds of audio, %d bytes of PCM, to %d bytes%n",
+				SECONDS, pcm.length, indexed.length());
+
+		boolean ok = true;
+		try (AudioInputStream in = CodecRegistry.getDefault().open(indexed)) {
+			System.out.println("Opened as " + in.getClass().getSimpleName() + ": "
+					+ in.getFormat());
+			// Room for a frame more, in case the decoder makes one up
+			byte[] out = new byte[pcm.length + 4];
+			int n = 0, r;
+			while (n < out.length
+					&& (r = in.read(out, n, out.length - n)) != -1) {
+				n += r;
+			}
+			boolean exact = n == pcm.length
+					&& Arrays.equals(Arrays.copyOf(out, n), pcm);
+			ok &= exact;
+			System.out.println("Decoded " + (exact ? "exactly" : "WRONG"));
+		}
+		ok &= seeks(indexed, pcm, "with a seek table");
+		ok &= seeks(plain, pcm, "by searching");
+		System.out.println(ok ? "All correct" : "FAILED");
+		time(indexed, passes, buffer);
+	}
+
+	// -----Privates-----
+
+	/**
+	 * Move to random frames and check what comes out there.
+	 *
+	 * @return true if every seek read the right audio.
+	 */
+	private static boolean seeks(File file, byte[] pcm, String how)
+			throws IOException, UnsupportedAudioFileException {
+		Random random = new Random(1);
+		byte[] got = new byte[SEEK_FRAMES * 4];
+		long frames = pcm.length / 4;
+		int wrong = 0;
+		long start = System.nanoTime();
+		try (FLACAudioInputStream in = (FLACAudioInputStream) new FLACFileReader()
+				.getAudioInputStream(file)) {
+			for (int i = 0; i < SEEKS; i++) {
+				long frame = (long) (random.nextDouble() * frames);
+				in.seek(frame);
+				int want = (int) Math.min(got.length, (frames - frame) * 4);
+				int n = 0, r;
+				while (n < want && (r = in.read(got, n, want - n)) != -1) {
+					n += r;
+				}
+				int at = (int) (frame * 4);
+				if (n != want
+						|| !Arrays.equals(Arrays.copyOf(got, n),
+								Arrays.copyOfRange(pcm, at, at + want))) {
+					wrong++;
+				}
+			}
+		}
+		System.out.printf("%d seeks %s: %d wrong, %.2fms each%n", SEEKS, how,
+				wrong, (System.nanoTime() - start) / 1e6 / SEEKS);
+		return wrong == 0;
+	}
+
+	private static void time(File file, int passes, byte[] buffer)
+			throws IOException, UnsupportedAudioFileException {
+		// Let the JIT see the decoder before we time it
+		for (int i = 0; i < WARMUP_PASSES; i++) {
+			decode(file, buffer);
+		}
+		double best = 0;
+		for (int i = 1; i <= passes; i++) {
+			long start = System.nanoTime();
+			double audioSeconds = decode(file, buffer);
+			double wallSeconds = (System.nanoTime() - start) / 1e9;
+			double speed = audioSeconds / wallSeconds;
+			best = Math.max(best, speed);
+			System.out.printf("Pass %d: %.1fs of audio in %.3fs, %.1fx real time%n",
+					i, audioSeconds, wallSeconds, speed);
+		}
+		System.out.printf("Best: %.1fx real time%n", best);
+	}
+
+	/**
+	 * Decode the whole file, throwing the PCM away.
+	 *
+	 * @return The length of the decoded audio, in seconds.
+	 */
+	private static double decode(File file, byte[] buffer)
+			throws IOException, UnsupportedAudioFileException {
+		long bytes = 0;
+		AudioFormat format;
+		try (AudioInputStream in = new FLACFileReader()
+				.getAudioInputStream(file)) {
+			format = in.getFormat();
+			int n;
+			while ((n = in.read(buffer, 0, buffer.length)) != -1) {
+				bytes += n;
+			}
+		}
+		return bytes / (double) format.getFrameSize() / format.getFrameRate();
+	}
+
+	/**
+	 * @return Interleaved stereo: a gliding tone and a steady one, a little
+	 *         noise, and a second of silence in the middle.
+	 */
+	static short[] makeAudio() {
+		Random random = new Random(5);
+		int frames = RATE * SECONDS;
+		short[] audio = new short[2 * frames];
+		double glide = 0, steady = 0;
+		for (int i = 0; i < frames; i++) {
+			double t = (double) i / RATE;
+			double v = Math.sin(glide) + 0.5 * Math.sin(steady);
+			glide += 2 * Math.PI * (220 + 110 * Math.sin(0.3 * t)) / RATE;
+			steady += 2 * Math.PI * 1375 / RATE;
+			if (t >= SECONDS / 2 && t < SECONDS / 2 + 1) {
+				continue;
+			}
+			for (int ch = 0; ch < 2; ch++) {
+				double s = 10000 * (v * (ch == 0 ? 1 : 0.8) + 0.05 * random
+						.nextGaussian());
+				audio[2 * i + ch] = (short) Math.round(s);
+			}
+		}
+		return audio;
+	}
+
+	/**
+	 * Write 16 bit stereo as FLAC: fixed size blocks, each channel pair
+	 * coded as left and side, each subframe by the second order fixed
+	 * predictor and a single Rice partition.
+	 */
+	static void encode(short[] audio, File file, boolean seekTable)
+			throws IOException {
+		int frames = audio.length / 2;
+		int blocks = (frames + BLOCK - 1) / BLOCK;
+		int blocksPerPoint = 10 * RATE / BLOCK;
+		int points = seekTable ? (blocks + blocksPerPoint - 1) / blocksPerPoint
+				: 0;
+		BitWriter meta = new BitWriter();
+		meta.write(0x664C6143, 32); // fLaC
+		meta.write(points > 0 ? 0 : 1, 1);
+		meta.write(0, 7);
+		meta.write(34, 24);
+		meta.write(BLOCK, 16);
+		meta.write(BLOCK, 16);
+		meta.write(0, 24);
+		meta.write(0, 24);
+		meta.write(RATE, 20);
+		meta.write(2 - 1, 3);
+		meta.write(16 - 1, 5);
+		meta.write(0, 4);
+		meta.write(frames, 32);
+		for (int i = 0; i < 4; i++) {
+			meta.write(0, 32); // No MD5
+		}
+		BitWriter audioFrames = new BitWriter();
+		long[] offsets = new long[points];
+		int[] left = new int[BLOCK], side = new int[BLOCK];
+		for (int b = 0; b < blocks; b++) {
+			if (b % blocksPerPoint == 0 && b / blocksPerPoint < points) {
+				offsets[b / blocksPerPoint] = audioFrames.length();
+			}
+			int n = Math.min(BLOCK, frames - b * BLOCK);
+			for (int i = 0; i < n; i++) {
+				int l = audio[2 * (b * BLOCK + i)];
+				int r = audio[2 * (b * BLOCK + i) + 1];
+				left[i] = l;
+				side[i] = l - r;
+			}
+			writeFrame(audioFrames, b, n, left, side);
+		}
+		if (points > 0) {
+			meta.write(1, 1);
+			meta.write(3, 7);
+			meta.write(18 * points, 24);
+			for (int p = 0; p < points; p++) {
+				long sample = (long) p * blocksPerPoint * BLOCK;
+				meta.write((int) (sample >>> 32), 32);
+				meta.write((int) sample, 32);
+				meta.write((int) (offsets[p] >>> 32), 32);
+				meta.write((int) offsets[p], 32);
+				meta.write(BLOCK, 16);
+			}
+		}
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(meta.bytes, 0, meta.length());
+			out.write(audioFrames.bytes, 0, audioFrames.length());
+		}
+	}
+
+	private static void writeFrame(BitWriter w, int number, int n, int[] left,
+			int[] side) {
+		int start = w.length();
+		w.write(0xFFF8, 16);
+		// Block size: 4096, or 16 bits of it at the end of the header
+		w.write(n == BLOCK ? 12 : 7, 4);
+		w.write(0, 4); // Rate from STREAMINFO
+		w.write(8, 4); // Left and side
+		w.write(4, 3); // 16 bits
+		w.write(0, 1);
+		// The frame number, UTF-8 style
+		if (number < 0x80) {
+			w.write(number, 8);
+		} else if (number < 0x800) {
+			w.write(0xC0 | number >> 6, 8);
+			w.write(0x80 | number & 0x3F, 8);
+		} else {
+			w.write(0xE0 | number >> 12, 8);
+			w.write(0x80 | number >> 6 & 0x3F, 8);
+			w.write(0x80 | number & 0x3F, 8);
+		}
+		if (n != BLOCK) {
+			w.write(n - 1, 16);
+		}
+		w.write(w.crc8(start), 8);
+		writeSubframe(w, left, n, 16);
+		writeSubframe(w, side, n, 17);
+		w.align();
+		w.write(w.crc16(start), 16);
+	}
+
+	private static void writeSubframe(BitWriter w, int[] x, int n, int bps) {
+		int order = Math.min(2, n);
+		w.write(0, 1);
+		w.write(8 | order, 6); // Fixed predictor
+		w.write(0, 1);
+		for (int i = 0; i < order; i++) {
+			w.write(x[i], bps);
+		}
+		// Rice parameter from the mean size of the residual
+		long sum = 0;
+		for (int i = order; i < n; i++) {
+			sum += zigzag(residual(x, i, order));
+		}
+		int k = 0;
+		while (k < 14 && ((long) (n - order) << (k + 1)) < sum) {
+			k++;
+		}
+		w.write(0, 2); // 4 bit Rice parameters
+		w.write(0, 4); // One partition
+		w.write(k, 4);
+		for (int i = order; i < n; i++) {
+			int u = zigzag(residual(x, i, order));
+			for (int q = u >>> k; q > 0; q--) {
+				w.write(0, 1);
+			}
+			w.write(1, 1);
+			w.write(u & ((1 << k) - 1), k);
+		}
+	}
+
+	private static int residual(int[] x, int i, int order) {
+		return order == 2 ? x[i] - 2 * x[i - 1] + x[i - 2] : x[i] - x[i - 1];
+	}
+
+	private static int zigzag(int r) {
+		return r << 1 ^ r >> 31;
+	}
+
+	/**
+	 * Bits written most significant first into a growing byte array.
+	 */
+	private static final class BitWriter {
+		byte[] bytes = new byte[1 << 16];
+		private int pos;
+		private long acc;
+		private int bits;
+
+		void write(int value, int n) {
+			if (n == 0) {
+				return;
+			}
+			acc = acc << n | value & (0xFFFFFFFFL >>> (32 - n));
+			bits += n;
+			while (bits >= 8) {
+				bits -= 8;
+				put((int) (acc >>> bits));
+			}
+		}
+
+		void align() {
+			if (bits > 0) {
+				write(0, 8 - bits);
+			}
+		}
+
+		/** @return Whole bytes written so far. */
+		int length() {
+			return pos;
+		}
+
+		int crc8(int from) {
+			int c = 0;
+			for (int i = from; i < pos; i++) {
+				c ^= bytes[i] & 0xFF;
+				for (int j = 0; j < 8; j++) {
+					c = (c & 0x80) != 0 ? (c << 1 ^ 0x07) & 0xFF : c << 1;
+				}
+			}
+			return c;
+		}
+
+		int crc16(int from) {
+			int c = 0;
+			for (int i = from; i < pos; i++) {
+				c ^= (bytes[i] & 0xFF) << 8;
+				for (int j = 0; j < 8; j++) {
+					c = (c & 0x8000) != 0 ? (c << 1 ^ 0x8005) & 0xFFFF : c << 1;
+				}
+			}
+			return c;
+		}
+
+		private void put(int b) {
+			if (pos == bytes.length) {
+				bytes = Arrays.copyOf(bytes, 2 * bytes.length);
+			}
+			bytes[pos++] = (byte) b;
+		}
+	}
+}
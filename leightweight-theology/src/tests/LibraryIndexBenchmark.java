@@ -0,0 +1,116 @@
+package tests;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import library.LibraryIndex;
+import library.LibraryIndexer;
+
+/**
+ * Times the library indexer on a made up library: the first walk, opening
+ * the saved index and catching up with a library that hasn't changed, as on
+ * every start after the first, and how long a change made while running
+ * takes to reach the index. Run with the number of songs: java
+ * tests.LibraryIndexBenchmark 200000
+ */
+public class LibraryIndexBenchmark {
+	private static final int SONGS_PER_ALBUM = 12;
+
+	public static void main(String args[]) throws Exception {
+		int songs = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		Path dir = Files.createTempDirectory("library");
+		Path music = dir.resolve("music");
+		Path indexFile = dir.resolve("library.index");
+		try {
+			writeLibrary(music, songs);
+
+			long start = System.nanoTime();
+			LibraryIndex index = new LibraryIndex(indexFile);
+			LibraryIndexer indexer = new LibraryIndexer(index, null);
+			LinkedBlockingQueue<Integer> changes = listen(indexer);
+			indexer.addRoot(music);
+			indexer.start();
+			changes.take();
+			report("First walk", start, index.size());
+
+			Path album = music.resolve("Artist 0").resolve("Album 0");
+			Files.write(album.resolve("new.mp3"), new byte[1024]);
+			Files.delete(album.resolve("01.mp3"));
+			start = System.nanoTime();
+			changes.take();
+			report("Add one, remove one", start, index.size());
+			indexer.close();
+
+			start = System.nanoTime();
+			index = new LibraryIndex(indexFile);
+			report("Opening the index", start, index.size());
+			start = System.nanoTime();
+			indexer = new LibraryIndexer(index, null);
+			changes = listen(indexer);
+			indexer.start();
+			changes.take();
+			report("Catching up (unchanged)", start, index.size());
+			indexer.close();
+			System.out.printf("Index file: %,d bytes%n", Files.size(indexFile));
+		} finally {
+			delete(dir);
+		}
+	}
+
+	private static LinkedBlockingQueue<Integer> listen(LibraryIndexer indexer) {
+		final LinkedBlockingQueue<Integer> changes = new LinkedBlockingQueue<Integer>();
+		indexer.addListener(new LibraryIndexer.Listener() {
+			public void libraryChanged(LibraryIndex index) {
+				changes.add(index.size());
+			}
+		});
+		return changes;
+	}
+
+	private static void report(String what, long start, int songs) {
+		System.out.printf("%-26s %9.1f ms (%d songs)%n", what,
+				(System.nanoTime() - start) / 1e6, songs);
+	}
+
+	/**
+	 * Write empty songs in artist and album directories.
+	 */
+	private static void writeLibrary(Path music, int songs) throws IOException {
+		for (int i = 0; i < songs; i++) {
+			int album = i / SONGS_PER_ALBUM;
+			Path dir = music.resolve("Artist " + album / 10).resolve(
+					"Album " + album);
+			if (i % SONGS_PER_ALBUM == 0) {
+				Files.createDirectories(dir);
+			}
+			try (OutputStream out = Files.newOutputStream(dir.resolve(String
+					.format("%02d.mp3", i % SONGS_PER_ALBUM + 1)))) {
+				out.write(0);
+			}
+		}
+	}
+
+	private static void delete(Path dir) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path d, IOException e)
+					throws IOException {
+				Files.delete(d);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
@@ -0,0 +1,139 @@
+package tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import loudness.Gain;
+import loudness.GainCache;
+import loudness.GainScanner;
+import loudness.Loudness;
+import loudness.LoudnessMeter;
+
+/**
+ * Checks and times measuring loudness. First the meter on signals whose
+ * answers are known: a 1kHz sine at -23dBFS in both channels of a stereo
+ * song should read -23 LUFS, and a full scale sine at a quarter of the
+ * sample rate, sampled at 45 degrees either side of its peaks, should have
+ * a true peak of 0dB though no sample goes above -3dB. Then how many times
+ * faster than real time the meter goes on its own, and the whole scanner,
+ * decoding WAV files into a fresh cache, with one thread and then every
+ * core. Needs no music. Run with: java tests.LoudnessBenchmark
+ */
+public class LoudnessBenchmark {
+	private static final int RATE = 44100;
+	private static final int BLOCK = 4096;
+	private static final int SONGS = 16;
+	private static final int SONG_SECONDS = 30;
+
+	public static void main(String args[]) throws Exception {
+		Loudness l = measure(sine(1000, Math.pow(10, -23 / 20.0), 0, 20));
+		System.out.printf("1kHz at -23dBFS: %.2f LUFS, -23 expected%n",
+				l.getIntegrated());
+		l = measure(sine(RATE / 4, 1, Math.PI / 4, 1));
+		System.out.printf("Quarter rate sine at 45 degrees: %.2fdB true peak,"
+				+ " 0 expected%n", 20 * Math.log10(l.getTruePeak()));
+		System.out.println("Silence: " + measure(new float[2 * RATE]));
+
+		float[] noise = new float[2 * RATE * 60];
+		Random r = new Random(1);
+		for (int i = 0; i < noise.length; i++) {
+			noise[i] = (float) (r.nextGaussian() * 0.1);
+		}
+		for (int round = 0; round < 2; round++) {
+			long start = System.nanoTime();
+			measure(noise);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.printf("%s: a minute of stereo in %.3fs, %.0fx real time%n",
+					round == 0 ? "Warm up" : "Meter", seconds, 60 / seconds);
+		}
+
+		scan();
+	}
+
+	// -----Privates-----
+
+	/**
+	 * @return Stereo frames of a sine, the same in both channels.
+	 */
+	private static float[] sine(double hz, double amplitude, double phase,
+			int seconds) {
+		float[] s = new float[2 * RATE * seconds];
+		for (int i = 0; i < s.length / 2; i++) {
+			s[2 * i] = s[2 * i + 1] = (float) (amplitude * Math.sin(2 * Math.PI
+					* hz * i / RATE + phase));
+		}
+		return s;
+	}
+
+	/**
+	 * Measure stereo frames a block at a time, as the scanner does.
+	 */
+	private static Loudness measure(float[] samples) {
+		LoudnessMeter meter = new LoudnessMeter(2, RATE, BLOCK);
+		float[] block = new float[2 * BLOCK];
+		int frames = samples.length / 2;
+		for (int f = 0; f < frames; f += BLOCK) {
+			int n = Math.min(BLOCK, frames - f);
+			System.arraycopy(samples, 2 * f, block, 0, 2 * n);
+			meter.add(block, n);
+		}
+		return meter.getLoudness();
+	}
+
+	/**
+	 * Write songs of noise at different levels, and time scanning them into
+	 * an empty cache with more and more threads. Then check what was cached
+	 * survives closing and opening the cache again.
+	 */
+	private static void scan() throws IOException {
+		File dir = new File(System.getProperty("java.io.tmpdir"),
+				"loudness-benchmark");
+		dir.mkdirs();
+		List<File> songs = new ArrayList<File>();
+		Random r = new Random(2);
+		AudioFormat f = new AudioFormat(RATE, 16, 2, true, false);
+		byte[] pcm = new byte[RATE * SONG_SECONDS * 4];
+		for (int i = 0; i < SONGS; i++) {
+			double level = 1000 + 500 * i;
+			for (int j = 0; j < pcm.length; j += 2) {
+				int v = (int) Math.max(-32768, Math.min(32767,
+						r.nextGaussian() * level));
+				pcm[j] = (byte) v;
+				pcm[j + 1] = (byte) (v >> 8);
+			}
+			File song = new File(dir, "song" + i + ".wav");
+			AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(
+					pcm), f, pcm.length / 4), AudioFileFormat.Type.WAVE, song);
+			songs.add(song);
+		}
+		File cacheFile = new File(dir, "gain.cache");
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int threads = 1; threads <= cores; threads = threads == cores ? cores + 1
+				: Math.min(2 * threads, cores)) {
+			cacheFile.delete();
+			GainCache cache = new GainCache(cacheFile.toPath());
+			GainScanner.Report report = new GainScanner(cache, null, threads,
+					false).scan(songs);
+			System.out.printf("%d thread%s: %s%n", threads, threads == 1 ? ""
+					: "s", report);
+			cache.close();
+		}
+		GainCache cache = new GainCache(cacheFile.toPath());
+		Gain quiet = cache.get(songs.get(0));
+		Gain loud = cache.get(songs.get(SONGS - 1));
+		System.out.println("Quietest, reopened: " + quiet + ", x"
+				+ quiet.getScale(false));
+		System.out.println("Loudest, reopened: " + loud + ", x"
+				+ loud.getScale(false));
+		cache.close();
+	}
+}
@@ -0,0 +1,62 @@
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import mp3.BasicMP3FileReader;
+
+/**
+ * Measures how fast {@link BasicMP3FileReader} decodes a file, as a multiple
+ * of real time. Run with the file to decode and, optionally, the number of
+ * timed passes: java tests.MP3DecodeBenchmark test.mp3 5
+ */
+public class MP3DecodeBenchmark {
+	private static final int WARMUP_PASSES = 2;
+
+	public static void main(String args[]) throws IOException,
+			UnsupportedAudioFileException {
+		File file = new File(args.length > 0 ? args[0] : "test.mp3");
+		int passes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		byte[] buffer = new byte[16384];
+
+		// Let the JIT see the decoder before we time it
+		for (int i = 0; i < WARMUP_PASSES; i++) {
+			decode(file, buffer);
+		}
+		double best = 0;
+		for (int i = 1; i <= passes; i++) {
+			long start = System.nanoTime();
+			double audioSeconds = decode(file, buffer);
+			double wallSeconds = (System.nanoTime() - start) / 1e9;
+			double speed = audioSeconds / wallSeconds;
+			best = Math.max(best, speed);
+			System.out.printf("Pass %d: %.1fs of audio in %.3fs, %.1fx real time%n",
+					i, audioSeconds, wallSeconds, speed);
+		}
+		System.out.printf("Best: %.1fx real time%n", best);
+	}
+
+	/**
+	 * Decode the whole file, throwing the PCM away.
+	 *
+	 * @return The length of the decoded audio, in seconds.
+	 */
+	private static double decode(File file, byte[] buffer)
+			throws IOException, UnsupportedAudioFileException {
+		long bytes = 0;
+		AudioFormat format;
+		try (AudioInputStream in = new BasicMP3FileReader()
+				.getAudioInputStream(file)) {
+			format = in.getFormat();
+			int n;
+			while ((n = in.read(buffer, 0, buffer.length)) != -1) {
+				bytes += n;
+			}
+		}
+		return bytes / (double) format.getFrameSize() / format.getFrameRate();
+	}
+}
@@ -0,0 +1,44 @@
+package tests;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+import audio.AudioSink;
+import audio.NullSink;
+import audio.WaveFileSink;
+import player.PlayerEvent;
+import player.PlayerListener;
+import player.PlayerModel;
+
+/**
+ * Runs a file through the whole player, decoder thread, ring buffer and
+ * render thread, into a sink that isn't the sound card, and reports how many
+ * times faster than real time it went. Needs no sound card. Run with the file
+ * to play and, optionally, a WAV file to write the output to; without one
+ * the output is thrown away: java tests.OfflineRenderBenchmark test.mp3
+ * out.wav
+ */
+public class OfflineRenderBenchmark {
+	public static void main(String args[]) throws InterruptedException {
+		String file = args.length > 0 ? args[0] : "test.mp3";
+		AudioSink sink = args.length > 1 ? new WaveFileSink(new File(args[1]))
+				: new NullSink();
+		PlayerModel model = new PlayerModel(file, sink);
+		final CountDownLatch done = new CountDownLatch(1);
+		model.addPlayerListener(new PlayerListener() {
+			public void playerPerfomed(PlayerEvent e) {
+				if (e.getType() == PlayerEvent.Type.STOP) {
+					done.countDown();
+				}
+			}
+		});
+
+		float audioSeconds = model.getFileDuration();
+		long start = System.nanoTime();
+		model.playFile();
+		done.await();
+		double wallSeconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%.1fs of audio in %.3fs, %.1fx real time%n",
+				audioSeconds, wallSeconds, audioSeconds / wallSeconds);
+	}
+}
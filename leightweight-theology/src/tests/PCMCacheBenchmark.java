@@ -0,0 +1,181 @@
+package tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import audio.Seekable;
+import codec.CodecRegistry;
+import codec.PCMCache;
+import wav.WaveAudioInputStream;
+
+/**
+ * Checks and times the cache of decoded songs. Two songs are made up and
+ * written as FLAC, as in {@link FLACDecodeBenchmark}, then played through
+ * caches of three sizes: room for both, where the second play of a song and
+ * seeks back in it come from the cache, and a song cached ahead is played
+ * without decoding; room for one, where playing the other throws it out;
+ * and room for part of one, where the rest of the song is decoded on from
+ * the end of the cached part. The same song as a WAV must be read in place,
+ * never cached. Every play and seek is checked against what went in, and
+ * the counters are shown after each. Needs no music. Run with:
+ * java tests.PCMCacheBenchmark
+ */
+public class PCMCacheBenchmark {
+	private static final int SEEKS = 200;
+	private static final int SEEK_FRAMES = 1000;
+	private static final long MB = 1 << 20;
+
+	public static void main(String args[]) throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"),
+				"pcm-cache-benchmark");
+		dir.mkdirs();
+		short[] audio = FLACDecodeBenchmark.makeAudio();
+		File a = new File(dir, "a.flac");
+		File b = new File(dir, "b.flac");
+		FLACDecodeBenchmark.encode(audio, a, true);
+		FLACDecodeBenchmark.encode(audio, b, true);
+		byte[] pcm = new byte[audio.length * 2];
+		for (int i = 0; i < audio.length; i++) {
+			pcm[2 * i] = (byte) audio[i];
+			pcm[2 * i + 1] = (byte) (audio[i] >> 8);
+		}
+		System.out.printf("Two songs of %.1fMB of PCM each%n", pcm.length
+				/ 1e6);
+		CodecRegistry codecs = CodecRegistry.getDefault();
+		boolean ok = true;
+
+		PCMCache cache = new PCMCache(codecs, 64 * MB);
+		System.out.println("Room for both:");
+		// Warm up the decoder and the copies out of the cache
+		for (int i = 0; i < 3; i++) {
+			ok &= play(cache, a, pcm, null);
+		}
+		cache.setCapacity(0);
+		cache.setCapacity(64 * MB);
+		ok &= play(cache, a, pcm, "first play, decoded");
+		ok &= play(cache, a, pcm, "second play, cached");
+		ok &= seeks(cache, a, pcm, "back and forth");
+		boolean filled = cache.fill(b);
+		System.out.println("  cached " + b.getName() + " ahead: "
+				+ (filled ? "whole" : "PART"));
+		ok &= filled;
+		ok &= play(cache, b, pcm, "cached ahead");
+		// A fill given way to a player part way through
+		cache.setCapacity(0);
+		cache.setCapacity(64 * MB);
+		cache.fillLater(b);
+		Thread.sleep(20);
+		ok &= play(cache, b, pcm, "taken over from a fill");
+		System.out.println("  " + cache.getStats());
+
+		cache = new PCMCache(codecs, 12 * MB);
+		System.out.println("Room for one:");
+		ok &= play(cache, a, pcm, "a, decoded");
+		ok &= play(cache, b, pcm, "b, decoded, a thrown out");
+		ok &= play(cache, b, pcm, "b, cached");
+		ok &= play(cache, a, pcm, "a, decoded again");
+		System.out.println("  " + cache.getStats());
+		ok &= cache.getStats().getEvictions() == 2;
+
+		cache = new PCMCache(codecs, 4 * MB);
+		System.out.println("Room for part of one:");
+		ok &= play(cache, a, pcm, "decoded");
+		ok &= play(cache, a, pcm, "start cached, rest decoded");
+		ok &= seeks(cache, a, pcm, "back and forth");
+		System.out.println("  " + cache.getStats());
+
+		File w = new File(dir, "w.wav");
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(pcm),
+				new AudioFormat(44100, 16, 2, true, false), pcm.length / 4),
+				AudioFileFormat.Type.WAVE, w);
+		cache = new PCMCache(codecs, 64 * MB);
+		System.out.println("A WAV:");
+		ok &= play(cache, w, pcm, "read in place");
+		ok &= !cache.fill(w);
+		try (AudioInputStream in = cache.open(w)) {
+			ok &= in instanceof WaveAudioInputStream;
+		}
+		System.out.println("  " + cache.getStats());
+		ok &= cache.getStats().getSongs() == 0;
+		System.out.println(ok ? "All correct" : "FAILED");
+	}
+
+	// -----Privates-----
+
+	/**
+	 * Read a song from start to end through the cache, and check it.
+	 *
+	 * @param what
+	 *            What to call the play, or null to say nothing.
+	 * @return true if it was the song, sample for sample.
+	 */
+	private static boolean play(PCMCache cache, File file, byte[] pcm,
+			String what) throws IOException, UnsupportedAudioFileException {
+		byte[] buffer = new byte[16384];
+		long start = System.nanoTime();
+		int at = 0;
+		boolean exact = true;
+		try (AudioInputStream in = cache.open(file)) {
+			int n;
+			while ((n = in.read(buffer, 0, buffer.length)) != -1) {
+				exact &= at + n <= pcm.length && same(buffer, n, pcm, at);
+				at += n;
+			}
+		}
+		exact &= at == pcm.length;
+		if (what != null) {
+			System.out.printf("  %-28s %6.1fms %s%n", what + ":",
+					(System.nanoTime() - start) / 1e6, exact ? "" : "WRONG");
+		}
+		return exact;
+	}
+
+	/**
+	 * Move to random frames of a song and check what comes out there.
+	 *
+	 * @return true if every seek read the right audio.
+	 */
+	private static boolean seeks(PCMCache cache, File file, byte[] pcm,
+			String what) throws IOException, UnsupportedAudioFileException {
+		Random random = new Random(1);
+		byte[] got = new byte[SEEK_FRAMES * 4];
+		long frames = pcm.length / 4;
+		int wrong = 0;
+		long start = System.nanoTime();
+		try (AudioInputStream in = cache.open(file)) {
+			for (int i = 0; i < SEEKS; i++) {
+				long frame = (long) (random.nextDouble() * frames);
+				((Seekable) in).seek(frame);
+				int want = (int) Math.min(got.length, (frames - frame) * 4);
+				int n = 0, r;
+				while (n < want && (r = in.read(got, n, want - n)) != -1) {
+					n += r;
+				}
+				if (n != want || !same(got, n, pcm, (int) (frame * 4))) {
+					wrong++;
+				}
+			}
+		}
+		System.out.printf("  %-28s %6.3fms a seek %s%n", SEEKS + " seeks "
+				+ what + ":", (System.nanoTime() - start) / 1e6 / SEEKS,
+				wrong == 0 ? "" : wrong + " WRONG");
+		return wrong == 0;
+	}
+
+	private static boolean same(byte[] got, int n, byte[] pcm, int at) {
+		for (int i = 0; i < n; i++) {
+			if (got[i] != pcm[at + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
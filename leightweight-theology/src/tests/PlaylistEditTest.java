@@ -0,0 +1,245 @@
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import m3u.Playlist;
+
+/**
+ * Edits a playlist by index, in and out of shuffle, and checks that it
+ * keeps its place. First on one thread: songs are inserted, removed and
+ * moved all around the current one, and after every edit the next song must
+ * be the same, the counter must point at it in the play order, and the edit
+ * count and the listener must have seen the edit. Then with one thread playing through
+ * the list with nextFile() while another edits it: every song of the
+ * original list must be played exactly once, in order unless shuffled, and
+ * the list must end up as the editing thread left it. Needs no music; the
+ * songs needn't exist. Exits with 1 if anything is wrong. Run with: java
+ * tests.PlaylistEditTest
+ */
+public class PlaylistEditTest {
+	private static final int SONGS = 2000;
+	private static final int EDITS = 20000;
+
+	private static File dir;
+	private static boolean ok = true;
+
+	public static void main(String args[]) throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"),
+				"playlist-edit-test").getCanonicalFile();
+		dir.mkdirs();
+		File m3u = new File(dir, "songs.m3u");
+		PrintWriter w = new PrintWriter(m3u, "UTF-8");
+		for (int i = 0; i < SONGS; i++) {
+			w.println(song("song", i).getPath());
+		}
+		w.close();
+
+		for (int shuffled = 0; shuffled < 2; shuffled++) {
+			keepsPlace(new Playlist(m3u.getPath()), shuffled == 1);
+			playWhileEditing(new Playlist(m3u.getPath()), shuffled == 1);
+		}
+		System.out.println(ok ? "All correct" : "FAILED");
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+
+	// -----Privates-----
+
+	/**
+	 * Edit all around the current song, one edit at a time, checking after
+	 * each that the playlist is still on the same next song.
+	 */
+	private static void keepsPlace(Playlist p, boolean shuffled)
+			throws IOException {
+		p.setShuffleStatus(shuffled);
+		final AtomicInteger heard = new AtomicInteger();
+		p.setListener(new Playlist.Listener() {
+			public void playlistEdited(Playlist edited) {
+				heard.incrementAndGet();
+			}
+		});
+		p.select(SONGS / 2);
+		String next = p.peekNextFile();
+		Random random = new Random(1);
+		int added = 0;
+		boolean kept = true;
+		for (int i = 0; i < EDITS && kept; i++) {
+			int size = p.songCount();
+			int edit = random.nextInt(3);
+			int idx = random.nextInt(size);
+			if (edit != 0
+					&& p.getFileAt(idx).getCanonicalPath().equals(next)) {
+				// Removing or moving the next song does change what's next
+				edit = 0;
+			}
+			switch (edit) {
+			case 0:
+				int to = random.nextInt(size + 1);
+				int counter = p.getCurrentSong();
+				File f = song("extra", added++);
+				p.insert(to, f);
+				// A song inserted straight before the next one plays first;
+				// so may one inserted when shuffled, anywhere still to play
+				if (f.getCanonicalPath().equals(p.peekNextFile())
+						&& (shuffled || to == counter - 1)) {
+					next = p.peekNextFile();
+				}
+				break;
+			case 1:
+				p.remove(idx);
+				break;
+			default:
+				p.move(idx, random.nextInt(size));
+				break;
+			}
+			kept = next.equals(p.peekNextFile()) && p.getEditCount() == i + 1
+					&& heard.get() == i + 1;
+			File coming = p.getFileInPlayOrder(p.getCurrentSong() - 1);
+			kept &= coming != null && next.equals(coming.getCanonicalPath());
+			if (!shuffled) {
+				File at = p.getFileAt(p.getCurrentSong() - 1);
+				kept &= at != null && next.equals(at.getCanonicalPath());
+			}
+		}
+		kept &= next.equals(p.nextFile());
+		ok &= kept;
+		System.out.printf("%s: %d edits around the current song; place %s%n",
+				shuffled ? "Shuffled" : "In order", EDITS, kept ? "kept"
+						: "LOST");
+	}
+
+	/**
+	 * Play through the list on one thread while another inserts, removes
+	 * and moves songs of its own in it.
+	 */
+	private static void playWhileEditing(final Playlist p,
+			final boolean shuffled) throws Exception {
+		p.setShuffleStatus(shuffled);
+		final AtomicInteger heard = new AtomicInteger();
+		p.setListener(new Playlist.Listener() {
+			public void playlistEdited(Playlist edited) {
+				heard.incrementAndGet();
+			}
+		});
+		// What the list should be, as the editing thread sees it
+		final List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < SONGS; i++) {
+			expected.add(song("song", i).getPath());
+		}
+		final List<String> played = new ArrayList<String>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final boolean[] failed = new boolean[1];
+		final boolean[] editing = { true };
+		Thread player = new Thread(new Runnable() {
+			public void run() {
+				try {
+					start.await();
+					while (true) {
+						synchronized (editing) {
+							if (!editing[0] && p.peekNextFile() == null) {
+								return;
+							}
+						}
+						try {
+							played.add(p.nextFile());
+						} catch (IndexOutOfBoundsException e) {
+							// At the end, for now; more may be added
+							Thread.yield();
+						}
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+					failed[0] = true;
+				}
+			}
+		}, "player");
+		Thread editor = new Thread(new Runnable() {
+			public void run() {
+				try {
+					start.await();
+					Random random = new Random(2);
+					int added = 0;
+					for (int i = 0; i < EDITS; i++) {
+						int size = expected.size();
+						int idx = random.nextInt(size);
+						// Only the songs added here are removed or moved,
+						// so the original songs keep their order
+						boolean extra = expected.get(idx).contains("extra");
+						if (!extra) {
+							int to = random.nextInt(size + 1);
+							File f = song("extra", added++);
+							p.insert(to, f);
+							expected.add(to, f.getPath());
+						} else if (random.nextBoolean()) {
+							p.remove(idx);
+							expected.remove(idx);
+						} else {
+							int to = random.nextInt(size);
+							p.move(idx, to);
+							expected.add(to, expected.remove(idx));
+						}
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+					failed[0] = true;
+				} finally {
+					synchronized (editing) {
+						editing[0] = false;
+					}
+				}
+			}
+		}, "editor");
+		player.start();
+		editor.start();
+		long begin = System.nanoTime();
+		start.countDown();
+		editor.join();
+		player.join();
+		double seconds = (System.nanoTime() - begin) / 1e9;
+
+		// Every original song, once, and in order unless shuffled
+		List<String> originals = new ArrayList<String>();
+		for (String path : played) {
+			if (path.contains("song-")) {
+				originals.add(path);
+			}
+		}
+		Set<String> distinct = new HashSet<String>(originals);
+		boolean once = !failed[0] && originals.size() == SONGS
+				&& distinct.size() == SONGS;
+		if (once && !shuffled) {
+			for (int i = 0; i < SONGS; i++) {
+				once &= originals.get(i).equals(song("song", i).getPath());
+			}
+		}
+		boolean same = p.songCount() == expected.size();
+		for (int i = 0; same && i < expected.size(); i++) {
+			same = expected.get(i).equals(p.getFileAt(i).getPath());
+		}
+		boolean counted = p.getEditCount() == EDITS && heard.get() == EDITS;
+		ok &= once && same && counted;
+		System.out.printf("%s: %d songs played while making %d edits in"
+				+ " %.3fs%n  originals played once%s %s; list as edited %s;"
+				+ " edits counted %s%n", shuffled ? "Shuffled" : "In order",
+				played.size(), EDITS, seconds, shuffled ? "" : ", in order",
+				once ? "yes" : "NO", same ? "yes" : "NO", counted ? "yes"
+						: "NO");
+	}
+
+	/**
+	 * @return The file of a made up song, in the test directory.
+	 */
+	private static File song(String kind, int n) {
+		return new File(dir, kind + "-" + n + ".mp3");
+	}
+}
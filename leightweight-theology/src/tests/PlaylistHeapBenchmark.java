@@ -0,0 +1,95 @@
+package tests;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import m3u.M3UParser;
+import m3u.Playlist;
+
+/**
+ * Compares the heap taken by a large {@link Playlist} with what the same
+ * songs took as a list of File objects plus a shuffled copy, the way the
+ * playlist used to hold them. A playlist of made up songs, spread over
+ * albums the way a real library is, is written to a temporary file first.
+ * Run with the number of songs: java tests.PlaylistHeapBenchmark 1000000
+ */
+public class PlaylistHeapBenchmark {
+	private static final int SONGS_PER_ALBUM = 12;
+
+	public static void main(String args[]) throws IOException {
+		int songs = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		Path m3u = Files.createTempFile("heap", ".m3u8");
+		try {
+			writePlaylist(m3u, songs);
+
+			long before = usedHeap();
+			ArrayList<File> files = M3UParser.parse(m3u.toString());
+			ArrayList<File> shuffled = new ArrayList<File>(files);
+			Collections.shuffle(shuffled);
+			long fileBytes = usedHeap() - before;
+			// Keep the lists alive until they have been measured
+			System.out.println("File lists hold " + files.size() + " + "
+					+ shuffled.size() + " songs");
+			files = shuffled = null;
+
+			before = usedHeap();
+			Playlist playlist = new Playlist(m3u.toString());
+			long playlistBytes = usedHeap() - before;
+			System.out.println("Playlist holds " + playlist.songCount()
+					+ " songs");
+
+			System.out.printf("File lists: %,d bytes, %.1f per song%n",
+					fileBytes, fileBytes / (double) songs);
+			System.out.printf("Playlist:   %,d bytes, %.1f per song%n",
+					playlistBytes, playlistBytes / (double) songs);
+			System.out.printf("Saving:     %.1fx%n", fileBytes
+					/ (double) playlistBytes);
+		} finally {
+			Files.delete(m3u);
+		}
+	}
+
+	/**
+	 * Write an extended M3U of songs in album directories.
+	 */
+	private static void writePlaylist(Path m3u, int songs) throws IOException {
+		try (BufferedWriter out = Files.newBufferedWriter(m3u,
+				StandardCharsets.UTF_8)) {
+			out.write("#EXTM3U\n");
+			for (int i = 0; i < songs; i++) {
+				int album = i / SONGS_PER_ALBUM;
+				int track = i % SONGS_PER_ALBUM + 1;
+				out.write("#EXTINF:" + (180 + i % 120) + ",Artist " + album
+						/ 10 + " - Track " + track + "\n");
+				out.write("/srv/music/Artist " + album / 10 + "/Album "
+						+ album + "/" + String.format("%02d", track)
+						+ " - Track " + track + ".mp3\n");
+			}
+		}
+	}
+
+	/**
+	 * @return The bytes of heap in use, after collecting as much garbage as
+	 *         the collector is willing to.
+	 */
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+		}
+		return used;
+	}
+}
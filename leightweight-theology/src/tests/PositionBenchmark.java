@@ -0,0 +1,58 @@
+package tests;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sound.sampled.AudioFormat;
+
+import audio.NullSink;
+import audio.PlaybackPosition;
+
+/**
+ * Times reading the playback position, as a seek bar polling it every
+ * screen refresh would, while a stand in for the render thread writes
+ * blocks of audio and moves it on as fast as it can. Reports the cost of a
+ * read, and what polling at 60 Hz costs as a share of one core. Run with:
+ * java tests.PositionBenchmark
+ */
+public class PositionBenchmark {
+	private static final int READS = 20000000;
+	private static final int BLOCK_FRAMES = 4096;
+
+	public static void main(String args[]) throws InterruptedException {
+		final NullSink sink = new NullSink();
+		final PlaybackPosition position = new PlaybackPosition(sink, 100);
+		final byte[] block = new byte[BLOCK_FRAMES * 4];
+		sink.open(new AudioFormat(44100, 16, 2, true, false));
+		position.setSong(0, Long.MAX_VALUE, 44100);
+		position.sinkOpened(44100);
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread render = new Thread(new Runnable() {
+			public void run() {
+				while (!done.get()) {
+					sink.write(block, 0, block.length);
+					position.written(BLOCK_FRAMES, BLOCK_FRAMES);
+					Thread.yield();
+				}
+			}
+		});
+		render.start();
+
+		for (int round = 0; round < 2; round++) {
+			long last = 0;
+			boolean ordered = true;
+			long start = System.nanoTime();
+			for (int i = 0; i < READS; i++) {
+				long frame = position.getFrame();
+				ordered &= frame >= last;
+				last = frame;
+			}
+			double nanos = (double) (System.nanoTime() - start) / READS;
+			System.out.printf(
+					"getFrame(): %6.1f ns a read; at 60 Hz, %.6f%% of a core (%s)%n",
+					nanos, nanos * 60 / 1e7, ordered ? "never went backwards"
+							: "WENT BACKWARDS");
+		}
+		done.set(true);
+		render.join();
+	}
+}
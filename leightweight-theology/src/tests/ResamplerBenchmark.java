@@ -0,0 +1,136 @@
+package tests;
+
+import java.util.Random;
+
+import javax.sound.sampled.AudioFormat;
+
+import audio.FormatConverter;
+import audio.Resampler;
+
+/**
+ * Checks and times converting songs to one fixed output format. First the
+ * resampler on its own: a tone in the pass band should come through with
+ * little besides the tone, and a tone above the output's Nyquist frequency
+ * should all but vanish rather than fold back as a false one. Then the
+ * whole converter, from a few common song formats to 48kHz 16 bit stereo,
+ * block by block as the render thread does it, reporting how many times
+ * faster than real time it goes, and what that costs as a share of one
+ * core while playing. Run with: java tests.ResamplerBenchmark
+ */
+public class ResamplerBenchmark {
+	private static final int BLOCK = 16384;
+	private static final int SECONDS = 60;
+
+	public static void main(String args[]) {
+		System.out.printf("1kHz, 44.1 to 48kHz: %.1fdB signal to noise%n",
+				toneSnr(44100, 48000, 1000));
+		System.out.printf("15kHz, 44.1 to 48kHz: %.1fdB signal to noise%n",
+				toneSnr(44100, 48000, 15000));
+		System.out.printf("1kHz, 96 to 44.1kHz: %.1fdB signal to noise%n",
+				toneSnr(96000, 44100, 1000));
+		System.out.printf("23kHz, 48 to 44.1kHz: %.1fdB left after filtering%n",
+				leftOver(48000, 44100, 23000));
+
+		AudioFormat out = new AudioFormat(48000, 16, 2, true, false);
+		AudioFormat[] formats = { new AudioFormat(48000, 16, 2, true, false),
+				new AudioFormat(48000, 16, 1, true, false),
+				new AudioFormat(44100, 16, 2, true, false),
+				new AudioFormat(22050, 8, 1, false, false),
+				new AudioFormat(96000, 24, 2, true, false), };
+		for (int round = 0; round < 2; round++) {
+			System.out.println(round == 0 ? "Warm up:" : "Timed:");
+			for (AudioFormat f : formats) {
+				time(f, out);
+			}
+		}
+	}
+
+	// -----Privates-----
+
+	/**
+	 * Resample a tone and compare it to the tone the output should be.
+	 */
+	private static double toneSnr(int inRate, int outRate, double hz) {
+		int frames = inRate;
+		float[] out = resample(inRate, outRate, hz, frames);
+		int n = (int) ((long) frames * outRate / inRate);
+		// The filter delays by half its length, at the input rate, less half
+		// a sample at the rate it was designed at
+		int up = outRate / gcd(inRate, outRate);
+		double delay = (Resampler.TAPS / 2.0 - 0.5 / up) / inRate;
+		double signal = 0, noise = 0;
+		for (int i = Resampler.TAPS * 2; i < n - Resampler.TAPS * 2; i++) {
+			double want = 0.5 * Math.sin(2 * Math.PI * hz
+					* ((double) i / outRate - delay));
+			signal += want * want;
+			noise += (out[i] - want) * (out[i] - want);
+		}
+		return 10 * Math.log10(signal / noise);
+	}
+
+	/**
+	 * Resample a tone that shouldn't get through, and see how much does.
+	 */
+	private static double leftOver(int inRate, int outRate, double hz) {
+		int frames = inRate;
+		float[] out = resample(inRate, outRate, hz, frames);
+		int n = (int) ((long) frames * outRate / inRate);
+		double power = 0;
+		int count = 0;
+		for (int i = Resampler.TAPS * 2; i < n - Resampler.TAPS * 2; i++) {
+			power += out[i] * out[i];
+			count++;
+		}
+		// Against the power of the tone that went in
+		return 10 * Math.log10(power / count / 0.125);
+	}
+
+	/**
+	 * A mono tone at half scale, resampled in blocks.
+	 */
+	private static float[] resample(int inRate, int outRate, double hz,
+			int frames) {
+		int block = 1000;
+		Resampler r = new Resampler(1, inRate, outRate, block);
+		float[] in = new float[block];
+		float[] out = new float[(int) ((long) frames * outRate / inRate) + outRate];
+		float[] piece = new float[r.maxOutputFrames(block)];
+		int n = 0;
+		for (int done = 0; done < frames; done += block) {
+			for (int i = 0; i < block; i++) {
+				in[i] = (float) (0.5 * Math.sin(2 * Math.PI * hz * (done + i)
+						/ inRate));
+			}
+			int got = r.process(in, block, piece);
+			System.arraycopy(piece, 0, out, n, got);
+			n += got;
+		}
+		return out;
+	}
+
+	private static int gcd(int a, int b) {
+		return b == 0 ? a : gcd(b, a % b);
+	}
+
+	/**
+	 * Convert a minute of noise in one format to another, and report the
+	 * speed.
+	 */
+	private static void time(AudioFormat in, AudioFormat out) {
+		FormatConverter converter = new FormatConverter(out);
+		converter.setInput(in);
+		int frameSize = in.getFrameSize();
+		byte[] block = new byte[BLOCK - BLOCK % frameSize];
+		new Random(1).nextBytes(block);
+		byte[] dst = new byte[converter.maxOutputBytes(block.length)];
+		long bytes = (long) (SECONDS * in.getSampleRate()) * frameSize;
+		long sink = 0;
+		long start = System.nanoTime();
+		for (long done = 0; done < bytes; done += block.length) {
+			sink += converter.convert(block, 0, block.length, dst, 0);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("  %s%n    %.0fx real time, %.3f%% of a core (%d bytes)%n",
+				in, SECONDS / seconds, 100 * seconds / SECONDS, sink);
+	}
+}
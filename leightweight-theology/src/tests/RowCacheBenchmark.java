@@ -0,0 +1,83 @@
+package tests;
+
+import java.io.File;
+import java.util.concurrent.locks.LockSupport;
+
+import player.RowCache;
+
+/**
+ * Times repainting the playlist table while scrolling a long playlist, a
+ * few rows a frame: getting every visible cell straight from the source, as
+ * the table did before, and through a {@link RowCache}. Reading a song's
+ * name is made to take as long as reading its tags from a warm tag cache,
+ * and ten times that for a song never seen before. Run with the number of
+ * songs: java tests.RowCacheBenchmark 1000000
+ */
+public class RowCacheBenchmark {
+	private static final int VISIBLE = 40;
+	private static final int SCROLL = 3;
+	private static final int FRAMES = 2000;
+	// One frame at 60 frames a second
+	private static final double FRAME_MICROS = 1e6 / 60;
+
+	public static void main(String args[]) {
+		final int songs = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		final String[] paths = new String[songs];
+		for (int i = 0; i < songs; i++) {
+			paths[i] = "/srv/music/Artist " + i / 120 + "/Album " + i / 12
+					+ "/" + String.format("%02d", i % 12 + 1) + ".mp3";
+		}
+		RowCache.Source source = new RowCache.Source() {
+			public String quickName(int row) {
+				return new File(paths[row]).getName();
+			}
+
+			public String name(int row) {
+				// Tags: from the tag cache, or off the disk now and then
+				LockSupport.parkNanos(row % 10 == 0 ? 200000 : 20000);
+				return "Artist " + row / 120 + " - Track " + row;
+			}
+		};
+
+		// Warm up both, then time
+		scroll("Straight from the source", source, null, songs);
+		scroll("Straight from the source", source, null, songs);
+		RowCache cache = new RowCache(4096, source);
+		scroll("Through the row cache", source, cache, songs);
+		cache = new RowCache(4096, source);
+		scroll("Through the row cache", source, cache, songs);
+	}
+
+	private static void scroll(String what, RowCache.Source source,
+			RowCache cache, int songs) {
+		long total = 0, worst = 0;
+		int late = 0;
+		int top = songs / 2;
+		Object sink = null;
+		for (int frame = 0; frame < FRAMES; frame++) {
+			long start = System.nanoTime();
+			for (int row = top; row < top + VISIBLE; row++) {
+				if (cache == null) {
+					sink = Integer.valueOf(row + 1);
+					sink = source.name(row);
+				} else {
+					sink = cache.getNumber(row);
+					sink = cache.getName(row);
+				}
+			}
+			long t = System.nanoTime() - start;
+			total += t;
+			worst = Math.max(worst, t);
+			if (t / 1e3 > FRAME_MICROS) {
+				late++;
+			}
+			top = (top + SCROLL) % (songs - VISIBLE);
+		}
+		if (sink == null) {
+			throw new AssertionError();
+		}
+		System.out.printf(
+				"%-26s mean %8.1f us   worst %8.1f us   %4d of %d frames late%n",
+				what, total / 1e3 / FRAMES, worst / 1e3, late, FRAMES);
+	}
+}
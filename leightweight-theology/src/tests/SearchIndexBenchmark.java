@@ -0,0 +1,92 @@
+package tests;
+
+import java.util.Random;
+
+import search.SearchIndex;
+
+/**
+ * Builds a {@link SearchIndex} over a made up library, and times queries as
+ * if typed a letter at a time. Run with the number of songs: java
+ * tests.SearchIndexBenchmark 200000
+ */
+public class SearchIndexBenchmark {
+	private static final String[] WORDS = { "love", "night", "blue", "heart",
+			"dream", "fire", "rain", "sweet", "lonely", "beat", "moon",
+			"river", "dance", "stone", "road", "summer", "little", "time",
+			"gold", "baby", "electric", "shadow", "wild", "ocean", "city",
+			"angel", "train", "black", "light", "song", "day", "girl", "boy",
+			"home", "rock", "queen", "sister", "king", "star", "tears",
+			"\u00fcber", "caf\u00e9", "se\u00f1or", "ma\u00f1ana", "bl\u00e5b\u00e6r", "r\u00eave" };
+	private static final String[] QUERIES = { "b", "be", "bea", "beat",
+			"beatl", "river", "stone ro", "x", "el", "ectri", "cafe", "uber",
+			"mana", "moon river", "artist 12", "album 1234", "zzz" };
+	private static final int ROUNDS = 2000;
+
+	public static void main(String args[]) {
+		int songs = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		Random random = new Random(1);
+		long before = usedHeap();
+		long start = System.nanoTime();
+		SearchIndex.Builder builder = new SearchIndex.Builder();
+		for (int i = 0; i < songs; i++) {
+			int album = i / 12;
+			int artist = album / 10;
+			String title = phrase(random, 1 + random.nextInt(4));
+			builder.add("/srv/music/Artist " + artist + "/Album " + album + "/"
+					+ String.format("%02d", i % 12 + 1) + " - " + title
+					+ ".mp3", title, "Artist " + artist + " "
+					+ phrase(new Random(artist), 1), "Album " + album + " "
+					+ phrase(new Random(album), 2));
+		}
+		SearchIndex index = builder.build();
+		builder = null;
+		System.out.printf("Built over %d songs in %.0f ms, %,d bytes of heap%n",
+				index.size(), (System.nanoTime() - start) / 1e6, usedHeap()
+						- before);
+
+		int[] top = new int[100];
+		for (String query : QUERIES) {
+			int matches = index.search(query).length;
+			// Warm up, then time
+			for (int i = 0; i < ROUNDS; i++) {
+				index.search(query, top);
+			}
+			start = System.nanoTime();
+			for (int i = 0; i < ROUNDS; i++) {
+				index.search(query, top);
+			}
+			double topMicros = (System.nanoTime() - start) / 1e3 / ROUNDS;
+			start = System.nanoTime();
+			for (int i = 0; i < 20; i++) {
+				index.search(query);
+			}
+			double allMicros = (System.nanoTime() - start) / 1e3 / 20;
+			System.out.printf(
+					"%-12s %7d matches   top 100: %8.1f us   all: %9.1f us%n",
+					"\"" + query + "\"", matches, topMicros, allMicros);
+		}
+	}
+
+	private static String phrase(Random random, int words) {
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < words; i++) {
+			if (i > 0) {
+				b.append(' ');
+			}
+			String w = WORDS[random.nextInt(WORDS.length)];
+			b.append(i == 0 ? Character.toUpperCase(w.charAt(0))
+					+ w.substring(1) : w);
+		}
+		return b.toString();
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+		}
+		return used;
+	}
+}
@@ -0,0 +1,91 @@
+package tests;
+
+import javax.sound.sampled.AudioFormat;
+
+import visual.SpectrumAnalyzer;
+import visual.SpectrumTap;
+
+/**
+ * Times the spectrum visualisation's two costs: what the tap adds to the
+ * render thread for every block played, and what working out a frame of
+ * the spectrum takes, as a share of one core at 30 frames a second. A sine
+ * wave is played through it, and the band it lands in is printed as a
+ * check. Run with the frequency of the sine: java tests.SpectrumBenchmark
+ * 1000
+ */
+public class SpectrumBenchmark {
+	private static final int BLOCK = 16384;
+	private static final int BANDS = 32, FPS = 30;
+	private static final int ROUNDS = 20000;
+
+	public static void main(String args[]) {
+		double freq = args.length > 0 ? Double.parseDouble(args[0]) : 1000;
+		AudioFormat cd = new AudioFormat(44100, 16, 2, true, false);
+		byte[] block = sine(freq, cd);
+		SpectrumTap tap = new SpectrumTap(1 << 14);
+
+		for (int i = 0; i < ROUNDS; i++) {
+			tap.write(block, 0, block.length, cd);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++) {
+			tap.write(block, 0, block.length, cd);
+		}
+		double tapMicros = (System.nanoTime() - start) / 1e3 / ROUNDS;
+		double blockMicros = 1e6 * BLOCK / cd.getFrameSize()
+				/ cd.getSampleRate();
+		System.out.printf(
+				"Tap, per %d byte block:   %7.2f us (%.3f%% of the block's playing time)%n",
+				BLOCK, tapMicros, 100 * tapMicros / blockMicros);
+
+		final float[] last = new float[BANDS];
+		SpectrumAnalyzer analyzer = new SpectrumAnalyzer(tap, BANDS, FPS);
+		analyzer.addListener(new SpectrumAnalyzer.Listener() {
+			public void spectrumUpdated(float[] levels) {
+				System.arraycopy(levels, 0, last, 0, levels.length);
+			}
+		});
+		int frames = ROUNDS / 10;
+		for (int i = 0; i < frames; i++) {
+			tap.write(block, 0, 4 * 1470, cd);
+			analyzer.frame();
+		}
+		start = System.nanoTime();
+		for (int i = 0; i < frames; i++) {
+			// A frame's worth of audio, then a frame
+			tap.write(block, 0, 4 * 1470, cd);
+			analyzer.frame();
+		}
+		double frameMicros = (System.nanoTime() - start) / 1e3 / frames;
+		System.out.printf(
+				"Analyzer, per frame:        %7.2f us (%.3f%% of a core at %d fps)%n",
+				frameMicros, frameMicros * FPS / 1e4, FPS);
+
+		int loudest = 0;
+		for (int b = 1; b < BANDS; b++) {
+			if (last[b] > last[loudest]) {
+				loudest = b;
+			}
+		}
+		System.out.printf("A %.0f Hz sine is loudest in band %d of %d (%.2f)%n",
+				freq, loudest, BANDS, last[loudest]);
+	}
+
+	/**
+	 * @return A block of a full scale sine wave, in the given 16 bit format.
+	 */
+	private static byte[] sine(double freq, AudioFormat f) {
+		byte[] b = new byte[BLOCK];
+		int frames = BLOCK / f.getFrameSize();
+		for (int i = 0; i < frames; i++) {
+			short v = (short) (32767 * Math.sin(2 * Math.PI * freq * i
+					/ f.getSampleRate()));
+			for (int c = 0; c < f.getChannels(); c++) {
+				int p = i * f.getFrameSize() + 2 * c;
+				b[p] = (byte) v;
+				b[p + 1] = (byte) (v >> 8);
+			}
+		}
+		return b;
+	}
+}
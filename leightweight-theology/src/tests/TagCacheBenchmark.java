@@ -0,0 +1,130 @@
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import tags.TagCache;
+import tags.TagReader;
+import tags.Tags;
+
+/**
+ * Times loading the tags of a large library: parsing every file, as at the
+ * first start, then opening the {@link TagCache} and getting every song's
+ * tags from it, as at every start after. Small files with an ID3v2 tag, a
+ * frame of padding standing in for the audio, and an ID3v1 tag are written
+ * to a temporary directory first. Run with the number of songs: java
+ * tests.TagCacheBenchmark 100000
+ */
+public class TagCacheBenchmark {
+	public static void main(String args[]) throws IOException {
+		int songs = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		Path dir = Files.createTempDirectory("tags");
+		Path cacheFile = dir.resolve("tags.cache");
+		File[] files = new File[songs];
+		try {
+			for (int i = 0; i < songs; i++) {
+				files[i] = dir.resolve(String.format("%06d.mp3", i)).toFile();
+				writeSong(files[i], i);
+			}
+
+			long start = System.nanoTime();
+			int tagged = 0;
+			for (File f : files) {
+				if (TagReader.read(f).getTitle() != null) {
+					tagged++;
+				}
+			}
+			report("Parsing every file", start, tagged);
+
+			TagCache cache = new TagCache(cacheFile);
+			for (File f : files) {
+				cache.get(f);
+			}
+			cache.close();
+
+			start = System.nanoTime();
+			cache = new TagCache(cacheFile);
+			report("Opening the cache", start, songs);
+			start = System.nanoTime();
+			tagged = 0;
+			for (File f : files) {
+				if (cache.get(f).getTitle() != null) {
+					tagged++;
+				}
+			}
+			report("Getting every song from it", start, tagged);
+			cache.close();
+			System.out.printf("Cache file: %,d bytes%n", Files.size(cacheFile));
+		} finally {
+			for (File f : files) {
+				if (f != null) {
+					f.delete();
+				}
+			}
+			Files.deleteIfExists(cacheFile);
+			Files.delete(dir);
+		}
+	}
+
+	private static void report(String what, long start, int songs) {
+		System.out.printf("%-28s %8.1f ms (%d songs)%n", what,
+				(System.nanoTime() - start) / 1e6, songs);
+	}
+
+	/**
+	 * Write a song with an ID3v2.3 tag, 4 KB of silence and an ID3v1 tag.
+	 */
+	private static void writeSong(File file, int i) throws IOException {
+		byte[] frames = concat(frame("TIT2", "Track " + i), frame("TPE1",
+				"Artist " + i / 120), frame("TALB", "Album " + i / 12), frame(
+				"TRCK", String.valueOf(i % 12 + 1)));
+		int size = frames.length;
+		byte[] header = { 'I', 'D', '3', 3, 0, 0, (byte) (size >> 21 & 0x7F),
+				(byte) (size >> 14 & 0x7F), (byte) (size >> 7 & 0x7F),
+				(byte) (size & 0x7F) };
+		byte[] v1 = new byte[128];
+		v1[0] = 'T';
+		v1[1] = 'A';
+		v1[2] = 'G';
+		v1[127] = 17;
+		try (OutputStream out = Files.newOutputStream(file.toPath())) {
+			out.write(header);
+			out.write(frames);
+			out.write(new byte[4096]);
+			out.write(v1);
+		}
+	}
+
+	private static byte[] frame(String id, String text) {
+		byte[] body = text.getBytes(StandardCharsets.ISO_8859_1);
+		byte[] f = new byte[11 + body.length];
+		for (int i = 0; i < 4; i++) {
+			f[i] = (byte) id.charAt(i);
+		}
+		int size = body.length + 1;
+		f[4] = (byte) (size >> 24);
+		f[5] = (byte) (size >> 16);
+		f[6] = (byte) (size >> 8);
+		f[7] = (byte) size;
+		System.arraycopy(body, 0, f, 11, body.length);
+		return f;
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		int len = 0;
+		for (byte[] p : parts) {
+			len += p.length;
+		}
+		byte[] all = new byte[len];
+		int off = 0;
+		for (byte[] p : parts) {
+			System.arraycopy(p, 0, all, off, p.length);
+			off += p.length;
+		}
+		return all;
+	}
+}
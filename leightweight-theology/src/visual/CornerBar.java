@@ -0,0 +1,63 @@
+package visual;
+
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.awt.event.MouseListener;
+
+import javax.swing.JWindow;
+
+/**
+ * The unobtrusive music bar: a spectrum in a small borderless window in the
+ * bottom right corner of the screen, above everything else. Clicking it is
+ * left to its owner, which usually brings the full player back.
+ *
+ * @author Connor Findlay
+ */
+public class CornerBar extends JWindow {
+	private static final long serialVersionUID = 1L;
+	private static final int BAR_WIDTH = 160, BAR_HEIGHT = 32, MARGIN = 8;
+
+	private final SpectrumView view;
+
+	/**
+	 * Make the bar; it is hidden until shown.
+	 */
+	public CornerBar() {
+		view = new SpectrumView(BAR_WIDTH, BAR_HEIGHT);
+		add(view);
+		setAlwaysOnTop(true);
+		pack();
+	}
+
+	/**
+	 * @return The bar's spectrum, to add to an analyzer.
+	 */
+	public SpectrumView getView() {
+		return view;
+	}
+
+	/**
+	 * Add a MouseListener to the bar, told when it is clicked.
+	 *
+	 * @param listener
+	 *            The component to set as the MouseListener
+	 */
+	public void addClickListener(MouseListener listener) {
+		view.addMouseListener(listener);
+	}
+
+	/**
+	 * Show or hide the bar, putting it in the corner of the screen, clear of
+	 * any task bar.
+	 */
+	@Override
+	public void setVisible(boolean visible) {
+		if (visible) {
+			Rectangle screen = GraphicsEnvironment
+					.getLocalGraphicsEnvironment().getMaximumWindowBounds();
+			setLocation(screen.x + screen.width - getWidth() - MARGIN,
+					screen.y + screen.height - getHeight() - MARGIN);
+		}
+		super.setVisible(visible);
+	}
+}
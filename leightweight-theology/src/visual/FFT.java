@@ -0,0 +1,111 @@
+package visual;
+
+/**
+ * An in place radix-2 fast Fourier transform of one size. Everything it
+ * needs, the twiddle factors, the bit reversal permutation and a Hann
+ * window, is worked out once when it's made, so a transform does no
+ * trigonometry and allocates nothing.
+ *
+ * Not thread safe; each thread wants its own.
+ *
+ * @author Connor Findlay
+ */
+public final class FFT {
+	private final int size;
+	private final float[] cos;
+	private final float[] sin;
+	private final int[] reversed;
+	private final float[] window;
+	private final float[] re;
+	private final float[] im;
+
+	/**
+	 * Make a transform.
+	 *
+	 * @param size
+	 *            The number of samples it takes; a power of two.
+	 */
+	public FFT(int size) {
+		if (size < 2 || Integer.bitCount(size) != 1) {
+			throw new IllegalArgumentException("FFT size must be a power of two: "
+					+ size);
+		}
+		this.size = size;
+		cos = new float[size / 2];
+		sin = new float[size / 2];
+		for (int i = 0; i < size / 2; i++) {
+			double a = -2 * Math.PI * i / size;
+			cos[i] = (float) Math.cos(a);
+			sin[i] = (float) Math.sin(a);
+		}
+		reversed = new int[size];
+		int bits = Integer.numberOfTrailingZeros(size);
+		for (int i = 0; i < size; i++) {
+			reversed[i] = Integer.reverse(i) >>> 32 - bits;
+		}
+		window = new float[size];
+		for (int i = 0; i < size; i++) {
+			window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i
+					/ (size - 1)));
+		}
+		re = new float[size];
+		im = new float[size];
+	}
+
+	/**
+	 * @return The number of samples the transform takes.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Window some samples and transform them, for their spectrum.
+	 *
+	 * @param samples
+	 *            size() samples; left alone.
+	 * @param power
+	 *            Filled with the power of the first size() / 2 frequencies:
+	 *            bin k is k times the sample rate over size(). The window's
+	 *            gain is taken out, so a full scale sine is about 1.
+	 */
+	public void powerSpectrum(float[] samples, float[] power) {
+		// Window, in bit reversed order, ready for the butterflies
+		for (int i = 0; i < size; i++) {
+			int j = reversed[i];
+			re[i] = samples[j] * window[j];
+			im[i] = 0;
+		}
+		transform();
+		// A Hann window halves the amplitude, and a real sine splits its
+		// energy between two bins
+		float scale = 4f / size;
+		for (int k = 0; k < size / 2; k++) {
+			float r = re[k] * scale, i = im[k] * scale;
+			power[k] = r * r + i * i;
+		}
+	}
+
+	// -----Privates-----
+
+	/**
+	 * The butterflies, on re and im already in bit reversed order.
+	 */
+	private void transform() {
+		for (int half = 1; half < size; half <<= 1) {
+			int step = size / (half << 1);
+			for (int start = 0; start < size; start += half << 1) {
+				for (int k = 0, t = 0; k < half; k++, t += step) {
+					int a = start + k, b = a + half;
+					float wr = cos[t], wi = sin[t];
+					float xr = re[b] * wr - im[b] * wi;
+					float xi = re[b] * wi + im[b] * wr;
+					re[b] = re[a] - xr;
+					im[b] = im[a] - xi;
+					re[a] += xr;
+					im[a] += xi;
+				}
+			}
+		}
+	}
+}
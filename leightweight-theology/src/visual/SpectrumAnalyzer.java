@@ -0,0 +1,194 @@
+package visual;
+
+import java.io.Closeable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Turns the audio going through a {@link SpectrumTap} into the levels of a
+ * few frequency bands, at a fixed frame rate, for a spectrum display. Bands
+ * are spaced evenly in pitch from 40 Hz to 16 kHz, and each is the loudest
+ * frequency in it, in decibels, scaled from 0 (silence, or 70 dB down) to 1
+ * (full scale). Levels jump up at once and fall back slowly, as meters do.
+ *
+ * It runs on its own low priority thread, and does nothing but wait while
+ * no audio is playing; all of its buffers are made up front.
+ *
+ * @author Connor Findlay
+ */
+public final class SpectrumAnalyzer implements Closeable {
+	/**
+	 * Told the band levels every frame.
+	 */
+	public interface Listener {
+		/**
+		 * Called on the analyzer's thread.
+		 *
+		 * @param levels
+		 *            The level of each band, lowest first, from 0 to 1. The
+		 *            array is reused; copy what's wanted.
+		 */
+		void spectrumUpdated(float[] levels);
+	}
+
+	private static final int FFT_SIZE = 2048;
+	private static final float MIN_FREQ = 40, MAX_FREQ = 16000;
+	private static final float FLOOR_DB = -70;
+	// How far levels fall in a second, from the top
+	private static final float FALL = 1.5f;
+	// Frames a second when nothing is playing
+	private static final int IDLE_FPS = 4;
+
+	private final SpectrumTap tap;
+	private final int fps;
+	private final FFT fft = new FFT(FFT_SIZE);
+	private final float[] samples = new float[FFT_SIZE];
+	private final float[] power = new float[FFT_SIZE / 2];
+	private final float[] levels;
+	// The FFT bins of each band: band b is bins bandStart[b] up to
+	// bandStart[b + 1], at bandRate
+	private final int[] bandStart;
+	private float bandRate;
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private Thread thread;
+	private volatile boolean closed;
+	private long lastWritten = -1;
+
+	/**
+	 * Make an analyzer; {@link #start()} starts it.
+	 *
+	 * @param tap
+	 *            Where the audio comes from.
+	 * @param bands
+	 *            The number of bands.
+	 * @param fps
+	 *            Frames a second while audio is playing.
+	 */
+	public SpectrumAnalyzer(SpectrumTap tap, int bands, int fps) {
+		this.tap = tap;
+		this.fps = fps;
+		levels = new float[bands];
+		bandStart = new int[bands + 1];
+	}
+
+	public void addListener(Listener l) {
+		listeners.add(l);
+	}
+
+	public void removeListener(Listener l) {
+		listeners.remove(l);
+	}
+
+	/**
+	 * Start the analyzer's thread.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		thread = new Thread(new Runnable() {
+			public void run() {
+				loop();
+			}
+		}, "spectrum analyzer");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Stop the analyzer's thread.
+	 */
+	public void close() {
+		closed = true;
+		Thread t;
+		synchronized (this) {
+			t = thread;
+		}
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	/**
+	 * Work out one frame: the levels of the latest audio, or of none if
+	 * nothing has played since the last frame. Called on the analyzer's
+	 * thread, or by anyone if it wasn't started.
+	 *
+	 * @return true if the levels changed, and listeners were told.
+	 */
+	public boolean frame() {
+		long written = tap.getWritten();
+		float fall = FALL / fps;
+		boolean changed = false;
+		if (written != lastWritten && tap.snapshot(samples)) {
+			lastWritten = written;
+			fft.powerSpectrum(samples, power);
+			if (tap.getSampleRate() != bandRate) {
+				layOutBands(tap.getSampleRate());
+			}
+			for (int b = 0; b < levels.length; b++) {
+				float loudest = 0;
+				for (int k = bandStart[b]; k < bandStart[b + 1]; k++) {
+					loudest = Math.max(loudest, power[k]);
+				}
+				float level = loudest > 0 ? (float) (10 * Math.log10(loudest) - FLOOR_DB)
+						/ -FLOOR_DB
+						: 0;
+				level = Math.max(Math.min(level, 1), levels[b] - fall);
+				changed |= level != levels[b];
+				levels[b] = Math.max(level, 0);
+			}
+		} else {
+			// Nothing new; let the bars fall
+			for (int b = 0; b < levels.length; b++) {
+				if (levels[b] > 0) {
+					levels[b] = Math.max(levels[b] - fall, 0);
+					changed = true;
+				}
+			}
+		}
+		if (changed) {
+			for (Listener l : listeners) {
+				l.spectrumUpdated(levels);
+			}
+		}
+		return changed;
+	}
+
+	// -----Privates-----
+
+	private void loop() {
+		long next = System.nanoTime();
+		while (!closed) {
+			boolean active = frame();
+			// Keep to the frame rate however long a frame took; when there's
+			// nothing to show, look less often
+			next += 1000000000L / (active ? fps : IDLE_FPS);
+			long now = System.nanoTime();
+			if (next < now) {
+				next = now;
+			}
+			LockSupport.parkNanos(next - now);
+		}
+	}
+
+	/**
+	 * Work out the FFT bins of each band, for a sample rate.
+	 */
+	private void layOutBands(float rate) {
+		int bins = FFT_SIZE / 2;
+		float top = Math.min(MAX_FREQ, rate / 2);
+		int bands = levels.length;
+		int last = 1;
+		for (int b = 0; b <= bands; b++) {
+			double f = MIN_FREQ * Math.pow(top / MIN_FREQ, (double) b / bands);
+			int bin = (int) Math.round(f * FFT_SIZE / rate);
+			// At least one bin each, even where the low bands are narrow
+			bin = Math.max(bin, b == 0 ? 1 : last + 1);
+			bandStart[b] = Math.min(bin, bins);
+			last = bandStart[b];
+		}
+		bandRate = rate;
+	}
+}
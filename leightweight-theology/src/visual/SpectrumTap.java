@@ -0,0 +1,172 @@
+package visual;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * A copy of the audio being played, for visualisations to look at. The
+ * render thread writes every block it plays; it is mixed down to mono and
+ * kept in a ring of the last few thousand samples, which anyone may take a
+ * snapshot of.
+ *
+ * Writing never blocks and never waits on a reader: the ring is simply
+ * overwritten, and the count of samples written is published with an
+ * ordered store every few hundred samples. A reader copies the samples it
+ * wants, then checks the count again; if the writer may have come round to
+ * what it copied, it tries again.
+ *
+ * @author Connor Findlay
+ */
+public final class SpectrumTap {
+	private static final AtomicLongFieldUpdater<SpectrumTap> WRITTEN = AtomicLongFieldUpdater
+			.newUpdater(SpectrumTap.class, "written");
+	// Samples written between publishing the count; a reader keeps this far
+	// from the writer
+	private static final int PUBLISH = 256;
+
+	private final float[] ring;
+	private final int mask;
+	// Samples written, ever; only the writer changes it
+	private volatile long written;
+	private volatile float sampleRate = 44100;
+	// The format last written, and how to read it; writer only
+	private AudioFormat format;
+	private int channels, bytesPerSample, frameSize;
+	private boolean bigEndian, signed, floating;
+
+	/**
+	 * Create a tap.
+	 *
+	 * @param capacity
+	 *            The number of samples to keep, rounded up to a power of two;
+	 *            a few times what a reader takes at once.
+	 */
+	public SpectrumTap(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		ring = new float[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Copy a block of audio in. Only the render thread may call this. Audio
+	 * in a format this can't read is skipped.
+	 *
+	 * @param b
+	 *            The audio, in whole frames.
+	 * @param format
+	 *            Its format.
+	 */
+	public void write(byte[] b, int off, int len, AudioFormat format) {
+		if (format != this.format && !setFormat(format)) {
+			return;
+		}
+		long w = written;
+		float scale = 1f / channels;
+		for (int p = off, end = off + len - frameSize; p <= end; p += frameSize) {
+			float sum = 0;
+			for (int c = 0, q = p; c < channels; c++, q += bytesPerSample) {
+				sum += sample(b, q);
+			}
+			ring[(int) w++ & mask] = sum * scale;
+			if ((w & PUBLISH - 1) == 0) {
+				WRITTEN.lazySet(this, w);
+			}
+		}
+		WRITTEN.lazySet(this, w);
+	}
+
+	/**
+	 * @return The number of samples written so far; it goes up while audio
+	 *         plays.
+	 */
+	public long getWritten() {
+		return written;
+	}
+
+	/**
+	 * @return The sample rate of the audio last written.
+	 */
+	public float getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Copy the latest samples out.
+	 *
+	 * @param dst
+	 *            Filled with the latest dst.length samples, oldest first, as
+	 *            floats from -1 to 1. It must be well short of the ring.
+	 * @return false if there haven't been that many samples yet.
+	 */
+	public boolean snapshot(float[] dst) {
+		int n = dst.length;
+		while (true) {
+			long end = written;
+			if (end < n) {
+				return false;
+			}
+			long start = end - n;
+			int from = (int) start & mask;
+			int first = Math.min(n, ring.length - from);
+			System.arraycopy(ring, from, dst, 0, first);
+			System.arraycopy(ring, 0, dst, first, n - first);
+			// Still good if the writer hasn't come round to what we copied
+			if (written - start + PUBLISH <= ring.length) {
+				return true;
+			}
+		}
+	}
+
+	// -----Privates-----
+
+	private boolean setFormat(AudioFormat f) {
+		AudioFormat.Encoding e = f.getEncoding();
+		int bits = f.getSampleSizeInBits();
+		boolean pcm = e.equals(AudioFormat.Encoding.PCM_SIGNED)
+				|| e.equals(AudioFormat.Encoding.PCM_UNSIGNED);
+		boolean pcmFloat = e.equals(AudioFormat.Encoding.PCM_FLOAT);
+		if (!(pcm && bits % 8 == 0 && bits >= 8 && bits <= 32 || pcmFloat
+				&& bits == 32) || f.getChannels() < 1) {
+			return false;
+		}
+		format = f;
+		channels = f.getChannels();
+		bytesPerSample = bits / 8;
+		frameSize = f.getFrameSize() > 0 ? f.getFrameSize() : channels
+				* bytesPerSample;
+		bigEndian = f.isBigEndian();
+		signed = !e.equals(AudioFormat.Encoding.PCM_UNSIGNED);
+		floating = pcmFloat;
+		sampleRate = f.getSampleRate();
+		return true;
+	}
+
+	/**
+	 * @return The sample at p, from -1 to 1.
+	 */
+	private float sample(byte[] b, int p) {
+		if (bytesPerSample == 2 && signed) {
+			// The usual case
+			int v = bigEndian ? b[p] << 8 | b[p + 1] & 0xFF : b[p + 1] << 8
+					| b[p] & 0xFF;
+			return v * (1f / 32768);
+		}
+		int v = 0;
+		for (int i = 0; i < bytesPerSample; i++) {
+			int shift = 8 * (bigEndian ? bytesPerSample - 1 - i : i);
+			v |= (b[p + i] & 0xFF) << shift;
+		}
+		if (floating) {
+			return Float.intBitsToFloat(v);
+		}
+		int bits = 8 * bytesPerSample;
+		if (!signed) {
+			v -= 1 << bits - 1;
+		} else if (bits < 32) {
+			// Sign extend
+			v = v << 32 - bits >> 32 - bits;
+		}
+		return v / (float) (1L << bits - 1);
+	}
+}
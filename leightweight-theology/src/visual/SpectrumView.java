@@ -0,0 +1,70 @@
+package visual;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+
+import javax.swing.JComponent;
+
+/**
+ * Draws the band levels from a {@link SpectrumAnalyzer} as bars. It is
+ * small and plain, to sit under the player's buttons or on its own in a
+ * corner of the screen.
+ *
+ * @author Connor Findlay
+ */
+public class SpectrumView extends JComponent implements
+		SpectrumAnalyzer.Listener {
+	private static final long serialVersionUID = 1L;
+	private static final Color BAR = new Color(0x4A90D9);
+	private static final int GAP = 1;
+
+	// Written by the analyzer, read when painting
+	private float[] levels = new float[0];
+
+	/**
+	 * Make a view.
+	 *
+	 * @param width
+	 *            The preferred width.
+	 * @param height
+	 *            The preferred height.
+	 */
+	public SpectrumView(int width, int height) {
+		setPreferredSize(new Dimension(width, height));
+		setOpaque(true);
+		setBackground(Color.BLACK);
+	}
+
+	/**
+	 * SpectrumAnalyzer.Listener. Keep the new levels, and ask for a repaint;
+	 * Swing folds repaints together, so this is cheap however often it comes.
+	 */
+	public void spectrumUpdated(float[] l) {
+		synchronized (this) {
+			if (levels.length != l.length) {
+				levels = new float[l.length];
+			}
+			System.arraycopy(l, 0, levels, 0, l.length);
+		}
+		repaint();
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		int w = getWidth(), h = getHeight();
+		g.setColor(getBackground());
+		g.fillRect(0, 0, w, h);
+		g.setColor(BAR);
+		synchronized (this) {
+			int n = levels.length;
+			for (int b = 0; b < n; b++) {
+				int x0 = b * w / n, x1 = (b + 1) * w / n - GAP;
+				int bar = Math.round(levels[b] * h);
+				if (bar > 0 && x1 > x0) {
+					g.fillRect(x0, h - bar, x1 - x0, bar);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package wav;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import audio.Seekable;
+
+/**
+ * A stream over the memory mapped samples of a {@link WaveFile}. Reads copy
+ * straight out of the mapping into the caller's array, and seeking is just
+ * moving a position, so it costs the same wherever in the file it goes.
+ *
+ * @author Connor Findlay
+ */
+public class WaveAudioInputStream extends AudioInputStream implements
+		Seekable {
+	private final MappedInputStream data;
+
+	WaveAudioInputStream(ByteBuffer[] windows, long framesPerWindow,
+			AudioFormat format, long frameLength) {
+		this(new MappedInputStream(windows, framesPerWindow
+				* format.getFrameSize()), format, frameLength);
+	}
+
+	private WaveAudioInputStream(MappedInputStream data, AudioFormat format,
+			long frameLength) {
+		super(data, format, frameLength);
+		this.data = data;
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len)
+			throws java.io.IOException {
+		return super.read(b, off, len);
+	}
+
+	@Override
+	public synchronized void seek(long frame) {
+		frame = Math.max(0, Math.min(frame, frameLength));
+		data.position(frame * frameSize);
+		framePos = frame;
+	}
+
+	@Override
+	public synchronized long getFramePosition() {
+		return framePos;
+	}
+
+	/**
+	 * Reads bytes out of a run of mapped windows, as if they were one long
+	 * buffer.
+	 */
+	private static final class MappedInputStream extends InputStream {
+		private final ByteBuffer[] windows;
+		private final long windowBytes;
+		private long position;
+		private long mark;
+
+		MappedInputStream(ByteBuffer[] windows, long windowBytes) {
+			this.windows = windows;
+			this.windowBytes = windowBytes;
+		}
+
+		void position(long pos) {
+			position = pos;
+		}
+
+		@Override
+		public int read() {
+			if (position >= length()) {
+				return -1;
+			}
+			ByteBuffer w = windows[(int) (position / windowBytes)];
+			return w.get((int) (position++ % windowBytes)) & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (position >= length()) {
+				return -1;
+			}
+			int done = 0;
+			while (done < len && position < length()) {
+				ByteBuffer w = windows[(int) (position / windowBytes)];
+				w.position((int) (position % windowBytes));
+				int n = Math.min(len - done, w.remaining());
+				w.get(b, off + done, n);
+				done += n;
+				position += n;
+			}
+			return done;
+		}
+
+		@Override
+		public long skip(long n) {
+			long skipped = Math.max(0, Math.min(n, length() - position));
+			position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, length() - position);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public void mark(int readlimit) {
+			mark = position;
+		}
+
+		@Override
+		public void reset() {
+			position = mark;
+		}
+
+		private long length() {
+			if (windows.length == 0) {
+				return 0;
+			}
+			return (windows.length - 1) * windowBytes
+					+ windows[windows.length - 1].capacity();
+		}
+	}
+}